@@ -0,0 +1,267 @@
+import bench.Codec;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Адаптеры кодеров к {@link Codec}. Класс должен быть в пакете по умолчанию - только отсюда видны сами кодеры;
+ * бенчмарки находят его через {@link Class#forName(String)}.
+ *
+ * Модель строится один раз в {@link #create}, поэтому в замеры входят только encode и decode.
+ */
+public class Codecs {
+    private Codecs() {
+    }
+
+    /**
+     * @param name arithmetic32, arithmetic32-precise, arithmetic64, range32, carryless32,
+     *             carryless32-unoptimized, carryless64-&lt;minRangeBits&gt;
+     *             carryless64-interleaved-&lt;lanes&gt; (minRangeBits по умолчанию), ans-&lt;scaleBits&gt;
+     *             dmc-&lt;log2 maxNodes&gt;, bittree-&lt;contextBits&gt;, lz77-&lt;level&gt; или bwt-&lt;log2 blockSize&gt;
+     *             (у четырёх последних модель адаптивная, data не используется),
+     *             container-range, container-carryless64 (count() и таблица частот на каждое сообщение, data не используется),
+     *             trained-range, trained-carryless64 ({@link TrainedModel}, обученная по data)
+     * @param data данные, по которым строится модель
+     */
+    public static Codec create(String name, byte[] data) {
+        if (name.startsWith("container-"))
+            return container(coderId(name.substring("container-".length())));
+        if (name.startsWith("trained-"))
+            return trained(coderId(name.substring("trained-".length())), data);
+        if (name.startsWith("ans-"))
+            return ans(Integer.parseInt(name.substring("ans-".length())), data);
+        if (name.startsWith("bwt-"))
+            return bwt(Integer.parseInt(name.substring("bwt-".length())));
+        if (name.startsWith("lz77-"))
+            return lz77(Integer.parseInt(name.substring("lz77-".length())));
+        if (name.startsWith("bittree-"))
+            return bitTree(Integer.parseInt(name.substring("bittree-".length())));
+        if (name.startsWith("dmc-"))
+            return dmc(Integer.parseInt(name.substring("dmc-".length())));
+        if (name.startsWith("carryless64-interleaved-"))
+            return carryless64Interleaved(Integer.parseInt(name.substring("carryless64-interleaved-".length())), data);
+        if (name.startsWith("carryless64-"))
+            return carryless64(Integer.parseInt(name.substring("carryless64-".length())), data);
+        if (name.equals("arithmetic32"))
+            return arithmetic32(data, false);
+        if (name.equals("arithmetic32-precise"))
+            return arithmetic32(data, true);
+        if (name.equals("arithmetic64"))
+            return arithmetic64(data);
+        if (name.equals("range32"))
+            return range32(data);
+        if (name.equals("carryless32"))
+            return carryless32(data);
+        if (name.equals("carryless32-unoptimized"))
+            return carryless32Unoptimized(data);
+        throw new IllegalArgumentException("Unknown coder: " + name);
+    }
+
+    private static Codec arithmetic32(byte[] data, final boolean precise) {
+        final ArithmeticCoder coder = new ArithmeticCoder(256, 32);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length, precise).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length, precise);
+            }
+        };
+    }
+
+    private static Codec arithmetic64(byte[] data) {
+        final ArithmeticCoder64 coder = new ArithmeticCoder64(256);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    private static Codec range32(byte[] data) {
+        final RangeCoder coder = new RangeCoder(256);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    private static Codec carryless32(byte[] data) {
+        final CarrylessRangeCoder coder = new CarrylessRangeCoder(256);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    // У неоптимизированной версии есть только int[] перегрузки, так что в замер входит и преобразование в int[]
+    private static Codec carryless32Unoptimized(byte[] data) {
+        final CarrylessRangeCoder coder = new CarrylessRangeCoder(256);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                int[] message = new int[data.length];
+                for (int i = 0; i < data.length; i++)
+                    message[i] = data[i] & 0xff;
+                return coder.encodeUnoptimized(message).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                int[] message = coder.decodeUnoptimized(new ByteArrayInputStream(encoded), dst.length);
+                for (int i = 0; i < dst.length; i++)
+                    dst[i] = (byte) message[i];
+            }
+        };
+    }
+
+    private static Codec carryless64(int minRangeBits, byte[] data) {
+        final CarrylessRangeCoder64 coder = new CarrylessRangeCoder64(256, minRangeBits);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    private static Codec carryless64Interleaved(final int lanes, byte[] data) {
+        final CarrylessRangeCoder64 coder = new CarrylessRangeCoder64(256);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encodeInterleaved(data, 0, data.length, lanes).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decodeInterleaved(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    private static Codec ans(int scaleBits, byte[] data) {
+        final AnsCoder coder = new AnsCoder(256, scaleBits);
+        coder.count(data, 0, data.length);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    // DMC строит модель по ходу кодирования, так что в замер входит и она, и выделение памяти под состояния
+    private static Codec dmc(int maxNodesBits) {
+        final DmcCoder coder = new DmcCoder(1 << maxNodesBits);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    private static Codec bitTree(int contextBits) {
+        final BitTreeCoder coder = new BitTreeCoder(contextBits);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return coder.encode(data, 0, data.length).toByteArray();
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                coder.decode(new ByteArrayInputStream(encoded), dst, 0, dst.length);
+            }
+        };
+    }
+
+    private static Codec lz77(int level) {
+        final Lz77Compressor compressor = new Lz77Compressor(level);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return compressor.compress(data);
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                byte[] decoded = compressor.decompress(encoded);
+                System.arraycopy(decoded, 0, dst, 0, decoded.length);
+            }
+        };
+    }
+
+    private static Codec bwt(int blockSizeBits) {
+        final BwtCompressor compressor = new BwtCompressor(1 << blockSizeBits);
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return compressor.compress(data);
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                byte[] decoded = compressor.decompress(encoded);
+                System.arraycopy(decoded, 0, dst, 0, decoded.length);
+            }
+        };
+    }
+
+    private static int coderId(String name) {
+        if (name.equals("range"))
+            return CompressedContainer.CODER_RANGE;
+        if (name.equals("carryless64"))
+            return CompressedContainer.CODER_CARRYLESS64;
+        throw new IllegalArgumentException("Unknown coder: " + name);
+    }
+
+    // Самоописывающий контейнер: в замер входят count() и запись и разбор таблицы частот
+    private static Codec container(final int coder) {
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return CompressedContainer.encode(data, 0, data.length, coder, coder == CompressedContainer.CODER_CARRYLESS64 ? 32 : 0);
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                byte[] decoded = CompressedContainer.decodeBytes(encoded);
+                System.arraycopy(decoded, 0, dst, 0, decoded.length);
+            }
+        };
+    }
+
+    private static Codec trained(final int coder, byte[] data) {
+        final TrainedModelCodec codec = new TrainedModelCodec();
+        codec.register(TrainedModel.train(1, data, 0, data.length));
+        return new Codec() {
+            public byte[] encode(byte[] data) {
+                return codec.encode(1, coder, data, 0, data.length);
+            }
+
+            public void decode(byte[] encoded, byte[] dst) {
+                codec.decodeInto(encoded, 0, encoded.length, dst, 0);
+            }
+        };
+    }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Общая часть бенчмарков: входные данные, построение модели и замер encode/decode.
+ * Кроме операций в секунду, через счётчик {@link Bytes} выводится скорость в байтах исходных данных в секунду.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractCoderBenchmark {
+    @Param({"book1.txt", "binary.dll", "pic.gif"})
+    public String file;
+
+    private byte[] data;
+    private byte[] encoded;
+    private byte[] decoded;
+    private Codec codec;
+
+    protected abstract String coderName();
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        data = readResource(file);
+        codec = (Codec) Class.forName("Codecs")
+                .getMethod("create", String.class, byte[].class)
+                .invoke(null, coderName(), data);
+        encoded = codec.encode(data);
+        decoded = new byte[data.length];
+        codec.decode(encoded, decoded);
+        if (!Arrays.equals(data, decoded))
+            throw new IllegalStateException("Verification failed: " + coderName() + " on " + file);
+    }
+
+    @Benchmark
+    public byte[] encode(Bytes counter) {
+        counter.bytes += data.length;
+        return codec.encode(data);
+    }
+
+    @Benchmark
+    public byte[] decode(Bytes counter) {
+        counter.bytes += data.length;
+        codec.decode(encoded, decoded);
+        return decoded;
+    }
+
+    static byte[] readResource(String name) throws IOException {
+        InputStream in = AbstractCoderBenchmark.class.getClassLoader().getResourceAsStream(name);
+        if (in == null)
+            throw new IOException("Resource not found: " + name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
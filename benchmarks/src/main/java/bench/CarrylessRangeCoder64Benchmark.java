@@ -0,0 +1,17 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * CarrylessRangeCoder64 при каждом допустимом minRangeBits (8..56).
+ * Чтобы прогнать только часть значений: {@code -p minRangeBits=16,24,32}.
+ */
+public class CarrylessRangeCoder64Benchmark extends AbstractCoderBenchmark {
+    @Param({"8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "23", "24", "25", "26", "27", "28", "29", "30", "31", "32", "33", "34", "35", "36", "37", "38", "39", "40", "41", "42", "43", "44", "45", "46", "47", "48", "49", "50", "51", "52", "53", "54", "55", "56"})
+    public int minRangeBits;
+
+    @Override
+    protected String coderName() {
+        return "carryless64-" + minRangeBits;
+    }
+}
@@ -0,0 +1,13 @@
+package bench;
+
+/**
+ * Кодер с уже построенной моделью (probs), как его видят бенчмарки.
+ *
+ * Кодеры лежат в пакете по умолчанию, а JMH не поддерживает бенчмарки в пакете по умолчанию,
+ * поэтому бенчмарки работают с кодерами через этот интерфейс, а реализации создаёт {@code Codecs}.
+ */
+public interface Codec {
+    byte[] encode(byte[] data);
+
+    void decode(byte[] encoded, byte[] dst);
+}
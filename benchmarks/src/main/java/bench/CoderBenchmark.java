@@ -0,0 +1,20 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Все кодеры, кроме CarrylessRangeCoder64 (для него отдельный перебор minRangeBits - {@link CarrylessRangeCoder64Benchmark}).
+ */
+public class CoderBenchmark extends AbstractCoderBenchmark {
+    @Param({"arithmetic32", "arithmetic32-precise", "arithmetic64", "range32", "carryless32", "carryless32-unoptimized",
+            "carryless64-interleaved-1", "carryless64-interleaved-2", "carryless64-interleaved-4", "carryless64-interleaved-8",
+            "ans-10", "ans-12", "ans-14", "dmc-16", "dmc-20",
+            "bittree-0", "bittree-8", "lz77-1", "lz77-6",
+            "bwt-20", "bwt-23"})
+    public String coder;
+
+    @Override
+    protected String coderName() {
+        return coder;
+    }
+}
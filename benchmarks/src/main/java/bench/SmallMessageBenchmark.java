@@ -0,0 +1,67 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Короткие сообщения: таблица частот в каждом контейнере против обученной модели.
+ * Модель обучается на первой половине book1.txt, сообщение берётся из второй. Размер сжатого сообщения
+ * печатается при подготовке.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmallMessageBenchmark {
+    @Param({"container-range", "container-carryless64", "trained-range", "trained-carryless64"})
+    public String coder;
+
+    @Param({"64", "256", "1024", "4096"})
+    public int size;
+
+    private byte[] message;
+    private byte[] encoded;
+    private byte[] decoded;
+    private Codec codec;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] book = AbstractCoderBenchmark.readResource("book1.txt");
+        int half = book.length / 2;
+        codec = (Codec) Class.forName("Codecs")
+                .getMethod("create", String.class, byte[].class)
+                .invoke(null, coder, Arrays.copyOf(book, half));
+        message = Arrays.copyOfRange(book, half, half + size);
+        encoded = codec.encode(message);
+        decoded = new byte[size];
+        codec.decode(encoded, decoded);
+        if (!Arrays.equals(message, decoded))
+            throw new IllegalStateException("Verification failed: " + coder + " on " + size + " bytes");
+        System.out.println(coder + ", " + size + " bytes -> " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        codec.decode(encoded, decoded);
+        return decoded;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Адаптивная модель нулевого порядка: частоты символов обновляются после кодирования каждого символа,
+ * поэтому не нужен ни предварительный проход по сообщению ({@code count()}), ни передача probs декодеру.
+ * Кодер и декодер должны начинать с модели в одинаковом начальном состоянии (новой или после {@link #reset()}).
+ *
+ * Накопленные частоты хранятся в дереве Фенвика, так что и запрос накопленной частоты,
+ * и поиск символа по ней, и обновление выполняются за O(log alphabetSize). Когда сумма частот
+ * превышает maxTotal, все частоты делятся пополам (с сохранением ненулевых значений) - это
+ * и ограничивает сумму сверху (она не должна превышать MIN_RANGE кодера), и позволяет модели
+ * подстраиваться под меняющуюся статистику.
+ */
+public class AdaptiveModel implements Model {
+    private final int alphabetSize;
+    private final int maxTotal;
+    private final int increment;
+
+    private final int[] freqs;
+    // Дерево Фенвика, индексы с 1: tree[i] - сумма freqs на отрезке (i - (i & -i); i]
+    private final int[] tree;
+    // Старшая степень двойки, не превосходящая alphabetSize, - первый шаг при поиске символа
+    private final int topStep;
+    private int total;
+
+    public AdaptiveModel(int alphabetSize) {
+        this(alphabetSize, 1 << 16, 32);
+    }
+
+    public AdaptiveModel(int alphabetSize, int maxTotal, int increment) {
+        if (alphabetSize < 1)
+            throw new IllegalArgumentException("alphabetSize should be > 0");
+        if (increment < 1)
+            throw new IllegalArgumentException("increment should be > 0");
+        // После деления пополам сумма должна опуститься ниже maxTotal хотя бы на increment
+        if (maxTotal < 2 * (alphabetSize + increment))
+            throw new IllegalArgumentException("maxTotal should be >= 2 * (alphabetSize + increment)");
+        this.alphabetSize = alphabetSize;
+        this.maxTotal = maxTotal;
+        this.increment = increment;
+        this.freqs = new int[alphabetSize];
+        this.tree = new int[alphabetSize + 1];
+        this.topStep = Integer.highestOneBit(alphabetSize);
+        reset();
+    }
+
+    /**
+     * Возвращает модель в начальное состояние, в котором все символы равновероятны.
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < alphabetSize; i++)
+            freqs[i] = 1;
+        rebuild();
+    }
+
+    @Override
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    @Override
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    @Override
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public int getFreq(int c) {
+        return freqs[c];
+    }
+
+    /**
+     * @return сумма частот символов, меньших c (аналог sumProbs[c])
+     */
+    @Override
+    public int getLow(int c) {
+        int sum = 0;
+        for (int i = c; i > 0; i -= i & -i)
+            sum += tree[i];
+        return sum;
+    }
+
+    /**
+     * Находит символ c, для которого getLow(c) <= target < getLow(c) + getFreq(c).
+     * Спуск по дереву Фенвика от старшего шага к младшему.
+     */
+    @Override
+    public int findSymbol(int target) {
+        int pos = 0;
+        for (int step = topStep; step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= alphabetSize && tree[next] <= target) {
+                pos = next;
+                target -= tree[next];
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Учитывает очередной закодированный (декодированный) символ.
+     */
+    @Override
+    public void update(int c) {
+        freqs[c] += increment;
+        total += increment;
+        if (total > maxTotal) {
+            // Делим частоты пополам, не допуская нулевых
+            for (int i = 0; i < alphabetSize; i++)
+                freqs[i] = (freqs[i] + 1) >>> 1;
+            rebuild();
+        } else {
+            for (int i = c + 1; i <= alphabetSize; i += i & -i)
+                tree[i] += increment;
+        }
+    }
+
+    // Построение дерева Фенвика за O(alphabetSize)
+    private void rebuild() {
+        total = 0;
+        for (int i = 1; i <= alphabetSize; i++) {
+            tree[i] = freqs[i - 1];
+            total += freqs[i - 1];
+        }
+        for (int i = 1; i <= alphabetSize; i++) {
+            int parent = i + (i & -i);
+            if (parent <= alphabetSize)
+                tree[parent] += tree[i];
+        }
+    }
+}
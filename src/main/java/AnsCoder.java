@@ -0,0 +1,302 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Кодер на асимметричных системах счисления (rANS) с побайтовой нормализацией.
+ *
+ * Частоты квантуются так, чтобы их сумма была ровно 2^scaleBits. Тогда состояние декодера x делится на
+ * номер слота (x & (2^scaleBits - 1)) и остаток, а символ по слоту берётся из таблицы размером 2^scaleBits -
+ * декодирование обходится без деления и без поиска.
+ *
+ * rANS - стек: символы, закодированные последними, декодируются первыми. Поэтому сообщение кодируется
+ * с конца, а байты пишутся в буфер справа налево - декодер читает их в прямом порядке.
+ *
+ * В отличие от остальных кодеров, символы, которых нет в сообщении, получают нулевую частоту
+ * (каждый лишний слот ухудшает сжатие), и закодировать их нельзя.
+ *
+ * Накопленные суммы и таблица слотов строятся в count() и setProbs(), поэтому encode и decode ничего
+ * не меняют в экземпляре, и его можно вызывать из нескольких потоков одновременно.
+ */
+public class AnsCoder {
+    private static final int BITS_IN_BYTE = 8;
+    // Нижняя граница состояния, x всегда в [RANS_L; RANS_L << 8), т.е. помещается в положительный int
+    private static final int RANS_L = 1 << 23;
+
+    public static final int SCALE_BITS_MAX = 16;
+
+    private final int alphabetSize;
+    private final int scaleBits;
+    private final int[] probs;
+
+    private final int[] sumProbs;
+    // Для каждого слота - символ, которому он принадлежит, и смещение слота внутри интервала символа
+    private final int[] slotSymbols;
+    private final int[] slotBias;
+
+    public AnsCoder(int alphabetSize) {
+        this(alphabetSize, 12);
+    }
+
+    public AnsCoder(int alphabetSize, int scaleBits) {
+        if (scaleBits < 1 || scaleBits > SCALE_BITS_MAX)
+            throw new IllegalArgumentException("scaleBits should be in [1; " + SCALE_BITS_MAX + "]");
+        if (alphabetSize < 1 || alphabetSize > (1 << scaleBits))
+            throw new IllegalArgumentException("alphabetSize should be in [1; 2^scaleBits]");
+        this.alphabetSize = alphabetSize;
+        this.scaleBits = scaleBits;
+        this.probs = new int[alphabetSize];
+        this.sumProbs = new int[alphabetSize];
+        this.slotSymbols = new int[1 << scaleBits];
+        this.slotBias = new int[1 << scaleBits];
+    }
+
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    int[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Устанавливает готовые probs (например, прочитанные из заголовка сжатых данных) вместо вызова count().
+     * Сумма probs должна быть равна 2^scaleBits.
+     */
+    public void setProbs(int[] probs) {
+        if (probs.length != alphabetSize)
+            throw new IllegalArgumentException("probs.length should be equal to alphabetSize");
+        long total = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (probs[i] < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            total += probs[i];
+        }
+        if (total != 1 << scaleBits)
+            throw new IllegalArgumentException("sum of probs should be equal to 2^scaleBits");
+        System.arraycopy(probs, 0, this.probs, 0, alphabetSize);
+        updateModel();
+    }
+
+    // Пересчитывает всё, что encode и decode строят по probs
+    private void updateModel() {
+        for (int i = 1; i < alphabetSize; i++)
+            sumProbs[i] = sumProbs[i - 1] + probs[i - 1];
+        for (int c = 0, slot = 0; c < alphabetSize; c++) {
+            for (int k = 0; k < probs[c]; k++, slot++) {
+                slotSymbols[slot] = c;
+                slotBias[slot] = k;
+            }
+        }
+    }
+
+    // Считает частоты и квантует их так, чтобы сумма была ровно 2^scaleBits,
+    // а у каждого встретившегося символа частота была не меньше 1
+    public void count(int[] message) {
+        count(message, null, message.length);
+    }
+
+    public void count(byte[] message, int offset, int length) {
+        count(ByteBuffer.wrap(message, offset, length));
+    }
+
+    // Считает байты между position и limit буфера, position при этом не меняется
+    public void count(ByteBuffer message) {
+        checkByteAlphabet();
+        count(null, message, message.remaining());
+    }
+
+    private void count(int[] message, ByteBuffer bytes, int length) {
+        int[] rawProbs = Frequencies.histogram(message, bytes, length, alphabetSize, Long.MAX_VALUE);
+
+        final int totalCount = 1 << scaleBits;
+        if (length == 0) {
+            // Пустое сообщение: модель не используется, но probs должны быть корректными
+            for (int i = 0; i < alphabetSize; i++)
+                probs[i] = 0;
+            probs[0] = totalCount;
+            updateModel();
+            return;
+        }
+
+        int sum = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (rawProbs[i] == 0) {
+                probs[i] = 0;
+            } else {
+                int v = ( int ) ((( long ) rawProbs[i] * totalCount + length / 2) / length);
+                probs[i] = v == 0 ? 1 : v;
+            }
+            sum += probs[i];
+        }
+
+        // После округления сумма может отличаться от totalCount - поправляем самые частые символы,
+        // на них относительная ошибка меньше всего
+        while (sum != totalCount) {
+            int maxIndex = -1;
+            for (int i = 0; i < alphabetSize; i++) {
+                if ((sum < totalCount || probs[i] > 1) && (maxIndex == -1 || probs[i] > probs[maxIndex]))
+                    maxIndex = i;
+            }
+            int delta = sum < totalCount ? totalCount - sum : -Math.min(sum - totalCount, probs[maxIndex] - 1);
+            probs[maxIndex] += delta;
+            sum += delta;
+        }
+        updateModel();
+    }
+
+    private void checkByteAlphabet() {
+        if (alphabetSize < 256)
+            throw new IllegalStateException("alphabetSize should be >= 256 to code bytes");
+    }
+
+    public ByteArrayOutputStream encode(int[] message) {
+        return encodeToStream(message, null, null, 0, message.length);
+    }
+
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        checkByteAlphabet();
+        return encodeToStream(null, message, null, offset, length);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        checkByteAlphabet();
+        return encodeToStream(null, null, message, message.position(), message.remaining());
+    }
+
+    /**
+     * Кодирует len байт src начиная с off в dst начиная с dstOff. В отличие от encode ничего не выделяет.
+     * Байты кодируются с конца dst и потом сдвигаются к dstOff, поэтому dst за концом результата тоже меняется.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkByteAlphabet();
+        int end = encode(null, src, null, off, len, dst, dstOff);
+        return end < 0 ? -1 : end - dstOff;
+    }
+
+    // Кодирует во временный массив, увеличивая его, пока результат не поместится
+    private ByteArrayOutputStream encodeToStream(int[] message, byte[] array, ByteBuffer bytes, int base, int length) {
+        byte[] buffer = new byte[(int) Math.min(Math.max(16L, length + (long) length / 4), Integer.MAX_VALUE - 8)];
+        int end;
+        while ((end = encode(message, array, bytes, base, length, buffer, 0)) < 0) {
+            if (buffer.length == Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Encoded data is too large");
+            buffer = new byte[(int) Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8)];
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(end);
+        stream.write(buffer, 0, end);
+        return stream;
+    }
+
+    // Символы берутся из message, array или bytes (что не null) начиная с base.
+    // Возвращает позицию в dst после закодированных данных или -1, если dst не хватило места
+    private int encode(int[] message, byte[] array, ByteBuffer bytes, int base, int length, byte[] dst, int dstOff) {
+        if (length == 0) return dstOff;
+        // Перед данными - 4 байта конечного состояния
+        int limit = dstOff + 4;
+        if (limit > dst.length) return -1;
+
+        // dst заполняется с конца
+        int pos = dst.length;
+        int x = RANS_L;
+        for (int i = length - 1; i >= 0; i--) {
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
+            int freq = probs[c];
+            if (freq == 0)
+                throw new IllegalArgumentException("Symbol " + c + " has zero frequency, call count() first");
+
+            // Выводим младшие байты, чтобы после кодирования символа x остался в [RANS_L; RANS_L << 8)
+            // Когда у символа все слоты (freq = 2^scaleBits), xMax = 2^31 - поэтому long
+            long xMax = (( long ) (RANS_L >>> scaleBits) << BITS_IN_BYTE) * freq;
+            while (x >= xMax) {
+                if (pos == limit) return -1;
+                dst[--pos] = ( byte ) x;
+                x >>>= BITS_IN_BYTE;
+            }
+            x = ((x / freq) << scaleBits) + (x % freq) + sumProbs[c];
+        }
+
+        // Конечное состояние - первым, с него декодер и начинает
+        dst[dstOff] = ( byte ) (x >>> 24);
+        dst[dstOff + 1] = ( byte ) (x >>> 16);
+        dst[dstOff + 2] = ( byte ) (x >>> 8);
+        dst[dstOff + 3] = ( byte ) x;
+        System.arraycopy(dst, pos, dst, limit, dst.length - pos);
+        return limit + dst.length - pos;
+    }
+
+    public int[] decode(ByteArrayInputStream inputStream, int len) {
+        int[] message = new int[len];
+        decodeFromStream(inputStream, message, null, null, 0, len);
+        return message;
+    }
+
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeFromStream(inputStream, null, dst, null, offset, length);
+    }
+
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeFromStream(inputStream, null, null, dst, dst.position(), dst.remaining());
+    }
+
+    /**
+     * Декодирует len байт в dst начиная с dstOff из данных src[off; off + srcLen). В отличие от decode ничего не выделяет.
+     *
+     * @return количество прочитанных из src байт
+     * @throws IllegalArgumentException если данные обрезаны или повреждены
+     */
+    public int decodeInto(byte[] src, int off, int srcLen, byte[] dst, int dstOff, int len) {
+        return decode(src, off, off + srcLen, null, dst, null, dstOff, len) - off;
+    }
+
+    // Декодер читает из массива: забираем из потока столько, сколько может занять сообщение, а непрочитанное
+    // потом возвращаем. Начальное состояние - 4 байта, а после символа x >= RANS_L >>> scaleBits >= 1,
+    // так что до RANS_L оно дочитывает не больше 3 байт
+    private void decodeFromStream(ByteArrayInputStream inputStream, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        byte[] src = StreamWindow.read(inputStream, 4 + 3L * len);
+        int end = decode(src, 0, src.length, message, array, bytes, base, len);
+        StreamWindow.consume(inputStream, end);
+    }
+
+    // Символы пишутся в message, array или bytes (что не null) начиная с base.
+    // Возвращает позицию в src после прочитанных данных
+    private int decode(byte[] src, int srcOff, int srcLimit, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        if (len == 0) return srcOff;
+
+        final int mask = (1 << scaleBits) - 1;
+        int pos = srcOff;
+        if (srcLimit - pos < 4)
+            throw new IllegalArgumentException("Unexpected end of compressed data");
+        int x = 0;
+        for (int i = 0; i < 4; i++)
+            x = (x << BITS_IN_BYTE) | (src[pos++] & 0xff);
+        // x должно быть в [RANS_L; RANS_L << 8), а RANS_L << 8 = 2^31, так что x >= 2^31 здесь отрицательное.
+        // Без проверки из x = 0 цикл дозагрузки ниже никогда не выйдет
+        if (x < RANS_L)
+            throw new IllegalArgumentException("Corrupted compressed data");
+
+        for (int i = 0; i < len; i++) {
+            int slot = x & mask;
+            int c = slotSymbols[slot];
+
+            if (message != null) message[base + i] = c;
+            else if (array != null) array[base + i] = ( byte ) c;
+            else bytes.put(base + i, ( byte ) c);
+
+            // x = freq * (x >> scaleBits) + slot - sumProbs[c]
+            x = probs[c] * (x >>> scaleBits) + slotBias[slot];
+            while (x < RANS_L) {
+                // Кодер записывает ровно столько байт, сколько прочитает декодер
+                if (pos >= srcLimit)
+                    throw new IllegalArgumentException("Unexpected end of compressed data");
+                x = (x << BITS_IN_BYTE) | (src[pos++] & 0xff);
+            }
+        }
+
+        return pos;
+    }
+}
@@ -1,9 +1,14 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * 32-битный арифметический кодер.
  *
+ * Всё состояние кодирования и декодирования - локальные переменные, а накопленные суммы probs
+ * пересчитываются только в count() и setProbs(), поэтому после настройки модели один экземпляр
+ * можно использовать из нескольких потоков.
+ *
  * @author igor.kostromin
  *         19.05.2014 11:21
  */
@@ -15,6 +20,11 @@ public class ArithmeticCoder {
     private final int half;
     private final int qtr;
 
+    // Строятся по probs в count() и setProbs(), чтобы не пересчитывать их при каждом encode и decode
+    private final int[] sumProbs;
+    private int totalCount;
+    private SymbolLookup lookup;
+
     public ArithmeticCoder(int alphabetSize) {
         this(alphabetSize, 32);
     }
@@ -26,35 +36,73 @@ public class ArithmeticCoder {
         assert alphabetSize <= 1 << (precision - 2);
         this.alphabetSize = alphabetSize;
         this.probs = new int[alphabetSize];
+        this.sumProbs = new int[alphabetSize];
         this.precision = precision;
         this.half = 1 << (precision - 1);
         this.qtr = 1 << (precision - 2);
     }
 
+    int[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Устанавливает готовые probs (например, прочитанные из заголовка сжатых данных) вместо вызова count().
+     * Сумма probs - не больше qtr.
+     */
+    public void setProbs(int[] probs) {
+        if (probs.length != alphabetSize)
+            throw new IllegalArgumentException("probs.length should be equal to alphabetSize");
+        long total = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (probs[i] < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            total += probs[i];
+        }
+        if (total == 0 || total > (qtr & 0xffffffffL))
+            throw new IllegalArgumentException("sum of probs should be in (0; qtr]");
+        System.arraycopy(probs, 0, this.probs, 0, alphabetSize);
+        updateModel();
+    }
+
+    // Пересчитывает всё, что encode и decode строят по probs
+    private void updateModel() {
+        // Накапливающаяся сумма встречаемости символов
+        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
+        for(int i = 0; i < alphabetSize; i++){
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        // Таблица для поиска символа по threshold без перебора всего алфавита
+        lookup = new SymbolLookup( probs );
+    }
+
+    private void checkProbs() {
+        if (lookup == null)
+            throw new IllegalStateException("probs are not set, call count() or setProbs() first");
+    }
+
     // считает rawProbs и преобразует в probs, пригодные для кодирования
     // на выходе должны быть probs, в котором нет ни одного нулевого элемента,
     // а сумма всех значений не превышает qtr
     public void count(int[] message){
-        int[] rawProbs = new int[alphabetSize];
-
-        // Сначала просто считаем количество каждого элемента, нормализуя их если
-        // чьё-то кол-во превосходит qtr (для избежания переполнения)
-        int maxCount = 0;
-        for(int i = 0; i < message.length; i++){
-            int prob = ++rawProbs[message[i]];
-            if(prob > maxCount){
-                maxCount = prob;
-
-                // Если для одного из символов кол-во достигло qtr, нужно нормализовать
-                // все вероятности, поделив кол-во каждого на 2
-                if(maxCount == qtr){
-                    for(int j = 0; j < alphabetSize; j++){
-                        rawProbs[j] <<= 1;
-                    }
-                    maxCount <<= 1;
-                }
-            }
-        }
+        count(message, null, message.length);
+    }
+
+    public void count(byte[] message, int offset, int length){
+        count(ByteBuffer.wrap(message, offset, length));
+    }
+
+    // Считает байты между position и limit буфера, position при этом не меняется
+    public void count(ByteBuffer message){
+        checkByteAlphabet();
+        count(null, message, message.remaining());
+    }
+
+    private void count(int[] message, ByteBuffer bytes, int length){
+        // Сначала просто считаем количество каждого элемента; если для одного из символов кол-во
+        // достигло qtr, все кол-ва удваиваются (см. Frequencies.histogram)
+        int[] rawProbs = Frequencies.histogram(message, bytes, length, alphabetSize, qtr);
 
         // Теперь считаем общую сумму накопленных значений для того, чтобы окончательно
         // нормализовать массив probs.
@@ -86,6 +134,12 @@ public class ArithmeticCoder {
         for (int i = 0; i < alphabetSize; i++)
             calculatedTotalCount += probs[i];
         assert compareUnsigned( calculatedTotalCount, qtr) <= 0;
+        updateModel();
+    }
+
+    private void checkByteAlphabet() {
+        if (alphabetSize < 256)
+            throw new IllegalStateException("alphabetSize should be >= 256 to code bytes");
     }
 
     private static int compareUnsigned(long a, long b){
@@ -96,33 +150,6 @@ public class ArithmeticCoder {
         return Integer.compare( a ^ 0x80000000, b ^ 0x80000000 );
     }
 
-    private void outBit(int bit){
-        if (bit == 1){
-            currentByte |= bit << bitsUsed;
-        }
-        if (++bitsUsed == 8){
-            stream.write( currentByte );
-            currentByte = 0;
-            bitsUsed = 0;
-        }
-    }
-
-    private void outBits(int bit, int carry){
-        outBit( bit );
-        for(int i=0;i<carry;i++)
-            outBit( bit==1?0:1 );
-    }
-
-    private void flushStream(){
-        if(bitsUsed!=0){
-            stream.write( currentByte );
-        }
-    }
-
-    private ByteArrayOutputStream stream;
-    private byte currentByte;
-    private int bitsUsed;
-
     /**
      *
      * @param message
@@ -134,24 +161,53 @@ public class ArithmeticCoder {
      * @return
      */
     public ByteArrayOutputStream encode(int[] message, boolean morePrecise) {
-        stream = new ByteArrayOutputStream(  );
+        BitWriter writer = new BitWriter( message.length / 2 );
+        encode(message, null, null, 0, message.length, morePrecise, writer);
+        return writer.finish();
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length, boolean morePrecise) {
+        checkByteAlphabet();
+        BitWriter writer = new BitWriter( length / 2 );
+        encode(null, message, null, offset, length, morePrecise, writer);
+        return writer.finish();
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message, boolean morePrecise) {
+        checkByteAlphabet();
+        BitWriter writer = new BitWriter( message.remaining() / 2 );
+        encode(null, null, message, message.position(), message.remaining(), morePrecise, writer);
+        return writer.finish();
+    }
+
+    /**
+     * Кодирует len байт src начиная с off в dst начиная с dstOff. В отличие от encode не выделяет
+     * ни буферов, ни потоков: биты пишутся прямо в dst.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(byte[] src, int off, int len, byte[] dst, int dstOff, boolean morePrecise) {
+        checkByteAlphabet();
+        BitWriter writer = new BitWriter( dst, dstOff );
+        encode(null, src, null, off, len, morePrecise, writer);
+        return writer.finishInto();
+    }
 
+    // Символы берутся из message, array или bytes (что не null) начиная с base
+    private void encode(int[] message, byte[] array, ByteBuffer bytes, int base, int length, boolean morePrecise, BitWriter writer) {
+        checkProbs();
         int firstQtr = 1 << (precision - 2);
         int thirdQtr = half + firstQtr;
 
         int left = 0;
         int right = ( int ) ((1L << precision) - 1);
+        int valueMask = ( int ) ((1L << precision) - 1);
         int carry = 0; // Сколько бит участвует в переносе
-        for (int i = 0; i < message.length; i++){
-            int c = message[i];
+        for (int i = 0; i < length; i++){
+            // В чужой массив уже не поместилось, дальше кодировать незачем
+            if (writer.isOverflow()) return;
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
             long range = (right & 0xFFFFFFFFL) - (left & 0xFFFFFFFFL) + 1;
             assert compareUnsigned( range , qtr) >= 0;
 
@@ -167,23 +223,26 @@ public class ArithmeticCoder {
 
             // Normalize if need
             while (true){
-                if(compareUnsigned( right, half - 1) <= 0){
-                    // out 0 and drop carry
-                    outBits( 0, carry );
+                // Сколько старших бит у left и right совпадает - столько шагов "out 0"/"out 1" подряд,
+                // и все они выполняются разом: выводим эти биты left и сдвигаем интервал.
+                // Если left == right, совпадают все биты - тогда за один раз делаем precision - 1 шагов
+                int equalBits = Math.min( Integer.numberOfLeadingZeros( (left ^ right) << (32 - precision) ), precision - 1 );
+                if (equalBits > 0) {
+                    // Старшие биты left в порядке вывода (первый - в младшем разряде)
+                    int bits = Integer.reverse( left << (32 - precision) );
+                    // out bit and drop carry
+                    writer.writeBitAndRun( bits & 1, carry );
                     carry=0;
-                } else if (compareUnsigned( left , half) >= 0) {
-                    // out 1 and drop carry
-                    outBits( 1, carry );
-                    carry=0;
-                    left -= half;
-                    right -= half;
+                    writer.writeBits( bits >>> 1, equalBits - 1 );
+                    left = (left << equalBits) & valueMask;
+                    right = ((right << equalBits) | ((1 << equalBits) - 1)) & valueMask;
                 } else if (compareUnsigned( left , firstQtr) >= 0 && compareUnsigned( right , thirdQtr - 1) <= 0) {
                     carry++;
                     left -= qtr;
                     right -= qtr;
+                    left += left;
+                    right += right + 1;
                 } else break;
-                left += left;
-                right += right + 1;
             }
         }
 
@@ -202,35 +261,16 @@ public class ArithmeticCoder {
         // Все последующие биты уже не являются необходимыми.
         carry++;
         if ( compareUnsigned( left, firstQtr - 1 ) <= 0 ) {
-            outBits( 0, carry );
+            writer.writeBitAndRun( 0, carry );
         } else {
-            outBits( 1, carry );
-        }
-
-        flushStream();
-        return stream;
-    }
-
-    private byte readingByte;
-    private int readedBits=8;
-
-    private int readBit(ByteArrayInputStream inputStream){
-        if(readedBits==8){
-            int readed = inputStream.read();
-            if(-1 == readed) //throw new IllegalStateException( "Unexpected end of stream" );
-                return 0;
-            readingByte= ( byte ) readed;
-            readedBits=0;
+            writer.writeBitAndRun( 1, carry );
         }
-        if ((readingByte & (1 << readedBits++)) != 0)
-            return 1;
-        return 0;
     }
 
-    private int readFirstNumber(ByteArrayInputStream inputStream){
+    private int readFirstNumber(BitReader reader){
         int n = 0;
         for (int i = 0; i < precision; i++){
-            int bit = readBit( inputStream );
+            int bit = reader.readBit();
             if (bit == 1){
                 n |= 1 << (precision - i - 1);
             }
@@ -240,21 +280,47 @@ public class ArithmeticCoder {
 
     public int[] decode(ByteArrayInputStream inputStream, int len, boolean morePrecise) {
         int[] message = new int[len];
-        int value = readFirstNumber( inputStream );
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, message, null, null, 0, len, morePrecise);
+        reader.finish();
+        return message;
+    }
+
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length, boolean morePrecise) {
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, null, dst, null, offset, length, morePrecise);
+        reader.finish();
+    }
+
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst, boolean morePrecise) {
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, null, null, dst, dst.position(), dst.remaining(), morePrecise);
+        reader.finish();
+    }
+
+    /**
+     * Декодирует len байт в dst начиная с dstOff из данных src[off; off + srcLen). В отличие от decode
+     * не выделяет ни буферов, ни потоков. Данные за концом src считаются нулями, как и у потока.
+     *
+     * @return количество прочитанных из src байт
+     */
+    public int decodeInto(byte[] src, int off, int srcLen, byte[] dst, int dstOff, int len, boolean morePrecise) {
+        BitReader reader = new BitReader( src, off, srcLen );
+        decode(reader, null, dst, null, dstOff, len, morePrecise);
+        return reader.finish();
+    }
+
+    // Символы пишутся в message, array или bytes (что не null) начиная с base
+    private void decode(BitReader reader, int[] message, byte[] array, ByteBuffer bytes, int base, int len, boolean morePrecise) {
+        checkProbs();
+        int value = readFirstNumber( reader );
 
         int left = 0;
         int right = ( int ) ((1L << precision) - 1);
 
         int valueMask = ( int ) ((1L << precision) - 1);
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
-
         int firstQtr = 1 << (precision - 2);
         int thirdQtr = half + firstQtr;
 
@@ -271,11 +337,11 @@ public class ArithmeticCoder {
                 threshold = (int) ((((value & 0xFFFFFFFFL) - left + 1) * totalCount - 1)
                         / (range - range % totalCount));
             }
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
-            }
+            c = lookup.find( threshold & 0xffffffffL );
 
-            message[i] = c;
+            if (message != null) message[base + i] = c;
+            else if (array != null) array[base + i] = ( byte ) c;
+            else bytes.put(base + i, ( byte ) c);
 
             int oldLeft = left;
             assert range / totalCount >= 1;
@@ -289,24 +355,25 @@ public class ArithmeticCoder {
 
             // Normalize if need
             while (true){
-                if(compareUnsigned( right, half - 1) <= 0){
-                } else if (compareUnsigned( left , half) >= 0) {
-                    value -= half;
-                    left -= half;
-                    right -= half;
+                // Шаги с совпадающими старшими битами left и right выполняются разом, как и при кодировании
+                int equalBits = Math.min( Integer.numberOfLeadingZeros( (left ^ right) << (32 - precision) ), precision - 1 );
+                if (equalBits > 0) {
+                    left = (left << equalBits) & valueMask;
+                    right = ((right << equalBits) | ((1 << equalBits) - 1)) & valueMask;
+                    // Первый прочитанный бит должен оказаться старшим
+                    int bits = Integer.reverse( reader.readBits( equalBits ) ) >>> (32 - equalBits);
+                    value = ((value << equalBits) | bits) & valueMask;
                 } else if (compareUnsigned( left , firstQtr) >= 0 && compareUnsigned( right , thirdQtr - 1) <= 0) {
                     value -= qtr;
                     left -= qtr;
                     right -= qtr;
+                    left += left;
+                    right += right + 1;
+                    value <<= 1;
+                    value += reader.readBit();
+                    value &= valueMask;
                 } else break;
-                left += left;
-                right += right + 1;
-                value <<= 1;
-                value += readBit( inputStream );
-                value &= valueMask;
             }
         }
-
-        return message;
     }
 }
@@ -1,5 +1,6 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author igor.kostromin
@@ -13,6 +14,11 @@ public class ArithmeticCoder64 {
     private final long half;
     private final long qtr;
 
+    // Строятся по probs в count() и setProbs(), чтобы не пересчитывать их при каждом encode и decode
+    private final long[] sumProbs;
+    private long totalCount;
+    private SymbolLookup lookup;
+
     public ArithmeticCoder64(int alphabetSize) {
         this(alphabetSize, 64);
     }
@@ -24,35 +30,78 @@ public class ArithmeticCoder64 {
         assert alphabetSize <= 1 << (precision - 2);
         this.alphabetSize = alphabetSize;
         this.probs = new long[alphabetSize];
+        this.sumProbs = new long[alphabetSize];
         this.precision = precision;
         this.half = 1L << (precision - 1);
         this.qtr = 1L << (precision - 2);
     }
 
+    long[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Устанавливает готовые probs (например, прочитанные из заголовка сжатых данных) вместо вызова count().
+     * Сумма probs - не больше qtr.
+     */
+    public void setProbs(long[] probs) {
+        if (probs.length != alphabetSize)
+            throw new IllegalArgumentException("probs.length should be equal to alphabetSize");
+        long total = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (probs[i] < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            total += probs[i];
+        }
+        if (total == 0 || total > qtr)
+            throw new IllegalArgumentException("sum of probs should be in (0; qtr]");
+        System.arraycopy(probs, 0, this.probs, 0, alphabetSize);
+        updateModel();
+    }
+
+    // Пересчитывает всё, что encode и decode строят по probs
+    private void updateModel() {
+        // Накапливающаяся сумма встречаемости символов
+        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
+        for(int i = 0; i < alphabetSize; i++){
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        // Таблица для поиска символа по threshold без перебора всего алфавита
+        lookup = new SymbolLookup( probs );
+    }
+
+    private void checkProbs() {
+        if (lookup == null)
+            throw new IllegalStateException("probs are not set, call count() or setProbs() first");
+    }
+
+    private void checkModel(Model model) {
+        if (compareUnsigned( model.getMaxTotal(), qtr ) > 0)
+            throw new IllegalArgumentException("model.maxTotal should be <= qtr");
+    }
+
     // считает rawProbs и преобразует в probs, пригодные для кодирования
     // на выходе должны быть probs, в котором нет ни одного нулевого элемента,
     // а сумма всех значений не превышает qtr
     public void count(int[] message){
-        int[] rawProbs = new int[alphabetSize];
-
-        // Сначала просто считаем количество каждого элемента, нормализуя их если
-        // чьё-то кол-во превосходит qtr (для избежания переполнения)
-        int maxCount = 0;
-        for(int i = 0; i < message.length; i++){
-            int prob = ++rawProbs[message[i]];
-            if(prob > maxCount){
-                maxCount = prob;
-
-                // Если для одного из символов кол-во достигло qtr, нужно нормализовать
-                // все вероятности, поделив кол-во каждого на 2
-                if(maxCount == qtr){
-                    for(int j = 0; j < alphabetSize; j++){
-                        rawProbs[j] <<= 1;
-                    }
-                    maxCount <<= 1;
-                }
-            }
-        }
+        count(message, null, message.length);
+    }
+
+    public void count(byte[] message, int offset, int length){
+        count(ByteBuffer.wrap(message, offset, length));
+    }
+
+    // Считает байты между position и limit буфера, position при этом не меняется
+    public void count(ByteBuffer message){
+        checkByteAlphabet();
+        count(null, message, message.remaining());
+    }
+
+    private void count(int[] message, ByteBuffer bytes, int length){
+        // Сначала просто считаем количество каждого элемента; если для одного из символов кол-во
+        // достигло qtr, все кол-ва удваиваются (см. Frequencies.histogram)
+        int[] rawProbs = Frequencies.histogram(message, bytes, length, alphabetSize, qtr);
 
         // Теперь считаем общую сумму накопленных значений для того, чтобы окончательно
         // нормализовать массив probs.
@@ -84,6 +133,12 @@ public class ArithmeticCoder64 {
         for (int i = 0; i < alphabetSize; i++)
             calculatedTotalCount += probs[i];
         assert compareUnsigned( calculatedTotalCount, qtr) <= 0;
+        updateModel();
+    }
+
+    private void checkByteAlphabet() {
+        if (alphabetSize < 256)
+            throw new IllegalStateException("alphabetSize should be >= 256 to code bytes");
     }
 
     private static int compareUnsigned(long a, long b){
@@ -94,33 +149,6 @@ public class ArithmeticCoder64 {
         return Integer.compare( a ^ 0x80000000, b ^ 0x80000000 );
     }
 
-    private void outBit(int bit){
-        if (bit == 1){
-            currentByte |= bit << bitsUsed;
-        }
-        if (++bitsUsed == 8){
-            stream.write( currentByte );
-            currentByte = 0;
-            bitsUsed = 0;
-        }
-    }
-
-    private void outBits(int bit, long carry){
-        outBit( bit );
-        for(int i=0;i<carry;i++)
-            outBit( bit==1?0:1 );
-    }
-
-    private void flushStream(){
-        if(bitsUsed!=0){
-            stream.write( currentByte );
-        }
-    }
-
-    private ByteArrayOutputStream stream;
-    private byte currentByte;
-    private int bitsUsed;
-
     /**
      * Compares the two specified {@code long} values, treating them as unsigned values between
      * {@code 0} and {@code 2^64 - 1} inclusive.
@@ -172,16 +200,56 @@ public class ArithmeticCoder64 {
     }
 
     public ByteArrayOutputStream encode(int[] message) {
-        stream = new ByteArrayOutputStream(  );
+        checkProbs();
+        BitWriter writer = new BitWriter( message.length / 2 );
+        encode(message, null, null, 0, message.length, null, writer);
+        return writer.finish();
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        long[] sumProbs = new long[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        long totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        checkByteAlphabet();
+        checkProbs();
+        BitWriter writer = new BitWriter( length / 2 );
+        encode(null, message, null, offset, length, null, writer);
+        return writer.finish();
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        checkByteAlphabet();
+        checkProbs();
+        BitWriter writer = new BitWriter( message.remaining() / 2 );
+        encode(null, null, message, message.position(), message.remaining(), null, writer);
+        return writer.finish();
+    }
+
+    /**
+     * Кодирует len байт src начиная с off в dst начиная с dstOff. В отличие от encode не выделяет
+     * ни буферов, ни потоков: биты пишутся прямо в dst.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkByteAlphabet();
+        checkProbs();
+        BitWriter writer = new BitWriter( dst, dstOff );
+        encode(null, src, null, off, len, null, writer);
+        return writer.finishInto();
+    }
+
+    /**
+     * Кодирование с моделью вместо probs (например, {@link AdaptiveModel} или {@link SparseModel}
+     * для больших алфавитов): count() вызывать не нужно, декодеру нужна модель в том же начальном состоянии.
+     */
+    public ByteArrayOutputStream encode(int[] message, Model model) {
+        checkModel(model);
+        BitWriter writer = new BitWriter( message.length / 2 );
+        encode(message, null, null, 0, message.length, model, writer);
+        return writer.finish();
+    }
 
+    // Символы берутся из message, array или bytes (что не null) начиная с base
+    private void encode(int[] message, byte[] array, ByteBuffer bytes, int base, int length, Model model, BitWriter writer) {
         long firstQtr = 1L << (precision - 2);
         long thirdQtr = half + firstQtr;
 
@@ -190,25 +258,32 @@ public class ArithmeticCoder64 {
         // И при precision=64 будет неверный результат
         long right = precision == 64 ? -2 : ((1L << precision) - 1);
         long carry = 0; // Сколько бит участвует в переносе
-        for (int i = 0; i < message.length; i++){
-            int c = message[i];
+        for (int i = 0; i < length; i++){
+            // В чужой массив уже не поместилось, дальше кодировать незачем
+            if (writer.isOverflow()) return;
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
             long range = right - left + 1;
             assert compareUnsigned( range , qtr) >= 0;
 
             long oldLeft = left;
-            assert unsignedDiv( range , totalCount) >= 1;
-            left = oldLeft + sumProbs[c] * unsignedDiv(range , totalCount);
-            right = oldLeft + (sumProbs[c] + probs[c]) * unsignedDiv(range , totalCount) - 1;
+            long r = unsignedDiv(range , model != null ? model.getTotal() : totalCount);
+            assert r >= 1;
+            long low = model != null ? model.getLow(c) : sumProbs[c];
+            long freq = model != null ? model.getFreq(c) : probs[c];
+            left = oldLeft + low * r;
+            right = oldLeft + (low + freq) * r - 1;
+            if (model != null)
+                model.update(c);
 
             // Normalize if need
             while (true){
                 if(compareUnsigned( right, half - 1) <= 0){
                     // out 0 and drop carry
-                    outBits( 0, carry );
+                    writer.writeBitAndRun( 0, carry );
                     carry=0;
                 } else if (compareUnsigned( left , half) >= 0) {
                     // out 1 and drop carry
-                    outBits( 1, carry );
+                    writer.writeBitAndRun( 1, carry );
                     carry=0;
                     left -= half;
                     right -= half;
@@ -239,35 +314,16 @@ public class ArithmeticCoder64 {
         // Все последующие биты уже не являются необходимыми.
         carry++;
         if ( compareUnsigned( left, firstQtr - 1 ) <= 0 ) {
-            outBits( 0, carry );
+            writer.writeBitAndRun( 0, carry );
         } else {
-            outBits( 1, carry );
-        }
-
-        flushStream();
-        return stream;
-    }
-
-    private byte readingByte;
-    private int readedBits=8;
-
-    private int readBit(ByteArrayInputStream inputStream){
-        if(readedBits==8){
-            int readed = inputStream.read();
-            if(-1 == readed) //throw new IllegalStateException( "Unexpected end of stream" );
-                return 0;
-            readingByte= ( byte ) readed;
-            readedBits=0;
+            writer.writeBitAndRun( 1, carry );
         }
-        if ((readingByte & (1 << readedBits++)) != 0)
-            return 1;
-        return 0;
     }
 
-    private long readFirstNumber(ByteArrayInputStream inputStream){
+    private long readFirstNumber(BitReader reader){
         long n = 0L;
         for (int i = 0; i < precision; i++){
-            int bit = readBit( inputStream );
+            int bit = reader.readBit();
             if (bit == 1){
                 n |= 1L << (precision - i - 1);
             }
@@ -276,22 +332,63 @@ public class ArithmeticCoder64 {
     }
 
     public int[] decode(ByteArrayInputStream inputStream, int len) {
+        checkProbs();
+        int[] message = new int[len];
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, message, null, null, 0, len, null);
+        reader.finish();
+        return message;
+    }
+
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        checkProbs();
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, null, dst, null, offset, length, null);
+        reader.finish();
+    }
+
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        checkProbs();
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, null, null, dst, dst.position(), dst.remaining(), null);
+        reader.finish();
+    }
+
+    /**
+     * Декодирует len байт в dst начиная с dstOff из данных src[off; off + srcLen). В отличие от decode
+     * не выделяет ни буферов, ни потоков. Данные за концом src считаются нулями, как и у потока.
+     *
+     * @return количество прочитанных из src байт
+     */
+    public int decodeInto(byte[] src, int off, int srcLen, byte[] dst, int dstOff, int len) {
+        checkProbs();
+        BitReader reader = new BitReader( src, off, srcLen );
+        decode(reader, null, dst, null, dstOff, len, null);
+        return reader.finish();
+    }
+
+    /**
+     * Алгоритм декодирования, соответствующий методу {@link #encode(int[], Model)}.
+     */
+    public int[] decode(ByteArrayInputStream inputStream, int len, Model model) {
+        checkModel(model);
         int[] message = new int[len];
-        long value = readFirstNumber( inputStream );
+        BitReader reader = new BitReader( inputStream );
+        decode(reader, message, null, null, 0, len, model);
+        reader.finish();
+        return message;
+    }
+
+    // Символы пишутся в message, array или bytes (что не null) начиная с base
+    private void decode(BitReader reader, int[] message, byte[] array, ByteBuffer bytes, int base, int len, Model model) {
+        long value = readFirstNumber( reader );
 
         long left = 0;
         long right = precision == 64 ? -2 : (1L << precision) - 1;
 
         long valueMask = precision == 64 ? -1 : ((1L << precision) - 1);
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        long[] sumProbs = new long[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        long totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
-
         long firstQtr = 1L << (precision - 2);
         long thirdQtr = half + firstQtr;
 
@@ -301,17 +398,22 @@ public class ArithmeticCoder64 {
 
             // Найти такой элемент, left которого бы при кодировании был бы самым ближайшим слева
             int c;
-            long threshold = unsignedDiv (value - left, unsignedDiv(range , totalCount));
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
-            }
+            long r = unsignedDiv(range , model != null ? model.getTotal() : totalCount);
+            long threshold = unsignedDiv (value - left, r);
+            c = model != null ? model.findSymbol( ( int ) threshold ) : lookup.find( threshold );
 
-            message[i] = c;
+            if (message != null) message[base + i] = c;
+            else if (array != null) array[base + i] = ( byte ) c;
+            else bytes.put(base + i, ( byte ) c);
 
             long oldLeft = left;
-            assert unsignedDiv( range , totalCount) >= 1;
-            left = oldLeft + sumProbs[c] * unsignedDiv(range , totalCount);
-            right = oldLeft + (sumProbs[c] + probs[c]) * unsignedDiv(range , totalCount) - 1;
+            assert r >= 1;
+            long low = model != null ? model.getLow(c) : sumProbs[c];
+            long freq = model != null ? model.getFreq(c) : probs[c];
+            left = oldLeft + low * r;
+            right = oldLeft + (low + freq) * r - 1;
+            if (model != null)
+                model.update(c);
 
             // Normalize if need
             while (true){
@@ -328,13 +430,11 @@ public class ArithmeticCoder64 {
                 left += left;
                 right += right + 1;
                 value <<= 1;
-                value += readBit( inputStream );
+                value += reader.readBit();
                 value &= valueMask;
                 if (right == -1L)
                     right = right - 1;
             }
         }
-
-        return message;
     }
 }
@@ -1,25 +1,44 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author igor.kostromin
  *         03.12.2014 16:36
  */
 public class BenchProgram {
-    private static int[] getOriginalMessage() {
-        byte[] bytes = new byte[0];
+    // book1.txt лежит в ресурсах, так что путь к файлу не нужен; другой файл можно передать первым аргументом
+    private static byte[] getOriginalMessage(String[] args) {
         try {
-            bytes = Files.readAllBytes(Paths.get("d:\\all\\compression\\algorithms\\src\\main\\resources\\book1.txt"));
+            if (args.length > 0)
+                return Files.readAllBytes(Paths.get(args[0]));
+            InputStream in = BenchProgram.class.getClassLoader().getResourceAsStream("book1.txt");
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    out.write(buf, 0, n);
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        int[] message = new int[bytes.length];
-        for(int i=0; i < bytes.length;i++)
-            message[i]=bytes[i] & 0xFF;
-        return message;
+    }
+
+    private static void verify(byte[] decoded, byte[] originalMessage) {
+        for (int i = 0; i < originalMessage.length; i++){
+            if ( decoded[i] != originalMessage[i] ) {
+                throw new RuntimeException("Verification failed");
+            }
+        }
     }
 
     private static void verify(int[] decoded, int[] originalMessage) {
@@ -31,7 +50,7 @@ public class BenchProgram {
     }
 
     public static void main(String[] args) throws IOException {
-        int[] message = getOriginalMessage();
+        byte[] message = getOriginalMessage(args);
 
         processArithm32(message);
 
@@ -43,31 +62,289 @@ public class BenchProgram {
 
         processCarrylessRange32Unoptimized(message);
 
+        for (int scaleBits = 10; scaleBits <= 14; scaleBits += 2) {
+            processAns(message, scaleBits);
+        }
+
         for (int minRangeBits = 8; minRangeBits <= CarrylessRangeCoder64.MIN_RANGE_BITS_MAX; minRangeBits++) {
             processCarrylessRange64(message, minRangeBits);
         }
+
+        processPowerOfTwo(message, false);
+        processPowerOfTwo(message, true);
+
+        for (int order = 0; order <= 2; order++) {
+            processModel(message, order);
+        }
+
+        for (int contextBits = 0; contextBits <= 8; contextBits += 4) {
+            processBitTree(message, contextBits);
+        }
+
+        for (int level = 1; level <= 9; level += 4) {
+            processLz77(message, level);
+        }
+
+        for (int maxNodesBits = 16; maxNodesBits <= 22; maxNodesBits += 2) {
+            processDmc(message, 1 << maxNodesBits);
+        }
+
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            processBlocks(message, threads);
+        }
+
+        processBwt(message);
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            processBwtBlocks(message, threads);
+        }
+
+        for (int blockSize = 256; blockSize <= 1 << 20; blockSize <<= 2) {
+            processFrequencyTables(message, blockSize);
+        }
+    }
+
+    // Размер таблицы частот в заголовке блока: 256 int как есть против FrequencyTableCodec, в среднем по блокам
+    private static void processFrequencyTables(byte[] message, int blockSize) {
+        int blocks = Math.max(1, message.length / blockSize);
+        long tableBytes = 0;
+        long payloadBytes = 0;
+        long encodeTime = 0;
+        long decodeTime = 0;
+        for (int i = 0; i < blocks; i++) {
+            int length = Math.min(blockSize, message.length);
+            CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 256 );
+            coder.count( message, i * blockSize, length );
+            payloadBytes += coder.encode( message, i * blockSize, length ).size();
+
+            long start = System.nanoTime();
+            byte[] table = FrequencyTableCodec.encode( coder.getProbs() );
+            encodeTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            int[] probs = FrequencyTableCodec.decode( table, 0, table.length, 256 );
+            decodeTime += System.nanoTime() - start;
+            if (!Arrays.equals( probs, coder.getProbs() ))
+                throw new RuntimeException("Verification failed");
+            tableBytes += table.length;
+        }
+        System.out.println("Frequency table, block size " + blockSize);
+        System.out.println(String.format("Raw table 1024 bytes, compact table %.1f bytes, payload %.1f bytes,"
+                        + " header share %.2f%% -> %.2f%%, encode %.1f us, decode %.1f us",
+                tableBytes / ( double ) blocks, payloadBytes / ( double ) blocks,
+                1024 * 100.0 / (1024 + payloadBytes / ( double ) blocks),
+                tableBytes * 100.0 / (tableBytes + payloadBytes),
+                encodeTime / 1e3 / blocks, decodeTime / 1e3 / blocks));
+    }
+
+    // Сравнение обычных probs и probs с суммой, равной степени двойки (деление заменяется сдвигом)
+    private static void processPowerOfTwo(byte[] message, boolean powerOfTwo) {
+        String suffix = powerOfTwo ? ", power-of-two totals" : "";
+        byte[] decoded = new byte[message.length];
+
+        RangeCoder range = new RangeCoder( 256 );
+        range.count( message, 0, message.length );
+        if (powerOfTwo) range.normalizeToPowerOfTwo();
+        long start = System.nanoTime();
+        byte[] encodedBytes = range.encode( message, 0, message.length ).toByteArray();
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        range.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length);
+        long decodeTime = System.nanoTime() - start;
+        verify(decoded, message);
+        printTimed("Range-32" + suffix, message.length, encodedBytes.length, encodeTime, decodeTime);
+
+        CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256, 24 );
+        carryless64.count( message, 0, message.length );
+        if (powerOfTwo) carryless64.normalizeToPowerOfTwo();
+        start = System.nanoTime();
+        encodedBytes = carryless64.encode( message, 0, message.length ).toByteArray();
+        encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        carryless64.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length);
+        decodeTime = System.nanoTime() - start;
+        verify(decoded, message);
+        printTimed("CarrylessRange-64, MIN_RANGE=2^24" + suffix, message.length, encodedBytes.length, encodeTime, decodeTime);
+    }
+
+    // Однопроходное сжатие адаптивной моделью: order = 0 - AdaptiveModel, иначе ContextModel
+    private static void processModel(byte[] message, int order) {
+        int[] intMessage = new int[message.length];
+        for (int i = 0; i < message.length; i++)
+            intMessage[i] = message[i] & 0xFF;
+        String name = order == 0 ? "AdaptiveModel" : "ContextModel, order " + order;
+
+        RangeCoder range = new RangeCoder( 256 );
+        long start = System.nanoTime();
+        byte[] encodedBytes = range.encode( intMessage, newModel( order ) ).toByteArray();
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int[] decoded = range.decode( new ByteArrayInputStream( encodedBytes ), intMessage.length, newModel( order ) );
+        long decodeTime = System.nanoTime() - start;
+        verify(decoded, intMessage);
+        printTimed("Range-32, " + name, message.length, encodedBytes.length, encodeTime, decodeTime);
+
+        CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256, 24 );
+        start = System.nanoTime();
+        encodedBytes = carryless64.encode( intMessage, newModel( order ) ).toByteArray();
+        encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        decoded = carryless64.decode( new ByteArrayInputStream( encodedBytes ), intMessage.length, newModel( order ) );
+        decodeTime = System.nanoTime() - start;
+        verify(decoded, intMessage);
+        printTimed("CarrylessRange-64, MIN_RANGE=2^24, " + name, message.length, encodedBytes.length, encodeTime, decodeTime);
+    }
+
+    // Адаптивные двоичные вероятности с обновлением сдвигом; contextBits = 0 - аналог AdaptiveModel, 8 - ContextModel порядка 1
+    private static void processBitTree(byte[] message, int contextBits) {
+        byte[] decoded = new byte[message.length];
+        BitTreeCoder bitTree = new BitTreeCoder( contextBits );
+        long start = System.nanoTime();
+        byte[] encodedBytes = bitTree.encode( message, 0, message.length ).toByteArray();
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        bitTree.decode( new ByteArrayInputStream( encodedBytes ), decoded, 0, message.length );
+        long decodeTime = System.nanoTime() - start;
+        verify(decoded, message);
+        printTimed("BitTree, contextBits=" + contextBits, message.length, encodedBytes.length, encodeTime, decodeTime);
+    }
+
+    // LZ77 с хеш-цепочками; уровни 1-3 - жадный разбор, дальше - ленивый
+    private static void processLz77(byte[] message, int level) {
+        Lz77Compressor lz77 = new Lz77Compressor( level );
+        long start = System.nanoTime();
+        byte[] encodedBytes = lz77.compress( message );
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        byte[] decoded = lz77.decompress( encodedBytes );
+        long decodeTime = System.nanoTime() - start;
+        verify(decoded, message);
+        printTimed("LZ77, level " + level, message.length, encodedBytes.length, encodeTime, decodeTime);
+    }
+
+    // DMC с бюджетом maxNodes состояний; сравнивать с AdaptiveModel - тоже однопроходной моделью нулевого порядка
+    private static void processDmc(byte[] message, int maxNodes) {
+        byte[] decoded = new byte[message.length];
+        DmcCoder dmc = new DmcCoder( maxNodes );
+        long start = System.nanoTime();
+        byte[] encodedBytes = dmc.encode( message, 0, message.length ).toByteArray();
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        dmc.decode( new ByteArrayInputStream( encodedBytes ), decoded, 0, message.length );
+        long decodeTime = System.nanoTime() - start;
+        verify(decoded, message);
+        printTimed("DMC, maxNodes=2^" + Integer.numberOfTrailingZeros(maxNodes), message.length, encodedBytes.length, encodeTime, decodeTime);
+
+        // Память модели - отдельным проходом, чтобы не мерить её внутри кодера
+        DmcModel model = new DmcModel( maxNodes );
+        int resets = 0;
+        for (byte b : message) {
+            for (int j = 7; j >= 0; j--) {
+                int nodes = model.getNodeCount();
+                model.update((b >>> j) & 1);
+                if (model.getNodeCount() < nodes) resets++;
+            }
+        }
+        System.out.println(String.format("Model memory %d KB, resets %d", model.getMemoryBytes() / 1024, resets));
+    }
+
+    private static Model newModel(int order) {
+        return order == 0 ? new AdaptiveModel( 256 ) : new ContextModel( 256, order );
+    }
+
+    private static void printTimed(String name, int sourceSize, int encodedSize, long encodeTime, long decodeTime) {
+        System.out.println(name);
+        System.out.println(String.format("Source size %d encoded size %d ratio %f%%, encode %.1f MB/s, decode %.1f MB/s",
+                sourceSize, encodedSize, encodedSize * 100.0 / sourceSize,
+                sourceSize * 1000.0 / encodeTime, sourceSize * 1000.0 / decodeTime));
+    }
+
+    // BWT всего сообщения одним блоком
+    private static void processBwt(byte[] message) {
+        BwtCompressor bwt = new BwtCompressor( BwtCompressor.MAX_BLOCK_SIZE );
+        long start = System.nanoTime();
+        byte[] encodedBytes = bwt.compress( message );
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        byte[] decoded = bwt.decompress( encodedBytes );
+        long decodeTime = System.nanoTime() - start;
+        verify(decoded, message);
+        printTimed("BWT+MTF, one block", message.length, encodedBytes.length, encodeTime, decodeTime);
+    }
+
+    private static void processBwtBlocks(byte[] message, int threads) {
+        byte[] data = new byte[message.length * 4];
+        for (int i = 0; i < 4; i++)
+            System.arraycopy(message, 0, data, i * message.length, message.length);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            BwtCompressor compressor = new BwtCompressor(1 << 20, pool);
+            long start = System.nanoTime();
+            byte[] compressed = compressor.compress(data);
+            long encodeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            byte[] decoded = compressor.decompress(compressed);
+            long decodeTime = System.nanoTime() - start;
+            if (!Arrays.equals(decoded, data))
+                throw new RuntimeException("Verification failed");
+            printTimed("BWT+MTF, 1 MB blocks, threads=" + threads, data.length, compressed.length, encodeTime, decodeTime);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void processBlocks(byte[] message, int threads) {
+        // Чтобы блоков хватило на все потоки, сжимаем несколько копий книги
+        byte[] data = new byte[message.length * 16];
+        for (int i = 0; i < 16; i++)
+            System.arraycopy(message, 0, data, i * message.length, message.length);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            BlockCompressor compressor = new BlockCompressor(1 << 20, CompressedContainer.CODER_CARRYLESS64, 32, pool);
+            long start = System.nanoTime();
+            byte[] compressed = compressor.compress(data);
+            long encodeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            byte[] decoded = compressor.decompress(compressed);
+            long decodeTime = System.nanoTime() - start;
+
+            System.out.println("Blocks-CarrylessRange-64, threads=" + threads);
+            System.out.println(String.format("Source size %d encoded size %d ratio %f%%, encode %.1f MB/s, decode %.1f MB/s",
+                    data.length, compressed.length, compressed.length * 100.0 / data.length,
+                    data.length * 1000.0 / encodeTime, data.length * 1000.0 / decodeTime));
+            if (!Arrays.equals(decoded, data))
+                throw new RuntimeException("Verification failed");
+        } finally {
+            pool.shutdown();
+        }
     }
 
-    private static void processRange32(int[] message) {
+    private static void processRange32(byte[] message) {
         RangeCoder coder = new RangeCoder( 256 );
-        coder.count( message );
+        coder.count( message, 0, message.length );
 
-        ByteArrayOutputStream encoded = coder.encode( message );
+        ByteArrayOutputStream encoded = coder.encode( message, 0, message.length );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println("Range-32-unoptimized");
         System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
                 message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
 
-        int[] decoded = coder.decode(new ByteArrayInputStream(encodedBytes), message.length);
+        byte[] decoded = new byte[message.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length);
         verify(decoded, message);
     }
 
-    private static void processCarrylessRange32Unoptimized(int[] message) {
+    private static void processCarrylessRange32Unoptimized(byte[] message) {
+        // У демонстрационной версии кодера нет перегрузок для byte[]
+        int[] symbols = new int[message.length];
+        for(int i=0; i < message.length;i++)
+            symbols[i]=message[i] & 0xFF;
+
         CarrylessRangeCoder coder = new CarrylessRangeCoder( 256 );
-        coder.count( message );
+        coder.count( symbols );
 
-        ByteArrayOutputStream encoded = coder.encodeUnoptimized( message );
+        ByteArrayOutputStream encoded = coder.encodeUnoptimized( symbols );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println("CarrylessRange-32-unoptimized");
@@ -75,66 +352,86 @@ public class BenchProgram {
                 message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
 
         int[] decoded = coder.decodeUnoptimized(new ByteArrayInputStream(encodedBytes), message.length);
-        verify(decoded, message);
+        verify(decoded, symbols);
     }
 
-    private static void processCarrylessRange64(int[] message, int minRangeBits) {
+    private static void processCarrylessRange64(byte[] message, int minRangeBits) {
         CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 256, minRangeBits );
-        coder.count( message );
+        coder.count( message, 0, message.length );
 
-        ByteArrayOutputStream encoded = coder.encode( message );
+        ByteArrayOutputStream encoded = coder.encode( message, 0, message.length );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println("CarrylessRange-64, MIN_RANGE=2^" + minRangeBits);
         System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
                 message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
 
-        int[] decoded = coder.decode(new ByteArrayInputStream(encodedBytes), message.length);
+        byte[] decoded = new byte[message.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length);
+        verify(decoded, message);
+    }
+
+    private static void processAns(byte[] message, int scaleBits) {
+        AnsCoder coder = new AnsCoder( 256, scaleBits );
+        coder.count( message, 0, message.length );
+
+        ByteArrayOutputStream encoded = coder.encode( message, 0, message.length );
+        byte[] encodedBytes = encoded.toByteArray();
+
+        System.out.println("rANS, scaleBits=" + scaleBits);
+        System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
+                message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
+
+        byte[] decoded = new byte[message.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length);
         verify(decoded, message);
     }
 
-    private static void processArithm32Precise(int[] message) {
+    private static void processArithm32Precise(byte[] message) {
         ArithmeticCoder coder = new ArithmeticCoder(256, 32);
-        coder.count(message);
+        coder.count( message, 0, message.length );
 
-        ByteArrayOutputStream encoded = coder.encode( message, true );
+        ByteArrayOutputStream encoded = coder.encode( message, 0, message.length, true );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println("Arithm-32-precise");
         System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
                 message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
 
-        int[] decoded = coder.decode(new ByteArrayInputStream(encodedBytes), message.length, true);
+        byte[] decoded = new byte[message.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length, true);
         verify(decoded, message);
     }
 
-    private static void processArithm32(int[] message) {
+    private static void processArithm32(byte[] message) {
         ArithmeticCoder coder = new ArithmeticCoder(256);
-        coder.count(message);
+        coder.count( message, 0, message.length );
 
-        ByteArrayOutputStream encoded = coder.encode( message, false );
+        ByteArrayOutputStream encoded = coder.encode( message, 0, message.length, false );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println("Arithm-32");
         System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
                 message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
 
-        int[] decoded = coder.decode(new ByteArrayInputStream(encodedBytes), message.length, false);
+        byte[] decoded = new byte[message.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length, false);
         verify(decoded, message);
     }
 
-    private static void processArithm64(int[] message) {
+    private static void processArithm64(byte[] message) {
         ArithmeticCoder64 coder = new ArithmeticCoder64(256);
-        coder.count(message);
+        coder.count( message, 0, message.length );
 
-        ByteArrayOutputStream encoded = coder.encode( message );
+        ByteArrayOutputStream encoded = coder.encode( message, 0, message.length );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println("Arithm-64");
         System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
                 message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
 
-        int[] decoded = coder.decode(new ByteArrayInputStream(encodedBytes), message.length);
+        byte[] decoded = new byte[message.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, message.length);
         verify(decoded, message);
     }
 }
@@ -0,0 +1,101 @@
+/**
+ * Декодер, соответствующий {@link BinaryEncoder}. Читает из массива; за концом данных, как и остальные
+ * декодеры, считает что идут нули. Адаптивные методы - пара к одноимённым методам кодера и обновляют
+ * вероятности точно так же.
+ */
+public class BinaryDecoder {
+    private static final int PROB_BITS = BinaryEncoder.PROB_BITS;
+    private static final int ADAPTIVE_BITS = BinaryEncoder.ADAPTIVE_BITS;
+    private static final int MOVE_BITS = BinaryEncoder.MOVE_BITS;
+
+    private final byte[] src;
+    private final int limit;
+    private int pos;
+    private int x1 = 0;
+    private int x2 = -1;
+    private int x;
+
+    public BinaryDecoder(byte[] src, int offset, int length) {
+        this.src = src;
+        this.pos = offset;
+        this.limit = offset + length;
+        for (int i = 0; i < 4; i++)
+            x = (x << 8) | nextByte();
+    }
+
+    private int nextByte() {
+        return pos < limit ? src[pos++] & 0xff : 0;
+    }
+
+    private static int compareUnsigned(int a, int b){
+        return Integer.compare( a ^ 0x80000000, b ^ 0x80000000 );
+    }
+
+    /**
+     * @param p1 вероятность единицы - та же, что была передана в {@link BinaryEncoder#encode(int, int)}
+     */
+    public int decode(int p1) {
+        int range = x2 - x1;
+        return decodeSplit(x1 + (range >>> PROB_BITS) * p1 + (((range & ((1 << PROB_BITS) - 1)) * p1) >>> PROB_BITS));
+    }
+
+    private int decodeSplit(int xmid) {
+        int bit;
+        if (compareUnsigned(x, xmid) <= 0) {
+            bit = 1;
+            x2 = xmid;
+        } else {
+            bit = 0;
+            x1 = xmid + 1;
+        }
+
+        while (((x1 ^ x2) & 0xff000000) == 0) {
+            x1 <<= 8;
+            x2 = (x2 << 8) | 0xff;
+            x = (x << 8) | nextByte();
+        }
+        return bit;
+    }
+
+    public int decodeBit(short[] probs, int index) {
+        int p = probs[index];
+        int bit = decodeSplit(x1 + ((x2 - x1) >>> ADAPTIVE_BITS) * p);
+        if (bit != 0)
+            probs[index] = ( short ) (p + (((1 << ADAPTIVE_BITS) - p) >>> MOVE_BITS));
+        else
+            probs[index] = ( short ) (p - (p >>> MOVE_BITS));
+        return bit;
+    }
+
+    public int decodeBitTree(short[] probs, int base, int numBits) {
+        int node = 1;
+        for (int i = 0; i < numBits; i++)
+            node = (node << 1) | decodeBit(probs, base + node);
+        return node - (1 << numBits);
+    }
+
+    public int decodeReverseBitTree(short[] probs, int base, int numBits) {
+        int node = 1;
+        int value = 0;
+        for (int i = 0; i < numBits; i++) {
+            int bit = decodeBit(probs, base + node);
+            node = (node << 1) | bit;
+            value |= bit << i;
+        }
+        return value;
+    }
+
+    public int decodeDirectBits(int numBits) {
+        int value = 0;
+        for (int i = 0; i < numBits; i++)
+            value = (value << 1) | decode(1 << (PROB_BITS - 1));
+        return value;
+    }
+
+    /**
+     * @return позиция в src после прочитанных байт
+     */
+    public int getPosition() {
+        return pos;
+    }
+}
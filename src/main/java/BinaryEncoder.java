@@ -0,0 +1,130 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Двоичный интервальный кодер: кодирует по одному биту с вероятностью, которую для каждого бита
+ * заново даёт модель. Интервал [x1; x2] - 32-битные беззнаковые числа; бит 1 получает его левую часть,
+ * пропорциональную p1, бит 0 - остаток. Когда старшие байты x1 и x2 совпадают, они уже не изменятся и
+ * выводятся, поэтому переносов, как и в субботинском кодере, не бывает.
+ *
+ * Вероятность передаётся целым числом p1 из (0; 2^PROB_BITS) - вероятность единицы, умноженная на 2^PROB_BITS.
+ * Декодировать нужно {@link BinaryDecoder} с теми же вероятностями.
+ *
+ * Кроме того, кодер умеет сам вести адаптивные вероятности, как в LZMA: {@link #encodeBit(short[], int, int)}
+ * кодирует бит с вероятностью из массива и обновляет её сдвигом, без деления. Массивы вероятностей
+ * создаются {@link #newProbs(int)}; из них же строятся двоичные деревья для полей из нескольких бит.
+ */
+public class BinaryEncoder {
+    public static final int PROB_BITS = 16;
+    // Адаптивная вероятность единицы - ADAPTIVE_BITS бит; после каждого бита она сдвигается
+    // к нему на 1/2^MOVE_BITS оставшегося расстояния и поэтому всегда остаётся в (0; 2^ADAPTIVE_BITS)
+    public static final int ADAPTIVE_BITS = 11;
+    public static final int MOVE_BITS = 5;
+
+    private byte[] buffer;
+    private int pos;
+    private int x1 = 0;
+    private int x2 = -1;
+
+    public BinaryEncoder(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * @param p1 вероятность единицы, от 1 до 2^PROB_BITS - 1
+     */
+    public void encode(int bit, int p1) {
+        assert p1 > 0 && p1 < (1 << PROB_BITS);
+        // x2 - x1 - беззнаковое, произведение range * p1 считается по частям, чтобы не выйти за 32 бита
+        int range = x2 - x1;
+        encodeSplit(bit, x1 + (range >>> PROB_BITS) * p1 + (((range & ((1 << PROB_BITS) - 1)) * p1) >>> PROB_BITS));
+    }
+
+    // Бит 1 - [x1; xmid], бит 0 - (xmid; x2]
+    private void encodeSplit(int bit, int xmid) {
+        if (bit != 0)
+            x2 = xmid;
+        else
+            x1 = xmid + 1;
+
+        // Старшие байты границ совпали - выводим их
+        while (((x1 ^ x2) & 0xff000000) == 0) {
+            if (pos == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, pos);
+                buffer = grown;
+            }
+            buffer[pos++] = ( byte ) (x2 >>> 24);
+            x1 <<= 8;
+            x2 = (x2 << 8) | 0xff;
+        }
+    }
+
+    /**
+     * @return массив из n адаптивных вероятностей, равных 1/2
+     */
+    public static short[] newProbs(int n) {
+        short[] probs = new short[n];
+        Arrays.fill(probs, ( short ) (1 << (ADAPTIVE_BITS - 1)));
+        return probs;
+    }
+
+    /**
+     * Кодирует бит с адаптивной вероятностью probs[index] и обновляет её.
+     */
+    public void encodeBit(short[] probs, int index, int bit) {
+        int p = probs[index];
+        // Вероятность короткая, так что хватает одного умножения: младшие биты range почти ничего не меняют
+        encodeSplit(bit, x1 + ((x2 - x1) >>> ADAPTIVE_BITS) * p);
+        if (bit != 0)
+            probs[index] = ( short ) (p + (((1 << ADAPTIVE_BITS) - p) >>> MOVE_BITS));
+        else
+            probs[index] = ( short ) (p - (p >>> MOVE_BITS));
+    }
+
+    /**
+     * Кодирует numBits младших бит value, старший первым, двоичным деревом вероятностей
+     * probs[base + 1; base + 2^numBits): каждый бит - со своей вероятностью для каждого префикса.
+     */
+    public void encodeBitTree(short[] probs, int base, int numBits, int value) {
+        int node = 1;
+        for (int i = numBits - 1; i >= 0; i--) {
+            int bit = (value >>> i) & 1;
+            encodeBit(probs, base + node, bit);
+            node = (node << 1) | bit;
+        }
+    }
+
+    /**
+     * То же, что encodeBitTree, но младший бит первым - для полей, у которых младшие биты предсказуемее старших.
+     */
+    public void encodeReverseBitTree(short[] probs, int base, int numBits, int value) {
+        int node = 1;
+        for (int i = 0; i < numBits; i++) {
+            int bit = (value >>> i) & 1;
+            encodeBit(probs, base + node, bit);
+            node = (node << 1) | bit;
+        }
+    }
+
+    /**
+     * Кодирует numBits младших бит value, старший первым, без модели - с вероятностью 1/2.
+     */
+    public void encodeDirectBits(int value, int numBits) {
+        for (int i = numBits - 1; i >= 0; i--)
+            encode((value >>> i) & 1, 1 << (PROB_BITS - 1));
+    }
+
+    /**
+     * Выводит x1 целиком (любое число из [x1; x2] однозначно задаёт все биты) и возвращает всё записанное.
+     */
+    public ByteArrayOutputStream finish() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(pos + 4);
+        stream.write(buffer, 0, pos);
+        stream.write(x1 >>> 24);
+        stream.write(x1 >>> 16);
+        stream.write(x1 >>> 8);
+        stream.write(x1);
+        return stream;
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.ByteArrayInputStream;
+
+/**
+ * Побитовый ввод, соответствующий {@link BitWriter}. Байты читаются из потока блоками (или прямо из массива),
+ * а биты выдаются из 64-битного аккумулятора, который пополняется сразу на 8 байт.
+ * За концом данных, как и раньше, считаем что идут нули.
+ *
+ * Из потока читается с запасом, поэтому по окончании декодирования нужно вызвать {@link #finish()} -
+ * он возвращает в поток непрочитанные байты, и позиция потока становится такой же, как при чтении по одному байту.
+ */
+public class BitReader {
+    private static final int BUFFER_SIZE = 4096;
+
+    // null, если читаем из массива
+    private final ByteArrayInputStream inputStream;
+    private final byte[] buffer;
+    private int bufferPos;
+    private int bufferLimit;
+    // Байтов прочитано из потока всего
+    private long totalRead;
+
+    private long acc;
+    private int count;
+    // Бит выдано всего
+    private long consumedBits;
+
+    public BitReader(ByteArrayInputStream inputStream) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[BUFFER_SIZE];
+        inputStream.mark(0);
+    }
+
+    /**
+     * Читает src[offset; offset + length) без промежуточного буфера.
+     */
+    public BitReader(byte[] src, int offset, int length) {
+        this.inputStream = null;
+        this.buffer = src;
+        this.bufferPos = offset;
+        this.bufferLimit = offset + length;
+        this.totalRead = length;
+    }
+
+    public int readBit() {
+        if (count == 0)
+            refill();
+        int bit = ( int ) acc & 1;
+        acc >>>= 1;
+        count--;
+        consumedBits++;
+        return bit;
+    }
+
+    /**
+     * Читает n бит (0 <= n <= 32), первый прочитанный бит - в младшем разряде результата.
+     */
+    public int readBits(int n) {
+        if (n == 0) return 0;
+        consumedBits += n;
+        if (count >= n) {
+            int bits = ( int ) (acc & ((1L << n) - 1));
+            acc >>>= n;
+            count -= n;
+            return bits;
+        }
+        // Часть бит - из остатка аккумулятора, остальные - из следующего слова
+        int low = ( int ) acc;
+        int lowCount = count;
+        refill();
+        int rest = n - lowCount;
+        int high = ( int ) (acc & ((1L << rest) - 1));
+        acc >>>= rest;
+        count -= rest;
+        return (low & ((1 << lowCount) - 1)) | (high << lowCount);
+    }
+
+    private void refill() {
+        if (inputStream != null && bufferLimit - bufferPos < 8) {
+            // Остаток переносим в начало буфера и дочитываем
+            int remaining = bufferLimit - bufferPos;
+            System.arraycopy(buffer, bufferPos, buffer, 0, remaining);
+            bufferPos = 0;
+            bufferLimit = remaining;
+            int readed = inputStream.read(buffer, bufferLimit, buffer.length - bufferLimit);
+            if (readed > 0) {
+                bufferLimit += readed;
+                totalRead += readed;
+            }
+        }
+
+        long word = 0;
+        int n = Math.min(8, bufferLimit - bufferPos);
+        for (int i = 0; i < n; i++)
+            word |= (buffer[bufferPos++] & 0xffL) << (i << 3);
+        // Если данных меньше 8 байт, старшие байты слова - нули
+        acc = word;
+        count = 64;
+    }
+
+    /**
+     * Возвращает в поток байты, прочитанные с запасом: в потоке остаются все байты после последнего,
+     * из которого был выдан хотя бы один бит.
+     *
+     * @return количество байт до последнего, из которого был выдан хотя бы один бит, включительно
+     */
+    public int finish() {
+        int consumedBytes = ( int ) Math.min((consumedBits + 7) >>> 3, totalRead);
+        if (inputStream != null) {
+            inputStream.reset();
+            inputStream.skip(consumedBytes);
+        }
+        return consumedBytes;
+    }
+}
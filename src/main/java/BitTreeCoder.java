@@ -0,0 +1,85 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Сжатие байт адаптивными двоичными вероятностями, как литералы в LZMA: каждый байт кодируется
+ * двоичным деревом из 255 вероятностей ({@link BinaryEncoder#encodeBitTree}), а дерево выбирается
+ * по старшим contextBits битам предыдущего байта. При contextBits = 0 это модель нулевого порядка,
+ * при 8 - первого.
+ *
+ * Вероятности обновляются сдвигом, поэтому в отличие от {@link AdaptiveModel} и {@link ContextModel}
+ * на символ не нужно ни деления, ни поиска по частотам - только 8 умножений в кодере.
+ * Кодер не хранит состояния между вызовами, поэтому один экземпляр можно использовать из нескольких потоков.
+ */
+public class BitTreeCoder {
+    private final int contextBits;
+
+    public BitTreeCoder() {
+        this(0);
+    }
+
+    /**
+     * @param contextBits сколько старших бит предыдущего байта выбирают дерево, от 0 до 8
+     */
+    public BitTreeCoder(int contextBits) {
+        if (contextBits < 0 || contextBits > 8)
+            throw new IllegalArgumentException("contextBits should be in [0; 8]");
+        this.contextBits = contextBits;
+    }
+
+    public int getContextBits() {
+        return contextBits;
+    }
+
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        return encode(message, null, offset, length);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        return encode(null, message, message.position(), message.remaining());
+    }
+
+    private ByteArrayOutputStream encode(byte[] array, ByteBuffer bytes, int base, int length) {
+        short[] probs = BinaryEncoder.newProbs(256 << contextBits);
+        BinaryEncoder encoder = new BinaryEncoder(length / 2);
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            int c = (array != null ? array[base + i] : bytes.get(base + i)) & 0xff;
+            encoder.encodeBitTree(probs, (previous >>> (8 - contextBits)) << 8, 8, c);
+            previous = c;
+        }
+        return encoder.finish();
+    }
+
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeFromStream(inputStream, dst, null, offset, length);
+    }
+
+    // Декодирует байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeFromStream(inputStream, null, dst, dst.position(), dst.remaining());
+    }
+
+    // Декодер читает из массива: забираем из потока столько, сколько может занять сообщение, а непрочитанное
+    // потом возвращаем. Начальное состояние - 4 байта, и на каждый из 8 бит байта декодер дочитывает
+    // не больше 4 байт: после четырёх сдвигов x1 и x2 расходятся уже в старшем байте
+    private void decodeFromStream(ByteArrayInputStream inputStream, byte[] array, ByteBuffer bytes, int base, int length) {
+        byte[] src = StreamWindow.read( inputStream, 4 + 32L * length );
+
+        short[] probs = BinaryEncoder.newProbs(256 << contextBits);
+        BinaryDecoder decoder = new BinaryDecoder(src, 0, src.length);
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            int c = decoder.decodeBitTree(probs, (previous >>> (8 - contextBits)) << 8, 8);
+            if (array != null)
+                array[base + i] = ( byte ) c;
+            else
+                bytes.put(base + i, ( byte ) c);
+            previous = c;
+        }
+
+        StreamWindow.consume( inputStream, decoder.getPosition() );
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Побитовый вывод для арифметических кодеров. Биты внутри байта идут от младшего к старшему
+ * (тот же формат, что и при выводе по одному биту), но копятся в 64-битном аккумуляторе
+ * и пишутся в массив целыми словами.
+ *
+ * Пишет либо в собственный растущий буфер ({@link #finish()}), либо в готовый массив без выделения памяти
+ * ({@link #finishInto()}).
+ */
+public class BitWriter {
+    private byte[] buffer;
+    private final int start;
+    // Пишем в чужой массив: расти ему нельзя, вместо этого запоминаем, что места не хватило
+    private final boolean fixed;
+    private boolean overflow;
+    private int pos;
+    // Накопленные биты, первый - в младшем разряде
+    private long acc;
+    private int count;
+
+    public BitWriter(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+        start = 0;
+        fixed = false;
+    }
+
+    /**
+     * Пишет в dst начиная с offset. Если места не хватит, лишние байты отбрасываются, а {@link #finishInto()} вернёт -1.
+     */
+    public BitWriter(byte[] dst, int offset) {
+        buffer = dst;
+        start = offset;
+        pos = offset;
+        fixed = true;
+    }
+
+    public void writeBit(int bit) {
+        acc |= ( long ) bit << count;
+        if (++count == 64)
+            flushWord();
+    }
+
+    /**
+     * Пишет n младших бит bits (0 <= n <= 32), начиная с младшего.
+     */
+    public void writeBits(int bits, int n) {
+        if (n == 0) return;
+        long value = (bits & 0xffffffffL) & ((1L << n) - 1);
+        acc |= value << count;
+        int free = 64 - count;
+        if (n < free) {
+            count += n;
+            return;
+        }
+        count = 64;
+        flushWord();
+        acc = n == free ? 0 : value >>> free;
+        count = n - free;
+    }
+
+    /**
+     * Пишет бит bit, а за ним run противоположных ему бит (отложенный перенос арифметического кодера).
+     * Серия пишется масками по целым словам, а не по одному биту.
+     */
+    public void writeBitAndRun(int bit, long run) {
+        writeBit(bit);
+        long fill = bit == 1 ? 0 : -1L;
+        while (run > 0) {
+            int n = ( int ) Math.min(run, 64 - count);
+            long mask = n == 64 ? -1L : (1L << n) - 1;
+            acc |= (fill & mask) << count;
+            count += n;
+            run -= n;
+            if (count == 64)
+                flushWord();
+        }
+    }
+
+    private void flushWord() {
+        if (ensureCapacity(8)) {
+            long word = acc;
+            for (int i = 0; i < 8; i++) {
+                buffer[pos++] = ( byte ) word;
+                word >>>= 8;
+            }
+        }
+        acc = 0;
+        count = 0;
+    }
+
+    // false, если n байт не помещаются в чужой массив
+    private boolean ensureCapacity(int n) {
+        if (pos + n > buffer.length) {
+            if (fixed) {
+                overflow = true;
+                return false;
+            }
+            byte[] grown = new byte[Math.max(buffer.length * 2, pos + n)];
+            System.arraycopy(buffer, 0, grown, 0, pos);
+            buffer = grown;
+        }
+        return true;
+    }
+
+    /**
+     * true, если в массив, переданный в конструктор, уже не поместились какие-то байты.
+     */
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Дописывает неполный последний байт (недостающие старшие биты - нули) и возвращает всё записанное.
+     */
+    public ByteArrayOutputStream finish() {
+        writeTail();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(pos);
+        stream.write(buffer, 0, pos);
+        return stream;
+    }
+
+    /**
+     * То же, что и {@link #finish()}, для записи в массив из конструктора.
+     *
+     * @return количество записанных байт или -1, если в массиве не хватило места
+     */
+    public int finishInto() {
+        writeTail();
+        return overflow ? -1 : pos - start;
+    }
+
+    private void writeTail() {
+        int tailBytes = (count + 7) >>> 3;
+        if (ensureCapacity(tailBytes)) {
+            for (int i = 0; i < tailBytes; i++) {
+                buffer[pos++] = ( byte ) acc;
+                acc >>>= 8;
+            }
+        }
+        acc = 0;
+        count = 0;
+    }
+}
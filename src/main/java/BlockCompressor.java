@@ -0,0 +1,354 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Checksum;
+
+/**
+ * Блочное сжатие: входные данные режутся на независимые блоки фиксированного размера, у каждого блока
+ * своя таблица частот ({@code count()}) и свой {@link CompressedContainer}. Блоки не зависят друг от друга,
+ * поэтому и сжимаются, и распаковываются параллельно задачами ForkJoinPool.
+ *
+ * Формат (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'B' 'K'
+ * version        1 байт   1 или 2
+ * flags          1 байт   только в версии 2: FLAG_CRC32C
+ * blockSize      4 байта
+ * length         4 байта  длина исходных данных
+ * blockCount     4 байта
+ * index          blockCount * 4 байта - размеры контейнеров блоков
+ * checksums      blockCount * 4 байта - CRC32C контейнеров блоков, только с FLAG_CRC32C
+ * blocks         контейнеры блоков подряд
+ * </pre>
+ * По таблице размеров декодер сразу знает, где начинается каждый блок, и не читает данные последовательно.
+ *
+ * Без контрольных сумм пишется версия 1, как и раньше. Контрольная сумма считается по сжатому блоку, поэтому
+ * {@link #verify(byte[])} проверяет целостность без декодирования. CRC32C есть только начиная с Java 9, а
+ * библиотека собирается под Java 8, поэтому класс ищется через reflection при первом подсчёте контрольной
+ * суммы; на Java 8 работает всё, кроме контрольных сумм.
+ *
+ * Цена параллельности - таблица частот в заголовке каждого блока и модель, построенная только по своему блоку,
+ * поэтому слишком мелкие блоки ухудшают сжатие.
+ */
+public class BlockCompressor {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('B' << 8) | 'K';
+    private static final int VERSION = 1;
+    private static final int VERSION_FLAGS = 2;
+    // magic + version + blockSize + length + blockCount
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+
+    public static final int FLAG_CRC32C = 1;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final int blockSize;
+    private final int coder;
+    private final int param;
+    private final ForkJoinPool pool;
+    private final boolean checksums;
+
+    public BlockCompressor() {
+        this(DEFAULT_BLOCK_SIZE, CompressedContainer.CODER_CARRYLESS64, 32);
+    }
+
+    /**
+     * @param coder один из CompressedContainer.CODER_*
+     * @param param параметр кодера, см. {@link CompressedContainer#encode(byte[], int, int, int, int)}
+     */
+    public BlockCompressor(int blockSize, int coder, int param) {
+        this(blockSize, coder, param, ForkJoinPool.commonPool());
+    }
+
+    public BlockCompressor(int blockSize, int coder, int param, ForkJoinPool pool) {
+        this(blockSize, coder, param, pool, false);
+    }
+
+    /**
+     * @param checksums записывать ли CRC32C каждого блока (требует Java 9+, иначе сжатие бросит
+     *                  UnsupportedOperationException)
+     */
+    public BlockCompressor(int blockSize, int coder, int param, ForkJoinPool pool, boolean checksums) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("blockSize should be > 0");
+        this.blockSize = blockSize;
+        this.coder = coder;
+        this.param = param;
+        this.pool = pool;
+        this.checksums = checksums;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    public byte[] compress(byte[] data, int offset, int length) {
+        int blockCount = (int) ((length + (long) blockSize - 1) / blockSize);
+        byte[][] blocks = new byte[blockCount][];
+        // CRC блока считается в той же задаче, что и сам блок, пока он ещё в кэше
+        int[] crcs = checksums ? new int[blockCount] : null;
+        if (blockCount > 0)
+            pool.invoke(new CompressTask(data, offset, length, blocks, crcs, 0, blockCount));
+
+        long size = checksums ? HEADER_SIZE + 1 + 8L * blockCount : HEADER_SIZE + 4L * blockCount;
+        for (byte[] block : blocks)
+            size += block.length;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Compressed data is too large");
+
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(MAGIC);
+        if (checksums) {
+            out.put((byte) VERSION_FLAGS);
+            out.put((byte) FLAG_CRC32C);
+        } else {
+            out.put((byte) VERSION);
+        }
+        out.putInt(blockSize);
+        out.putInt(length);
+        out.putInt(blockCount);
+        for (byte[] block : blocks)
+            out.putInt(block.length);
+        if (checksums)
+            for (int crc : crcs)
+                out.putInt(crc);
+        for (byte[] block : blocks)
+            out.put(block);
+        return out.array();
+    }
+
+    /**
+     * Распаковывает данные, сжатые {@link #compress(byte[])}. Размер блока и кодер берутся из заголовка,
+     * так что настройки этого экземпляра на распаковку не влияют - используется только его пул.
+     */
+    public byte[] decompress(byte[] compressed) {
+        Header header = readHeader(compressed);
+        byte[] result = new byte[header.length];
+        if (header.blockCount > 0)
+            pool.invoke(new DecompressTask(compressed, header, result, 0, header.blockCount));
+        return result;
+    }
+
+    /**
+     * Проверяет контрольные суммы всех блоков параллельно, не декодируя их.
+     *
+     * @return номер первого повреждённого блока или -1, если все блоки целы
+     * @throws IllegalArgumentException если данные записаны без контрольных сумм или повреждён заголовок
+     */
+    public int verify(byte[] compressed) {
+        Header header = readHeader(compressed);
+        if (header.checksums == null)
+            throw new IllegalArgumentException("Data has no checksums");
+        boolean[] corrupted = new boolean[header.blockCount];
+        if (header.blockCount > 0)
+            pool.invoke(new VerifyTask(compressed, header, corrupted, 0, header.blockCount));
+        for (int i = 0; i < corrupted.length; i++)
+            if (corrupted[i])
+                return i;
+        return -1;
+    }
+
+    private static class Header {
+        int blockSize;
+        int length;
+        int blockCount;
+        // offsets[i] - начало блока i, offsets[blockCount] - конец последнего
+        int[] offsets;
+        // null, если контрольных сумм нет
+        int[] checksums;
+    }
+
+    private static Header readHeader(byte[] compressed) {
+        ByteBuffer in = ByteBuffer.wrap(compressed);
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a block-compressed data");
+        int version = in.get() & 0xff;
+        int flags = 0;
+        if (version == VERSION_FLAGS) {
+            // flags + blockSize + length + blockCount
+            if (in.remaining() < 1 + 4 + 4 + 4)
+                throw new IllegalArgumentException("Corrupted header");
+            flags = in.get() & 0xff;
+        } else if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+        if ((flags & ~FLAG_CRC32C) != 0)
+            throw new IllegalArgumentException("Unsupported flags: " + flags);
+        boolean checksums = (flags & FLAG_CRC32C) != 0;
+
+        Header header = new Header();
+        header.blockSize = in.getInt();
+        header.length = in.getInt();
+        int blockCount = header.blockCount = in.getInt();
+        if (header.blockSize < 1 || header.length < 0
+                || blockCount != (int) ((header.length + (long) header.blockSize - 1) / header.blockSize)
+                || in.remaining() < (checksums ? 8L : 4L) * blockCount)
+            throw new IllegalArgumentException("Corrupted header");
+
+        // Смещения блоков по таблице размеров
+        int[] offsets = header.offsets = new int[blockCount + 1];
+        offsets[0] = in.position() + (checksums ? 8 : 4) * blockCount;
+        for (int i = 0; i < blockCount; i++) {
+            int blockLength = in.getInt();
+            if (blockLength < 0 || offsets[i] + (long) blockLength > compressed.length)
+                throw new IllegalArgumentException("Unexpected end of compressed data");
+            offsets[i + 1] = offsets[i] + blockLength;
+        }
+        if (checksums) {
+            header.checksums = new int[blockCount];
+            for (int i = 0; i < blockCount; i++)
+                header.checksums[i] = in.getInt();
+        }
+        return header;
+    }
+
+    static int crc32c(ByteBuffer data) {
+        if (Crc32c.CONSTRUCTOR == null)
+            throw new UnsupportedOperationException("CRC32C requires Java 9+");
+        try {
+            Checksum crc = Crc32c.CONSTRUCTOR.newInstance();
+            Crc32c.UPDATE.invoke(crc, data);
+            return (int) crc.getValue();
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Конструктор java.util.zip.CRC32C и Checksum.update(ByteBuffer) (тоже Java 9+), на Java 8 - null.
+    // Ищутся один раз, при первом подсчёте контрольной суммы
+    private static final class Crc32c {
+        static final Constructor<? extends Checksum> CONSTRUCTOR;
+        static final Method UPDATE;
+
+        static {
+            Constructor<? extends Checksum> constructor = null;
+            Method update = null;
+            try {
+                constructor = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+                update = Checksum.class.getMethod("update", ByteBuffer.class);
+            } catch (ReflectiveOperationException e) {
+                constructor = null;
+            }
+            CONSTRUCTOR = constructor;
+            UPDATE = update;
+        }
+    }
+
+    private static boolean checksumMatches(byte[] compressed, Header header, int block) {
+        int from = header.offsets[block];
+        return crc32c(ByteBuffer.wrap(compressed, from, header.offsets[block + 1] - from)) == header.checksums[block];
+    }
+
+    // Делит диапазон блоков пополам, пока не останется один блок
+    private class CompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+        private final byte[][] blocks;
+        // null, если контрольные суммы не нужны
+        private final int[] crcs;
+        private final int from;
+        private final int to;
+
+        CompressTask(byte[] data, int offset, int length, byte[][] blocks, int[] crcs, int from, int to) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.blocks = blocks;
+            this.crcs = crcs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CompressTask(data, offset, length, blocks, crcs, from, mid),
+                        new CompressTask(data, offset, length, blocks, crcs, mid, to));
+                return;
+            }
+            int start = (int) ((long) from * blockSize);
+            int blockLength = Math.min(blockSize, length - start);
+            blocks[from] = CompressedContainer.encode(data, offset + start, blockLength, coder, param);
+            if (crcs != null)
+                crcs[from] = crc32c(ByteBuffer.wrap(blocks[from]));
+        }
+    }
+
+    private static class DecompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] compressed;
+        private final Header header;
+        private final byte[] result;
+        private final int from;
+        private final int to;
+
+        DecompressTask(byte[] compressed, Header header, byte[] result, int from, int to) {
+            this.compressed = compressed;
+            this.header = header;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecompressTask(compressed, header, result, from, mid),
+                        new DecompressTask(compressed, header, result, mid, to));
+                return;
+            }
+            if (header.checksums != null && !checksumMatches(compressed, header, from))
+                throw new IllegalArgumentException("Checksum mismatch in block " + from);
+            int start = (int) ((long) from * header.blockSize);
+            int blockLength = Math.min(header.blockSize, result.length - start);
+            int[] offsets = header.offsets;
+            ByteBuffer in = ByteBuffer.wrap(compressed, offsets[from], offsets[from + 1] - offsets[from]);
+            int decoded = CompressedContainer.decodeBytes(in, ByteBuffer.wrap(result, start, blockLength));
+            if (decoded != blockLength)
+                throw new IllegalArgumentException("Corrupted block " + from);
+        }
+    }
+
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] compressed;
+        private final Header header;
+        private final boolean[] corrupted;
+        private final int from;
+        private final int to;
+
+        VerifyTask(byte[] compressed, Header header, boolean[] corrupted, int from, int to) {
+            this.compressed = compressed;
+            this.header = header;
+            this.corrupted = corrupted;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(compressed, header, corrupted, from, mid),
+                        new VerifyTask(compressed, header, corrupted, mid, to));
+                return;
+            }
+            corrupted[from] = !checksumMatches(compressed, header, from);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Блочное сжатие преобразованием Барроуза-Уилера, как в bzip2: блок переставляется BWT (по суффиксному
+ * массиву, {@link SuffixArray}), так что символы с одинаковым правым контекстом оказываются рядом;
+ * move-to-front превращает это в поток маленьких чисел с длинными сериями нулей; серии нулей
+ * записываются в биективной двоичной системе символами RUNA/RUNB; результат сжимает
+ * {@link CarrylessRangeCoder64} с адаптивной моделью ({@link AdaptiveModel}).
+ *
+ * Блоки независимы и, как в {@link BlockCompressor}, сжимаются и распаковываются параллельно задачами ForkJoinPool.
+ *
+ * Формат (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'B' 'W'
+ * version        1 байт
+ * blockSize      4 байта
+ * length         4 байта  длина исходных данных
+ * blockCount     4 байта
+ * index          blockCount * 4 байта - размеры блоков
+ * blocks         блоки подряд, каждый:
+ *   primary      4 байта  номер строки BWT, с которой начинается исходный блок
+ *   symbolCount  4 байта  количество символов после кодирования серий нулей
+ *   payload      до конца блока
+ * </pre>
+ *
+ * Памяти на блок из n байт нужно около 13n при сжатии (SA-IS) и 4n-9n при распаковке.
+ */
+public class BwtCompressor {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('B' << 8) | 'W';
+    private static final int VERSION = 1;
+    // magic + version + blockSize + length + blockCount
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+    // primary + symbolCount
+    private static final int BLOCK_HEADER_SIZE = 4 + 4;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 23;
+    public static final int MAX_BLOCK_SIZE = 1 << 30;
+
+    // Серии нулей после MTF - RUNA и RUNB, остальные значения v - символ v + 1
+    private static final int RUNA = 0;
+    private static final int RUNB = 1;
+    private static final int ALPHABET = 257;
+    // Обратное BWT с индексом и байтом в одном int - пока индекс помещается в 24 бита
+    private static final int PACKED_LIMIT = 1 << 24;
+
+    private final int blockSize;
+    private final ForkJoinPool pool;
+
+    public BwtCompressor() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public BwtCompressor(int blockSize) {
+        this(blockSize, ForkJoinPool.commonPool());
+    }
+
+    public BwtCompressor(int blockSize, ForkJoinPool pool) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("blockSize should be in [1; " + MAX_BLOCK_SIZE + "]");
+        this.blockSize = blockSize;
+        this.pool = pool;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    public byte[] compress(byte[] data, int offset, int length) {
+        int blockCount = (int) ((length + (long) blockSize - 1) / blockSize);
+        byte[][] blocks = new byte[blockCount][];
+        if (blockCount > 0)
+            pool.invoke(new CompressTask(data, offset, length, blocks, 0, blockCount));
+
+        long size = HEADER_SIZE + 4L * blockCount;
+        for (byte[] block : blocks)
+            size += block.length;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Compressed data is too large");
+
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(MAGIC);
+        out.put((byte) VERSION);
+        out.putInt(blockSize);
+        out.putInt(length);
+        out.putInt(blockCount);
+        for (byte[] block : blocks)
+            out.putInt(block.length);
+        for (byte[] block : blocks)
+            out.put(block);
+        return out.array();
+    }
+
+    /**
+     * Распаковывает данные, сжатые {@link #compress(byte[])}. Размер блока берётся из заголовка,
+     * так что настройки этого экземпляра на распаковку не влияют - используется только его пул.
+     */
+    public byte[] decompress(byte[] compressed) {
+        ByteBuffer in = ByteBuffer.wrap(compressed);
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a BWT-compressed data");
+        int version = in.get() & 0xff;
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        int blockSize = in.getInt();
+        int length = in.getInt();
+        int blockCount = in.getInt();
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE || length < 0
+                || blockCount != (int) ((length + (long) blockSize - 1) / blockSize)
+                || in.remaining() < 4L * blockCount)
+            throw new IllegalArgumentException("Corrupted header");
+
+        int[] offsets = new int[blockCount + 1];
+        offsets[0] = HEADER_SIZE + 4 * blockCount;
+        for (int i = 0; i < blockCount; i++) {
+            int blockLength = in.getInt();
+            if (blockLength < BLOCK_HEADER_SIZE || offsets[i] + (long) blockLength > compressed.length)
+                throw new IllegalArgumentException("Unexpected end of compressed data");
+            offsets[i + 1] = offsets[i] + blockLength;
+        }
+
+        byte[] result = new byte[length];
+        if (blockCount > 0)
+            pool.invoke(new DecompressTask(compressed, offsets, result, blockSize, 0, blockCount));
+        return result;
+    }
+
+    static byte[] encodeBlock(byte[] data, int offset, int length) {
+        // Строка 0 - суффикс из одного воображаемого наименьшего символа, строка i > 0 - суффикс sa[i - 1].
+        // Строка primary (суффикс 0) содержит этот символ в последнем столбце, поэтому не выводится
+        int[] sa = SuffixArray.build(data, offset, length);
+        byte[] bwt = new byte[length];
+        bwt[0] = data[offset + length - 1];
+        int primary = 0;
+        for (int i = 0, j = 1; i < length; i++) {
+            if (sa[i] == 0)
+                primary = i + 1;
+            else
+                bwt[j++] = data[offset + sa[i] - 1];
+        }
+        sa = null;
+
+        // MTF и серии нулей; символов не больше, чем байт
+        int[] symbols = new int[length];
+        int symbolCount = 0;
+        byte[] order = new byte[256];
+        for (int i = 0; i < 256; i++)
+            order[i] = ( byte ) i;
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = bwt[i];
+            if (order[0] == b) {
+                run++;
+                continue;
+            }
+            symbolCount = writeRun(symbols, symbolCount, run);
+            run = 0;
+            int v = 1;
+            while (order[v] != b)
+                v++;
+            System.arraycopy(order, 0, order, 1, v);
+            order[0] = b;
+            symbols[symbolCount++] = v + 1;
+        }
+        symbolCount = writeRun(symbols, symbolCount, run);
+
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64(ALPHABET);
+        byte[] payload = coder.encode(Arrays.copyOf(symbols, symbolCount), newModel()).toByteArray();
+        ByteBuffer out = ByteBuffer.allocate(BLOCK_HEADER_SIZE + payload.length);
+        out.putInt(primary);
+        out.putInt(symbolCount);
+        out.put(payload);
+        return out.array();
+    }
+
+    // Длина серии run = сумма d_k * 2^k, d_k из {1, 2}: RUNA - 1, RUNB - 2
+    private static int writeRun(int[] symbols, int count, int run) {
+        while (run > 0) {
+            if ((run & 1) != 0) {
+                symbols[count++] = RUNA;
+                run = (run - 1) >>> 1;
+            } else {
+                symbols[count++] = RUNB;
+                run = (run - 2) >>> 1;
+            }
+        }
+        return count;
+    }
+
+    private static AdaptiveModel newModel() {
+        return new AdaptiveModel(ALPHABET);
+    }
+
+    static void decodeBlock(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int length) {
+        ByteBuffer in = ByteBuffer.wrap(src, srcOff, srcLength);
+        int primary = in.getInt();
+        int symbolCount = in.getInt();
+        if (primary < 1 || primary > length || symbolCount < 0 || symbolCount > length)
+            throw new IllegalArgumentException("Corrupted block header");
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64(ALPHABET);
+        int[] symbols = coder.decode(new ByteArrayInputStream(src, srcOff + BLOCK_HEADER_SIZE, srcLength - BLOCK_HEADER_SIZE),
+                symbolCount, newModel());
+
+        // Обратные серии нулей и MTF, заодно считаем частоты байт для обратного BWT
+        byte[] bwt = new byte[length];
+        int[] counts = new int[256];
+        byte[] order = new byte[256];
+        for (int i = 0; i < 256; i++)
+            order[i] = ( byte ) i;
+        int pos = 0;
+        int run = 0;
+        int weight = 1;
+        for (int i = 0; i <= symbolCount; i++) {
+            int symbol = i < symbolCount ? symbols[i] : -1;
+            if (symbol == RUNA || symbol == RUNB) {
+                run += weight << symbol;
+                weight <<= 1;
+                if (run > length)
+                    throw new IllegalArgumentException("Corrupted block: run is too long");
+                continue;
+            }
+            if (run > 0) {
+                if (run > length - pos)
+                    throw new IllegalArgumentException("Corrupted block: too many bytes");
+                Arrays.fill(bwt, pos, pos + run, order[0]);
+                counts[order[0] & 0xff] += run;
+                pos += run;
+                run = 0;
+                weight = 1;
+            }
+            if (symbol < 0)
+                break;
+            if (pos == length)
+                throw new IllegalArgumentException("Corrupted block: too many bytes");
+            int v = symbol - 1;
+            byte b = order[v];
+            System.arraycopy(order, 0, order, 1, v);
+            order[0] = b;
+            bwt[pos++] = b;
+            counts[b & 0xff]++;
+        }
+        if (pos != length)
+            throw new IllegalArgumentException("Corrupted block: " + pos + " bytes instead of " + length);
+
+        inverse(bwt, primary, counts, dst, dstOff);
+    }
+
+    /**
+     * Обратное BWT. Строки с 1-й по n-ю отсортированы по первому символу, так что строка j с первым символом c
+     * и её прообраз i (строка, последний символ которой - то же вхождение c) находятся одним проходом по bwt.
+     * next[j] = i - это переход от суффикса k к суффиксу k + 1, и исходный блок получается проходом от primary.
+     * Пока индексы помещаются в 24 бита, next и первый символ хранятся в одном int, как в bzip2:
+     * на байт приходится одно случайное обращение к памяти вместо двух.
+     */
+    private static void inverse(byte[] bwt, int primary, int[] counts, byte[] dst, int dstOff) {
+        int n = bwt.length;
+        int[] starts = new int[256];
+        for (int c = 0, sum = 1; c < 256; c++) {
+            starts[c] = sum;
+            sum += counts[c];
+        }
+
+        if (n + 1 <= PACKED_LIMIT) {
+            int[] next = new int[n + 1];
+            for (int k = 0; k < n; k++) {
+                int c = bwt[k] & 0xff;
+                // Строка primary пропущена в bwt
+                int i = k < primary ? k : k + 1;
+                next[starts[c]++] = (i << 8) | c;
+            }
+            int row = primary;
+            for (int k = 0; k < n; k++) {
+                int v = next[row];
+                dst[dstOff + k] = ( byte ) v;
+                row = v >>> 8;
+            }
+        } else {
+            int[] next = new int[n + 1];
+            byte[] first = new byte[n + 1];
+            for (int k = 0; k < n; k++) {
+                int c = bwt[k] & 0xff;
+                int i = k < primary ? k : k + 1;
+                int j = starts[c]++;
+                next[j] = i;
+                first[j] = ( byte ) c;
+            }
+            int row = primary;
+            for (int k = 0; k < n; k++) {
+                dst[dstOff + k] = first[row];
+                row = next[row];
+            }
+        }
+    }
+
+    // Делит диапазон блоков пополам, пока не останется один блок
+    private class CompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+        private final byte[][] blocks;
+        private final int from;
+        private final int to;
+
+        CompressTask(byte[] data, int offset, int length, byte[][] blocks, int from, int to) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CompressTask(data, offset, length, blocks, from, mid),
+                        new CompressTask(data, offset, length, blocks, mid, to));
+                return;
+            }
+            int start = (int) ((long) from * blockSize);
+            int blockLength = Math.min(blockSize, length - start);
+            blocks[from] = encodeBlock(data, offset + start, blockLength);
+        }
+    }
+
+    private static class DecompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] compressed;
+        private final int[] offsets;
+        private final byte[] result;
+        private final int blockSize;
+        private final int from;
+        private final int to;
+
+        DecompressTask(byte[] compressed, int[] offsets, byte[] result, int blockSize, int from, int to) {
+            this.compressed = compressed;
+            this.offsets = offsets;
+            this.result = result;
+            this.blockSize = blockSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecompressTask(compressed, offsets, result, blockSize, from, mid),
+                        new DecompressTask(compressed, offsets, result, blockSize, mid, to));
+                return;
+            }
+            int start = (int) ((long) from * blockSize);
+            int blockLength = Math.min(blockSize, result.length - start);
+            decodeBlock(compressed, offsets[from], offsets[from + 1] - offsets[from], result, start, blockLength);
+        }
+    }
+}
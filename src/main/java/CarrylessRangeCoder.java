@@ -1,9 +1,14 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * 32-битная реализация субботинского интервального кодера.
  *
+ * Всё состояние кодирования и декодирования - локальные переменные, а накопленные суммы probs
+ * пересчитываются только в count() и setProbs(). Поэтому после настройки модели один экземпляр
+ * можно переиспользовать и вызывать из нескольких потоков одновременно.
+ *
  * @author igor.kostromin
  *         02.06.2014 11:17
  */
@@ -16,38 +21,79 @@ public class CarrylessRangeCoder {
     private final int MIN_RANGE = 1 << ( PRECISION - BITS_IN_BYTE - MIN_RANGE_LOWERIZE_BITS);
     private final int[] probs;
 
+    // Накапливающаяся сумма встречаемости символов: первый элемент - 0, второй - 0 + встречаемость первого, итд
+    private final int[] sumProbs;
+    private int totalCount;
+    // Таблица для поиска символа по threshold без перебора всего алфавита
+    private SymbolLookup lookup;
+
     // размер алфавита <= 2^(PRECISION-1-BITS_IN_BYTE) (минимум по точке на символ в интервале MIN_RANGE)
     public CarrylessRangeCoder(int alphabetSize){
         assert alphabetSize <= MIN_RANGE;
         this.alphabetSize = alphabetSize;
         this.probs = new int[alphabetSize];
+        this.sumProbs = new int[alphabetSize];
+    }
+
+    int[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Устанавливает готовые probs (например, прочитанные из заголовка сжатых данных) вместо вызова count().
+     * Сумма probs - не больше MIN_RANGE.
+     */
+    public void setProbs(int[] probs) {
+        if (probs.length != alphabetSize)
+            throw new IllegalArgumentException("probs.length should be equal to alphabetSize");
+        long total = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (probs[i] < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            total += probs[i];
+        }
+        if (total == 0 || total > MIN_RANGE)
+            throw new IllegalArgumentException("sum of probs should be in (0; MIN_RANGE]");
+        System.arraycopy(probs, 0, this.probs, 0, alphabetSize);
+        updateModel();
+    }
+
+    // Пересчитывает всё, что encode и decode строят по probs
+    private void updateModel() {
+        for(int i = 0; i < alphabetSize; i++){
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        lookup = new SymbolLookup( probs );
+    }
+
+    private void checkProbs() {
+        if (lookup == null)
+            throw new IllegalStateException("probs are not set, call count() or setProbs() first");
     }
 
     // считает rawProbs и преобразует в probs, пригодные для кодирования
     // на выходе должны быть probs, в котором нет ни одного нулевого элемента,
     // а сумма всех значений не превышает 2^8
     public void count(int[] message){
+        count(message, null, message.length);
+    }
+
+    public void count(byte[] message, int offset, int length){
+        count(ByteBuffer.wrap(message, offset, length));
+    }
+
+    // Считает байты между position и limit буфера, position при этом не меняется
+    public void count(ByteBuffer message){
+        checkByteAlphabet();
+        count(null, message, message.remaining());
+    }
+
+    private void count(int[] message, ByteBuffer bytes, int length){
         final int totalCountTreshold = MIN_RANGE;
-        int[] rawProbs = new int[alphabetSize];
-
-        // Сначала просто считаем количество каждого элемента, нормализуя их если
-        // чьё-то кол-во превосходит qtr (для избежания переполнения)
-        int maxCount = 0;
-        for(int i = 0; i < message.length; i++){
-            int prob = ++rawProbs[message[i]];
-            if(prob > maxCount){
-                maxCount = prob;
-
-                // Если для одного из символов кол-во достигло qtr, нужно нормализовать
-                // все вероятности, поделив кол-во каждого на 2
-                if(maxCount == totalCountTreshold){
-                    for(int j = 0; j < alphabetSize; j++){
-                        rawProbs[j] <<= 1;
-                    }
-                    maxCount <<= 1;
-                }
-            }
-        }
+        // Сначала просто считаем количество каждого элемента; если для одного из символов кол-во
+        // достигло totalCountTreshold, все кол-ва удваиваются (см. Frequencies.histogram)
+        int[] rawProbs = Frequencies.histogram(message, bytes, length, alphabetSize, totalCountTreshold);
 
         // Теперь считаем общую сумму накопленных значений для того, чтобы окончательно
         // нормализовать массив probs.
@@ -79,6 +125,12 @@ public class CarrylessRangeCoder {
         for (int i = 0; i < alphabetSize; i++)
             calculatedTotalCount += probs[i];
         assert compareUnsigned( calculatedTotalCount, totalCountTreshold) <= 0;
+        updateModel();
+    }
+
+    private void checkByteAlphabet() {
+        if (alphabetSize < 256)
+            throw new IllegalStateException("alphabetSize should be >= 256 to code bytes");
     }
 
     private static int compareUnsigned(long a, long b){
@@ -108,8 +160,6 @@ public class CarrylessRangeCoder {
         return (a1 < b1) ? -1 : ((a1 > b1) ? 1 : 0);
     }
 
-    private ByteArrayOutputStream stream;
-
     /**
      * Алгоритм кодирования, соответствующий первой версии carryless range coder'а
      * Дмитрия Субботина. Здесь выполняется принудительное уменьшение интервала, но нормализация
@@ -119,15 +169,8 @@ public class CarrylessRangeCoder {
      * @return
      */
     public ByteArrayOutputStream encodeUnoptimized(int[] message) {
-        stream = new ByteArrayOutputStream(  );
-
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        if (message.length != 0) checkProbs();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(  );
 
         int low = 0;
         int range = (int) ((1L << PRECISION) - 1);
@@ -175,21 +218,58 @@ public class CarrylessRangeCoder {
      * @return
      */
     public ByteArrayOutputStream encode(int[] message) {
-        stream = new ByteArrayOutputStream(  );
+        return encodeToStream(message, null, null, 0, message.length);
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        checkByteAlphabet();
+        return encodeToStream(null, message, null, offset, length);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        checkByteAlphabet();
+        return encodeToStream(null, null, message, message.position(), message.remaining());
+    }
+
+    /**
+     * Кодирует len байт src начиная с off в dst начиная с dstOff. В отличие от encode ничего не выделяет.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkByteAlphabet();
+        int end = encode(null, src, null, off, len, dst, dstOff);
+        return end < 0 ? -1 : end - dstOff;
+    }
+
+    // Кодирует во временный массив, увеличивая его, пока результат не поместится
+    private ByteArrayOutputStream encodeToStream(int[] message, byte[] array, ByteBuffer bytes, int base, int length) {
+        // Для байтов с probs по тем же данным - примерно 9 бит на символ
+        long estimate = (long) length * (33 - Integer.numberOfLeadingZeros(alphabetSize - 1)) / 8 + 16;
+        byte[] buffer = new byte[(int) Math.min(estimate, Integer.MAX_VALUE - 8)];
+        int end;
+        while ((end = encode(message, array, bytes, base, length, buffer, 0)) < 0) {
+            if (buffer.length == Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Encoded data is too large");
+            buffer = new byte[(int) Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8)];
         }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream( end );
+        stream.write( buffer, 0, end );
+        return stream;
+    }
+
+    // Символы берутся из message, array или bytes (что не null) начиная с base.
+    // Возвращает позицию в dst после закодированных данных или -1, если dst не хватило места
+    private int encode(int[] message, byte[] array, ByteBuffer bytes, int base, int length, byte[] dst, int dstOff) {
+        if (length != 0) checkProbs();
 
         int low = 0;
         int range = (int) ((1L << PRECISION) - 1);
+        int pos = dstOff;
 
-        for (int i = 0; i < message.length; i++){
-            int c = message[i];
+        for (int i = 0; i < length; i++){
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
 
             low = low + sumProbs[c] * unsignedDiv(range , totalCount);
             range = probs[c] * unsignedDiv(range , totalCount);
@@ -203,21 +283,23 @@ public class CarrylessRangeCoder {
 //                    range = MIN_RANGE - (low & (MIN_RANGE - 1));
                     range= -low & (MIN_RANGE-1);
                 }
-                stream.write(( byte ) (0xff & (low >> (PRECISION - BITS_IN_BYTE))) );
+                if (pos == dst.length) return -1;
+                dst[pos++] = ( byte ) (low >> (PRECISION - BITS_IN_BYTE));
                 low <<= 8;
                 range <<= 8;
             }
         }
 
         // Завершаем кодирование
-        if (message.length != 0) {
-            stream.write( (low >>> 24) & 0xff );
-            stream.write( (low >>> (24 - 8)) & 0xff );
-            stream.write( (low >>> (24 - 16)) & 0xff );
-            stream.write( low & 0xff );
+        if (length != 0) {
+            if (pos + 4 > dst.length) return -1;
+            dst[pos++] = ( byte ) (low >>> 24);
+            dst[pos++] = ( byte ) (low >>> (24 - 8));
+            dst[pos++] = ( byte ) (low >>> (24 - 16));
+            dst[pos++] = ( byte ) low;
         }
 
-        return stream;
+        return pos;
     }
 
     private byte readNextByte(ByteArrayInputStream inputStream) {
@@ -238,17 +320,10 @@ public class CarrylessRangeCoder {
      * Алгоритм декодирования, соответствующий методу {@link #encodeUnoptimized(int[])}.
      */
     public int[] decodeUnoptimized(ByteArrayInputStream inputStream, int len) {
+        if (len != 0) checkProbs();
         int[] message = new int[len];
         int value = readFirstNumber( inputStream );
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for ( int i = 0; i < alphabetSize; i++ ) {
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
-
         int low = 0;
         int range = ( int ) ((1L << PRECISION) - 1);
 
@@ -262,10 +337,7 @@ public class CarrylessRangeCoder {
             // выполнять value &= lowMask и low &= lowMask ни при их изменении, ни перед вычитанием.
             int threshold = unsignedDiv ((value - low) , unsignedDiv( range , totalCount));
 
-            int c;
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
-            }
+            int c = lookup.find( threshold & 0xffffffffL );
 
             message[i] = c;
 
@@ -297,15 +369,46 @@ public class CarrylessRangeCoder {
      */
     public int[] decode(ByteArrayInputStream inputStream, int len) {
         int[] message = new int[len];
-        int value = readFirstNumber( inputStream );
+        decodeFromStream(inputStream, message, null, null, 0, len);
+        return message;
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for ( int i = 0; i < alphabetSize; i++ ) {
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeFromStream(inputStream, null, dst, null, offset, length);
+    }
+
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeFromStream(inputStream, null, null, dst, dst.position(), dst.remaining());
+    }
+
+    /**
+     * Декодирует len байт в dst начиная с dstOff из данных src[off; off + srcLen). В отличие от decode ничего не выделяет.
+     * Данные за концом src считаются нулями, как и у потока.
+     *
+     * @return количество прочитанных из src байт
+     */
+    public int decodeInto(byte[] src, int off, int srcLen, byte[] dst, int dstOff, int len) {
+        return decode(src, off, off + srcLen, null, dst, null, dstOff, len) - off;
+    }
+
+    // Декодер читает из массива: забираем из потока столько, сколько может занять сообщение, а непрочитанное
+    // потом возвращаем. Начальное value - 4 байта, а нормализация после символа
+    // выводит не больше 4 байт: 32-битные low и range к этому времени полностью обновляются
+    private void decodeFromStream(ByteArrayInputStream inputStream, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        byte[] src = StreamWindow.read( inputStream, 4 + 4L * len );
+        int end = decode(src, 0, src.length, message, array, bytes, base, len);
+        StreamWindow.consume( inputStream, end );
+    }
+
+    // Символы пишутся в message, array или bytes (что не null) начиная с base.
+    // Возвращает позицию в src после прочитанных данных
+    private int decode(byte[] src, int srcOff, int srcLimit, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        if (len != 0) checkProbs();
+        int pos = srcOff;
+        int value = 0;
+        for (int k = 0; k < 4; k++)
+            value = (value << 8) | (pos < srcLimit ? src[pos++] & 0xff : 0);
 
         int low = 0;
         int range = ( int ) ((1L << PRECISION) - 1);
@@ -316,12 +419,11 @@ public class CarrylessRangeCoder {
             // выполнять value &= lowMask и low &= lowMask ни при их изменении, ни перед вычитанием.
             int threshold = unsignedDiv ((value - low) , unsignedDiv( range , totalCount));
 
-            int c;
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
-            }
+            int c = lookup.find( threshold & 0xffffffffL );
 
-            message[i] = c;
+            if (message != null) message[base + i] = c;
+            else if (array != null) array[base + i] = ( byte ) c;
+            else bytes.put(base + i, ( byte ) c);
 
             low = low + sumProbs[c] * unsignedDiv (range , totalCount);
             range = probs[c] * unsignedDiv (range , totalCount);
@@ -338,7 +440,7 @@ public class CarrylessRangeCoder {
                     range= -low & (MIN_RANGE-1);
                 }
                 low <<= 8;
-                value = (value << 8) | (readNextByte( inputStream ) & 0xff);
+                value = (value << 8) | (pos < srcLimit ? src[pos++] & 0xff : 0);
                 range <<= 8;
             }
 
@@ -347,6 +449,6 @@ public class CarrylessRangeCoder {
             assert compareUnsigned( (low & 0xffffffffL) + (range & 0xffffffffL), 0x100000000L ) <= 0;
         }
 
-        return message;
+        return pos;
     }
 }
@@ -1,7 +1,14 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
+ * 64-битная реализация субботинского интервального кодера.
+ *
+ * Всё состояние кодирования и декодирования - локальные переменные, а накопленные суммы probs
+ * пересчитываются только в count(), setProbs() и normalizeToPowerOfTwo(). Поэтому после настройки модели
+ * один экземпляр можно переиспользовать и вызывать из нескольких потоков одновременно.
+ *
  * @author igor.kostromin
  *         18.06.2014 10:20
  */
@@ -10,11 +17,20 @@ public class CarrylessRangeCoder64 {
     private static final int BITS_IN_BYTE = 8;
 
     public static final int MIN_RANGE_BITS_MAX = PRECISION - BITS_IN_BYTE;
+    public static final int MAX_LANES = 8;
 
     private final int alphabetSize;
     private final long MIN_RANGE;
     private final int[] probs;
 
+    // Накапливающаяся сумма встречаемости символов: первый элемент - 0, второй - 0 + встречаемость первого, итд
+    private final int[] sumProbs;
+    private int totalCount;
+    // Показатель степени двойки totalCount (тогда деление заменяется сдвигом) или -1
+    private int shift;
+    // Таблица для поиска символа по threshold без перебора всего алфавита
+    private SymbolLookup lookup;
+
     public CarrylessRangeCoder64(int alphabetSize) {
         this(alphabetSize, 32);
     }
@@ -30,33 +46,92 @@ public class CarrylessRangeCoder64 {
             throw new IllegalArgumentException("alphabetSize should be <= MIN_RANGE (2^minRangeBits)");
         this.alphabetSize = alphabetSize;
         this.probs = new int[alphabetSize];
+        this.sumProbs = new int[alphabetSize];
+    }
+
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    long getMinRange() {
+        return MIN_RANGE;
+    }
+
+    int[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Устанавливает готовые probs (например, прочитанные из заголовка сжатых данных или посчитанные
+     * заранее по всему файлу) вместо вызова count().
+     */
+    public void setProbs(int[] probs) {
+        if (probs.length != alphabetSize)
+            throw new IllegalArgumentException("probs.length should be equal to alphabetSize");
+        long total = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (probs[i] < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            total += probs[i];
+        }
+        if (total == 0 || total > MIN_RANGE)
+            throw new IllegalArgumentException("sum of probs should be in (0; MIN_RANGE]");
+        System.arraycopy(probs, 0, this.probs, 0, alphabetSize);
+        updateModel();
+    }
+
+    /**
+     * Масштабирует probs (после count() или setProbs()) так, чтобы их сумма стала степенью двойки.
+     * В этом случае encode и decode вместо деления range на сумму частот выполняют сдвиг,
+     * а формат закодированных данных не меняется.
+     */
+    public void normalizeToPowerOfTwo() {
+        Frequencies.normalizeToPowerOfTwo(probs, Math.min(30, Long.numberOfTrailingZeros(MIN_RANGE)));
+        updateModel();
+    }
+
+    // Пересчитывает всё, что encode и decode строят по probs
+    private void updateModel() {
+        for(int i = 0; i < alphabetSize; i++){
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        shift = powerOfTwoShift( totalCount );
+        lookup = new SymbolLookup( probs );
+    }
+
+    private void checkProbs() {
+        if (lookup == null)
+            throw new IllegalStateException("probs are not set, call count() or setProbs() first");
+    }
+
+    // Если totalCount - степень двойки, возвращает её показатель (деление на totalCount можно заменить сдвигом), иначе -1
+    private static int powerOfTwoShift(int totalCount) {
+        return (totalCount & (totalCount - 1)) == 0 ? Integer.numberOfTrailingZeros(totalCount) : -1;
     }
 
     // считает rawProbs и преобразует в probs, пригодные для кодирования
     // на выходе должны быть probs, в котором нет ни одного нулевого элемента,
     // а сумма всех значений не превышает 2^8
     public void count(int[] message){
+        count(message, null, message.length);
+    }
+
+    public void count(byte[] message, int offset, int length){
+        count(ByteBuffer.wrap(message, offset, length));
+    }
+
+    // Считает байты между position и limit буфера, position при этом не меняется
+    public void count(ByteBuffer message){
+        checkByteAlphabet();
+        count(null, message, message.remaining());
+    }
+
+    private void count(int[] message, ByteBuffer bytes, int length){
         final long totalCountTreshold = MIN_RANGE;
-        int[] rawProbs = new int[alphabetSize];
-
-        // Сначала просто считаем количество каждого элемента, нормализуя их если
-        // чьё-то кол-во превосходит qtr (для избежания переполнения)
-        int maxCount = 0;
-        for(int i = 0; i < message.length; i++){
-            int prob = ++rawProbs[message[i]];
-            if(prob > maxCount){
-                maxCount = prob;
-
-                // Если для одного из символов кол-во достигло qtr, нужно нормализовать
-                // все вероятности, поделив кол-во каждого на 2
-                if(maxCount == totalCountTreshold){
-                    for(int j = 0; j < alphabetSize; j++){
-                        rawProbs[j] <<= 1;
-                    }
-                    maxCount <<= 1;
-                }
-            }
-        }
+        // Сначала просто считаем количество каждого элемента; если для одного из символов кол-во
+        // достигло totalCountTreshold, все кол-ва удваиваются (см. Frequencies.histogram)
+        int[] rawProbs = Frequencies.histogram(message, bytes, length, alphabetSize, totalCountTreshold);
 
         // Теперь считаем общую сумму накопленных значений для того, чтобы окончательно
         // нормализовать массив probs.
@@ -88,6 +163,17 @@ public class CarrylessRangeCoder64 {
         for (int i = 0; i < alphabetSize; i++)
             calculatedTotalCount += probs[i];
         assert compareUnsigned( calculatedTotalCount, totalCountTreshold) <= 0;
+        updateModel();
+    }
+
+    private void checkByteAlphabet() {
+        if (alphabetSize < 256)
+            throw new IllegalStateException("alphabetSize should be >= 256 to code bytes");
+    }
+
+    private void checkModel(Model model) {
+        if (compareUnsigned( model.getMaxTotal(), MIN_RANGE ) > 0)
+            throw new IllegalArgumentException("model.maxTotal should be <= MIN_RANGE");
     }
 
     private static int compareUnsigned(long a, long b){
@@ -152,34 +238,102 @@ public class CarrylessRangeCoder64 {
         return quotient + (compare( rem, divisor ) >= 0 ? 1 : 0);
     }
 
-    private ByteArrayOutputStream stream;
-
     public ByteArrayOutputStream encode(int[] message) {
-        stream = new ByteArrayOutputStream(  );
+        return encodeToStream(message, null, null, 0, message.length, null);
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        checkByteAlphabet();
+        return encodeToStream(null, message, null, offset, length, null);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        checkByteAlphabet();
+        return encodeToStream(null, null, message, message.position(), message.remaining(), null);
+    }
+
+    /**
+     * То же, что и {@link #encode(int[])}, но попутно заполняет index контрольными точками для
+     * {@link #decodeRange}. Закодированные данные не отличаются от кодирования без индекса.
+     */
+    public ByteArrayOutputStream encode(int[] message, SeekIndex index) {
+        return encodeToStream(message, null, null, 0, message.length, index);
+    }
+
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length, SeekIndex index) {
+        checkByteAlphabet();
+        return encodeToStream(null, message, null, offset, length, index);
+    }
+
+    /**
+     * Кодирует len байт src начиная с off в dst начиная с dstOff. В отличие от encode ничего не выделяет.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkByteAlphabet();
+        int end = encode(null, src, null, off, len, dst, dstOff, null);
+        return end < 0 ? -1 : end - dstOff;
+    }
+
+    /**
+     * То же, что и {@link #encodeInto(byte[], int, int, byte[], int)}, но кодирует байты между position и limit
+     * буфера src (например, direct-буфера), position при этом не меняется.
+     */
+    public int encodeInto(ByteBuffer src, byte[] dst, int dstOff) {
+        checkByteAlphabet();
+        int end = encode(null, null, src, src.position(), src.remaining(), dst, dstOff, null);
+        return end < 0 ? -1 : end - dstOff;
+    }
+
+    // Кодирует во временный массив, увеличивая его, пока результат не поместится
+    private ByteArrayOutputStream encodeToStream(int[] message, byte[] array, ByteBuffer bytes, int base, int length, SeekIndex index) {
+        // Для байтов с probs по тем же данным - примерно 9 бит на символ
+        long estimate = (long) length * (33 - Integer.numberOfLeadingZeros(alphabetSize - 1)) / 8 + 16;
+        byte[] buffer = new byte[(int) Math.min(estimate, Integer.MAX_VALUE - 8)];
+        int end;
+        while ((end = encode(message, array, bytes, base, length, buffer, 0, index)) < 0) {
+            if (buffer.length == Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Encoded data is too large");
+            buffer = new byte[(int) Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8)];
         }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream( end );
+        stream.write( buffer, 0, end );
+        return stream;
+    }
+
+    // Символы берутся из message, array или bytes (что не null) начиная с base.
+    // Возвращает позицию в dst после закодированных данных или -1, если dst не хватило места
+    private int encode(int[] message, byte[] array, ByteBuffer bytes, int base, int length, byte[] dst, int dstOff, SeekIndex index) {
+        if (length != 0) checkProbs();
 
         long low = 0;
         long range = -1;//(1L << PRECISION) - 1;
+        int pos = dstOff;
+        // Без индекса до контрольной точки не дойдём никогда
+        long nextCheckpoint = index != null ? 0 : -1;
+        if (index != null) index.clear();
 
-        for (int i = 0; i < message.length; i++){
-            int c = message[i];
+        for (int i = 0; i < length; i++){
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
+
+            if (i == nextCheckpoint) {
+                index.add(pos - dstOff, low, range);
+                nextCheckpoint += index.getInterval();
+            }
 
-            low = low + sumProbs[c] * unsignedDiv(range , totalCount);
-            range = probs[c] * unsignedDiv(range , totalCount);
+            long r = shift >= 0 ? range >>> shift : unsignedDiv(range , totalCount);
+            low = low + sumProbs[c] * r;
+            range = probs[c] * r;
 
             // True if top 8 bits are equal
             boolean highBitsEq;
             while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
                     || (compareUnsigned( range , MIN_RANGE) < 0)){
                 if (!highBitsEq) range= -low & (MIN_RANGE-1);
-                stream.write(( byte ) (0xff & (low >> (PRECISION - BITS_IN_BYTE))) );
+                if (pos == dst.length) return -1;
+                dst[pos++] = ( byte ) (low >> (PRECISION - BITS_IN_BYTE));
                 low <<= 8;
                 range <<= 8;
             }
@@ -188,18 +342,14 @@ public class CarrylessRangeCoder64 {
         // Завершаем кодирование
         // note : можно ещё добавить формулу определения кол-ва бит, необходимых для вывода в файл при завершении
         // в зависимости от выбранного размера MIN_RANGE, и уменьшить по возможности количество крайних байт
-        if (message.length != 0) {
-            stream.write( ( int ) ((low >>> 56) & 0xff) );
-            stream.write( ( int ) ((low >>> (56 - 8)) & 0xff) );
-            stream.write( ( int ) ((low >>> (56 - 16)) & 0xff) );
-            stream.write( ( int ) ((low >>> (56 - 24)) & 0xff) );
-            stream.write( ( int ) ((low >>> (56 - 32)) & 0xff) );
-            stream.write( ( int ) ((low >>> (56 - 40)) & 0xff) );
-            stream.write( ( int ) ((low >>> (56 - 48)) & 0xff) );
-            stream.write( ( int ) (low & 0xff) );
+        if (length != 0) {
+            if (pos + 8 > dst.length) return -1;
+            for (int bits = 56; bits >= 0; bits -= 8)
+                dst[pos++] = ( byte ) (low >>> bits);
         }
+        if (index != null) index.setLength(length);
 
-        return stream;
+        return pos;
     }
 
     private byte readNextByte(ByteArrayInputStream inputStream) {
@@ -226,31 +376,174 @@ public class CarrylessRangeCoder64 {
 
     public int[] decode(ByteArrayInputStream inputStream, int len) {
         int[] message = new int[len];
-        long value = readFirstNumber( inputStream );
+        decodeFromStream(inputStream, message, null, null, 0, len);
+        return message;
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for ( int i = 0; i < alphabetSize; i++ ) {
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeFromStream(inputStream, null, dst, null, offset, length);
+    }
+
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeFromStream(inputStream, null, null, dst, dst.position(), dst.remaining());
+    }
+
+    /**
+     * Декодирует len байт в dst начиная с dstOff из данных src[off; off + srcLen). В отличие от decode ничего не выделяет.
+     * Данные за концом src считаются нулями, как и у потока.
+     *
+     * @return количество прочитанных из src байт
+     */
+    public int decodeInto(byte[] src, int off, int srcLen, byte[] dst, int dstOff, int len) {
+        return decode(src, off, off + srcLen, 0, -1, 0, null, dst, null, dstOff, len) - off;
+    }
+
+    /**
+     * Декодирует символы [start; start + count) данных src[off; off + srcLen), закодированных с индексом
+     * ({@link #encode(int[], SeekIndex)}), начиная с ближайшей к start контрольной точки.
+     */
+    public int[] decodeRange(byte[] src, int off, int srcLen, SeekIndex index, int start, int count) {
+        int[] message = new int[count];
+        decodeRange(src, off, srcLen, index, start, message, null, 0, count);
+        return message;
+    }
+
+    public void decodeRange(byte[] src, int off, int srcLen, SeekIndex index, int start, byte[] dst, int dstOff, int count) {
+        decodeRange(src, off, srcLen, index, start, null, dst, dstOff, count);
+    }
+
+    private void decodeRange(byte[] src, int off, int srcLen, SeekIndex index, int start, int[] message, byte[] array, int base, int count) {
+        int checkpoint = index.checkpoint(start, count);
+        if (count == 0)
+            return;
+        int offset = index.getOffset(checkpoint);
+        if (offset > srcLen)
+            throw new IllegalArgumentException("Seek index does not match the data");
+        decode(src, off + offset, off + srcLen, index.getLow(checkpoint), index.getRange(checkpoint),
+                start - checkpoint * index.getInterval(), message, array, null, base, count);
+    }
+
+    // Декодер читает из массива: забираем из потока столько, сколько может занять сообщение, а непрочитанное
+    // потом возвращаем. Начальное value - 8 байт, а нормализация после символа
+    // сдвигает 64-битные low и range не больше чем на 8 байт
+    private void decodeFromStream(ByteArrayInputStream inputStream, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        byte[] src = StreamWindow.read( inputStream, 8 + 8L * len );
+        int end = decode(src, 0, src.length, 0, -1, 0, message, array, bytes, base, len);
+        StreamWindow.consume( inputStream, end );
+    }
+
+    // Символы пишутся в message, array или bytes (что не null) начиная с base, первые skip символов пропускаются.
+    // Декодирование начинается с состояния low, range и данных с srcOff (с начала - low = 0, range = -1).
+    // Возвращает позицию в src после прочитанных данных
+    private int decode(byte[] src, int srcOff, int srcLimit, long low, long range, int skip,
+                       int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        if (len != 0) checkProbs();
+        int pos = srcOff;
+        long value = 0;
+        for (int k = 0; k < 8; k++)
+            value = (value << 8) | (pos < srcLimit ? src[pos++] & 0xff : 0);
+
+        for ( int i = -skip; i < len; i++ ) {
+            long r = shift >= 0 ? range >>> shift : unsignedDiv( range, totalCount );
+            long threshold = unsignedDiv( (value - low), r );
+
+            int c = lookup.find( threshold );
+
+            if (i >= 0) {
+                if (message != null) message[base + i] = c;
+                else if (array != null) array[base + i] = ( byte ) c;
+                else bytes.put(base + i, ( byte ) c);
+            }
+
+            low = low + sumProbs[c] * r;
+            range = probs[c] * r;
+
+            // True if top 8 bits are equal
+            boolean highBitsEq;
+            while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range , MIN_RANGE) < 0)){
+                if (!highBitsEq) range= -low & (MIN_RANGE-1);
+                low <<= 8;
+                value = (value << 8) | (pos < srcLimit ? src[pos++] & 0xff : 0);
+                range <<= 8;
+            }
         }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+
+        return pos;
+    }
+
+    /**
+     * Однопроходное кодирование с адаптивной моделью вместо probs: count() вызывать не нужно.
+     * Модель изменяется в процессе кодирования, декодеру нужна модель в том же начальном состоянии.
+     */
+    public ByteArrayOutputStream encode(int[] message, Model model) {
+        checkModel(model);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(  );
 
         long low = 0;
         long range = -1;//(1L << PRECISION) - 1;
 
-        for ( int i = 0; i < len; i++ ) {
-            long threshold = unsignedDiv( (value - low), unsignedDiv( range, totalCount ) );
+        for (int i = 0; i < message.length; i++){
+            int c = message[i];
+            int totalCount = model.getTotal();
+
+            long r = unsignedDiv(range , totalCount);
+            low = low + model.getLow(c) * r;
+            range = model.getFreq(c) * r;
+            model.update(c);
 
-            int c;
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
+            // True if top 8 bits are equal
+            boolean highBitsEq;
+            while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range , MIN_RANGE) < 0)){
+                if (!highBitsEq) range= -low & (MIN_RANGE-1);
+                stream.write(( byte ) (0xff & (low >> (PRECISION - BITS_IN_BYTE))) );
+                low <<= 8;
+                range <<= 8;
             }
+        }
+
+        // Завершаем кодирование
+        // note : можно ещё добавить формулу определения кол-ва бит, необходимых для вывода в файл при завершении
+        // в зависимости от выбранного размера MIN_RANGE, и уменьшить по возможности количество крайних байт
+        if (message.length != 0) {
+            stream.write( ( int ) ((low >>> 56) & 0xff) );
+            stream.write( ( int ) ((low >>> (56 - 8)) & 0xff) );
+            stream.write( ( int ) ((low >>> (56 - 16)) & 0xff) );
+            stream.write( ( int ) ((low >>> (56 - 24)) & 0xff) );
+            stream.write( ( int ) ((low >>> (56 - 32)) & 0xff) );
+            stream.write( ( int ) ((low >>> (56 - 40)) & 0xff) );
+            stream.write( ( int ) ((low >>> (56 - 48)) & 0xff) );
+            stream.write( ( int ) (low & 0xff) );
+        }
+
+        return stream;
+    }
+
+    /**
+     * Алгоритм декодирования, соответствующий методу {@link #encode(int[], Model)}.
+     */
+    public int[] decode(ByteArrayInputStream inputStream, int len, Model model) {
+        checkModel(model);
+        int[] message = new int[len];
+        long value = readFirstNumber( inputStream );
+
+        long low = 0;
+        long range = -1;//(1L << PRECISION) - 1;
+
+        for ( int i = 0; i < len; i++ ) {
+            int totalCount = model.getTotal();
+            long r = unsignedDiv( range, totalCount );
+            long threshold = unsignedDiv( (value - low), r );
+
+            int c = model.findSymbol( ( int ) threshold );
 
             message[i] = c;
 
-            low = low + sumProbs[c] * unsignedDiv (range , totalCount);
-            range = probs[c] * unsignedDiv (range , totalCount);
+            low = low + model.getLow(c) * r;
+            range = model.getFreq(c) * r;
+            model.update(c);
 
             // True if top 8 bits are equal
             boolean highBitsEq;
@@ -265,4 +558,476 @@ public class CarrylessRangeCoder64 {
 
         return message;
     }
+
+    /**
+     * Кодирование несколькими независимыми состояниями (дорожками): символ i кодируется дорожкой i % lanes.
+     * В обычном кодере каждый шаг ждёт результатов деления на предыдущем шаге, а шаги разных дорожек друг от
+     * друга не зависят, и процессор может выполнять их деления и нормализацию одновременно. Для этого
+     * состояние дорожек должно быть в локальных переменных, поэтому для 2 и 4 дорожек есть отдельные циклы,
+     * а остальные количества кодируются общим циклом с состоянием в массивах.
+     *
+     * Формат: 1 байт - количество дорожек, затем lanes * 4 байта - длины потоков дорожек (big-endian),
+     * затем сами потоки дорожек подряд. Декодировать нужно методом {@link #decodeInterleaved}.
+     *
+     * @param lanes количество дорожек, от 1 до MAX_LANES
+     */
+    public ByteArrayOutputStream encodeInterleaved(int[] message, int lanes) {
+        return encodeInterleaved(message, null, null, 0, message.length, lanes);
+    }
+
+    public ByteArrayOutputStream encodeInterleaved(byte[] message, int offset, int length, int lanes) {
+        checkByteAlphabet();
+        return encodeInterleaved(null, message, null, offset, length, lanes);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encodeInterleaved(ByteBuffer message, int lanes) {
+        checkByteAlphabet();
+        return encodeInterleaved(null, null, message, message.position(), message.remaining(), lanes);
+    }
+
+    // Дорожки кодируются в один массив, в области по laneCapacity байт; если какой-то не хватило места,
+    // все области увеличиваются вдвое, как и в encodeToStream()
+    private ByteArrayOutputStream encodeInterleaved(int[] message, byte[] array, ByteBuffer bytes, int base, int length, int lanes) {
+        if (lanes < 1 || lanes > MAX_LANES)
+            throw new IllegalArgumentException("lanes should be in [1; " + MAX_LANES + "]");
+        if (length != 0) checkProbs();
+
+        final int maxCapacity = (Integer.MAX_VALUE - 8) / lanes;
+        long estimate = (long) (length / lanes + 1) * (33 - Integer.numberOfLeadingZeros(alphabetSize - 1)) / 8 + 16;
+        int laneCapacity = (int) Math.min(estimate, maxCapacity);
+        int[] ends = new int[lanes];
+        byte[] buffer;
+        while (!encodeLanes(message, array, bytes, base, length, lanes, buffer = new byte[lanes * laneCapacity], laneCapacity, ends)) {
+            if (laneCapacity == maxCapacity)
+                throw new IllegalStateException("Encoded data is too large");
+            laneCapacity = (int) Math.min(laneCapacity * 2L, maxCapacity);
+        }
+
+        int total = 0;
+        for (int l = 0; l < lanes; l++)
+            total += ends[l] - l * laneCapacity;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream( 1 + lanes * 4 + total );
+        stream.write( lanes );
+        for (int l = 0; l < lanes; l++) {
+            int size = ends[l] - l * laneCapacity;
+            stream.write( size >>> 24 );
+            stream.write( size >>> 16 );
+            stream.write( size >>> 8 );
+            stream.write( size );
+        }
+        for (int l = 0; l < lanes; l++)
+            stream.write( buffer, l * laneCapacity, ends[l] - l * laneCapacity );
+        return stream;
+    }
+
+    // Дорожка l пишется в dst начиная с l * laneCapacity, позиции после её данных записываются в ends.
+    // Возвращает false, если какой-то дорожке не хватило места
+    private boolean encodeLanes(int[] message, byte[] array, ByteBuffer bytes, int base, int length, int lanes,
+                                byte[] dst, int laneCapacity, int[] ends) {
+        if (lanes == 2)
+            return encodeLanes2(message, array, bytes, base, length, dst, laneCapacity, ends);
+        if (lanes == 4)
+            return encodeLanes4(message, array, bytes, base, length, dst, laneCapacity, ends);
+
+        long[] lows = new long[lanes];
+        long[] ranges = new long[lanes];
+        int[] positions = new int[lanes];
+        for (int l = 0; l < lanes; l++) {
+            ranges[l] = -1;
+            positions[l] = l * laneCapacity;
+        }
+
+        for (int i = 0; i < length; i += lanes) {
+            int count = Math.min(lanes, length - i);
+            for (int l = 0; l < count; l++) {
+                int c = message != null ? message[base + i + l] : array != null ? array[base + i + l] & 0xff : bytes.get(base + i + l) & 0xff;
+                long low = lows[l];
+                long r = shift >= 0 ? ranges[l] >>> shift : unsignedDiv(ranges[l], totalCount);
+                low = low + sumProbs[c] * r;
+                long range = probs[c] * r;
+                int pos = positions[l];
+                int end = (l + 1) * laneCapacity;
+
+                // True if top 8 bits are equal
+                boolean highBitsEq;
+                while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
+                        || (compareUnsigned( range , MIN_RANGE) < 0)){
+                    if (!highBitsEq) range= -low & (MIN_RANGE-1);
+                    if (pos == end) return false;
+                    dst[pos++] = ( byte ) (low >> (PRECISION - BITS_IN_BYTE));
+                    low <<= 8;
+                    range <<= 8;
+                }
+                lows[l] = low;
+                ranges[l] = range;
+                positions[l] = pos;
+            }
+        }
+
+        for (int l = 0; l < lanes; l++) {
+            ends[l] = l < length ? finishLane(lows[l], dst, positions[l], (l + 1) * laneCapacity) : positions[l];
+            if (ends[l] < 0) return false;
+        }
+        return true;
+    }
+
+    private boolean encodeLanes2(int[] message, byte[] array, ByteBuffer bytes, int base, int length,
+                                 byte[] dst, int laneCapacity, int[] ends) {
+        long low0 = 0, range0 = -1;
+        long low1 = 0, range1 = -1;
+        int pos0 = 0, end0 = laneCapacity;
+        int pos1 = laneCapacity, end1 = 2 * laneCapacity;
+
+        for (int i = 0; i < length; i += 2) {
+            boolean highBitsEq;
+
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
+            long r = shift >= 0 ? range0 >>> shift : unsignedDiv(range0, totalCount);
+            low0 = low0 + sumProbs[c] * r;
+            range0 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low0 ^ (low0+range0)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range0 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range0= -low0 & (MIN_RANGE-1);
+                if (pos0 == end0) return false;
+                dst[pos0++] = ( byte ) (low0 >> (PRECISION - BITS_IN_BYTE));
+                low0 <<= 8;
+                range0 <<= 8;
+            }
+            if (i + 1 == length) break;
+
+            c = message != null ? message[base + i + 1] : array != null ? array[base + i + 1] & 0xff : bytes.get(base + i + 1) & 0xff;
+            r = shift >= 0 ? range1 >>> shift : unsignedDiv(range1, totalCount);
+            low1 = low1 + sumProbs[c] * r;
+            range1 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low1 ^ (low1+range1)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range1 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range1= -low1 & (MIN_RANGE-1);
+                if (pos1 == end1) return false;
+                dst[pos1++] = ( byte ) (low1 >> (PRECISION - BITS_IN_BYTE));
+                low1 <<= 8;
+                range1 <<= 8;
+            }
+        }
+
+        ends[0] = length > 0 ? finishLane(low0, dst, pos0, end0) : pos0;
+        ends[1] = length > 1 ? finishLane(low1, dst, pos1, end1) : pos1;
+        return ends[0] >= 0 && ends[1] >= 0;
+    }
+
+    private boolean encodeLanes4(int[] message, byte[] array, ByteBuffer bytes, int base, int length,
+                                 byte[] dst, int laneCapacity, int[] ends) {
+        long low0 = 0, range0 = -1;
+        long low1 = 0, range1 = -1;
+        long low2 = 0, range2 = -1;
+        long low3 = 0, range3 = -1;
+        int pos0 = 0, end0 = laneCapacity;
+        int pos1 = laneCapacity, end1 = 2 * laneCapacity;
+        int pos2 = 2 * laneCapacity, end2 = 3 * laneCapacity;
+        int pos3 = 3 * laneCapacity, end3 = 4 * laneCapacity;
+
+        for (int i = 0; i < length; i += 4) {
+            boolean highBitsEq;
+
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
+            long r = shift >= 0 ? range0 >>> shift : unsignedDiv(range0, totalCount);
+            low0 = low0 + sumProbs[c] * r;
+            range0 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low0 ^ (low0+range0)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range0 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range0= -low0 & (MIN_RANGE-1);
+                if (pos0 == end0) return false;
+                dst[pos0++] = ( byte ) (low0 >> (PRECISION - BITS_IN_BYTE));
+                low0 <<= 8;
+                range0 <<= 8;
+            }
+            if (i + 1 == length) break;
+
+            c = message != null ? message[base + i + 1] : array != null ? array[base + i + 1] & 0xff : bytes.get(base + i + 1) & 0xff;
+            r = shift >= 0 ? range1 >>> shift : unsignedDiv(range1, totalCount);
+            low1 = low1 + sumProbs[c] * r;
+            range1 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low1 ^ (low1+range1)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range1 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range1= -low1 & (MIN_RANGE-1);
+                if (pos1 == end1) return false;
+                dst[pos1++] = ( byte ) (low1 >> (PRECISION - BITS_IN_BYTE));
+                low1 <<= 8;
+                range1 <<= 8;
+            }
+            if (i + 2 == length) break;
+
+            c = message != null ? message[base + i + 2] : array != null ? array[base + i + 2] & 0xff : bytes.get(base + i + 2) & 0xff;
+            r = shift >= 0 ? range2 >>> shift : unsignedDiv(range2, totalCount);
+            low2 = low2 + sumProbs[c] * r;
+            range2 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low2 ^ (low2+range2)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range2 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range2= -low2 & (MIN_RANGE-1);
+                if (pos2 == end2) return false;
+                dst[pos2++] = ( byte ) (low2 >> (PRECISION - BITS_IN_BYTE));
+                low2 <<= 8;
+                range2 <<= 8;
+            }
+            if (i + 3 == length) break;
+
+            c = message != null ? message[base + i + 3] : array != null ? array[base + i + 3] & 0xff : bytes.get(base + i + 3) & 0xff;
+            r = shift >= 0 ? range3 >>> shift : unsignedDiv(range3, totalCount);
+            low3 = low3 + sumProbs[c] * r;
+            range3 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low3 ^ (low3+range3)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range3 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range3= -low3 & (MIN_RANGE-1);
+                if (pos3 == end3) return false;
+                dst[pos3++] = ( byte ) (low3 >> (PRECISION - BITS_IN_BYTE));
+                low3 <<= 8;
+                range3 <<= 8;
+            }
+        }
+
+        ends[0] = length > 0 ? finishLane(low0, dst, pos0, end0) : pos0;
+        ends[1] = length > 1 ? finishLane(low1, dst, pos1, end1) : pos1;
+        ends[2] = length > 2 ? finishLane(low2, dst, pos2, end2) : pos2;
+        ends[3] = length > 3 ? finishLane(low3, dst, pos3, end3) : pos3;
+        return ends[0] >= 0 && ends[1] >= 0 && ends[2] >= 0 && ends[3] >= 0;
+    }
+
+    // Завершает дорожку, в которую попал хотя бы один символ, так же, как и encode().
+    // Возвращает позицию после дорожки или -1, если до end не хватило места
+    private static int finishLane(long low, byte[] dst, int pos, int end) {
+        if (pos + 8 > end) return -1;
+        for (int bits = 56; bits >= 0; bits -= 8)
+            dst[pos++] = ( byte ) (low >>> bits);
+        return pos;
+    }
+
+    /**
+     * Алгоритм декодирования, соответствующий методу {@link #encodeInterleaved(int[], int)}.
+     * Количество дорожек читается из заголовка.
+     */
+    public int[] decodeInterleaved(ByteArrayInputStream inputStream, int len) {
+        int[] message = new int[len];
+        decodeInterleaved(inputStream, message, null, null, 0, len);
+        return message;
+    }
+
+    public void decodeInterleaved(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeInterleaved(inputStream, null, dst, null, offset, length);
+    }
+
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decodeInterleaved(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeInterleaved(inputStream, null, null, dst, dst.position(), dst.remaining());
+    }
+
+    private void decodeInterleaved(ByteArrayInputStream inputStream, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        int lanes = inputStream.read();
+        if (lanes < 1 || lanes > MAX_LANES)
+            throw new IllegalArgumentException("Corrupted input: lanes = " + lanes);
+
+        // Все дорожки читаются в один массив, у каждой - своя текущая позиция и граница
+        int[] positions = new int[lanes];
+        int[] ends = new int[lanes];
+        int total = 0;
+        for (int l = 0; l < lanes; l++) {
+            int size = 0;
+            for (int k = 0; k < 4; k++)
+                size = (size << 8) | (readNextByte( inputStream ) & 0xff);
+            if (size < 0 || size > inputStream.available() - total)
+                throw new IllegalArgumentException("Corrupted input: lane size = " + size);
+            positions[l] = total;
+            total += size;
+            ends[l] = total;
+        }
+        byte[] buffer = new byte[total];
+        inputStream.read( buffer, 0, total );
+        if (len != 0) checkProbs();
+
+        if (lanes == 2)
+            decodeLanes2(buffer, ends, message, array, bytes, base, len);
+        else if (lanes == 4)
+            decodeLanes4(buffer, ends, message, array, bytes, base, len);
+        else
+            decodeLanes(buffer, positions, ends, lanes, message, array, bytes, base, len);
+    }
+
+    private void decodeLanes(byte[] src, int[] positions, int[] ends, int lanes,
+                             int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        long[] lows = new long[lanes];
+        long[] ranges = new long[lanes];
+        long[] values = new long[lanes];
+        for (int l = 0; l < lanes; l++) {
+            ranges[l] = -1;
+            // Как и в decode(), за концом данных дорожки считаем что идут нули
+            for (int k = 0; k < 8; k++)
+                values[l] = (values[l] << 8) | (positions[l] < ends[l] ? src[positions[l]++] & 0xff : 0);
+        }
+
+        for ( int i = 0; i < len; i += lanes ) {
+            int count = Math.min(lanes, len - i);
+            for (int l = 0; l < count; l++) {
+                long low = lows[l];
+                long value = values[l];
+                long r = shift >= 0 ? ranges[l] >>> shift : unsignedDiv( ranges[l], totalCount );
+                long threshold = unsignedDiv( (value - low), r );
+
+                int c = lookup.find( threshold );
+
+                if (message != null) message[base + i + l] = c;
+                else if (array != null) array[base + i + l] = ( byte ) c;
+                else bytes.put(base + i + l, ( byte ) c);
+
+                low = low + sumProbs[c] * r;
+                long range = probs[c] * r;
+                int pos = positions[l];
+
+                // True if top 8 bits are equal
+                boolean highBitsEq;
+                while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
+                        || (compareUnsigned( range , MIN_RANGE) < 0)){
+                    if (!highBitsEq) range= -low & (MIN_RANGE-1);
+                    low <<= 8;
+                    value = (value << 8) | (pos < ends[l] ? src[pos++] & 0xff : 0);
+                    range <<= 8;
+                }
+                lows[l] = low;
+                ranges[l] = range;
+                values[l] = value;
+                positions[l] = pos;
+            }
+        }
+    }
+
+    // Первые 8 байт дорожки [pos; end) - начальное value, за концом дорожки считаем что идут нули
+    private static long readLaneValue(byte[] src, int pos, int end) {
+        long value = 0;
+        for (int k = 0; k < 8; k++, pos++)
+            value = (value << 8) | (pos < end ? src[pos] & 0xff : 0);
+        return value;
+    }
+
+    private void decodeLanes2(byte[] src, int[] ends, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        int end0 = ends[0], end1 = ends[1];
+        long value0 = readLaneValue(src, 0, end0);
+        long value1 = readLaneValue(src, end0, end1);
+        int pos0 = Math.min(8, end0), pos1 = Math.min(end0 + 8, end1);
+        long low0 = 0, range0 = -1;
+        long low1 = 0, range1 = -1;
+
+        for ( int i = 0; i < len; i += 2 ) {
+            boolean highBitsEq;
+
+            long r = shift >= 0 ? range0 >>> shift : unsignedDiv( range0, totalCount );
+            int c = lookup.find( unsignedDiv( (value0 - low0), r ) );
+            if (message != null) message[base + i] = c;
+            else if (array != null) array[base + i] = ( byte ) c;
+            else bytes.put(base + i, ( byte ) c);
+            low0 = low0 + sumProbs[c] * r;
+            range0 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low0 ^ (low0+range0)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range0 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range0= -low0 & (MIN_RANGE-1);
+                low0 <<= 8;
+                value0 = (value0 << 8) | (pos0 < end0 ? src[pos0++] & 0xff : 0);
+                range0 <<= 8;
+            }
+            if (i + 1 == len) break;
+
+            r = shift >= 0 ? range1 >>> shift : unsignedDiv( range1, totalCount );
+            c = lookup.find( unsignedDiv( (value1 - low1), r ) );
+            if (message != null) message[base + i + 1] = c;
+            else if (array != null) array[base + i + 1] = ( byte ) c;
+            else bytes.put(base + i + 1, ( byte ) c);
+            low1 = low1 + sumProbs[c] * r;
+            range1 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low1 ^ (low1+range1)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range1 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range1= -low1 & (MIN_RANGE-1);
+                low1 <<= 8;
+                value1 = (value1 << 8) | (pos1 < end1 ? src[pos1++] & 0xff : 0);
+                range1 <<= 8;
+            }
+        }
+    }
+
+    private void decodeLanes4(byte[] src, int[] ends, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        int end0 = ends[0], end1 = ends[1], end2 = ends[2], end3 = ends[3];
+        long value0 = readLaneValue(src, 0, end0);
+        long value1 = readLaneValue(src, end0, end1);
+        long value2 = readLaneValue(src, end1, end2);
+        long value3 = readLaneValue(src, end2, end3);
+        int pos0 = Math.min(8, end0), pos1 = Math.min(end0 + 8, end1);
+        int pos2 = Math.min(end1 + 8, end2), pos3 = Math.min(end2 + 8, end3);
+        long low0 = 0, range0 = -1;
+        long low1 = 0, range1 = -1;
+        long low2 = 0, range2 = -1;
+        long low3 = 0, range3 = -1;
+
+        for ( int i = 0; i < len; i += 4 ) {
+            boolean highBitsEq;
+
+            long r = shift >= 0 ? range0 >>> shift : unsignedDiv( range0, totalCount );
+            int c = lookup.find( unsignedDiv( (value0 - low0), r ) );
+            if (message != null) message[base + i] = c;
+            else if (array != null) array[base + i] = ( byte ) c;
+            else bytes.put(base + i, ( byte ) c);
+            low0 = low0 + sumProbs[c] * r;
+            range0 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low0 ^ (low0+range0)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range0 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range0= -low0 & (MIN_RANGE-1);
+                low0 <<= 8;
+                value0 = (value0 << 8) | (pos0 < end0 ? src[pos0++] & 0xff : 0);
+                range0 <<= 8;
+            }
+            if (i + 1 == len) break;
+
+            r = shift >= 0 ? range1 >>> shift : unsignedDiv( range1, totalCount );
+            c = lookup.find( unsignedDiv( (value1 - low1), r ) );
+            if (message != null) message[base + i + 1] = c;
+            else if (array != null) array[base + i + 1] = ( byte ) c;
+            else bytes.put(base + i + 1, ( byte ) c);
+            low1 = low1 + sumProbs[c] * r;
+            range1 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low1 ^ (low1+range1)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range1 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range1= -low1 & (MIN_RANGE-1);
+                low1 <<= 8;
+                value1 = (value1 << 8) | (pos1 < end1 ? src[pos1++] & 0xff : 0);
+                range1 <<= 8;
+            }
+            if (i + 2 == len) break;
+
+            r = shift >= 0 ? range2 >>> shift : unsignedDiv( range2, totalCount );
+            c = lookup.find( unsignedDiv( (value2 - low2), r ) );
+            if (message != null) message[base + i + 2] = c;
+            else if (array != null) array[base + i + 2] = ( byte ) c;
+            else bytes.put(base + i + 2, ( byte ) c);
+            low2 = low2 + sumProbs[c] * r;
+            range2 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low2 ^ (low2+range2)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range2 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range2= -low2 & (MIN_RANGE-1);
+                low2 <<= 8;
+                value2 = (value2 << 8) | (pos2 < end2 ? src[pos2++] & 0xff : 0);
+                range2 <<= 8;
+            }
+            if (i + 3 == len) break;
+
+            r = shift >= 0 ? range3 >>> shift : unsignedDiv( range3, totalCount );
+            c = lookup.find( unsignedDiv( (value3 - low3), r ) );
+            if (message != null) message[base + i + 3] = c;
+            else if (array != null) array[base + i + 3] = ( byte ) c;
+            else bytes.put(base + i + 3, ( byte ) c);
+            low3 = low3 + sumProbs[c] * r;
+            range3 = probs[c] * r;
+            while ((highBitsEq = compareUnsigned((low3 ^ (low3+range3)), 0x100000000000000L) < 0)
+                    || (compareUnsigned( range3 , MIN_RANGE) < 0)){
+                if (!highBitsEq) range3= -low3 & (MIN_RANGE-1);
+                low3 <<= 8;
+                value3 = (value3 << 8) | (pos3 < end3 ? src[pos3++] & 0xff : 0);
+                range3 <<= 8;
+            }
+        }
+    }
 }
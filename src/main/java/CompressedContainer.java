@@ -0,0 +1,422 @@
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Самоописывающий формат сжатых данных: всё, что нужно декодеру (тип кодера, его параметры,
+ * длина сообщения и таблица частот), записывается в заголовок перед закодированными данными.
+ *
+ * Формат (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'N' 'T'
+ * version        1 байт   2 (1 - таблица частот без сжатия, только читается)
+ * coder          1 байт   один из CODER_*
+ * param          1 байт   precision для арифметических кодеров, minRangeBits для CarrylessRangeCoder64,
+ *                         scaleBits для AnsCoder, иначе 0
+ * alphabetSize   4 байта
+ * symbolCount    4 байта
+ * tableLength    4 байта
+ * table          tableLength байт - probs, записанные {@link FrequencyTableCodec}
+ * payloadLength  4 байта
+ * payload        payloadLength байт
+ * </pre>
+ * В версии 1 вместо tableLength и table - probs как есть, alphabetSize * 4 байта. Для 256 символов это 1 КБ
+ * на каждый контейнер, а {@link FrequencyTableCodec} после count() обычно укладывается в 100-300 байт.
+ */
+public class CompressedContainer {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('N' << 8) | 'T';
+    private static final int VERSION = 2;
+    private static final int VERSION_RAW_TABLE = 1;
+
+    public static final int CODER_ARITHMETIC = 1;
+    public static final int CODER_ARITHMETIC_PRECISE = 2;
+    public static final int CODER_ARITHMETIC64 = 3;
+    public static final int CODER_RANGE = 4;
+    public static final int CODER_CARRYLESS = 5;
+    public static final int CODER_CARRYLESS64 = 6;
+    public static final int CODER_ANS = 7;
+
+    // magic + version + coder + param + alphabetSize + symbolCount
+    private static final int FIXED_HEADER_SIZE = 4 + 1 + 1 + 1 + 4 + 4;
+
+    private CompressedContainer() {
+    }
+
+    /**
+     * Сжимает байты выбранным кодером (алфавит из 256 символов).
+     *
+     * @param param precision для арифметических кодеров, minRangeBits для CarrylessRangeCoder64, scaleBits для AnsCoder,
+     *              для остальных игнорируется
+     */
+    public static byte[] encode(byte[] data, int offset, int length, int coder, int param) {
+        return encode(null, ByteBuffer.wrap(data, offset, length), length, 256, coder, param);
+    }
+
+    /**
+     * Сжимает байты между position и limit буфера (например, отображённого в память файла), position не меняется.
+     */
+    static byte[] encode(ByteBuffer data, int coder, int param) {
+        return encode(null, data, data.remaining(), 256, coder, param);
+    }
+
+    public static byte[] encode(int[] message, int alphabetSize, int coder, int param) {
+        return encode(message, null, message.length, alphabetSize, coder, param);
+    }
+
+    /**
+     * То же, что и {@link #encode(ByteBuffer, int, int)}, но контейнер записывается в dst начиная с dstOff,
+     * и ничего размером с данные не выделяется. Поддерживается только CODER_CARRYLESS64.
+     *
+     * @return длина контейнера или -1, если в dst не хватило места
+     */
+    static int encodeInto(ByteBuffer data, int coder, int param, byte[] dst, int dstOff) {
+        if (coder != CODER_CARRYLESS64)
+            throw new IllegalArgumentException("Unsupported coder: " + coder);
+        CarrylessRangeCoder64 rangeCoder = new CarrylessRangeCoder64(256, param);
+        rangeCoder.count(data);
+        byte[] table = FrequencyTableCodec.encode(rangeCoder.getProbs());
+        int headerSize = FIXED_HEADER_SIZE + 4 + table.length + 4;
+        if (dst.length - dstOff < headerSize)
+            return -1;
+        int payloadLength = rangeCoder.encodeInto(data, dst, dstOff + headerSize);
+        if (payloadLength < 0)
+            return -1;
+        writeHeader(ByteBuffer.wrap(dst, dstOff, headerSize), coder, param, 256, data.remaining(), table, payloadLength);
+        return headerSize + payloadLength;
+    }
+
+    private static byte[] encode(int[] message, ByteBuffer bytes, int length, int alphabetSize, int coder, int param) {
+        byte[] payload;
+        int[] probs;
+        switch (coder) {
+            case CODER_ARITHMETIC:
+            case CODER_ARITHMETIC_PRECISE: {
+                ArithmeticCoder arithmeticCoder = new ArithmeticCoder(alphabetSize, param);
+                boolean precise = coder == CODER_ARITHMETIC_PRECISE;
+                if (message != null) {
+                    arithmeticCoder.count(message);
+                    payload = arithmeticCoder.encode(message, precise).toByteArray();
+                } else {
+                    arithmeticCoder.count(bytes);
+                    payload = arithmeticCoder.encode(bytes, precise).toByteArray();
+                }
+                probs = arithmeticCoder.getProbs();
+                break;
+            }
+            case CODER_ARITHMETIC64: {
+                ArithmeticCoder64 arithmeticCoder = new ArithmeticCoder64(alphabetSize, param);
+                if (message != null) {
+                    arithmeticCoder.count(message);
+                    payload = arithmeticCoder.encode(message).toByteArray();
+                } else {
+                    arithmeticCoder.count(bytes);
+                    payload = arithmeticCoder.encode(bytes).toByteArray();
+                }
+                // count() строит probs из int-счётчиков, поэтому они всегда помещаются в int
+                long[] longProbs = arithmeticCoder.getProbs();
+                probs = new int[alphabetSize];
+                for (int i = 0; i < alphabetSize; i++)
+                    probs[i] = ( int ) longProbs[i];
+                break;
+            }
+            case CODER_RANGE: {
+                RangeCoder rangeCoder = new RangeCoder(alphabetSize);
+                if (message != null) {
+                    rangeCoder.count(message);
+                    payload = rangeCoder.encode(message).toByteArray();
+                } else {
+                    rangeCoder.count(bytes);
+                    payload = rangeCoder.encode(bytes).toByteArray();
+                }
+                probs = rangeCoder.getProbs();
+                param = 0;
+                break;
+            }
+            case CODER_CARRYLESS: {
+                CarrylessRangeCoder rangeCoder = new CarrylessRangeCoder(alphabetSize);
+                if (message != null) {
+                    rangeCoder.count(message);
+                    payload = rangeCoder.encode(message).toByteArray();
+                } else {
+                    rangeCoder.count(bytes);
+                    payload = rangeCoder.encode(bytes).toByteArray();
+                }
+                probs = rangeCoder.getProbs();
+                param = 0;
+                break;
+            }
+            case CODER_CARRYLESS64: {
+                CarrylessRangeCoder64 rangeCoder = new CarrylessRangeCoder64(alphabetSize, param);
+                if (message != null) {
+                    rangeCoder.count(message);
+                    payload = rangeCoder.encode(message).toByteArray();
+                } else {
+                    rangeCoder.count(bytes);
+                    payload = rangeCoder.encode(bytes).toByteArray();
+                }
+                probs = rangeCoder.getProbs();
+                break;
+            }
+            case CODER_ANS: {
+                AnsCoder ansCoder = new AnsCoder(alphabetSize, param);
+                if (message != null) {
+                    ansCoder.count(message);
+                    payload = ansCoder.encode(message).toByteArray();
+                } else {
+                    ansCoder.count(bytes);
+                    payload = ansCoder.encode(bytes).toByteArray();
+                }
+                probs = ansCoder.getProbs();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown coder: " + coder);
+        }
+
+        byte[] table = FrequencyTableCodec.encode(probs);
+        ByteBuffer out = ByteBuffer.allocate(FIXED_HEADER_SIZE + 4 + table.length + 4 + payload.length);
+        writeHeader(out, coder, param, alphabetSize, length, table, payload.length);
+        out.put(payload);
+        return out.array();
+    }
+
+    // Всё, что идёт перед payload
+    private static void writeHeader(ByteBuffer out, int coder, int param, int alphabetSize, int length, byte[] table, int payloadLength) {
+        out.putInt(MAGIC);
+        out.put(( byte ) VERSION);
+        out.put(( byte ) coder);
+        out.put(( byte ) param);
+        out.putInt(alphabetSize);
+        out.putInt(length);
+        out.putInt(table.length);
+        out.put(table);
+        out.putInt(payloadLength);
+    }
+
+    /**
+     * Восстанавливает сообщение, используя только данные из заголовка.
+     */
+    public static int[] decode(byte[] container) {
+        return decode(ByteBuffer.wrap(container));
+    }
+
+    /**
+     * То же, что и {@link #decode(byte[])}, но результат записывается в байты (alphabetSize должен быть <= 256).
+     */
+    public static byte[] decodeBytes(byte[] container) {
+        ByteBuffer in = ByteBuffer.wrap(container);
+        Header header = readHeader(in, 256);
+        byte[] result = new byte[header.symbolCount];
+        decodePayload(header, readPayload(in), ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * Декодирует контейнер, начинающийся с позиции in, в байты dst начиная с его позиции.
+     * Позиция in сдвигается за конец контейнера, позиция dst не меняется.
+     *
+     * @return количество декодированных символов
+     */
+    static int decodeBytes(ByteBuffer in, ByteBuffer dst) {
+        Header header = readHeader(in, 256);
+        if (dst.remaining() < header.symbolCount)
+            throw new IllegalArgumentException("Not enough space in dst: " + header.symbolCount + " bytes required");
+        ByteBuffer window = dst.duplicate();
+        window.limit(window.position() + header.symbolCount);
+        decodePayload(header, readPayload(in), window);
+        return header.symbolCount;
+    }
+
+    /**
+     * Количество символов в контейнере, начинающемся с позиции in; позиция не меняется.
+     * Нужно, чтобы выделить буфер под результат до {@link #decodeBytes(ByteBuffer, ByteBuffer)}.
+     */
+    static int symbolCount(ByteBuffer in) {
+        int pos = in.position();
+        if (in.remaining() < FIXED_HEADER_SIZE || in.getInt(pos) != MAGIC)
+            throw new IllegalArgumentException("Not a compressed container");
+        int symbolCount = in.getInt(pos + FIXED_HEADER_SIZE - 4);
+        if (symbolCount < 0)
+            throw new IllegalArgumentException("Corrupted header");
+        return symbolCount;
+    }
+
+    /**
+     * Кодер контейнера, начинающегося с позиции in (CODER_*); позиция не меняется.
+     */
+    static int coder(ByteBuffer in) {
+        int pos = in.position();
+        if (in.remaining() < FIXED_HEADER_SIZE || in.getInt(pos) != MAGIC)
+            throw new IllegalArgumentException("Not a compressed container");
+        return in.get(pos + 5) & 0xff;
+    }
+
+    /**
+     * Читает из канала ровно один контейнер и восстанавливает сообщение.
+     */
+    public static int[] decode(ReadableByteChannel channel) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+        readFully(channel, fixed);
+        fixed.flip();
+        if (fixed.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a compressed container");
+        int version = fixed.get(4) & 0xff;
+        if (version != VERSION && version != VERSION_RAW_TABLE)
+            throw new IllegalArgumentException("Unsupported container version: " + version);
+        int alphabetSize = fixed.getInt(FIXED_HEADER_SIZE - 8);
+        if (alphabetSize <= 0 || alphabetSize > (Integer.MAX_VALUE - 8) / 4)
+            throw new IllegalArgumentException("Corrupted header: alphabetSize = " + alphabetSize);
+
+        // В версии 2 перед таблицей её длина, в версии 1 таблица всегда alphabetSize * 4 байта
+        ByteBuffer tableLengthField = ByteBuffer.allocate(version == VERSION ? 4 : 0);
+        readFully(channel, tableLengthField);
+        int tableLength = version == VERSION ? tableLengthField.getInt(0) : alphabetSize * 4;
+        if (tableLength < 0 || tableLength > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Corrupted header: tableLength = " + tableLength);
+
+        ByteBuffer rest = ByteBuffer.allocate(tableLength + 4);
+        readFully(channel, rest);
+        rest.flip();
+        int payloadLength = rest.getInt(tableLength);
+        if (payloadLength < 0)
+            throw new IllegalArgumentException("Corrupted header: payloadLength = " + payloadLength);
+
+        tableLengthField.flip();
+        ByteBuffer all = ByteBuffer.allocate(FIXED_HEADER_SIZE + tableLengthField.capacity() + rest.capacity() + payloadLength);
+        all.put(fixed).put(tableLengthField).put(rest);
+        readFully(channel, all);
+        all.flip();
+        return decode(all);
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Unexpected end of compressed data");
+        }
+    }
+
+    private static int[] decode(ByteBuffer in) {
+        Header header = readHeader(in, Integer.MAX_VALUE);
+        return decodePayload(header, readPayload(in), null);
+    }
+
+    private static class Header {
+        int coder;
+        int param;
+        int alphabetSize;
+        int symbolCount;
+        int[] probs;
+    }
+
+    // alphabetSize больше maxAlphabetSize отвергается до разбора таблицы частот
+    private static Header readHeader(ByteBuffer in, int maxAlphabetSize) {
+        if (in.remaining() < FIXED_HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a compressed container");
+        int version = in.get() & 0xff;
+        if (version != VERSION && version != VERSION_RAW_TABLE)
+            throw new IllegalArgumentException("Unsupported container version: " + version);
+        Header header = new Header();
+        header.coder = in.get() & 0xff;
+        header.param = in.get() & 0xff;
+        header.alphabetSize = in.getInt();
+        header.symbolCount = in.getInt();
+        if (header.alphabetSize <= 0 || header.symbolCount < 0)
+            throw new IllegalArgumentException("Corrupted header");
+        if (header.alphabetSize > maxAlphabetSize)
+            throw new IllegalArgumentException("alphabetSize should be <= " + maxAlphabetSize + " to decode into bytes");
+        if (version == VERSION_RAW_TABLE) {
+            if (in.remaining() < header.alphabetSize * 4L)
+                throw new IllegalArgumentException("Corrupted header");
+            header.probs = new int[header.alphabetSize];
+            for (int i = 0; i < header.alphabetSize; i++)
+                header.probs[i] = in.getInt();
+            return header;
+        }
+        if (in.remaining() < 4)
+            throw new IllegalArgumentException("Corrupted header");
+        int tableLength = in.getInt();
+        if (tableLength < 0 || in.remaining() < tableLength)
+            throw new IllegalArgumentException("Corrupted header");
+        byte[] table = new byte[tableLength];
+        in.get(table);
+        header.probs = FrequencyTableCodec.decode(table, 0, tableLength, header.alphabetSize);
+        return header;
+    }
+
+    private static byte[] readPayload(ByteBuffer in) {
+        if (in.remaining() < 4)
+            throw new IllegalArgumentException("Corrupted header");
+        int payloadLength = in.getInt();
+        if (payloadLength < 0 || in.remaining() < payloadLength)
+            throw new IllegalArgumentException("Unexpected end of compressed data");
+        byte[] payload = new byte[payloadLength];
+        in.get(payload);
+        return payload;
+    }
+
+    // Если bytes == null, возвращает декодированное сообщение, иначе пишет его в bytes и возвращает null
+    private static int[] decodePayload(Header header, byte[] payload, ByteBuffer bytes) {
+        ByteArrayInputStream in = new ByteArrayInputStream(payload);
+        int len = header.symbolCount;
+        switch (header.coder) {
+            case CODER_ARITHMETIC:
+            case CODER_ARITHMETIC_PRECISE: {
+                ArithmeticCoder coder = new ArithmeticCoder(header.alphabetSize, header.param);
+                coder.setProbs(header.probs);
+                boolean precise = header.coder == CODER_ARITHMETIC_PRECISE;
+                if (bytes == null)
+                    return coder.decode(in, len, precise);
+                coder.decode(in, bytes, precise);
+                return null;
+            }
+            case CODER_ARITHMETIC64: {
+                ArithmeticCoder64 coder = new ArithmeticCoder64(header.alphabetSize, header.param);
+                long[] probs = new long[header.alphabetSize];
+                for (int i = 0; i < probs.length; i++)
+                    probs[i] = header.probs[i] & 0xffffffffL;
+                coder.setProbs(probs);
+                if (bytes == null)
+                    return coder.decode(in, len);
+                coder.decode(in, bytes);
+                return null;
+            }
+            case CODER_RANGE: {
+                RangeCoder coder = new RangeCoder(header.alphabetSize);
+                coder.setProbs(header.probs);
+                if (bytes == null)
+                    return coder.decode(in, len);
+                coder.decode(in, bytes);
+                return null;
+            }
+            case CODER_CARRYLESS: {
+                CarrylessRangeCoder coder = new CarrylessRangeCoder(header.alphabetSize);
+                coder.setProbs(header.probs);
+                if (bytes == null)
+                    return coder.decode(in, len);
+                coder.decode(in, bytes);
+                return null;
+            }
+            case CODER_CARRYLESS64: {
+                CarrylessRangeCoder64 coder = new CarrylessRangeCoder64(header.alphabetSize, header.param);
+                coder.setProbs(header.probs);
+                if (bytes == null)
+                    return coder.decode(in, len);
+                coder.decode(in, bytes);
+                return null;
+            }
+            case CODER_ANS: {
+                AnsCoder coder = new AnsCoder(header.alphabetSize, header.param);
+                coder.setProbs(header.probs);
+                if (bytes == null)
+                    return coder.decode(in, len);
+                coder.decode(in, bytes);
+                return null;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown coder: " + header.coder);
+        }
+    }
+}
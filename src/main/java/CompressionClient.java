@@ -0,0 +1,78 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Блокирующий клиент {@link CompressionServer}. Одно соединение на экземпляр, запросы выполняются
+ * по очереди, поэтому экземпляр нельзя использовать из нескольких потоков одновременно - каждому потоку
+ * нужен свой клиент.
+ */
+public class CompressionClient implements Closeable {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(CompressionServer.FRAME_HEADER_SIZE);
+
+    public CompressionClient(SocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        if (address instanceof InetSocketAddress)
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * @return {@link CompressedContainer} с данными, сжатыми {@link CarrylessRangeCoder64}
+     */
+    public byte[] compress(byte[] data, int offset, int length) throws IOException {
+        return call(CompressionServer.OP_COMPRESS, data, offset, length);
+    }
+
+    public byte[] decompress(byte[] container) throws IOException {
+        return call(CompressionServer.OP_DECOMPRESS, container, 0, container.length);
+    }
+
+    /**
+     * @return счётчики сервера, см. {@link CompressionServer.Metrics#toString()}
+     */
+    public String stats() throws IOException {
+        return new String(call(CompressionServer.OP_STATS, new byte[0], 0, 0), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Отправляет запрос и ждёт ответ; ответ с ошибкой превращается в IOException
+    private byte[] call(byte op, byte[] data, int offset, int length) throws IOException {
+        header.clear();
+        header.put(op).putInt(length);
+        header.flip();
+        ByteBuffer[] request = { header, ByteBuffer.wrap(data, offset, length) };
+        while (request[1].hasRemaining() || header.hasRemaining())
+            channel.write(request);
+
+        header.clear();
+        readFully(header);
+        header.flip();
+        byte status = header.get();
+        int responseLength = header.getInt();
+        if (responseLength < 0)
+            throw new IOException("Corrupted response: length = " + responseLength);
+        ByteBuffer response = ByteBuffer.allocate(responseLength);
+        readFully(response);
+        if (status != CompressionServer.STATUS_OK)
+            throw new IOException("Server error: " + new String(response.array(), StandardCharsets.UTF_8));
+        return response.array();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Connection closed by server");
+        }
+    }
+}
@@ -0,0 +1,553 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Локальный сервис сжатия для других процессов на той же машине: принимает запросы по loopback TCP
+ * или Unix-сокету и сжимает их {@link CarrylessRangeCoder64} в формате {@link CompressedContainer}.
+ *
+ * Протокол (все числа - big-endian), на одном соединении запросы обрабатываются по очереди:
+ * <pre>
+ * запрос   op      1 байт   OP_COMPRESS, OP_DECOMPRESS или OP_STATS
+ *          length  4 байта
+ *          data    length байт: исходные данные, контейнер или ничего для OP_STATS
+ * ответ    status  1 байт   STATUS_OK или STATUS_ERROR
+ *          length  4 байта
+ *          data    length байт: результат или текст ошибки в UTF-8
+ * </pre>
+ * Сетевой ввод-вывод всех соединений ведёт один поток с {@link Selector}, а кодирование выполняется
+ * в пуле из threads рабочих потоков, поэтому медленный клиент не задерживает остальных. Запросы и ответы
+ * читаются и пишутся через direct-буферы из {@link DirectBufferPool}, в том числе декодирование идёт
+ * прямо в буфер ответа.
+ *
+ * Unix-сокеты требуют Java 16+, TCP-сокеты - нет: библиотека собирается под более старую Java, поэтому
+ * UnixDomainSocketAddress используется через reflection, см. {@link #unixAddress(Path)}.
+ */
+public class CompressionServer implements Closeable {
+    public static final byte OP_COMPRESS = 'C';
+    public static final byte OP_DECOMPRESS = 'D';
+    public static final byte OP_STATS = 'S';
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    // op или status + length
+    static final int FRAME_HEADER_SIZE = 1 + 4;
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1 << 24;
+    public static final int MAX_MESSAGE_SIZE = 1 << 28;
+    // Сколько свободных буферов каждой ёмкости держит пул
+    private static final int POOLED_BUFFERS = 64;
+    private static final String UNIX_ADDRESS_CLASS = "java.net.UnixDomainSocketAddress";
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final DirectBufferPool buffers = new DirectBufferPool(POOLED_BUFFERS);
+    // Буферы ответов direct, а кодер пишет в массив: каждый рабочий поток сжимает в свой массив,
+    // который переиспользуется между запросами и только растёт
+    private final ThreadLocal<byte[]> compressBuffers = new ThreadLocal<byte[]>();
+    private final int minRangeBits;
+    private final int maxMessageSize;
+    private final SocketAddress address;
+    // Соединения, для которых рабочий поток подготовил ответ; забирает поток цикла событий
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+    private Thread loop;
+    private volatile boolean closed;
+
+    private final long started = System.nanoTime();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    public CompressionServer(SocketAddress address, int threads) throws IOException {
+        this(address, threads, 32, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * @param address        InetSocketAddress (порт 0 - любой свободный) или адрес Unix-сокета из {@link #unixAddress(Path)}
+     * @param threads        сколько запросов кодируется одновременно
+     * @param minRangeBits   параметр {@link CarrylessRangeCoder64}
+     * @param maxMessageSize наибольшая длина данных запроса и ответа; на больший запрос сервер отвечает
+     *                       ошибкой и закрывает соединение
+     */
+    public CompressionServer(SocketAddress address, int threads, int minRangeBits, int maxMessageSize) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads should be > 0");
+        if (minRangeBits < 8 || minRangeBits > CarrylessRangeCoder64.MIN_RANGE_BITS_MAX)
+            throw new IllegalArgumentException("minRangeBits should be in [8; " + CarrylessRangeCoder64.MIN_RANGE_BITS_MAX + "]");
+        if (maxMessageSize < 0 || maxMessageSize > MAX_MESSAGE_SIZE)
+            throw new IllegalArgumentException("maxMessageSize should be in [0; " + MAX_MESSAGE_SIZE + "]");
+        this.minRangeBits = minRangeBits;
+        this.maxMessageSize = maxMessageSize;
+        server = isUnixAddress(address) ? openUnixServer() : ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        this.address = server.getLocalAddress();
+        workers = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Адрес Unix-сокета для сервера и {@link CompressionClient}.
+     *
+     * @throws UnsupportedOperationException если Java младше 16
+     */
+    public static SocketAddress unixAddress(Path path) {
+        try {
+            return ( SocketAddress ) Class.forName(UNIX_ADDRESS_CLASS).getMethod("of", Path.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16+", e);
+        }
+    }
+
+    private static boolean isUnixAddress(SocketAddress address) {
+        return address != null && address.getClass().getName().equals(UNIX_ADDRESS_CLASS);
+    }
+
+    // ServerSocketChannel.open(ProtocolFamily) тоже есть только начиная с Java 15
+    private static ServerSocketChannel openUnixServer() throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return ( ServerSocketChannel ) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw ( IOException ) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16+", e);
+        }
+    }
+
+    private static Path unixPath(SocketAddress address) {
+        try {
+            return ( Path ) address.getClass().getMethod("getPath").invoke(address);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return адрес, на котором сервер принимает соединения (с настоящим номером порта, если был указан 0)
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Запускает цикл событий в отдельном потоке.
+     */
+    public synchronized void start() {
+        if (loop != null)
+            throw new IllegalStateException("Server is already started");
+        loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "compression-server");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Останавливает сервер: закрывает все соединения, дожидается цикла событий и рабочих потоков.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        Thread thread;
+        synchronized (this) {
+            thread = loop;
+        }
+        try {
+            if (thread != null)
+                thread.join();
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection)
+                closeConnection(( Connection ) key.attachment());
+        }
+        selector.close();
+        server.close();
+        if (isUnixAddress(address))
+            Files.deleteIfExists(unixPath(address));
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(System.nanoTime() - started, requests.get(), errors.get(), bytesIn.get(), bytesOut.get(),
+                connections.get(), queueDepth.get(), maxQueueDepth.get(), buffers.getAllocated());
+    }
+
+    private void runLoop() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    connection.processing = false;
+                    if (connection.key.isValid()) {
+                        write(connection);
+                    } else {
+                        buffers.release(connection.response);
+                        connection.response = null;
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = ( Connection ) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(connection);
+                        else if (key.isWritable())
+                            write(connection);
+                    } catch (IOException e) {
+                        closeConnection(connection);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed)
+                throw new IllegalStateException("Compression server failed", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        if (!isUnixAddress(address))
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.incrementAndGet();
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.request == null) {
+            if (connection.channel.read(connection.header) < 0) {
+                closeConnection(connection);
+                return;
+            }
+            if (connection.header.hasRemaining())
+                return;
+            connection.header.flip();
+            byte op = connection.header.get();
+            int length = connection.header.getInt();
+            connection.header.clear();
+            if (op != OP_COMPRESS && op != OP_DECOMPRESS && op != OP_STATS) {
+                fail(connection, "Unknown op: " + op);
+                return;
+            }
+            if (length < 0 || length > maxMessageSize) {
+                fail(connection, "Message length should be in [0; " + maxMessageSize + "]: " + length);
+                return;
+            }
+            connection.op = op;
+            connection.request = buffers.acquire(length);
+            connection.request.limit(length);
+        }
+        if (connection.request.hasRemaining() && connection.channel.read(connection.request) < 0) {
+            closeConnection(connection);
+            return;
+        }
+        if (connection.request.hasRemaining())
+            return;
+
+        // Пока запрос кодируется, соединение не читается; следующий запрос подождёт в буфере сокета
+        connection.key.interestOps(0);
+        connection.processing = true;
+        connection.request.flip();
+        bytesIn.addAndGet(connection.request.remaining());
+        int depth = queueDepth.incrementAndGet();
+        for (int max = maxQueueDepth.get(); depth > max && !maxQueueDepth.compareAndSet(max, depth); )
+            max = maxQueueDepth.get();
+        workers.execute(new Task(connection));
+    }
+
+    // Отвечает ошибкой и закрывает соединение: положение следующего запроса в потоке уже неизвестно
+    private void fail(Connection connection, String message) {
+        errors.incrementAndGet();
+        connection.key.interestOps(0);
+        connection.response = errorResponse(message);
+        connection.closeAfterWrite = true;
+        write(connection);
+    }
+
+    private void write(Connection connection) {
+        try {
+            connection.channel.write(connection.response);
+        } catch (IOException e) {
+            closeConnection(connection);
+            return;
+        }
+        if (connection.response.hasRemaining()) {
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        buffers.release(connection.response);
+        connection.response = null;
+        if (connection.closeAfterWrite)
+            closeConnection(connection);
+        else
+            connection.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeConnection(Connection connection) {
+        if (!connection.key.isValid())
+            return;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // соединение всё равно больше не используется
+        }
+        connections.decrementAndGet();
+        // Буферы запроса, отданного рабочему потоку, вернёт цикл событий, когда заберёт ответ
+        if (connection.processing)
+            return;
+        if (connection.request != null) {
+            buffers.release(connection.request);
+            connection.request = null;
+        }
+        if (connection.response != null) {
+            buffers.release(connection.response);
+            connection.response = null;
+        }
+    }
+
+    // Выполняется в рабочем потоке; request прочитан до конца, position = 0
+    private ByteBuffer process(byte op, ByteBuffer request) {
+        switch (op) {
+            case OP_COMPRESS: {
+                byte[] container = compressBuffers.get();
+                int length = container != null
+                        ? CompressedContainer.encodeInto(request, CompressedContainer.CODER_CARRYLESS64, minRangeBits, container, 0)
+                        : -1;
+                while (length < 0) {
+                    // Для байтов - примерно 9 бит на символ плюс заголовок; не хватило - вдвое больше
+                    long capacity = request.remaining() + request.remaining() / 8 + 4096;
+                    if (container != null) {
+                        if (container.length == Integer.MAX_VALUE - 8)
+                            throw new IllegalStateException("Encoded data is too large");
+                        capacity = Math.max(capacity, container.length * 2L);
+                    }
+                    container = new byte[( int ) Math.min(capacity, Integer.MAX_VALUE - 8)];
+                    compressBuffers.set(container);
+                    length = CompressedContainer.encodeInto(request, CompressedContainer.CODER_CARRYLESS64, minRangeBits, container, 0);
+                }
+                ByteBuffer response = buffers.acquire(FRAME_HEADER_SIZE + length);
+                response.put(STATUS_OK).putInt(length).put(container, 0, length);
+                response.flip();
+                return response;
+            }
+            case OP_DECOMPRESS: {
+                // Сервер сам сжимает только CODER_CARRYLESS64, а декодеры остальных кодеров на чужих
+                // данных могут работать сколь угодно долго и занять рабочий поток
+                int coder = CompressedContainer.coder(request);
+                if (coder != CompressedContainer.CODER_CARRYLESS64)
+                    throw new IllegalArgumentException("Unsupported coder: " + coder);
+                int length = CompressedContainer.symbolCount(request);
+                if (length > maxMessageSize)
+                    throw new IllegalArgumentException("Decompressed length exceeds " + maxMessageSize + ": " + length);
+                ByteBuffer response = buffers.acquire(FRAME_HEADER_SIZE + length);
+                try {
+                    response.put(STATUS_OK).putInt(length);
+                    CompressedContainer.decodeBytes(request, response);
+                    if (request.hasRemaining())
+                        throw new IllegalArgumentException("Unexpected data after the container");
+                } catch (RuntimeException e) {
+                    buffers.release(response);
+                    throw e;
+                }
+                response.position(0).limit(FRAME_HEADER_SIZE + length);
+                return response;
+            }
+            default: {
+                byte[] stats = getMetrics().toString().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer response = buffers.acquire(FRAME_HEADER_SIZE + stats.length);
+                response.put(STATUS_OK).putInt(stats.length).put(stats);
+                response.flip();
+                return response;
+            }
+        }
+    }
+
+    private ByteBuffer errorResponse(String message) {
+        byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer response = buffers.acquire(FRAME_HEADER_SIZE + text.length);
+        response.put(STATUS_ERROR).putInt(text.length).put(text);
+        response.flip();
+        return response;
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        SelectionKey key;
+        byte op;
+        ByteBuffer request;
+        ByteBuffer response;
+        // Запрос отдан рабочему потоку, буферами соединения владеет он
+        boolean processing;
+        boolean closeAfterWrite;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private class Task implements Runnable {
+        private final Connection connection;
+
+        Task(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer response;
+            try {
+                response = process(connection.op, connection.request);
+            } catch (Throwable e) {
+                // Не только RuntimeException: например, OutOfMemoryError на испорченных данных. Ответ нужен
+                // на каждый запрос, иначе клиент ждёт вечно, а буфер запроса и queueDepth так и остаются занятыми
+                errors.incrementAndGet();
+                response = errorResponse(e.getMessage() != null ? e.getMessage() : e.toString());
+            } finally {
+                buffers.release(connection.request);
+                connection.request = null;
+                requests.incrementAndGet();
+                queueDepth.decrementAndGet();
+            }
+            bytesOut.addAndGet(response.remaining() - FRAME_HEADER_SIZE);
+            connection.response = response;
+            ready.offer(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Снимок счётчиков сервера. Пропускная способность считается от запуска сервера.
+     */
+    public static class Metrics {
+        private final long uptimeNanos;
+        private final long requests;
+        private final long errors;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final int connections;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final long allocatedBuffers;
+
+        Metrics(long uptimeNanos, long requests, long errors, long bytesIn, long bytesOut, int connections,
+                int queueDepth, int maxQueueDepth, long allocatedBuffers) {
+            this.uptimeNanos = uptimeNanos;
+            this.requests = requests;
+            this.errors = errors;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.connections = connections;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.allocatedBuffers = allocatedBuffers;
+        }
+
+        // Обработанные запросы, включая ответы с ошибкой
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        // Запросы, прочитанные целиком, но ещё не обработанные рабочими потоками
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        // Сколько direct-буферов выделено за всё время; перестаёт расти, когда пул прогрет
+        public long getAllocatedBuffers() {
+            return allocatedBuffers;
+        }
+
+        public double getRequestsPerSecond() {
+            return requests / (uptimeNanos / 1e9);
+        }
+
+        // Входные данные запросов, МБ/с
+        public double getThroughput() {
+            return bytesIn / (uptimeNanos / 1e9) / (1 << 20);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d in=%d out=%d connections=%d queueDepth=%d maxQueueDepth=%d"
+                            + " buffers=%d rps=%.1f throughput=%.2fMB/s",
+                    requests, errors, bytesIn, bytesOut, connections, queueDepth, maxQueueDepth,
+                    allocatedBuffers, getRequestsPerSecond(), getThroughput());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Запуск {@link CompressionServer} и нагрузочный клиент к нему:
+ * <pre>
+ * CompressionServiceProgram server [-port N | -unix PATH] [-threads N] [-minRangeBits N]
+ * CompressionServiceProgram load [-port N | -unix PATH] [-clients N] [-requests N] [-size SIZE]
+ * </pre>
+ * Сервер слушает только loopback и раз в 5 секунд печатает свои счётчики. Клиенты load сжимают и распаковывают
+ * куски book1.txt размером SIZE и сверяют результат; без -port и -unix load запускает сервер в том же процессе.
+ */
+public class CompressionServiceProgram {
+    private static final int DEFAULT_PORT = 9800;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !(args[0].equals("server") || args[0].equals("load")))
+            usage();
+        boolean server = args[0].equals("server");
+
+        SocketAddress address = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int minRangeBits = 32;
+        int clients = 4;
+        int requests = 10000;
+        int size = 4096;
+        if (args.length % 2 == 0)
+            usage();
+        for (int i = 1; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-port":
+                    address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(value));
+                    break;
+                case "-unix":
+                    address = CompressionServer.unixAddress(Paths.get(value));
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "-minRangeBits":
+                    minRangeBits = Integer.parseInt(value);
+                    break;
+                case "-clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "-requests":
+                    requests = Integer.parseInt(value);
+                    break;
+                case "-size":
+                    size = parseSize(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        if (server) {
+            if (address == null)
+                address = new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+            serve(new CompressionServer(address, threads, minRangeBits, CompressionServer.DEFAULT_MAX_MESSAGE_SIZE));
+            return;
+        }
+
+        CompressionServer embedded = null;
+        if (address == null) {
+            embedded = new CompressionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), threads,
+                    minRangeBits, CompressionServer.DEFAULT_MAX_MESSAGE_SIZE);
+            embedded.start();
+            address = embedded.getAddress();
+        }
+        try {
+            load(address, clients, requests, size);
+        } finally {
+            if (embedded != null)
+                embedded.close();
+        }
+    }
+
+    private static void serve(CompressionServer server) throws InterruptedException {
+        server.start();
+        System.out.println("Listening on " + server.getAddress());
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println(server.getMetrics());
+        }
+    }
+
+    private static void load(final SocketAddress address, int clients, final int requests, final int size)
+            throws IOException, InterruptedException, ExecutionException {
+        final byte[] source = readResource("book1.txt");
+        if (size > source.length)
+            throw new IllegalArgumentException("size should be <= " + source.length);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            results.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws IOException {
+                    // compressed bytes, суммарная задержка запросов в наносекундах
+                    long[] totals = new long[2];
+                    try (CompressionClient compression = new CompressionClient(address)) {
+                        for (int r = client; r < requests; r += clients) {
+                            int offset = ( int ) ((long) r * size % (source.length - size + 1));
+                            long requestStart = System.nanoTime();
+                            byte[] compressed = compression.compress(source, offset, size);
+                            byte[] decompressed = compression.decompress(compressed);
+                            totals[1] += System.nanoTime() - requestStart;
+                            totals[0] += compressed.length;
+                            if (!Arrays.equals(decompressed, Arrays.copyOfRange(source, offset, offset + size)))
+                                throw new IllegalStateException("Round trip mismatch at request " + r);
+                        }
+                    }
+                    return totals;
+                }
+            }));
+        }
+        long compressed = 0;
+        long latency = 0;
+        try {
+            for (Future<long[]> result : results) {
+                long[] totals = result.get();
+                compressed += totals[0];
+                latency += totals[1];
+            }
+        } finally {
+            executor.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long original = ( long ) requests * size;
+        System.out.println(String.format("%d clients, %d round trips of %d bytes: %.2f s, %.0f round trips/s, %.1f MB/s,"
+                        + " %.1f us per round trip, ratio %.2f%%",
+                clients, requests, size, seconds, requests / seconds, original / seconds / (1 << 20),
+                requests > 0 ? latency / 1e3 / requests : 0.0, original > 0 ? compressed * 100.0 / original : 0.0));
+        try (CompressionClient client = new CompressionClient(address)) {
+            System.out.println("Server: " + client.stats());
+        }
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        try (InputStream in = CompressionServiceProgram.class.getClassLoader().getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    private static int parseSize(String value) {
+        String lower = value.toLowerCase();
+        int shift = 0;
+        if (lower.endsWith("k"))
+            shift = 10;
+        else if (lower.endsWith("m"))
+            shift = 20;
+        if (shift != 0)
+            lower = lower.substring(0, lower.length() - 1);
+        long size = Long.parseLong(lower) << shift;
+        if (size < 1 || size > CompressionServer.DEFAULT_MAX_MESSAGE_SIZE)
+            throw new IllegalArgumentException("size should be in [1; " + CompressionServer.DEFAULT_MAX_MESSAGE_SIZE + "]");
+        return ( int ) size;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CompressionServiceProgram server [-port N | -unix PATH] [-threads N] [-minRangeBits N]");
+        System.err.println("       CompressionServiceProgram load [-port N | -unix PATH] [-clients N] [-requests N] [-size SIZE]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Поток, кодирующий записываемые в него символы 64-битным субботинским кодером
+ * ({@link CarrylessRangeCoder64}). Закодированные байты накапливаются в буфере фиксированного
+ * размера и сбрасываются в нижележащий поток по мере его заполнения, поэтому расход памяти
+ * не зависит от размера входных данных.
+ *
+ * Последний символ алфавита кодера зарезервирован под признак конца потока: {@link CarrylessRangeCoder64#count(int[])}
+ * гарантирует ему ненулевую вероятность, даже если в сообщении он не встречается. Поэтому для кодирования
+ * байтов кодер нужно создавать с алфавитом из 257 символов. Декодировать результат можно
+ * с помощью {@link DecompressorInputStream}, длина сообщения при этом заранее не нужна.
+ *
+ * Вместо probs кодера можно использовать {@link Model} ({@link AdaptiveModel}, {@link ContextModel}), тогда сжатие становится однопроходным
+ * и не требует заранее знать статистику данных.
+ */
+public class CompressorOutputStream extends OutputStream {
+    private static final int PRECISION = 64;
+    private static final int BITS_IN_BYTE = 8;
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final int eofSymbol;
+    private final long MIN_RANGE;
+    private final int[] probs;
+    private final int[] sumProbs;
+    private final int totalCount;
+    private final Model model;
+
+    private final byte[] buffer;
+    private int bufferPos;
+
+    private long low = 0;
+    private long range = -1;//(1L << PRECISION) - 1;
+    private boolean finished;
+
+    public CompressorOutputStream(OutputStream out, CarrylessRangeCoder64 coder) {
+        this(out, coder, DEFAULT_BUFFER_SIZE);
+    }
+
+    // coder должен быть уже подготовлен вызовом count() или setProbs(), его probs копируются.
+    // При setProbs() частота последнего символа (конца потока) должна быть ненулевой
+    public CompressorOutputStream(OutputStream out, CarrylessRangeCoder64 coder, int bufferSize) {
+        this(out, coder, null, bufferSize);
+    }
+
+    // Однопроходное сжатие: вместо probs кодера используется адаптивная модель, count() не нужен.
+    // Символ конца потока - последний символ алфавита модели.
+    public CompressorOutputStream(OutputStream out, CarrylessRangeCoder64 coder, Model model) {
+        this(out, coder, model, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CompressorOutputStream(OutputStream out, CarrylessRangeCoder64 coder, Model model, int bufferSize) {
+        int alphabetSize = model != null ? model.getAlphabetSize() : coder.getAlphabetSize();
+        if (alphabetSize < 2)
+            throw new IllegalArgumentException("alphabetSize should be >= 2 (last symbol is reserved for EOF)");
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize should be > 0");
+        this.out = out;
+        this.eofSymbol = alphabetSize - 1;
+        this.MIN_RANGE = coder.getMinRange();
+        this.buffer = new byte[bufferSize];
+        this.model = model;
+
+        if (model != null) {
+            if (model.getMaxTotal() > MIN_RANGE)
+                throw new IllegalArgumentException("model.maxTotal should be <= MIN_RANGE");
+            probs = null;
+            sumProbs = null;
+            totalCount = 0;
+            return;
+        }
+
+        probs = coder.getProbs().clone();
+        // Накапливающаяся сумма встречаемости символов
+        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
+        sumProbs = new int[alphabetSize];
+        for(int i = 0; i < alphabetSize; i++){
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        if (probs[eofSymbol] == 0)
+            throw new IllegalArgumentException("probs of EOF symbol should be > 0, call count() or setProbs() first");
+    }
+
+    /**
+     * Кодирует один байт. Алфавит кодера должен включать в себя все 256 значений байта плюс символ конца потока.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        if (eofSymbol < 256)
+            throw new IllegalStateException("alphabetSize should be >= 257 to write bytes");
+        writeSymbol(b & 0xff);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (eofSymbol < 256)
+            throw new IllegalStateException("alphabetSize should be >= 257 to write bytes");
+        for (int i = off; i < off + len; i++)
+            encodeSymbol(b[i] & 0xff);
+    }
+
+    /**
+     * Кодирует произвольный символ из диапазона [0; alphabetSize - 1).
+     */
+    public void writeSymbol(int c) throws IOException {
+        if (c < 0 || c >= eofSymbol)
+            throw new IllegalArgumentException("symbol should be in [0; alphabetSize - 1)");
+        encodeSymbol(c);
+    }
+
+    private void encodeSymbol(int c) throws IOException {
+        if (finished)
+            throw new IOException("Stream is already finished");
+
+        if (model != null) {
+            long r = CarrylessRangeCoder64.unsignedDiv(range, model.getTotal());
+            low = low + model.getLow(c) * r;
+            range = model.getFreq(c) * r;
+            model.update(c);
+        } else {
+            long r = CarrylessRangeCoder64.unsignedDiv(range, totalCount);
+            low = low + sumProbs[c] * r;
+            range = probs[c] * r;
+        }
+
+        // True if top 8 bits are equal
+        boolean highBitsEq;
+        while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
+                || (compareUnsigned( range , MIN_RANGE) < 0)){
+            if (!highBitsEq) range= -low & (MIN_RANGE-1);
+            writeByte(( int ) (0xff & (low >> (PRECISION - BITS_IN_BYTE))));
+            low <<= 8;
+            range <<= 8;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (bufferPos == buffer.length) {
+            out.write(buffer, 0, bufferPos);
+            bufferPos = 0;
+        }
+        buffer[bufferPos++] = ( byte ) b;
+    }
+
+    private static int compareUnsigned(long a, long b){
+        return Long.compare( a ^ 0x8000000000000000L, b ^ 0x8000000000000000L );
+    }
+
+    /**
+     * Кодирует признак конца потока и выводит последние байты low. После вызова запись невозможна,
+     * но нижележащий поток остаётся открытым.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        encodeSymbol(eofSymbol);
+        finished = true;
+
+        // Завершаем кодирование
+        for (int shift = PRECISION - BITS_IN_BYTE; shift >= 0; shift -= BITS_IN_BYTE)
+            writeByte(( int ) ((low >>> shift) & 0xff));
+        flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (bufferPos > 0) {
+            out.write(buffer, 0, bufferPos);
+            bufferPos = 0;
+        }
+    }
+
+    /**
+     * Сбрасывает в нижележащий поток уже сформированные байты. Байты, которые ещё могут измениться
+     * (текущее значение low), остаются в состоянии кодера до вызова {@link #finish()}.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
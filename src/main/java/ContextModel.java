@@ -0,0 +1,207 @@
+/**
+ * Адаптивная контекстная модель порядка order: частоты очередного символа берутся из статистики,
+ * собранной только после тех же order предыдущих символов. Для текста уже порядок 1-2 даёт
+ * заметно лучшее сжатие, чем модель нулевого порядка ({@link AdaptiveModel}).
+ *
+ * Статистика хранится в хеш-таблице с фиксированным количеством слотов, которое определяется
+ * бюджетом памяти. В слоте - дерево Фенвика по частотам символов (как в AdaptiveModel, но с 16-битными
+ * счётчиками, поэтому maxTotal < 2^16), сумма частот и контекст, которому слот сейчас принадлежит.
+ * Если по хешу приходит другой контекст, слот отдаётся ему и начинает с равновероятных символов -
+ * поэтому при нехватке слотов модель теряет статистику редких контекстов, но никогда не смешивает
+ * статистику разных контекстов.
+ *
+ * Стоимость символа - O(log alphabetSize), как и у AdaptiveModel, плюс O(alphabetSize) при
+ * замене слота и при делении частот пополам.
+ */
+public class ContextModel implements Model {
+    public static final int DEFAULT_MEMORY = 1 << 24;
+    // Все значения дерева не больше суммы частот, а она не больше maxTotal
+    public static final int MAX_TOTAL_MAX = 0xffff;
+
+    private final int alphabetSize;
+    private final int order;
+    private final int maxTotal;
+    private final int increment;
+
+    // Контекст - последние order символов по symbolBits бит
+    private final int symbolBits;
+    private final int contextMask;
+
+    private final int slotBits;
+    // Длина дерева Фенвика слота, индексы с 1: trees[base + i] - сумма частот на отрезке (i - (i & -i); i]
+    private final int stride;
+    private final char[] trees;
+    private final int[] totals;
+    // Контекст, которому принадлежит слот, -1 - слот свободен
+    private final int[] contexts;
+    // Старшая степень двойки, не превосходящая alphabetSize, - первый шаг при поиске символа
+    private final int topStep;
+    // Для деления частот пополам
+    private final int[] freqs;
+
+    private int history;
+    // Текущий слот и начало его дерева в trees
+    private int slot;
+    private int base;
+
+    public ContextModel(int alphabetSize, int order) {
+        this(alphabetSize, order, DEFAULT_MEMORY);
+    }
+
+    public ContextModel(int alphabetSize, int order, int memoryBytes) {
+        this(alphabetSize, order, memoryBytes, MAX_TOTAL_MAX, 32);
+    }
+
+    /**
+     * @param memoryBytes примерный объём памяти под таблицу; количество слотов - наибольшая степень двойки,
+     *                    которая в него помещается, но не меньше 1
+     */
+    public ContextModel(int alphabetSize, int order, int memoryBytes, int maxTotal, int increment) {
+        if (alphabetSize < 1)
+            throw new IllegalArgumentException("alphabetSize should be > 0");
+        if (increment < 1)
+            throw new IllegalArgumentException("increment should be > 0");
+        // После деления пополам сумма должна опуститься ниже maxTotal хотя бы на increment
+        if (maxTotal < 2 * (alphabetSize + increment))
+            throw new IllegalArgumentException("maxTotal should be >= 2 * (alphabetSize + increment)");
+        if (maxTotal > MAX_TOTAL_MAX)
+            throw new IllegalArgumentException("maxTotal should be <= " + MAX_TOTAL_MAX);
+        int symbolBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(alphabetSize - 1));
+        if (order < 1 || order * symbolBits > 31)
+            throw new IllegalArgumentException("order should be >= 1 and order * log2(alphabetSize) <= 31");
+        if (memoryBytes < 1)
+            throw new IllegalArgumentException("memoryBytes should be > 0");
+        this.alphabetSize = alphabetSize;
+        this.order = order;
+        this.maxTotal = maxTotal;
+        this.increment = increment;
+        this.symbolBits = symbolBits;
+        this.contextMask = (int) ((1L << (order * symbolBits)) - 1);
+
+        // Слотов не больше, чем различных контекстов
+        this.stride = alphabetSize + 1;
+        long slots = Math.max(1, memoryBytes / (stride * 2L + 8));
+        this.slotBits = Math.min(31 - Integer.numberOfLeadingZeros((int) Math.min(slots, 1 << 30)),
+                order * symbolBits);
+        if ((long) stride << slotBits > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("memoryBytes is too large");
+        this.trees = new char[stride << slotBits];
+        this.totals = new int[1 << slotBits];
+        this.contexts = new int[1 << slotBits];
+        this.topStep = Integer.highestOneBit(alphabetSize);
+        this.freqs = new int[alphabetSize];
+        reset();
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public int getSlotCount() {
+        return 1 << slotBits;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < contexts.length; i++)
+            contexts[i] = -1;
+        history = 0;
+        selectSlot();
+    }
+
+    @Override
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    @Override
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    @Override
+    public int getTotal() {
+        return totals[slot];
+    }
+
+    @Override
+    public int getFreq(int c) {
+        // Разность двух префиксных сумм, у которых общая часть пути по дереву не считается
+        int i = c + 1;
+        int freq = trees[base + i];
+        int parent = i - (i & -i);
+        for (int j = i - 1; j != parent; j -= j & -j)
+            freq -= trees[base + j];
+        return freq;
+    }
+
+    @Override
+    public int getLow(int c) {
+        int sum = 0;
+        for (int i = c; i > 0; i -= i & -i)
+            sum += trees[base + i];
+        return sum;
+    }
+
+    @Override
+    public int findSymbol(int target) {
+        int pos = 0;
+        for (int step = topStep; step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= alphabetSize && trees[base + next] <= target) {
+                pos = next;
+                target -= trees[base + next];
+            }
+        }
+        return pos;
+    }
+
+    @Override
+    public void update(int c) {
+        totals[slot] += increment;
+        if (totals[slot] > maxTotal) {
+            // Делим частоты пополам, не допуская нулевых
+            for (int i = 0; i < alphabetSize; i++)
+                freqs[i] = getFreq(i);
+            for (int i = 0; i < alphabetSize; i++)
+                freqs[i] = (freqs[i] + (i == c ? increment : 0) + 1) >>> 1;
+            rebuild();
+        } else {
+            for (int i = c + 1; i <= alphabetSize; i += i & -i)
+                trees[base + i] += increment;
+        }
+
+        history = ((history << symbolBits) | c) & contextMask;
+        selectSlot();
+    }
+
+    private void selectSlot() {
+        // Если слотов хватает на все контексты - слот и есть контекст, иначе старшие биты мультипликативного хеша
+        if (slotBits == order * symbolBits)
+            slot = history;
+        else
+            slot = slotBits == 0 ? 0 : (history * 0x9E3779B1) >>> (32 - slotBits);
+        base = slot * stride;
+        if (contexts[slot] != history) {
+            contexts[slot] = history;
+            for (int i = 0; i < alphabetSize; i++)
+                freqs[i] = 1;
+            rebuild();
+        }
+    }
+
+    // Построение дерева Фенвика текущего слота по freqs за O(alphabetSize)
+    private void rebuild() {
+        int total = 0;
+        for (int i = 1; i <= alphabetSize; i++) {
+            trees[base + i] = ( char ) freqs[i - 1];
+            total += freqs[i - 1];
+        }
+        for (int i = 1; i <= alphabetSize; i++) {
+            int parent = i + (i & -i);
+            if (parent <= alphabetSize)
+                trees[base + parent] += trees[base + i];
+        }
+        totals[slot] = total;
+    }
+}
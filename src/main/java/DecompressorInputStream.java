@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Поток, декодирующий данные, записанные {@link CompressorOutputStream}. Символы декодируются
+ * по одному по мере чтения, закодированные байты подчитываются из нижележащего потока через буфер
+ * фиксированного размера. Длина сообщения не нужна: чтение заканчивается на символе конца потока.
+ *
+ * Кодер должен иметь те же probs, что и кодер, использованный при сжатии.
+ */
+public class DecompressorInputStream extends InputStream {
+    private static final int BITS_IN_BYTE = 8;
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final int alphabetSize;
+    private final int eofSymbol;
+    private final long MIN_RANGE;
+    private final int[] probs;
+    private final int[] sumProbs;
+    private final int totalCount;
+    private final SymbolLookup lookup;
+    private final Model model;
+
+    private final byte[] buffer;
+    private int bufferPos;
+    private int bufferLimit;
+
+    private long low = 0;
+    private long range = -1;//(1L << PRECISION) - 1;
+    private long value;
+    private boolean initialized;
+    private boolean eof;
+
+    public DecompressorInputStream(InputStream in, CarrylessRangeCoder64 coder) {
+        this(in, coder, DEFAULT_BUFFER_SIZE);
+    }
+
+    public DecompressorInputStream(InputStream in, CarrylessRangeCoder64 coder, int bufferSize) {
+        this(in, coder, null, bufferSize);
+    }
+
+    // Модель должна быть в том же начальном состоянии, что и модель, переданная в CompressorOutputStream
+    public DecompressorInputStream(InputStream in, CarrylessRangeCoder64 coder, Model model) {
+        this(in, coder, model, DEFAULT_BUFFER_SIZE);
+    }
+
+    public DecompressorInputStream(InputStream in, CarrylessRangeCoder64 coder, Model model, int bufferSize) {
+        this.alphabetSize = model != null ? model.getAlphabetSize() : coder.getAlphabetSize();
+        if (alphabetSize < 2)
+            throw new IllegalArgumentException("alphabetSize should be >= 2 (last symbol is reserved for EOF)");
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize should be > 0");
+        this.in = in;
+        this.eofSymbol = alphabetSize - 1;
+        this.MIN_RANGE = coder.getMinRange();
+        this.buffer = new byte[bufferSize];
+        this.model = model;
+
+        if (model != null) {
+            if (model.getMaxTotal() > MIN_RANGE)
+                throw new IllegalArgumentException("model.maxTotal should be <= MIN_RANGE");
+            probs = null;
+            sumProbs = null;
+            totalCount = 0;
+            lookup = null;
+            return;
+        }
+
+        probs = coder.getProbs().clone();
+        // Накапливающаяся сумма встречаемости символов
+        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
+        sumProbs = new int[alphabetSize];
+        for ( int i = 0; i < alphabetSize; i++ ) {
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        if (probs[eofSymbol] == 0)
+            throw new IllegalArgumentException("coder is not initialized, call count() first");
+        lookup = new SymbolLookup( probs );
+    }
+
+    // За концом входных данных, как и в CarrylessRangeCoder64, считаем что идут нули
+    private int readNextByte() throws IOException {
+        if (bufferPos == bufferLimit) {
+            int readed = in.read(buffer, 0, buffer.length);
+            if (readed <= 0) return 0;
+            bufferPos = 0;
+            bufferLimit = readed;
+        }
+        return buffer[bufferPos++] & 0xff;
+    }
+
+    /**
+     * Декодирует очередной символ.
+     *
+     * @return символ из диапазона [0; alphabetSize - 1) или -1, если достигнут конец потока
+     */
+    public int readSymbol() throws IOException {
+        if (eof) return -1;
+        if (!initialized) {
+            for (int i = 0; i < 8; i++)
+                value = (value << 8) | readNextByte();
+            initialized = true;
+        }
+
+        int c;
+        if (model != null) {
+            long r = CarrylessRangeCoder64.unsignedDiv( range, model.getTotal() );
+            long threshold = CarrylessRangeCoder64.unsignedDiv( (value - low), r );
+            if (compareUnsigned( threshold, model.getTotal() ) >= 0)
+                throw new IOException("Corrupted input");
+
+            c = model.findSymbol( ( int ) threshold );
+            low = low + model.getLow(c) * r;
+            range = model.getFreq(c) * r;
+            model.update(c);
+        } else {
+            long r = CarrylessRangeCoder64.unsignedDiv( range, totalCount );
+            long threshold = CarrylessRangeCoder64.unsignedDiv( (value - low), r );
+
+            c = lookup.find( threshold );
+            if (c == alphabetSize)
+                throw new IOException("Corrupted input");
+
+            low = low + sumProbs[c] * r;
+            range = probs[c] * r;
+        }
+
+        // True if top 8 bits are equal
+        boolean highBitsEq;
+        while ((highBitsEq = compareUnsigned((low ^ (low+range)), 0x100000000000000L) < 0)
+                || (compareUnsigned( range , MIN_RANGE) < 0)){
+            if (!highBitsEq) range= -low & (MIN_RANGE-1);
+            low <<= BITS_IN_BYTE;
+            value = (value << BITS_IN_BYTE) | readNextByte();
+            range <<= BITS_IN_BYTE;
+        }
+
+        if (c == eofSymbol) {
+            eof = true;
+            return -1;
+        }
+        return c;
+    }
+
+    private static int compareUnsigned(long a, long b){
+        return Long.compare( a ^ 0x8000000000000000L, b ^ 0x8000000000000000L );
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = readSymbol();
+        if (c > 0xff)
+            throw new IOException("Decoded symbol doesn't fit into byte: " + c);
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int i = 0;
+        for (; i < len; i++) {
+            int c = read();
+            if (c == -1) break;
+            b[off + i] = ( byte ) c;
+        }
+        return i == 0 ? -1 : i;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,76 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул direct-буферов для {@link CompressionServer}. Выделение direct-буфера дорогое (обнуление памяти,
+ * освобождение только через сборщик мусора), поэтому буферы запросов и ответов переиспользуются.
+ *
+ * Ёмкость буферов - степени двойки от 4 КБ, для каждой ёмкости своя очередь свободных буферов,
+ * в которой хранится не больше maxPerClass буферов. Лишние буферы просто отдаются сборщику мусора.
+ * Пул потокобезопасен: буфер берут в потоке цикла событий, а возвращают из рабочих потоков и наоборот.
+ */
+class DirectBufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 30;
+
+    private final int maxPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+    private final AtomicLong allocated = new AtomicLong();
+
+    DirectBufferPool(int maxPerClass) {
+        if (maxPerClass < 0)
+            throw new IllegalArgumentException("maxPerClass should be >= 0");
+        this.maxPerClass = maxPerClass;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[classes];
+        free = queues;
+        freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return очищенный буфер ёмкостью не меньше capacity (limit равен ёмкости, а не capacity)
+     */
+    ByteBuffer acquire(int capacity) {
+        if (capacity < 0 || capacity > 1 << MAX_SHIFT)
+            throw new IllegalArgumentException("capacity should be in [0; " + (1 << MAX_SHIFT) + "]");
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+        freeCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Буфер должен быть получен из acquire() и больше не использоваться вызывающим
+    void release(ByteBuffer buffer) {
+        int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if (freeCounts[sizeClass].incrementAndGet() <= maxPerClass)
+            free[sizeClass].offer(buffer);
+        else
+            freeCounts[sizeClass].decrementAndGet();
+    }
+
+    /**
+     * @return сколько буферов пул выделил за всё время; если пул работает, это число перестаёт расти
+     */
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
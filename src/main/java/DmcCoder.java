@@ -0,0 +1,88 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Сжатие байт {@link DmcModel} и двоичным кодером {@link BinaryEncoder}: каждый байт кодируется восемью
+ * битами, старший первым, с вероятностями из модели. В отличие от кодеров с моделью нулевого порядка
+ * таблица частот не передаётся - модель строится заново по ходу кодирования и декодирования.
+ *
+ * Кодер не хранит состояния между вызовами (модель создаётся на каждый вызов), поэтому один экземпляр
+ * можно использовать из нескольких потоков.
+ */
+public class DmcCoder {
+    private final int maxNodes;
+
+    public DmcCoder() {
+        this(DmcModel.DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * @param maxNodes бюджет состояний модели, см. {@link DmcModel#DmcModel(int)}
+     */
+    public DmcCoder(int maxNodes) {
+        if (maxNodes < DmcModel.MIN_MAX_NODES)
+            throw new IllegalArgumentException("maxNodes should be >= " + DmcModel.MIN_MAX_NODES);
+        this.maxNodes = maxNodes;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        return encode(message, null, offset, length);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        return encode(null, message, message.position(), message.remaining());
+    }
+
+    private ByteArrayOutputStream encode(byte[] array, ByteBuffer bytes, int base, int length) {
+        DmcModel model = new DmcModel(maxNodes);
+        BinaryEncoder encoder = new BinaryEncoder(length / 2);
+        for (int i = 0; i < length; i++) {
+            int c = (array != null ? array[base + i] : bytes.get(base + i)) & 0xff;
+            for (int j = 7; j >= 0; j--) {
+                int bit = (c >>> j) & 1;
+                encoder.encode(bit, model.predict());
+                model.update(bit);
+            }
+        }
+        return encoder.finish();
+    }
+
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeFromStream(inputStream, dst, null, offset, length);
+    }
+
+    // Декодирует байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeFromStream(inputStream, null, dst, dst.position(), dst.remaining());
+    }
+
+    // Декодер читает из массива: забираем из потока столько, сколько может занять сообщение, а непрочитанное
+    // потом возвращаем. Начальное состояние - 4 байта, и на каждый из 8 бит байта декодер дочитывает
+    // не больше 4 байт: после четырёх сдвигов x1 и x2 расходятся уже в старшем байте
+    private void decodeFromStream(ByteArrayInputStream inputStream, byte[] array, ByteBuffer bytes, int base, int length) {
+        byte[] src = StreamWindow.read( inputStream, 4 + 32L * length );
+
+        DmcModel model = new DmcModel(maxNodes);
+        BinaryDecoder decoder = new BinaryDecoder(src, 0, src.length);
+        for (int i = 0; i < length; i++) {
+            int c = 0;
+            for (int j = 0; j < 8; j++) {
+                int bit = decoder.decode(model.predict());
+                model.update(bit);
+                c = (c << 1) | bit;
+            }
+            if (array != null)
+                array[base + i] = ( byte ) c;
+            else
+                bytes.put(base + i, ( byte ) c);
+        }
+
+        StreamWindow.consume( inputStream, decoder.getPosition() );
+    }
+}
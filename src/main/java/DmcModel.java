@@ -0,0 +1,160 @@
+import java.util.Arrays;
+
+/**
+ * Динамическое марковское моделирование (DMC, Cormack и Horspool): битовая модель в виде конечного
+ * автомата, каждое состояние которого хранит счётчики нулей и единиц и два перехода. Вероятность очередного
+ * бита берётся из счётчиков текущего состояния.
+ *
+ * Начальный автомат - двоичное дерево из 255 состояний по битам байта (старший бит первым), из листьев
+ * которого автомат возвращается в корень, то есть модель нулевого порядка. Когда в состояние t по биту b из s
+ * приходят достаточно часто, а кроме s в t приходят и из других состояний, t клонируется: переход s по b
+ * ведёт в копию, а счётчики t делятся между t и копией пропорционально доле переходов из s. Так автомат
+ * сам выращивает контексты нужной длины там, где они помогают предсказанию.
+ *
+ * Количество состояний ограничено maxNodes; когда бюджет кончается, модель на границе байта
+ * возвращается к начальному автомату. Массивы состояний растут удвоением до maxNodes, поэтому
+ * небольшие сообщения не выделяют весь бюджет сразу.
+ */
+public class DmcModel {
+    public static final int DEFAULT_MAX_NODES = 1 << 20;
+    // Размер начального автомата
+    public static final int MIN_MAX_NODES = 512;
+
+    // Счётчики - с фиксированной точкой, единица - COUNT_ONE
+    private static final int COUNT_SHIFT = 8;
+    private static final int COUNT_ONE = 1 << COUNT_SHIFT;
+    private static final int INITIAL_COUNT = COUNT_ONE / 5;
+    // Пороги клонирования: переходов из s по b и переходов в t из остальных состояний
+    private static final int MIN_CNT1 = 2 * COUNT_ONE;
+    private static final int MIN_CNT2 = 8 * COUNT_ONE;
+    // При такой сумме счётчики делятся пополам, чтобы модель оставалась адаптивной
+    private static final int MAX_COUNT = 1 << 24;
+    // Предсказание не уходит к 0 и 1 ближе этого, чтобы ошибка стоила не больше ~12 бит
+    private static final int MIN_P = 1 << (BinaryEncoder.PROB_BITS - 12);
+
+    private final int maxNodes;
+
+    private int[] next0;
+    private int[] next1;
+    private int[] count0;
+    private int[] count1;
+    private int nodeCount;
+
+    private int state;
+    // Номер бита в текущем байте
+    private int bitIndex;
+
+    public DmcModel() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    public DmcModel(int maxNodes) {
+        if (maxNodes < MIN_MAX_NODES)
+            throw new IllegalArgumentException("maxNodes should be >= " + MIN_MAX_NODES);
+        this.maxNodes = maxNodes;
+        int capacity = Math.min(maxNodes, 1 << 12);
+        next0 = new int[capacity];
+        next1 = new int[capacity];
+        count0 = new int[capacity];
+        count1 = new int[capacity];
+        reset();
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return объём памяти, занятый массивами состояний
+     */
+    public long getMemoryBytes() {
+        return 16L * next0.length;
+    }
+
+    /**
+     * Возвращает модель к начальному автомату. Выделенная память не освобождается.
+     */
+    public void reset() {
+        // Состояние k дерева - префикс байта; дети - 2k+1 и 2k+2, из последнего уровня - в корень
+        for (int k = 0; k < 255; k++) {
+            if (k < 127) {
+                next0[k] = 2 * k + 1;
+                next1[k] = 2 * k + 2;
+            } else {
+                next0[k] = 0;
+                next1[k] = 0;
+            }
+            count0[k] = INITIAL_COUNT;
+            count1[k] = INITIAL_COUNT;
+        }
+        nodeCount = 255;
+        state = 0;
+        bitIndex = 0;
+    }
+
+    /**
+     * @return вероятность единицы для {@link BinaryEncoder}
+     */
+    public int predict() {
+        long c1 = count1[state];
+        int p = ( int ) ((c1 << BinaryEncoder.PROB_BITS) / (count0[state] + c1));
+        return Math.max(MIN_P, Math.min((1 << BinaryEncoder.PROB_BITS) - MIN_P, p));
+    }
+
+    /**
+     * Учитывает очередной бит и переходит в следующее состояние, при необходимости клонируя его.
+     */
+    public void update(int bit) {
+        int s = state;
+        int t = bit != 0 ? next1[s] : next0[s];
+        int transitions = bit != 0 ? count1[s] : count0[s];
+        int tTotal = count0[t] + count1[t];
+
+        if (transitions > MIN_CNT1 && tTotal - transitions > MIN_CNT2 && nodeCount < maxNodes) {
+            int clone = nodeCount++;
+            if (clone == next0.length)
+                grow();
+            // Копия получает долю transitions / tTotal счётчиков t
+            int c0 = ( int ) (( long ) count0[t] * transitions / tTotal);
+            int c1 = ( int ) (( long ) count1[t] * transitions / tTotal);
+            count0[clone] = c0;
+            count1[clone] = c1;
+            count0[t] -= c0;
+            count1[t] -= c1;
+            next0[clone] = next0[t];
+            next1[clone] = next1[t];
+            if (bit != 0)
+                next1[s] = clone;
+            else
+                next0[s] = clone;
+            t = clone;
+        }
+
+        if (bit != 0)
+            count1[s] += COUNT_ONE;
+        else
+            count0[s] += COUNT_ONE;
+        if (count0[s] + count1[s] > MAX_COUNT) {
+            count0[s] = (count0[s] >>> 1) + 1;
+            count1[s] = (count1[s] >>> 1) + 1;
+        }
+
+        state = t;
+        bitIndex = (bitIndex + 1) & 7;
+        // За байт клонируется не больше 8 состояний, так что на границе байта проверять бюджет достаточно
+        if (bitIndex == 0 && nodeCount + 8 > maxNodes)
+            reset();
+    }
+
+    private void grow() {
+        int capacity = ( int ) Math.min(maxNodes, 2L * next0.length);
+        next0 = Arrays.copyOf(next0, capacity);
+        next1 = Arrays.copyOf(next1, capacity);
+        count0 = Arrays.copyOf(count0, capacity);
+        count1 = Arrays.copyOf(count1, capacity);
+    }
+}
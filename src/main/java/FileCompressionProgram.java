@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Сжатие и распаковка файлов из командной строки через {@link FileCompressor}:
+ * <pre>
+ * FileCompressionProgram c [-coder carryless64|carryless|range|ans] [-param N] [-block SIZE] [-threads N] [-crc] in out
+ * FileCompressionProgram d [-threads N] in out
+ * FileCompressionProgram v [-threads N] in
+ * </pre>
+ * SIZE можно указывать с суффиксом k или m. -crc добавляет CRC32C каждого блока, v проверяет их без распаковки. Файл в кучу не читается, поэтому размер файла ограничен только диском.
+ */
+public class FileCompressionProgram {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("c") || args[0].equals("d") || args[0].equals("v")))
+            usage();
+        boolean verify = args[0].equals("v");
+        // У v один файл, у c и d - два
+        int files = verify ? 1 : 2;
+
+        int coder = CompressedContainer.CODER_CARRYLESS64;
+        int param = -1;
+        int blockSize = FileCompressor.DEFAULT_BLOCK_SIZE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean checksums = false;
+        int i = 1;
+        for (; i < args.length - files; i += 2) {
+            if (args[i].equals("-crc")) {
+                checksums = true;
+                i--;
+                continue;
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-coder":
+                    coder = parseCoder(value);
+                    break;
+                case "-param":
+                    param = Integer.parseInt(value);
+                    break;
+                case "-block":
+                    blockSize = parseSize(value);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (i != args.length - files)
+            usage();
+        if (param < 0)
+            param = coder == CompressedContainer.CODER_CARRYLESS64 ? 32 : coder == CompressedContainer.CODER_ANS ? 12 : 0;
+
+        FileCompressor compressor = new FileCompressor(blockSize, coder, param, threads, checksums);
+        if (verify) {
+            Path in = Paths.get(args[args.length - 1]);
+            long start = System.nanoTime();
+            long block = compressor.verify(in);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (block >= 0) {
+                System.out.println(String.format("%s: block %d is corrupted", in, block));
+                System.exit(2);
+            }
+            System.out.println(String.format("%s: OK, %.2f s", in, seconds));
+            return;
+        }
+
+        Path in = Paths.get(args[args.length - 2]);
+        Path out = Paths.get(args[args.length - 1]);
+        long start = System.nanoTime();
+        long inSize = in.toFile().length();
+        long outSize = args[0].equals("c") ? compressor.compress(in, out) : compressor.decompress(in, out);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%s: %d -> %d bytes (%.2f%%), %.2f s, %.1f MB/s",
+                in, inSize, outSize, inSize > 0 ? outSize * 100.0 / inSize : 0.0, seconds,
+                Math.max(inSize, outSize) / seconds / (1 << 20)));
+    }
+
+    private static int parseCoder(String name) {
+        switch (name) {
+            case "carryless64":
+                return CompressedContainer.CODER_CARRYLESS64;
+            case "carryless":
+                return CompressedContainer.CODER_CARRYLESS;
+            case "range":
+                return CompressedContainer.CODER_RANGE;
+            case "ans":
+                return CompressedContainer.CODER_ANS;
+            default:
+                throw new IllegalArgumentException("Unknown coder: " + name);
+        }
+    }
+
+    private static int parseSize(String value) {
+        String lower = value.toLowerCase();
+        int shift = 0;
+        if (lower.endsWith("k"))
+            shift = 10;
+        else if (lower.endsWith("m"))
+            shift = 20;
+        if (shift != 0)
+            lower = lower.substring(0, lower.length() - 1);
+        long size = Long.parseLong(lower) << shift;
+        if (size < 1 || size > FileCompressor.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size should be in [1; " + FileCompressor.MAX_BLOCK_SIZE + "]");
+        return ( int ) size;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: FileCompressionProgram c [-coder carryless64|carryless|range|ans] [-param N]"
+                + " [-block SIZE] [-threads N] [-crc] <in> <out>");
+        System.err.println("       FileCompressionProgram d [-threads N] <in> <out>");
+        System.err.println("       FileCompressionProgram v [-threads N] <in>");
+        System.exit(1);
+    }
+}
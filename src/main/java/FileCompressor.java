@@ -0,0 +1,431 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Сжатие файлов любого размера с фиксированным расходом памяти. В отличие от {@link BlockCompressor},
+ * которому нужен весь вход в одном массиве, файл не читается в кучу: входной файл отображается в память
+ * ({@link FileChannel#map}) окнами не больше windowSize, блоки кодируются прямо из отображённого буфера,
+ * а результат пишется в FileChannel через переиспользуемый direct-буфер.
+ *
+ * За раз обрабатывается пачка из threads блоков (параллельно, задачами ForkJoinPool), затем они
+ * записываются по порядку. Поэтому в куче одновременно находятся только threads сжатых блоков и таблицы
+ * кодеров, а при распаковке - threads direct-буферов по blockSize.
+ *
+ * Формат (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'F' 'L'
+ * version        1 байт   1 или 2
+ * flags          1 байт   только в версии 2: FLAG_CRC32C
+ * blockSize      4 байта
+ * length         8 байт   длина исходного файла
+ * blocks         для каждого блока: containerLength (4 байта), CRC32C контейнера (4 байта, только с FLAG_CRC32C)
+ *                и {@link CompressedContainer}
+ * </pre>
+ * Длина каждого блока, кроме последнего, равна blockSize, поэтому длина исходного файла в заголовке
+ * задаёт и число блоков. Таблицы размеров в начале нет - при сжатии она неизвестна до конца файла,
+ * а место под неё пришлось бы резервировать.
+ *
+ * Контрольные суммы, как и в {@link BlockCompressor}, необязательны и считаются по сжатым блокам:
+ * {@link #verify(Path)} проверяет файл без декодирования.
+ */
+public class FileCompressor {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('F' << 8) | 'L';
+    private static final int VERSION = 1;
+    private static final int VERSION_FLAGS = 2;
+    // magic + version + blockSize + length
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 8;
+
+    public static final int FLAG_CRC32C = 1;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 22;
+    public static final int MAX_BLOCK_SIZE = 1 << 30;
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final int blockSize;
+    private final int coder;
+    private final int param;
+    private final int threads;
+    private final long windowSize;
+    private final boolean checksums;
+
+    public FileCompressor() {
+        this(DEFAULT_BLOCK_SIZE, CompressedContainer.CODER_CARRYLESS64, 32, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param coder   один из CompressedContainer.CODER_*
+     * @param param   параметр кодера, см. {@link CompressedContainer#encode(byte[], int, int, int, int)}
+     * @param threads сколько блоков сжимается и распаковывается одновременно
+     */
+    public FileCompressor(int blockSize, int coder, int param, int threads) {
+        this(blockSize, coder, param, threads, false);
+    }
+
+    /**
+     * @param checksums записывать ли CRC32C каждого блока (требует Java 9+, см. {@link BlockCompressor})
+     */
+    public FileCompressor(int blockSize, int coder, int param, int threads, boolean checksums) {
+        this(blockSize, coder, param, threads, checksums, DEFAULT_WINDOW_SIZE);
+    }
+
+    // windowSize - наибольший отображаемый за раз участок файла; меньше blockSize он не бывает
+    FileCompressor(int blockSize, int coder, int param, int threads, boolean checksums, long windowSize) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("blockSize should be in [1; " + MAX_BLOCK_SIZE + "]");
+        if (threads < 1)
+            throw new IllegalArgumentException("threads should be > 0");
+        if (windowSize < 1 || windowSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("windowSize should be in [1; " + Integer.MAX_VALUE + "]");
+        this.blockSize = blockSize;
+        this.coder = coder;
+        this.param = param;
+        this.threads = threads;
+        this.windowSize = windowSize;
+        this.checksums = checksums;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Сжимает файл source в target (target перезаписывается).
+     *
+     * @return размер сжатого файла
+     */
+    public long compress(Path source, Path target) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long length = in.size();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+            buffer.putInt(MAGIC);
+            if (checksums) {
+                buffer.put(( byte ) VERSION_FLAGS);
+                buffer.put(( byte ) FLAG_CRC32C);
+            } else {
+                buffer.put(( byte ) VERSION);
+            }
+            buffer.putInt(blockSize);
+            buffer.putLong(length);
+
+            MappedWindow window = new MappedWindow(in, length);
+            ByteBuffer[] slices = new ByteBuffer[threads];
+            byte[][] blocks = new byte[threads][];
+            int[] crcs = checksums ? new int[threads] : null;
+            for (long pos = 0; pos < length; ) {
+                int count = 0;
+                for (; count < threads && pos < length; count++) {
+                    int blockLength = ( int ) Math.min(blockSize, length - pos);
+                    slices[count] = window.slice(pos, blockLength);
+                    pos += blockLength;
+                }
+                pool.invoke(new CompressTask(slices, blocks, crcs, 0, count));
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer block = ByteBuffer.wrap(blocks[i]);
+                    if (buffer.remaining() < 8)
+                        flush(out, buffer);
+                    buffer.putInt(block.remaining());
+                    if (checksums)
+                        buffer.putInt(crcs[i]);
+                    while (block.hasRemaining()) {
+                        if (!buffer.hasRemaining())
+                            flush(out, buffer);
+                        int n = Math.min(buffer.remaining(), block.remaining());
+                        ByteBuffer part = block.duplicate();
+                        part.limit(part.position() + n);
+                        buffer.put(part);
+                        block.position(block.position() + n);
+                    }
+                    slices[i] = null;
+                    blocks[i] = null;
+                }
+            }
+            flush(out, buffer);
+            return out.size();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Распаковывает файл, сжатый {@link #compress(Path, Path)}. Размер блока и кодер берутся из заголовка,
+     * от настроек экземпляра зависит только число потоков.
+     *
+     * @return размер распакованного файла
+     */
+    public long decompress(Path source, Path target) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockReader reader = new BlockReader(in);
+            ByteBuffer[] slices = new ByteBuffer[threads];
+            int[] crcs = reader.checksums ? new int[threads] : null;
+            ByteBuffer[] results = new ByteBuffer[threads];
+            int[] lengths = new int[threads];
+            for (long written = 0; written < reader.length; ) {
+                int count = 0;
+                for (long next = written; count < threads && next < reader.length; count++) {
+                    slices[count] = reader.next(crcs, count);
+                    lengths[count] = ( int ) Math.min(reader.blockSize, reader.length - next);
+                    next += lengths[count];
+                    if (results[count] == null || results[count].capacity() < lengths[count])
+                        results[count] = ByteBuffer.allocateDirect(lengths[count]);
+                }
+                pool.invoke(new DecompressTask(slices, crcs, results, lengths, 0, count));
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer result = results[i];
+                    result.clear().limit(lengths[i]);
+                    while (result.hasRemaining())
+                        out.write(result);
+                    written += lengths[i];
+                    slices[i] = null;
+                }
+            }
+            reader.finish();
+            return out.size();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Проверяет контрольные суммы всех блоков файла, не декодируя их: пачки по threads блоков проверяются
+     * параллельно, файл, как и при распаковке, отображается в память окнами.
+     *
+     * @return номер первого повреждённого блока или -1, если все блоки целы
+     * @throws IllegalArgumentException если файл записан без контрольных сумм или повреждена его структура
+     */
+    public long verify(Path source) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            BlockReader reader = new BlockReader(in);
+            if (!reader.checksums)
+                throw new IllegalArgumentException("File has no checksums");
+            long blockCount = (reader.length + reader.blockSize - 1) / reader.blockSize;
+            ByteBuffer[] slices = new ByteBuffer[threads];
+            int[] crcs = new int[threads];
+            boolean[] corrupted = new boolean[threads];
+            for (long block = 0; block < blockCount; ) {
+                int count = ( int ) Math.min(threads, blockCount - block);
+                for (int i = 0; i < count; i++)
+                    slices[i] = reader.next(crcs, i);
+                pool.invoke(new VerifyTask(slices, crcs, corrupted, 0, count));
+                for (int i = 0; i < count; i++) {
+                    if (corrupted[i])
+                        return block + i;
+                    slices[i] = null;
+                }
+                block += count;
+            }
+            reader.finish();
+            return -1;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+
+    // Заголовок сжатого файла и последовательное чтение записей блоков
+    private class BlockReader {
+        final MappedWindow window;
+        final long size;
+        final boolean checksums;
+        final int blockSize;
+        final long length;
+        long pos;
+
+        BlockReader(FileChannel in) throws IOException {
+            size = in.size();
+            window = new MappedWindow(in, size);
+            if (size < HEADER_SIZE)
+                throw new IllegalArgumentException("Not a compressed file");
+            ByteBuffer header = window.slice(0, ( int ) Math.min(size, HEADER_SIZE + 1));
+            if (header.getInt() != MAGIC)
+                throw new IllegalArgumentException("Not a compressed file");
+            int version = header.get() & 0xff;
+            int flags = 0;
+            if (version == VERSION_FLAGS)
+                flags = header.get() & 0xff;
+            else if (version != VERSION)
+                throw new IllegalArgumentException("Unsupported version: " + version);
+            if ((flags & ~FLAG_CRC32C) != 0)
+                throw new IllegalArgumentException("Unsupported flags: " + flags);
+            checksums = (flags & FLAG_CRC32C) != 0;
+            if (header.remaining() < HEADER_SIZE - 5)
+                throw new IllegalArgumentException("Corrupted header");
+            blockSize = header.getInt();
+            length = header.getLong();
+            if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE || length < 0)
+                throw new IllegalArgumentException("Corrupted header");
+            pos = header.position();
+        }
+
+        // Контейнер очередного блока; его контрольная сумма, если она есть, записывается в crcs[i]
+        ByteBuffer next(int[] crcs, int i) throws IOException {
+            int recordHeader = checksums ? 8 : 4;
+            if (size - pos < recordHeader)
+                throw new EOFException("Unexpected end of compressed data");
+            ByteBuffer record = window.slice(pos, recordHeader);
+            int containerLength = record.getInt();
+            if (checksums)
+                crcs[i] = record.getInt();
+            pos += recordHeader;
+            if (containerLength < 0 || size - pos < containerLength)
+                throw new EOFException("Unexpected end of compressed data");
+            ByteBuffer container = window.slice(pos, containerLength);
+            pos += containerLength;
+            return container;
+        }
+
+        void finish() {
+            if (pos != size)
+                throw new IllegalArgumentException("Unexpected data after the last block");
+        }
+    }
+
+    /**
+     * Отображённый в память участок файла. Новое окно отображается, только когда запрошенный участок
+     * выходит за текущее, поэтому каждый байт файла отображается примерно один раз.
+     */
+    private class MappedWindow {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long start;
+
+        MappedWindow(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        // Участок [pos; pos + length) файла как отдельный буфер с position = 0
+        ByteBuffer slice(long pos, int length) throws IOException {
+            if (buffer == null || pos < start || pos + length > start + buffer.capacity()) {
+                long mapped = Math.min(size - pos, Math.max(windowSize, length));
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapped);
+                start = pos;
+            }
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(( int ) (pos - start));
+            slice.limit(( int ) (pos - start) + length);
+            return slice.slice();
+        }
+    }
+
+    private class CompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer[] slices;
+        private final byte[][] blocks;
+        private final int[] crcs;
+        private final int from;
+        private final int to;
+
+        CompressTask(ByteBuffer[] slices, byte[][] blocks, int[] crcs, int from, int to) {
+            this.slices = slices;
+            this.blocks = blocks;
+            this.crcs = crcs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CompressTask(slices, blocks, crcs, from, mid), new CompressTask(slices, blocks, crcs, mid, to));
+                return;
+            }
+            blocks[from] = CompressedContainer.encode(slices[from], coder, param);
+            if (crcs != null)
+                crcs[from] = BlockCompressor.crc32c(ByteBuffer.wrap(blocks[from]));
+        }
+    }
+
+    private static class DecompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer[] slices;
+        private final int[] crcs;
+        private final ByteBuffer[] results;
+        private final int[] lengths;
+        private final int from;
+        private final int to;
+
+        DecompressTask(ByteBuffer[] slices, int[] crcs, ByteBuffer[] results, int[] lengths, int from, int to) {
+            this.slices = slices;
+            this.crcs = crcs;
+            this.results = results;
+            this.lengths = lengths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecompressTask(slices, crcs, results, lengths, from, mid),
+                        new DecompressTask(slices, crcs, results, lengths, mid, to));
+                return;
+            }
+            if (crcs != null && BlockCompressor.crc32c(slices[from].duplicate()) != crcs[from])
+                throw new IllegalArgumentException("Checksum mismatch");
+            ByteBuffer result = results[from];
+            result.clear().limit(lengths[from]);
+            ByteBuffer in = slices[from];
+            int decoded = CompressedContainer.decodeBytes(in, result);
+            if (decoded != lengths[from] || in.hasRemaining())
+                throw new IllegalArgumentException("Corrupted block");
+        }
+    }
+
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer[] slices;
+        private final int[] crcs;
+        private final boolean[] corrupted;
+        private final int from;
+        private final int to;
+
+        VerifyTask(ByteBuffer[] slices, int[] crcs, boolean[] corrupted, int from, int to) {
+            this.slices = slices;
+            this.crcs = crcs;
+            this.corrupted = corrupted;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(slices, crcs, corrupted, from, mid), new VerifyTask(slices, crcs, corrupted, mid, to));
+                return;
+            }
+            corrupted[from] = BlockCompressor.crc32c(slices[from].duplicate()) != crcs[from];
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Общие операции над таблицами частот (probs) кодеров.
+ */
+public class Frequencies {
+    // Меньшие участки не выгодно отдавать другим потокам
+    private static final int MIN_STRIPE = 1 << 20;
+    private static final int COPY_BUFFER_SIZE = 1 << 14;
+    // Для больших алфавитов четыре гистограммы не помещаются в кеш и только мешают
+    private static final int MAX_SPLIT_ALPHABET = 1 << 12;
+
+    private Frequencies() {
+    }
+
+    /**
+     * Гистограмма сообщения для count() кодеров - ровно то же, что даёт их последовательный цикл:
+     * <pre>
+     * for (i = 0; i < length; i++) {
+     *     prob = ++rawProbs[symbol(i)];
+     *     if (prob > maxCount) { maxCount = prob; if (maxCount == threshold) { все rawProbs <<= 1; maxCount <<= 1; } }
+     * }
+     * </pre>
+     * После удвоения maxCount больше threshold и дальше только растёт, поэтому удвоение бывает не больше одного
+     * раза: в позиции p, где счётчик какого-то символа впервые дошёл до threshold. Значит результат - это полная
+     * гистограмма плюс гистограмма префикса [0; p], и посимвольная проверка в цикле не нужна.
+     *
+     * Гистограмма считается по четырём независимым счётчикам, чтобы соседние одинаковые символы не ждали
+     * записи одной и той же ячейки. Длинные сообщения режутся на полосы, которые считаются параллельно
+     * (в пуле ForkJoin вызывающего потока или в общем), а p ищется по накопленным гистограммам полос -
+     * последовательно просматривается только полоса, в которой он находится.
+     *
+     * @param message   символы, если не null
+     * @param bytes     иначе байты между position и limit буфера (position не меняется)
+     * @param threshold счётчик, при достижении которого все счётчики удваиваются
+     */
+    static int[] histogram(int[] message, ByteBuffer bytes, int length, int alphabetSize, long threshold) {
+        int parallelism = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism()
+                : ForkJoinPool.getCommonPoolParallelism();
+        int stripes = Math.max(1, Math.min(parallelism, length / MIN_STRIPE));
+        int[][] counts = new int[stripes][];
+        if (stripes == 1)
+            counts[0] = count(message, bytes, 0, length, alphabetSize);
+        else
+            new HistogramTask(message, bytes, length, alphabetSize, counts, 0, stripes).invoke();
+
+        int[] rawProbs = counts[0];
+        if (stripes > 1) {
+            rawProbs = new int[alphabetSize];
+            for (int[] stripe : counts)
+                for (int c = 0; c < alphabetSize; c++)
+                    rawProbs[c] += stripe[c];
+        }
+        if (length < threshold)
+            return rawProbs;
+        int max = 0;
+        for (int c = 0; c < alphabetSize; c++)
+            max = Math.max(max, rawProbs[c]);
+        if (max < threshold)
+            return rawProbs;
+
+        // Полоса, в которой какой-то счётчик впервые доходит до threshold
+        int[] prefix = new int[alphabetSize];
+        int stripe = 0;
+        for (; ; stripe++) {
+            int[] next = counts[stripe];
+            boolean reached = false;
+            for (int c = 0; c < alphabetSize; c++)
+                if (prefix[c] + next[c] >= threshold)
+                    reached = true;
+            if (reached)
+                break;
+            for (int c = 0; c < alphabetSize; c++)
+                prefix[c] += next[c];
+        }
+        for (int i = stripeStart(stripe, stripes, length); ; i++) {
+            int c = message != null ? message[i] : bytes.get(bytes.position() + i) & 0xff;
+            if (++prefix[c] == threshold)
+                break;
+        }
+        for (int c = 0; c < alphabetSize; c++)
+            rawProbs[c] += prefix[c];
+        return rawProbs;
+    }
+
+    private static int stripeStart(int stripe, int stripes, int length) {
+        return ( int ) (( long ) length * stripe / stripes);
+    }
+
+    // Гистограмма участка [from; to) по четырём независимым счётчикам (для больших алфавитов - по одному)
+    private static int[] count(int[] message, ByteBuffer bytes, int from, int to, int alphabetSize) {
+        boolean split = alphabetSize <= MAX_SPLIT_ALPHABET;
+        int[] h0 = new int[alphabetSize];
+        int[] h1 = split ? new int[alphabetSize] : h0;
+        int[] h2 = split ? new int[alphabetSize] : h0;
+        int[] h3 = split ? new int[alphabetSize] : h0;
+        if (message != null) {
+            count(message, from, to, h0, h1, h2, h3);
+        } else if (bytes.hasArray()) {
+            int base = bytes.arrayOffset() + bytes.position();
+            count(bytes.array(), base + from, base + to, h0, h1, h2, h3);
+        } else {
+            // Direct- и отображённые буферы копируем кусками, по одному байту get() читает слишком медленно
+            byte[] buffer = new byte[Math.min(COPY_BUFFER_SIZE, to - from)];
+            ByteBuffer src = bytes.duplicate();
+            src.position(bytes.position() + from);
+            for (int pos = from; pos < to; ) {
+                int n = Math.min(buffer.length, to - pos);
+                src.get(buffer, 0, n);
+                count(buffer, 0, n, h0, h1, h2, h3);
+                pos += n;
+            }
+        }
+        if (split)
+            for (int c = 0; c < alphabetSize; c++)
+                h0[c] += h1[c] + h2[c] + h3[c];
+        return h0;
+    }
+
+    private static void count(int[] message, int from, int to, int[] h0, int[] h1, int[] h2, int[] h3) {
+        int i = from;
+        for (; i + 4 <= to; i += 4) {
+            h0[message[i]]++;
+            h1[message[i + 1]]++;
+            h2[message[i + 2]]++;
+            h3[message[i + 3]]++;
+        }
+        for (; i < to; i++)
+            h0[message[i]]++;
+    }
+
+    private static void count(byte[] message, int from, int to, int[] h0, int[] h1, int[] h2, int[] h3) {
+        int i = from;
+        for (; i + 4 <= to; i += 4) {
+            h0[message[i] & 0xff]++;
+            h1[message[i + 1] & 0xff]++;
+            h2[message[i + 2] & 0xff]++;
+            h3[message[i + 3] & 0xff]++;
+        }
+        for (; i < to; i++)
+            h0[message[i] & 0xff]++;
+    }
+
+    // Делит диапазон полос пополам, пока не останется одна
+    private static class HistogramTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] message;
+        private final ByteBuffer bytes;
+        private final int length;
+        private final int alphabetSize;
+        private final int[][] counts;
+        private final int from;
+        private final int to;
+
+        HistogramTask(int[] message, ByteBuffer bytes, int length, int alphabetSize, int[][] counts, int from, int to) {
+            this.message = message;
+            this.bytes = bytes;
+            this.length = length;
+            this.alphabetSize = alphabetSize;
+            this.counts = counts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HistogramTask(message, bytes, length, alphabetSize, counts, from, mid),
+                        new HistogramTask(message, bytes, length, alphabetSize, counts, mid, to));
+                return;
+            }
+            counts[from] = count(message, bytes, stripeStart(from, counts.length, length),
+                    stripeStart(from + 1, counts.length, length), alphabetSize);
+        }
+    }
+
+    /**
+     * Масштабирует probs так, чтобы их сумма стала ровно степенью двойки, сохраняя все частоты >= 1.
+     * Тогда деление на сумму частот в кодерах заменяется сдвигом.
+     *
+     * Выбирается наименьшая степень двойки, не меньшая текущей суммы (но не больше 2^maxBits), поэтому частоты
+     * в основном только растут, и точность модели почти не теряется. Разница, оставшаяся после округления,
+     * отдаётся самым частым символам - на них относительная ошибка меньше всего.
+     *
+     * @return показатель степени k, сумма probs после вызова равна 2^k
+     */
+    public static int normalizeToPowerOfTwo(int[] probs, int maxBits) {
+        if (maxBits < 0 || maxBits > 30)
+            throw new IllegalArgumentException("maxBits should be in [0; 30]");
+        if (probs.length > (1 << maxBits))
+            throw new IllegalArgumentException("alphabetSize should be <= 2^maxBits");
+
+        long total = 0;
+        boolean zeros = false;
+        for (int prob : probs) {
+            total += prob;
+            zeros |= prob == 0;
+        }
+        if (total == 0)
+            throw new IllegalArgumentException("probs should contain at least one non-zero value");
+
+        // Каждая частота станет >= 1, так что сумма не может быть меньше количества символов
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(total, probs.length) - 1);
+        if (bits > maxBits) bits = maxBits;
+        final long target = 1L << bits;
+        if (total == target && !zeros) return bits;
+
+        long sum = 0;
+        for (int i = 0; i < probs.length; i++) {
+            long v = probs[i] * target / total;
+            probs[i] = v == 0 ? 1 : ( int ) v;
+            sum += probs[i];
+        }
+
+        while (sum != target) {
+            int maxIndex = 0;
+            for (int i = 1; i < probs.length; i++) {
+                if (probs[i] > probs[maxIndex])
+                    maxIndex = i;
+            }
+            long delta = sum < target ? target - sum : -Math.min(sum - target, probs[maxIndex] - 1);
+            if (delta == 0)
+                throw new IllegalStateException("Can not fit " + probs.length + " probs >= 1 into " + target);
+            probs[maxIndex] += delta;
+            sum += delta;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.ByteArrayInputStream;
+
+/**
+ * Компактная запись таблицы частот (probs после count() или setProbs()) для заголовков сжатых данных.
+ * Таблица из 256 int занимает 1 КБ, что для небольших блоков сравнимо с самими данными, а после count()
+ * большая часть частот - маленькие числа, а у отсутствовавших в блоке символов частота одна и та же (1).
+ *
+ * Формат - поток бит {@link BitWriter}, gamma(n) - код Элиаса для n >= 1:
+ * <pre>
+ * gamma(base + 1)        base - минимальная частота таблицы
+ * bitmap flag            1 бит: 1 - дальше битовая карта, 0 - частота каждого символа больше base
+ * bitmap                 alphabetSize бит, 1 - частота символа больше base
+ * delta flag             1 бит: 0 - значения, 1 - разности с предыдущим значением (zigzag)
+ * gamma(k + 1)           k - количество младших бит значения, записываемых как есть
+ * values                 для каждого символа с частотой больше base: v = probs[i] - base - 1 или его разность
+ *                        с предыдущим v, как gamma((v >>> k) + 1) и k младших бит v
+ * </pre>
+ * Флаг разностей и k выбираются по длине записи, оценённой по гистограмме длин значений в битах. Выбор влияет
+ * только на размер: таблица восстанавливается без потерь, decode возвращает ровно те probs, что были переданы в encode.
+ */
+public class FrequencyTableCodec {
+    private FrequencyTableCodec() {
+    }
+
+    public static byte[] encode(int[] probs) {
+        BitWriter writer = new BitWriter(probs.length / 2 + 16);
+        encode(probs, writer);
+        return writer.finish().toByteArray();
+    }
+
+    public static void encode(int[] probs, BitWriter writer) {
+        if (probs.length == 0)
+            throw new IllegalArgumentException("probs should not be empty");
+        long base = Long.MAX_VALUE;
+        for (int prob : probs) {
+            if (prob < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            base = Math.min(base, prob);
+        }
+        int present = 0;
+        for (int prob : probs) {
+            if (prob > base)
+                present++;
+        }
+        long[] values = new long[present];
+        long[] deltas = new long[present];
+        for (int i = 0, j = 0; i < probs.length; i++) {
+            if (probs[i] > base) {
+                values[j] = probs[i] - base - 1;
+                deltas[j] = zigzag(values[j] - (j > 0 ? values[j - 1] : 0));
+                j++;
+            }
+        }
+        long[] valuesCost = new long[1];
+        long[] deltasCost = new long[1];
+        int valuesShift = bestShift(values, valuesCost);
+        int deltasShift = bestShift(deltas, deltasCost);
+        boolean delta = deltasCost[0] < valuesCost[0];
+
+        writeGamma(writer, base + 1);
+        boolean bitmap = present != probs.length;
+        writer.writeBit(bitmap ? 1 : 0);
+        if (bitmap) {
+            for (int prob : probs)
+                writer.writeBit(prob > base ? 1 : 0);
+        }
+        writer.writeBit(delta ? 1 : 0);
+        int shift = delta ? deltasShift : valuesShift;
+        writeGamma(writer, shift + 1);
+        for (long v : delta ? deltas : values) {
+            writeGamma(writer, (v >>> shift) + 1);
+            writer.writeBits(( int ) v, shift);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException если данные не похожи на таблицу из alphabetSize частот
+     */
+    public static int[] decode(byte[] table, int offset, int length, int alphabetSize) {
+        // Каждый символ занимает хотя бы один бит (в битовой карте или в значениях), а alphabetSize обычно
+        // берётся из того же недоверенного заголовка - без проверки массивы ниже могут не поместиться в памяти
+        if (alphabetSize > length * 8L)
+            throw new IllegalArgumentException("Corrupted frequency table: " + length + " bytes for " + alphabetSize + " symbols");
+        BitReader reader = new BitReader(new ByteArrayInputStream(table, offset, length));
+        return decode(reader, alphabetSize);
+    }
+
+    /**
+     * Сколько данных осталось в reader, неизвестно, поэтому alphabetSize должен быть проверен вызывающим.
+     *
+     * @throws IllegalArgumentException если данные не похожи на таблицу из alphabetSize частот
+     */
+    public static int[] decode(BitReader reader, int alphabetSize) {
+        if (alphabetSize <= 0)
+            throw new IllegalArgumentException("alphabetSize should be > 0");
+        long base = readGamma(reader) - 1;
+        if (base > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Corrupted frequency table");
+        int[] probs = new int[alphabetSize];
+        boolean bitmap = reader.readBit() == 1;
+        boolean[] present = new boolean[alphabetSize];
+        for (int i = 0; i < alphabetSize; i++)
+            present[i] = !bitmap || reader.readBit() == 1;
+        boolean delta = reader.readBit() == 1;
+        long shift = readGamma(reader) - 1;
+        if (shift > 32)
+            throw new IllegalArgumentException("Corrupted frequency table");
+        long previous = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (!present[i]) {
+                probs[i] = ( int ) base;
+                continue;
+            }
+            long v = ((readGamma(reader) - 1) << shift) | (reader.readBits(( int ) shift) & 0xffffffffL);
+            if (delta) {
+                v = previous + unzigzag(v);
+                previous = v;
+            }
+            long prob = base + 1 + v;
+            if (v < 0 || prob > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Corrupted frequency table");
+            probs[i] = ( int ) prob;
+        }
+        return probs;
+    }
+
+    // k с наименьшей суммарной длиной записи values; сама длина в битах пишется в cost[0].
+    // Значение длиной L > k бит при сдвиге k занимает 2 * (L - k) - 1 + k бит (на 2 больше, только если
+    // старшие L - k бит - все единицы), а L <= k - ровно 1 + k бит, поэтому достаточно гистограммы длин
+    private static int bestShift(long[] values, long[] cost) {
+        long[] lengths = new long[65];
+        int maxLength = 0;
+        for (long v : values) {
+            int length = 64 - Long.numberOfLeadingZeros(v);
+            lengths[length]++;
+            maxLength = Math.max(maxLength, length);
+        }
+        int best = 0;
+        long bestCost = Long.MAX_VALUE;
+        for (int shift = 0; shift <= Math.min(32, maxLength); shift++) {
+            long bits = 2L * (64 - Long.numberOfLeadingZeros(shift + 1)) - 1;
+            for (int length = 0; length <= maxLength; length++)
+                bits += lengths[length] * (length > shift ? 2L * (length - shift) - 1 + shift : 1 + shift);
+            if (bits < bestCost) {
+                bestCost = bits;
+                best = shift;
+            }
+        }
+        cost[0] = bestCost;
+        return best;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // n >= 1: длина n без единицы нулями, единица, затем биты n ниже старшего, начиная с младшего
+    private static void writeGamma(BitWriter writer, long n) {
+        int bits = 63 - Long.numberOfLeadingZeros(n);
+        if (bits < 32) {
+            writer.writeBits(1 << bits, bits + 1);
+        } else {
+            for (int i = 0; i < bits; i++)
+                writer.writeBit(0);
+            writer.writeBit(1);
+        }
+        if (bits > 32) {
+            writer.writeBits(( int ) n, 32);
+            writer.writeBits(( int ) (n >>> 32), bits - 32);
+        } else {
+            writer.writeBits(( int ) n, bits);
+        }
+    }
+
+    private static long readGamma(BitReader reader) {
+        int bits = 0;
+        while (reader.readBit() == 0) {
+            if (++bits > 40)
+                throw new IllegalArgumentException("Corrupted frequency table");
+        }
+        long low;
+        if (bits > 32) {
+            low = reader.readBits(32) & 0xffffffffL;
+            low |= ( long ) reader.readBits(bits - 32) << 32;
+        } else {
+            low = reader.readBits(bits) & 0xffffffffL;
+        }
+        return (1L << bits) | low;
+    }
+}
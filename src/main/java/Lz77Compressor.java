@@ -0,0 +1,332 @@
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Сжатие LZ77: повторы строк заменяются парами (длина, расстояние) до предыдущего вхождения в окне,
+ * а получившиеся потоки сжимаются {@link CarrylessRangeCoder64} с адаптивными моделями
+ * ({@link AdaptiveModel}) - каждый поток своей, поэтому таблицы частот не передаются.
+ *
+ * Потоки:
+ * <ul>
+ * <li>токены - литерал (0..255) или 256 + слот длины совпадения;</li>
+ * <li>слоты расстояний - по одному на совпадение;</li>
+ * <li>дополнительные биты длин и расстояний - как есть, {@link BitWriter}.</li>
+ * </ul>
+ * Слот числа v: 0..3 - само v, дальше - номер старшего бита и следующий за ним бит, остальные биты
+ * идут в дополнительные (как posSlot в LZMA). Так у моделей маленькие алфавиты, а распределение
+ * внутри слота близко к равномерному.
+ *
+ * Совпадения ищутся по хеш-цепочкам: для каждой позиции помнится предыдущая позиция с тем же хешем
+ * первых MIN_MATCH байт, и просматривается не больше maxChain кандидатов. Жадный разбор берёт
+ * самое длинное совпадение в текущей позиции; ленивый сначала проверяет, нет ли более длинного
+ * в следующей, и если есть - выводит литерал. Как и в zlib, ленивая проверка делается только для совпадений
+ * короче maxLazy, а для совпадений не короче goodLength - по укороченной вчетверо цепочке.
+ * Уровни 1-9 задают эти параметры по таблице zlib, но с цепочками, укороченными под окно 2^20.
+ *
+ * Формат (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'L' 'Z'
+ * version        1 байт
+ * windowBits     1 байт
+ * length         4 байта  длина исходных данных
+ * tokenCount     4 байта
+ * matchCount     4 байта
+ * tokensLength   4 байта, затем токены
+ * distLength     4 байта, затем слоты расстояний
+ * extraLength    4 байта, затем дополнительные биты
+ * </pre>
+ */
+public class Lz77Compressor {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('L' << 8) | 'Z';
+    private static final int VERSION = 1;
+    // magic + version + windowBits + length + tokenCount + matchCount
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 4 + 4;
+
+    public static final int MIN_MATCH = 3;
+    public static final int MAX_MATCH = 258;
+    public static final int MIN_WINDOW_BITS = 10;
+    public static final int MAX_WINDOW_BITS = 24;
+    public static final int DEFAULT_WINDOW_BITS = 20;
+    public static final int DEFAULT_LEVEL = 6;
+
+    // MAX_MATCH - MIN_MATCH < 2^8, то есть 16 слотов
+    private static final int LENGTH_SLOTS = 16;
+    private static final int TOKEN_ALPHABET = 256 + LENGTH_SLOTS;
+    // При слишком маленькой хеш-таблице цепочки забиты позициями с другими первыми байтами
+    private static final int MAX_HASH_BITS = 20;
+
+    // Параметры уровней 1-9, 1-3 - жадный разбор. goodLength, maxLazy и niceLength - из configuration_table zlib,
+    // а цепочки укорочены: zlib рассчитан на окно 32 КБ, а в окне 2^20 в 32 раза больше кандидатов, и длинная
+    // цепочка почти всегда просматривается до конца (уровень 9 с цепочкой 4096 сжимал book1 со скоростью 0,1 МБ/с).
+    // Цепочка 256 в большом окне всё равно сжимает лучше, чем 4096 в окне 2^15
+    private static final int[] LEVEL_GOOD = {4, 4, 4, 4, 8, 8, 8, 32, 32};
+    private static final int[] LEVEL_LAZY = {0, 0, 0, 4, 16, 16, 32, 128, MAX_MATCH};
+    private static final int[] LEVEL_NICE = {8, 16, 32, 16, 32, 128, 128, MAX_MATCH, MAX_MATCH};
+    private static final int[] LEVEL_CHAIN = {4, 8, 16, 16, 16, 32, 64, 128, 256};
+
+    private final int windowBits;
+    private final int maxChain;
+    private final int goodLength;
+    private final int maxLazy;
+    private final int niceLength;
+
+    public Lz77Compressor() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param level от 1 (быстрее всего) до 9 (лучше всего сжимает)
+     */
+    public Lz77Compressor(int level) {
+        this(DEFAULT_WINDOW_BITS, checkLevel(level), LEVEL_GOOD[level - 1], LEVEL_LAZY[level - 1], LEVEL_NICE[level - 1]);
+    }
+
+    /**
+     * @param windowBits log2 размера окна, от MIN_WINDOW_BITS до MAX_WINDOW_BITS
+     * @param maxChain   сколько кандидатов из хеш-цепочки проверять для одной позиции
+     * @param goodLength после совпадения такой длины следующая позиция проверяется по maxChain / 4 кандидатам
+     * @param maxLazy    ленивая проверка только для совпадений короче этого; 0 - жадный разбор
+     * @param niceLength совпадение такой длины принимается сразу, без дальнейшего поиска
+     */
+    public Lz77Compressor(int windowBits, int maxChain, int goodLength, int maxLazy, int niceLength) {
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("windowBits should be in [" + MIN_WINDOW_BITS + "; " + MAX_WINDOW_BITS + "]");
+        if (maxChain < 1)
+            throw new IllegalArgumentException("maxChain should be > 0");
+        if (goodLength < 0 || maxLazy < 0)
+            throw new IllegalArgumentException("goodLength and maxLazy should be >= 0");
+        if (niceLength < MIN_MATCH || niceLength > MAX_MATCH)
+            throw new IllegalArgumentException("niceLength should be in [" + MIN_MATCH + "; " + MAX_MATCH + "]");
+        this.windowBits = windowBits;
+        this.maxChain = maxChain;
+        this.goodLength = goodLength;
+        this.maxLazy = maxLazy;
+        this.niceLength = niceLength;
+    }
+
+    private static int checkLevel(int level) {
+        if (level < 1 || level > 9)
+            throw new IllegalArgumentException("level should be in [1; 9]");
+        return LEVEL_CHAIN[level - 1];
+    }
+
+    public int getWindowBits() {
+        return windowBits;
+    }
+
+    static int slot(int v) {
+        if (v < 4) return v;
+        int n = 31 - Integer.numberOfLeadingZeros(v);
+        return (n << 1) | ((v >>> (n - 1)) & 1);
+    }
+
+    static int slotExtraBits(int slot) {
+        return slot < 4 ? 0 : (slot >>> 1) - 1;
+    }
+
+    static int slotBase(int slot) {
+        return slot < 4 ? slot : (2 | (slot & 1)) << ((slot >>> 1) - 1);
+    }
+
+    public byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    public byte[] compress(byte[] data, int offset, int length) {
+        int[] tokens = new int[length];
+        int[] distSlots = new int[length / MIN_MATCH + 1];
+        int tokenCount = 0;
+        int matchCount = 0;
+        BitWriter extra = new BitWriter(length / 8 + 16);
+
+        MatchFinder finder = new MatchFinder(data, offset, offset + length);
+        int end = offset + length;
+        int pos = offset;
+        finder.find(pos, maxChain);
+        while (pos < end) {
+            int matchLength = finder.length;
+            int matchDistance = finder.distance;
+            if (matchLength < MIN_MATCH) {
+                tokens[tokenCount++] = data[pos] & 0xff;
+                finder.insert(pos);
+                finder.find(++pos, maxChain);
+                continue;
+            }
+            int inserted = pos;
+            if (matchLength < maxLazy) {
+                // Если со следующей позиции совпадение длиннее - текущий байт лучше вывести литералом
+                finder.insert(pos);
+                inserted = pos + 1;
+                finder.find(pos + 1, matchLength >= goodLength ? Math.max(1, maxChain >> 2) : maxChain);
+                if (finder.length > matchLength) {
+                    tokens[tokenCount++] = data[pos] & 0xff;
+                    pos++;
+                    continue;
+                }
+            }
+
+            int lengthSlot = slot(matchLength - MIN_MATCH);
+            tokens[tokenCount++] = 256 + lengthSlot;
+            extra.writeBits(matchLength - MIN_MATCH - slotBase(lengthSlot), slotExtraBits(lengthSlot));
+            int distSlot = slot(matchDistance - 1);
+            distSlots[matchCount++] = distSlot;
+            extra.writeBits(matchDistance - 1 - slotBase(distSlot), slotExtraBits(distSlot));
+
+            for (int i = inserted; i < pos + matchLength; i++)
+                finder.insert(i);
+            pos += matchLength;
+            finder.find(pos, maxChain);
+        }
+
+        CarrylessRangeCoder64 tokenCoder = new CarrylessRangeCoder64(TOKEN_ALPHABET);
+        byte[] tokenBytes = tokenCoder.encode(Arrays.copyOf(tokens, tokenCount), new AdaptiveModel(TOKEN_ALPHABET)).toByteArray();
+        CarrylessRangeCoder64 distCoder = new CarrylessRangeCoder64(2 * windowBits);
+        byte[] distBytes = distCoder.encode(Arrays.copyOf(distSlots, matchCount), new AdaptiveModel(2 * windowBits)).toByteArray();
+        byte[] extraBytes = extra.finish().toByteArray();
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 12 + tokenBytes.length + distBytes.length + extraBytes.length);
+        out.putInt(MAGIC);
+        out.put(( byte ) VERSION);
+        out.put(( byte ) windowBits);
+        out.putInt(length);
+        out.putInt(tokenCount);
+        out.putInt(matchCount);
+        out.putInt(tokenBytes.length);
+        out.put(tokenBytes);
+        out.putInt(distBytes.length);
+        out.put(distBytes);
+        out.putInt(extraBytes.length);
+        out.put(extraBytes);
+        return out.array();
+    }
+
+    public byte[] decompress(byte[] compressed) {
+        ByteBuffer in = ByteBuffer.wrap(compressed);
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not an LZ77 container");
+        int version = in.get() & 0xff;
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported container version: " + version);
+        int windowBits = in.get() & 0xff;
+        int length = in.getInt();
+        int tokenCount = in.getInt();
+        int matchCount = in.getInt();
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS || length < 0
+                || tokenCount < 0 || tokenCount > length || matchCount < 0 || matchCount > tokenCount)
+            throw new IllegalArgumentException("Corrupted header");
+
+        CarrylessRangeCoder64 tokenCoder = new CarrylessRangeCoder64(TOKEN_ALPHABET);
+        int[] tokens = tokenCoder.decode(section(in), tokenCount, new AdaptiveModel(TOKEN_ALPHABET));
+        CarrylessRangeCoder64 distCoder = new CarrylessRangeCoder64(2 * windowBits);
+        int[] distSlots = distCoder.decode(section(in), matchCount, new AdaptiveModel(2 * windowBits));
+        BitReader extra = new BitReader(section(in));
+
+        byte[] result = new byte[length];
+        int pos = 0;
+        int match = 0;
+        for (int i = 0; i < tokenCount; i++) {
+            int token = tokens[i];
+            if (token < 256) {
+                if (pos == length)
+                    throw new IllegalArgumentException("Corrupted data: output is longer than " + length);
+                result[pos++] = ( byte ) token;
+                continue;
+            }
+            int lengthSlot = token - 256;
+            int matchLength = MIN_MATCH + slotBase(lengthSlot) + extra.readBits(slotExtraBits(lengthSlot));
+            int distSlot = distSlots[match++];
+            int distance = 1 + slotBase(distSlot) + extra.readBits(slotExtraBits(distSlot));
+            if (distance > pos || matchLength > length - pos)
+                throw new IllegalArgumentException("Corrupted data: bad match at " + pos);
+            // Совпадение может перекрываться с собой, поэтому копируем по байту
+            for (int j = 0; j < matchLength; j++, pos++)
+                result[pos] = result[pos - distance];
+        }
+        if (pos != length || match != matchCount)
+            throw new IllegalArgumentException("Corrupted data: " + pos + " bytes decoded instead of " + length);
+        return result;
+    }
+
+    private static ByteArrayInputStream section(ByteBuffer in) {
+        if (in.remaining() < 4)
+            throw new IllegalArgumentException("Corrupted data: section is missing");
+        int sectionLength = in.getInt();
+        if (sectionLength < 0 || sectionLength > in.remaining())
+            throw new IllegalArgumentException("Corrupted data: sectionLength = " + sectionLength);
+        ByteArrayInputStream section = new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), sectionLength);
+        in.position(in.position() + sectionLength);
+        return section;
+    }
+
+    /**
+     * Поиск совпадений по хеш-цепочкам. head - последняя позиция с данным хешем, prev - предыдущая
+     * позиция с тем же хешем, что и у данной (кольцевой буфер на размер окна).
+     */
+    private class MatchFinder {
+        private final byte[] data;
+        private final int start;
+        private final int end;
+        private final int windowSize;
+        private final int hashBits;
+        private final int[] head;
+        private final int[] prev;
+        private final int prevMask;
+
+        // Результат последнего find
+        int length;
+        int distance;
+
+        MatchFinder(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+            this.windowSize = 1 << windowBits;
+            // Для коротких данных окно не заполнится, и таблицы можно взять меньше
+            int ringSize = Math.min(windowSize, Integer.highestOneBit(Math.max(1, end - start)) << 1);
+            this.hashBits = Math.max(10, Math.min(MAX_HASH_BITS, Integer.numberOfTrailingZeros(ringSize)));
+            this.head = new int[1 << hashBits];
+            Arrays.fill(head, -1);
+            this.prev = new int[ringSize];
+            this.prevMask = ringSize - 1;
+        }
+
+        private int hash(int pos) {
+            int key = ((data[pos] & 0xff) << 16) | ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+            return (key * 0x9E3779B1) >>> (32 - hashBits);
+        }
+
+        void insert(int pos) {
+            if (pos + MIN_MATCH > end) return;
+            int h = hash(pos);
+            prev[(pos - start) & prevMask] = head[h];
+            head[h] = pos;
+        }
+
+        // Ищет самое длинное совпадение для pos среди уже вставленных позиций
+        void find(int pos, int maxChain) {
+            length = 0;
+            distance = 0;
+            if (pos + MIN_MATCH > end) return;
+            int maxLength = Math.min(MAX_MATCH, end - pos);
+            int best = MIN_MATCH - 1;
+            int candidate = head[hash(pos)];
+            // Запись prev для candidate ещё не перезаписана, пока candidate в пределах окна
+            for (int chain = maxChain; candidate >= 0 && pos - candidate <= windowSize && chain > 0; chain--) {
+                if (data[candidate + best] == data[pos + best]) {
+                    int len = 0;
+                    while (len < maxLength && data[candidate + len] == data[pos + len])
+                        len++;
+                    if (len > best) {
+                        best = len;
+                        length = len;
+                        distance = pos - candidate;
+                        if (len >= niceLength || len == maxLength)
+                            break;
+                    }
+                }
+                candidate = prev[(candidate - start) & prevMask];
+            }
+        }
+    }
+}
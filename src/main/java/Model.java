@@ -0,0 +1,43 @@
+/**
+ * Модель, которая вместо probs кодера даёт частоты для очередного символа. Частоты могут зависеть
+ * от уже закодированных символов (контекста) и меняться после каждого из них, поэтому кодер
+ * спрашивает модель о каждом символе заново и после кодирования сообщает ей символ через {@link #update(int)}.
+ *
+ * Декодер выполняет те же вызовы в том же порядке, поэтому ему нужна модель в том же начальном
+ * состоянии, что и у кодера (новая или после {@link #reset()}).
+ */
+public interface Model {
+    int getAlphabetSize();
+
+    /**
+     * @return верхняя граница getTotal() - она не должна превышать MIN_RANGE кодера
+     */
+    int getMaxTotal();
+
+    /**
+     * @return сумма частот всех символов для очередного символа
+     */
+    int getTotal();
+
+    int getFreq(int c);
+
+    /**
+     * @return сумма частот символов, меньших c (аналог sumProbs[c])
+     */
+    int getLow(int c);
+
+    /**
+     * Находит символ c, для которого getLow(c) <= target < getLow(c) + getFreq(c).
+     */
+    int findSymbol(int target);
+
+    /**
+     * Учитывает очередной закодированный (декодированный) символ.
+     */
+    void update(int c);
+
+    /**
+     * Возвращает модель в начальное состояние.
+     */
+    void reset();
+}
@@ -1,9 +1,14 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Интервальный кодер, реализующий оригинальный алгоритм, описанный Шиндлером.
  *
+ * Всё состояние кодирования и декодирования - локальные переменные, а накопленные суммы probs
+ * пересчитываются только в count(), setProbs() и normalizeToPowerOfTwo(). Поэтому после настройки модели
+ * один экземпляр можно переиспользовать и вызывать из нескольких потоков одновременно.
+ *
  * @author igor.kostromin
  *         22.05.2014 16:49
  */
@@ -18,38 +23,97 @@ public class RangeCoder {
     private final int MIN_RANGE = 1 << ( PRECISION - 1 - BITS_IN_BYTE);
     private final int[] probs;
 
+    // Накапливающаяся сумма встречаемости символов: первый элемент - 0, второй - 0 + встречаемость первого, итд
+    private final int[] sumProbs;
+    private int totalCount;
+    // Показатель степени двойки totalCount (тогда деление заменяется сдвигом) или -1
+    private int shift;
+    // Таблица для поиска символа по threshold без перебора всего алфавита
+    private SymbolLookup lookup;
+
     // размер алфавита <= 2^(PRECISION-1-BITS_IN_BYTE) (минимум по точке на символ в интервале MIN_RANGE)
     public RangeCoder(int alphabetSize){
         assert alphabetSize <= MIN_RANGE;
         this.alphabetSize = alphabetSize;
         this.probs = new int[alphabetSize];
+        this.sumProbs = new int[alphabetSize];
+    }
+
+    int[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Устанавливает готовые probs (например, прочитанные из заголовка сжатых данных) вместо вызова count().
+     * Сумма probs - не больше MIN_RANGE.
+     */
+    public void setProbs(int[] probs) {
+        if (probs.length != alphabetSize)
+            throw new IllegalArgumentException("probs.length should be equal to alphabetSize");
+        long total = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (probs[i] < 0)
+                throw new IllegalArgumentException("probs should be >= 0");
+            total += probs[i];
+        }
+        if (total == 0 || total > MIN_RANGE)
+            throw new IllegalArgumentException("sum of probs should be in (0; MIN_RANGE]");
+        System.arraycopy(probs, 0, this.probs, 0, alphabetSize);
+        updateModel();
+    }
+
+    /**
+     * Масштабирует probs (после count() или setProbs()) так, чтобы их сумма стала степенью двойки.
+     * В этом случае encode и decode вместо деления на сумму частот выполняют сдвиг,
+     * а формат закодированных данных не меняется.
+     */
+    public void normalizeToPowerOfTwo() {
+        Frequencies.normalizeToPowerOfTwo(probs, Integer.numberOfTrailingZeros(MIN_RANGE));
+        updateModel();
+    }
+
+    // Пересчитывает всё, что encode и decode строят по probs
+    private void updateModel() {
+        for(int i = 0; i < alphabetSize; i++){
+            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+        }
+        totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        shift = powerOfTwoShift( totalCount );
+        lookup = new SymbolLookup( probs );
+    }
+
+    private void checkProbs() {
+        if (lookup == null)
+            throw new IllegalStateException("probs are not set, call count() or setProbs() first");
+    }
+
+    // Если totalCount - степень двойки, возвращает её показатель (деление на totalCount можно заменить сдвигом), иначе -1
+    private static int powerOfTwoShift(int totalCount) {
+        return (totalCount & (totalCount - 1)) == 0 ? Integer.numberOfTrailingZeros(totalCount) : -1;
     }
 
     // считает rawProbs и преобразует в probs, пригодные для кодирования
     // на выходе должны быть probs, в котором нет ни одного нулевого элемента,
     // а сумма всех значений не превышает 2^8
     public void count(int[] message){
+        count(message, null, message.length);
+    }
+
+    public void count(byte[] message, int offset, int length){
+        count(ByteBuffer.wrap(message, offset, length));
+    }
+
+    // Считает байты между position и limit буфера, position при этом не меняется
+    public void count(ByteBuffer message){
+        checkByteAlphabet();
+        count(null, message, message.remaining());
+    }
+
+    private void count(int[] message, ByteBuffer bytes, int length){
         final int totalCountTreshold = MIN_RANGE;
-        int[] rawProbs = new int[alphabetSize];
-
-        // Сначала просто считаем количество каждого элемента, нормализуя их если
-        // чьё-то кол-во превосходит qtr (для избежания переполнения)
-        int maxCount = 0;
-        for(int i = 0; i < message.length; i++){
-            int prob = ++rawProbs[message[i]];
-            if(prob > maxCount){
-                maxCount = prob;
-
-                // Если для одного из символов кол-во достигло qtr, нужно нормализовать
-                // все вероятности, поделив кол-во каждого на 2
-                if(maxCount == totalCountTreshold){
-                    for(int j = 0; j < alphabetSize; j++){
-                        rawProbs[j] <<= 1;
-                    }
-                    maxCount <<= 1;
-                }
-            }
-        }
+        // Сначала просто считаем количество каждого элемента; если для одного из символов кол-во
+        // достигло totalCountTreshold, все кол-ва удваиваются (см. Frequencies.histogram)
+        int[] rawProbs = Frequencies.histogram(message, bytes, length, alphabetSize, totalCountTreshold);
 
         // Теперь считаем общую сумму накопленных значений для того, чтобы окончательно
         // нормализовать массив probs.
@@ -81,6 +145,17 @@ public class RangeCoder {
         for (int i = 0; i < alphabetSize; i++)
             calculatedTotalCount += probs[i];
         assert compareUnsigned( calculatedTotalCount, totalCountTreshold) <= 0;
+        updateModel();
+    }
+
+    private void checkByteAlphabet() {
+        if (alphabetSize < 256)
+            throw new IllegalStateException("alphabetSize should be >= 256 to code bytes");
+    }
+
+    private void checkModel(Model model) {
+        if (compareUnsigned( model.getMaxTotal(), MIN_RANGE ) > 0)
+            throw new IllegalArgumentException("model.maxTotal should be <= MIN_RANGE");
     }
 
     private static int compareUnsigned(long a, long b){
@@ -91,18 +166,65 @@ public class RangeCoder {
         return Integer.compare( a ^ 0x80000000, b ^ 0x80000000 );
     }
 
-    private ByteArrayOutputStream stream;
-
     public ByteArrayOutputStream encode(int[] message) {
-        stream = new ByteArrayOutputStream(  );
+        return encodeToStream(message, null, null, 0, message.length, null);
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for(int i = 0; i < alphabetSize; i++){
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length) {
+        checkByteAlphabet();
+        return encodeToStream(null, message, null, offset, length, null);
+    }
+
+    // Кодирует байты между position и limit буфера, position при этом не меняется
+    public ByteArrayOutputStream encode(ByteBuffer message) {
+        checkByteAlphabet();
+        return encodeToStream(null, null, message, message.position(), message.remaining(), null);
+    }
+
+    /**
+     * То же, что и {@link #encode(int[])}, но попутно заполняет index контрольными точками для
+     * {@link #decodeRange}. Закодированные данные не отличаются от кодирования без индекса.
+     */
+    public ByteArrayOutputStream encode(int[] message, SeekIndex index) {
+        return encodeToStream(message, null, null, 0, message.length, index);
+    }
+
+    public ByteArrayOutputStream encode(byte[] message, int offset, int length, SeekIndex index) {
+        checkByteAlphabet();
+        return encodeToStream(null, message, null, offset, length, index);
+    }
+
+    /**
+     * Кодирует len байт src начиная с off в dst начиная с dstOff. В отличие от encode ничего не выделяет.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        checkByteAlphabet();
+        int end = encode(null, src, null, off, len, dst, dstOff, null);
+        return end < 0 ? -1 : end - dstOff;
+    }
+
+    // Кодирует во временный массив, увеличивая его, пока результат не поместится
+    private ByteArrayOutputStream encodeToStream(int[] message, byte[] array, ByteBuffer bytes, int base, int length, SeekIndex index) {
+        // Для байтов с probs по тем же данным - примерно 9 бит на символ
+        long estimate = (long) length * (33 - Integer.numberOfLeadingZeros(alphabetSize - 1)) / 8 + 16;
+        byte[] buffer = new byte[(int) Math.min(estimate, Integer.MAX_VALUE - 8)];
+        int end;
+        while ((end = encode(message, array, bytes, base, length, buffer, 0, index)) < 0) {
+            if (buffer.length == Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Encoded data is too large");
+            buffer = new byte[(int) Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8)];
         }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream( end );
+        stream.write( buffer, 0, end );
+        return stream;
+    }
+
+    // Символы берутся из message, array или bytes (что не null) начиная с base.
+    // Возвращает позицию в dst после закодированных данных или -1, если dst не хватило места
+    private int encode(int[] message, byte[] array, ByteBuffer bytes, int base, int length, byte[] dst, int dstOff, SeekIndex index) {
+        if (length != 0) checkProbs();
 
         final int TOP = 1 << (PRECISION - 1);
         final int test = TOP - MIN_RANGE - 1;
@@ -112,25 +234,42 @@ public class RangeCoder {
         int carry = 0;
         boolean nextByteInited = false;
         byte nextByte = 0;
+        int pos = dstOff;
 
         // Маска для сброса 32-ого бита с low (это необходимо после обработки переноса)
         int lowMask = TOP - 1;
+        // Без индекса до контрольной точки не дойдём никогда
+        long nextCheckpoint = index != null ? 0 : -1;
+        if (index != null) index.clear();
+
+        for (int i = 0; i < length; i++){
+            int c = message != null ? message[base + i] : array != null ? array[base + i] & 0xff : bytes.get(base + i) & 0xff;
+
+            if (i == nextCheckpoint) {
+                // Декодер к этому моменту прочитал по байту на каждый сдвиг: записанные байты,
+                // отложенные из-за переноса и nextByte
+                index.add(pos - dstOff + carry + (nextByteInited ? 1 : 0), low & 0xffffffffL, range & 0xffffffffL);
+                nextCheckpoint += index.getInterval();
+            }
 
-        for (int i = 0; i < message.length; i++){
-            int c = message[i];
-
-            low = (int) ((low & 0xffffffffL) + sumProbs[c] * (range & 0xffffffffL) / totalCount);
-            range = (int) (probs[c] * (range & 0xffffffffL) / totalCount);
+            if (shift >= 0) {
+                low = (int) ((low & 0xffffffffL) + (sumProbs[c] * (range & 0xffffffffL) >>> shift));
+                range = (int) (probs[c] * (range & 0xffffffffL) >>> shift);
+            } else {
+                low = (int) ((low & 0xffffffffL) + sumProbs[c] * (range & 0xffffffffL) / totalCount);
+                range = (int) (probs[c] * (range & 0xffffffffL) / totalCount);
+            }
 
             while (compareUnsigned(range, MIN_RANGE) <= 0){
                 if (compareUnsigned( low , TOP - MIN_RANGE) < 0) {
                     // Сейчас мы видим, что переноса нет, т.к. весь интервал находится слева от TOP
                     // Поэтому если у нас до этого был перенос, мы сбрасываем carry байт 0xff в файл
+                    if (pos + carry + 1 > dst.length) return -1;
                     if (nextByteInited)
-                        stream.write( nextByte & 0xff );
+                        dst[pos++] = nextByte;
 
                     for (int j = 0; j < carry; j++)
-                        stream.write( 0xFF );
+                        dst[pos++] = ( byte ) 0xFF;
                     carry = 0;
 
                     // Но он может возникнуть в будущем, когда мы расширим интервал в 2^8 раз
@@ -140,10 +279,11 @@ public class RangeCoder {
                 } else if ( compareUnsigned( low, TOP ) >= 0 ) {
                     // Рабочий интервал справа от TOP - значит, мы дошли до переноса, и нам нужно
                     // прибавить 1 к nextByte и сбросить carry нулевых байт в файл
-                    stream.write( (nextByte + 1) & 0xff );
+                    if (pos + carry + 1 > dst.length) return -1;
+                    dst[pos++] = ( byte ) (nextByte + 1);
 
                     for (int j = 0; j < carry; j++)
-                        stream.write( 0x00 );
+                        dst[pos++] = 0x00;
                     carry = 0;
 
                     nextByte = ( byte ) (0xFF & (low >> PRECISION - 1 - BITS_IN_BYTE));
@@ -162,25 +302,32 @@ public class RangeCoder {
         }
 
         // Завершаем кодирование
-        if (message.length != 0) {
+        if (length != 0) {
+            if (pos + carry + 4 > dst.length) return -1;
+            // Выбираем из интервала [low; low + range) число с нулевыми младшими 8 битами (оно есть всегда,
+            // т.к. range > MIN_RANGE) - тогда достаточно вывести только его старшие 23 бита.
+            // Округление вверх может дать перенос, поэтому выполняем его до проверки на перенос.
+            low = (low + 0xff) & ~0xff;
             if ( compareUnsigned( low , TOP) < 0 ) {
-                stream.write( nextByte );
+                // Если нормализации не было ни разу, то и nextByte не существует
+                if (nextByteInited)
+                    dst[pos++] = nextByte;
                 for (; carry > 0; carry--)
-                    stream.write( 0xff );
+                    dst[pos++] = ( byte ) 0xff;
             } else{
-                stream.write( nextByte + 1 );
+                dst[pos++] = ( byte ) (nextByte + 1);
                 for (; carry > 0; carry--)
-                    stream.write( 0x00 );
+                    dst[pos++] = 0x00;
             }
-            stream.write( (low >>> 23) & 0xff );
-            stream.write( (low >>> (23 - 8)) & 0xff );
+            dst[pos++] = ( byte ) (low >>> 23);
+            dst[pos++] = ( byte ) (low >>> (23 - 8));
             // Так как нам нужны только старшие 23 бита, то
             // 24-ый бит несущественен, и маска = 0xfe
-            stream.write( (low >>> (23 - 16)) & 0xfe );
-            //stream.write( (low & 0x7f) << 1 );
+            dst[pos++] = ( byte ) ((low >>> (23 - 16)) & 0xfe);
         }
+        if (index != null) index.setLength(length);
 
-        return stream;
+        return pos;
     }
 
     private byte readNextByte(ByteArrayInputStream inputStream) {
@@ -189,42 +336,242 @@ public class RangeCoder {
         return ( byte ) readed;
     }
 
+    // Первые 4 байта закодированных данных: старшие 31 бит - начальное value, младший бит - начало следующего
     private int readFirstNumber(ByteArrayInputStream inputStream){
         byte b1 = readNextByte(inputStream);
         byte b2 = readNextByte(inputStream);
         byte b3 = readNextByte(inputStream);
         byte b4 = readNextByte(inputStream);
-        int v = ((((((b1 & 0xff) << 8) | b2 & 0xff) << 8) | b3 & 0xff) << 8) | b4 & 0xff;
-        v >>>= 1;
-        lastBit = b4 & 1;
-        return v;
+        return ((((((b1 & 0xff) << 8) | b2 & 0xff) << 8) | b3 & 0xff) << 8) | b4 & 0xff;
     }
 
-    private int readFirstNumberOpt(ByteArrayInputStream inputStream){
-        byte b1 = readNextByte(inputStream);
-        byte b2 = readNextByte(inputStream);
-        byte b3 = readNextByte(inputStream);
-        byte b4 = readNextByte(inputStream);
-        int v = ((((((b1 & 0xff) << 8) | b2 & 0xff) << 8) | b3 & 0xff) << 8) | b4 & 0xff;
-        v >>>= 1;
-        lastReadedByte = b4;
-        return v;
+    public int[] decode(ByteArrayInputStream inputStream, int len) {
+        int[] message = new int[len];
+        decodeFromStream(inputStream, message, null, null, 0, len);
+        return message;
+    }
+
+    public void decode(ByteArrayInputStream inputStream, byte[] dst, int offset, int length) {
+        decodeFromStream(inputStream, null, dst, null, offset, length);
     }
 
-    private int lastBit;
-    private int lastReadedByte;
+    // Декодирует символы в байты между position и limit буфера, position при этом не меняется
+    public void decode(ByteArrayInputStream inputStream, ByteBuffer dst) {
+        decodeFromStream(inputStream, null, null, dst, dst.position(), dst.remaining());
+    }
 
-    public int[] decode(ByteArrayInputStream inputStream, int len) {
-        int[] message = new int[len];
-        int value = readFirstNumberOpt( inputStream );
+    /**
+     * Декодирует len байт в dst начиная с dstOff из данных src[off; off + srcLen). В отличие от decode ничего не выделяет.
+     * Данные за концом src считаются нулями, как и у потока.
+     *
+     * @return количество прочитанных из src байт
+     */
+    public int decodeInto(byte[] src, int off, int srcLen, byte[] dst, int dstOff, int len) {
+        return decode(src, off, off + srcLen, 0, 1 << (PRECISION - 1), 0, null, dst, null, dstOff, len) - off;
+    }
 
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for ( int i = 0; i < alphabetSize; i++ ) {
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
+    /**
+     * Декодирует символы [start; start + count) данных src[off; off + srcLen), закодированных с индексом
+     * ({@link #encode(int[], SeekIndex)}), начиная с ближайшей к start контрольной точки.
+     */
+    public int[] decodeRange(byte[] src, int off, int srcLen, SeekIndex index, int start, int count) {
+        int[] message = new int[count];
+        decodeRange(src, off, srcLen, index, start, message, null, 0, count);
+        return message;
+    }
+
+    public void decodeRange(byte[] src, int off, int srcLen, SeekIndex index, int start, byte[] dst, int dstOff, int count) {
+        decodeRange(src, off, srcLen, index, start, null, dst, dstOff, count);
+    }
+
+    private void decodeRange(byte[] src, int off, int srcLen, SeekIndex index, int start, int[] message, byte[] array, int base, int count) {
+        int checkpoint = index.checkpoint(start, count);
+        if (count == 0)
+            return;
+        int offset = index.getOffset(checkpoint);
+        if (offset > srcLen)
+            throw new IllegalArgumentException("Seek index does not match the data");
+        decode(src, off + offset, off + srcLen, ( int ) index.getLow(checkpoint), ( int ) index.getRange(checkpoint),
+                start - checkpoint * index.getInterval(), message, array, null, base, count);
+    }
+
+    // Декодер читает из массива: забираем из потока столько, сколько может занять сообщение, а непрочитанное
+    // потом возвращаем. Начальное value - 4 байта, а после символа range >= 1,
+    // так что нормализация читает не больше 4 байт на символ
+    private void decodeFromStream(ByteArrayInputStream inputStream, int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        byte[] src = StreamWindow.read( inputStream, 4 + 4L * len );
+        int end = decode(src, 0, src.length, 0, 1 << (PRECISION - 1), 0, message, array, bytes, base, len);
+        StreamWindow.consume( inputStream, end );
+    }
+
+    // Символы пишутся в message, array или bytes (что не null) начиная с base, первые skip символов пропускаются.
+    // Декодирование начинается с состояния low, range и данных с srcOff (с начала - low = 0, range = 2^31).
+    // Возвращает позицию в src после прочитанных данных
+    private int decode(byte[] src, int srcOff, int srcLimit, int low, int range, int skip,
+                       int[] message, byte[] array, ByteBuffer bytes, int base, int len) {
+        if (len != 0) checkProbs();
+        int pos = srcOff;
+        int first = 0;
+        // pos считает и чтения за концом данных - по нему потом определяется, сколько байт записал кодер
+        for (int k = 0; k < 4; k++, pos++)
+            first = (first << 8) | (pos < srcLimit ? src[pos] & 0xff : 0);
+        int value = first >>> 1;
+        int lastReadedByte = first & 0xff;
+
+        final int TOP = 1 << (PRECISION - 1);
+        // Маска для сброса 32-ого бита с low (это необходимо после обработки переноса)
+        final int lowMask = TOP - 1;
+
+        for ( int i = -skip; i < len; i++ ) {
+            // Следующее необходимо для того, чтобы выполнить вычитание между двумя 31-битными числами: ((value - low) & 0x7fffffffL)
+            // Оно работает, причём даже в случае если числа имеют установленные 32-ые биты, поэтому нам не надо принудительно
+            // выполнять value &= lowMask и low &= lowMask ни при их изменении, ни перед вычитанием.
+            int threshold = (int) (((((value - low) & 0x7fffffffL) + 1) * totalCount - 1) / (range & 0xffffffffL));
+
+            int c = lookup.find( threshold & 0xffffffffL );
+
+            if (i >= 0) {
+                if (message != null) message[base + i] = c;
+                else if (array != null) array[base + i] = ( byte ) c;
+                else bytes.put(base + i, ( byte ) c);
+            }
+
+            if (shift >= 0) {
+                low = (int) ((low & 0xffffffffL) + (sumProbs[c] * (range & 0xffffffffL) >>> shift));
+                range = (int) (probs[c] * (range & 0xffffffffL) >>> shift);
+            } else {
+                low = (int) ((low & 0xffffffffL) + sumProbs[c] * (range & 0xffffffffL) / totalCount);
+                range = (int) (probs[c] * (range & 0xffffffffL) / totalCount);
+            }
+
+            while (compareUnsigned(range , MIN_RANGE) <= 0){
+                low <<= 8;
+                // А здесь low все-таки необходимо подрезАть для избежания возможного переполнения
+                // при дальнейших вычислениях
+                low &= lowMask;
+
+                value = (value << 8) | ((lastReadedByte & 0x01) << 7);
+                lastReadedByte = pos < srcLimit ? src[pos] & 0xff : 0;
+                pos++;
+                value |= lastReadedByte >>> 1;
+
+                range <<= 8;
+            }
+
+            // Убеждаемся, что мы никогда не выходим за рамки 32-битового числа
+            // Low может выходить за пределы 31-битового числа, но Low+Range - всегда должны помещаться в 32 бита
+            assert compareUnsigned( (low & 0xffffffffL) + (range & 0xffffffffL), 0x100000000L ) <= 0;
+        }
+
+        // Кодер не выводит последний байт (младшие биты low у него нулевые), а пустое сообщение не выводит
+        // совсем, поэтому декодер читает на байт больше записанного - этот байт принадлежит уже следующим данным
+        if (len == 0 && skip == 0) return srcOff;
+        return Math.min(pos - 1, srcLimit);
+    }
+
+    /**
+     * Однопроходное кодирование с адаптивной моделью вместо probs: count() вызывать не нужно.
+     * Модель изменяется в процессе кодирования, декодеру нужна модель в том же начальном состоянии.
+     */
+    public ByteArrayOutputStream encode(int[] message, Model model) {
+        checkModel(model);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(  );
+
+        final int TOP = 1 << (PRECISION - 1);
+
+        int low = 0;
+        int range = 1 << (PRECISION - 1);
+        int carry = 0;
+        boolean nextByteInited = false;
+        byte nextByte = 0;
+
+        // Маска для сброса 32-ого бита с low (это необходимо после обработки переноса)
+        int lowMask = TOP - 1;
+
+        for (int i = 0; i < message.length; i++){
+            int c = message[i];
+            int totalCount = model.getTotal();
+
+            low = (int) ((low & 0xffffffffL) + model.getLow(c) * (range & 0xffffffffL) / totalCount);
+            range = (int) (model.getFreq(c) * (range & 0xffffffffL) / totalCount);
+            model.update(c);
+
+            while (compareUnsigned(range, MIN_RANGE) <= 0){
+                if (compareUnsigned( low , TOP - MIN_RANGE) < 0) {
+                    // Сейчас мы видим, что переноса нет, т.к. весь интервал находится слева от TOP
+                    // Поэтому если у нас до этого был перенос, мы сбрасываем carry байт 0xff в файл
+                    if (nextByteInited)
+                        stream.write( nextByte & 0xff );
+
+                    for (int j = 0; j < carry; j++)
+                        stream.write( 0xFF );
+                    carry = 0;
+
+                    // Но он может возникнуть в будущем, когда мы расширим интервал в 2^8 раз
+                    // И этот потенциальный перенос может изменить текущий байт, поэтому сохраняем его в nextByte
+                    nextByte = ( byte ) (0xFF & (low >> PRECISION - 1 - BITS_IN_BYTE));
+                    nextByteInited = true;
+                } else if ( compareUnsigned( low, TOP ) >= 0 ) {
+                    // Рабочий интервал справа от TOP - значит, мы дошли до переноса, и нам нужно
+                    // прибавить 1 к nextByte и сбросить carry нулевых байт в файл
+                    stream.write( (nextByte + 1) & 0xff );
+
+                    for (int j = 0; j < carry; j++)
+                        stream.write( 0x00 );
+                    carry = 0;
+
+                    nextByte = ( byte ) (0xFF & (low >> PRECISION - 1 - BITS_IN_BYTE));
+                } else {
+                    // Старший байт low = 0xff, и мы должны увеличить счётчик carry
+                    carry++;
+                }
+
+                low <<= 8;
+                low &= lowMask;
+
+                // Здесь переполнения быть не может, т.к. range <= MIN_RANGE, а
+                // MIN_RANGE ограничен 23 битами
+                range <<= 8;
+            }
+        }
+
+        // Завершаем кодирование
+        if (message.length != 0) {
+            // Выбираем из интервала [low; low + range) число с нулевыми младшими 8 битами (оно есть всегда,
+            // т.к. range > MIN_RANGE) - тогда достаточно вывести только его старшие 23 бита.
+            // Округление вверх может дать перенос, поэтому выполняем его до проверки на перенос.
+            low = (low + 0xff) & ~0xff;
+            if ( compareUnsigned( low , TOP) < 0 ) {
+                // Если нормализации не было ни разу, то и nextByte не существует
+                if (nextByteInited)
+                    stream.write( nextByte );
+                for (; carry > 0; carry--)
+                    stream.write( 0xff );
+            } else{
+                stream.write( nextByte + 1 );
+                for (; carry > 0; carry--)
+                    stream.write( 0x00 );
+            }
+            stream.write( (low >>> 23) & 0xff );
+            stream.write( (low >>> (23 - 8)) & 0xff );
+            // Так как нам нужны только старшие 23 бита, то
+            // 24-ый бит несущественен, и маска = 0xfe
+            stream.write( (low >>> (23 - 16)) & 0xfe );
+            //stream.write( (low & 0x7f) << 1 );
         }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+
+        return stream;
+    }
+
+    /**
+     * Алгоритм декодирования, соответствующий методу {@link #encode(int[], Model)}.
+     */
+    public int[] decode(ByteArrayInputStream inputStream, int len, Model model) {
+        checkModel(model);
+        int[] message = new int[len];
+        int first = readFirstNumber( inputStream );
+        int value = first >>> 1;
+        int lastReadedByte = first & 0xff;
 
         final int TOP = 1 << (PRECISION - 1);
         // Маска для сброса 32-ого бита с low (это необходимо после обработки переноса)
@@ -234,20 +581,19 @@ public class RangeCoder {
         int range = 1 << (PRECISION - 1);
 
         for ( int i = 0; i < len; i++ ) {
+            int totalCount = model.getTotal();
             // Следующее необходимо для того, чтобы выполнить вычитание между двумя 31-битными числами: ((value - low) & 0x7fffffffL)
             // Оно работает, причём даже в случае если числа имеют установленные 32-ые биты, поэтому нам не надо принудительно
             // выполнять value &= lowMask и low &= lowMask ни при их изменении, ни перед вычитанием.
             int threshold = (int) (((((value - low) & 0x7fffffffL) + 1) * totalCount - 1) / (range & 0xffffffffL));
 
-            int c;
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
-            }
+            int c = model.findSymbol( threshold );
 
             message[i] = c;
 
-            low = (int) ((low & 0xffffffffL) + sumProbs[c] * (range & 0xffffffffL) / totalCount);
-            range = (int) (probs[c] * (range & 0xffffffffL) / totalCount);
+            low = (int) ((low & 0xffffffffL) + model.getLow(c) * (range & 0xffffffffL) / totalCount);
+            range = (int) (model.getFreq(c) * (range & 0xffffffffL) / totalCount);
+            model.update(c);
 
             while (compareUnsigned(range , MIN_RANGE) <= 0){
                 low <<= 8;
@@ -276,16 +622,11 @@ public class RangeCoder {
      * Эквивалентность циклов нормализации описана в документе range.md.
      */
     public int[] decodeSlow(ByteArrayInputStream inputStream, int len) {
+        if (len != 0) checkProbs();
         int[] message = new int[len];
-        int value = readFirstNumber( inputStream );
-
-        // Накапливающаяся сумма встречаемости символов
-        // Первый элемент - 0, второй - 0 + встречаемость первого, итд
-        int[] sumProbs = new int[alphabetSize];
-        for ( int i = 0; i < alphabetSize; i++ ) {
-            sumProbs[i] = i > 0 ? sumProbs[i - 1] + probs[i - 1] : 0;
-        }
-        int totalCount = sumProbs[alphabetSize - 1] + probs[alphabetSize - 1];
+        int first = readFirstNumber( inputStream );
+        int value = first >>> 1;
+        int lastBit = first & 1;
 
         final int TOP = 1 << (PRECISION - 1);
         // Маска для сброса 32-ого бита с low (это необходимо после обработки переноса)
@@ -301,10 +642,7 @@ public class RangeCoder {
             //int threshold = (int) (((((value - low) & 0x7fffffffL) + 1) * totalCount - 1) / (range & 0xffffffffL));
             int threshold = (int) (((((value - low) & 0xffffffffL) + 1) * totalCount - 1) / (range & 0xffffffffL));
 
-            int c;
-            for(c = 0; c < alphabetSize; c++){
-                if (compareUnsigned( sumProbs[c] + probs[c], threshold) > 0) break;
-            }
+            int c = lookup.find( threshold & 0xffffffffL );
 
             message[i] = c;
 
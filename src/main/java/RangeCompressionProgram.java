@@ -17,22 +17,20 @@ public class RangeCompressionProgram {
 
 //        byte[] bytes = Files.readAllBytes(Paths.get("d:\\all\\compression\\algorithms\\src\\main\\resources\\book1.txt"));
         byte[] bytes = Files.readAllBytes(Paths.get("d:\\elwood\\work\\dzru\\trie\\src\\main\\resources\\book1.txt"));
-        int[] message = new int[bytes.length];
-        for(int i=0; i < bytes.length;i++)
-            message[i]=bytes[i] & 0xFF;
         CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 256 );
-        coder.count( message );
+        coder.count( bytes, 0, bytes.length );
 
-        ByteArrayOutputStream encoded = coder.encode( message );
+        ByteArrayOutputStream encoded = coder.encode( bytes, 0, bytes.length );
         byte[] encodedBytes = encoded.toByteArray();
 
         System.out.println(String.format("Source size %d encoded size %d ratio %f%%",
-                message.length, encodedBytes.length, encodedBytes.length * 100.0 / message.length));
+                bytes.length, encodedBytes.length, encodedBytes.length * 100.0 / bytes.length));
 
-        int[] decoded = coder.decode(new ByteArrayInputStream(encodedBytes), message.length);
+        byte[] decoded = new byte[bytes.length];
+        coder.decode(new ByteArrayInputStream(encodedBytes), decoded, 0, bytes.length);
 
         for (int i = 0; i < bytes.length; i++){
-            if ( decoded[i] != message[i] ) {
+            if ( decoded[i] != bytes[i] ) {
                 System.out.println("error");
             }
         }
@@ -0,0 +1,149 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Индекс для чтения закодированных данных с произвольного места: через каждые interval символов
+ * запоминается состояние кодера - low, range и смещение в закодированных данных. Заполняется при кодировании
+ * ({@link CarrylessRangeCoder64#encode(int[], SeekIndex)}, {@link RangeCoder#encode(int[], SeekIndex)}), а
+ * decodeRange начинает декодирование с ближайшей контрольной точки перед нужным символом, поэтому чтение
+ * любого участка стоит O(interval + count), а не O(start + count).
+ *
+ * Состояние декодера в контрольной точке восстанавливается по этим трём числам: декодер читает по байту
+ * на каждый сдвиг интервала, как и кодер, так что value - это просто байты закодированных данных начиная
+ * со смещения. Отложенный перенос {@link RangeCoder} хранить не нужно - к моменту чтения он уже записан
+ * в данные, и декодер видит те же байты, что и при декодировании с начала.
+ *
+ * Индекс хранится отдельно от закодированных данных, формат самих данных не меняется.
+ * Формат {@link #toByteArray()} (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'S' 'X'
+ * version        1 байт
+ * interval       4 байта
+ * length         4 байта  количество закодированных символов
+ * count          4 байта  количество контрольных точек
+ * checkpoints    count * 20 байт - смещение (4 байта), low (8 байт), range (8 байт)
+ * </pre>
+ */
+public class SeekIndex {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('S' << 8) | 'X';
+    private static final int VERSION = 1;
+    // magic + version + interval + length + count
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+    private static final int CHECKPOINT_SIZE = 4 + 8 + 8;
+
+    private final int interval;
+    private int length;
+    private int count;
+    private int[] offsets = new int[16];
+    private long[] lows = new long[16];
+    private long[] ranges = new long[16];
+
+    /**
+     * @param interval через сколько символов запоминать состояние кодера; каждая точка занимает 20 байт
+     */
+    public SeekIndex(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("interval should be > 0");
+        this.interval = interval;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return количество символов, закодированных с этим индексом
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    void clear() {
+        length = 0;
+        count = 0;
+    }
+
+    // Состояние кодера перед символом size() * interval
+    void add(int offset, long low, long range) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lows = Arrays.copyOf(lows, count * 2);
+            ranges = Arrays.copyOf(ranges, count * 2);
+        }
+        offsets[count] = offset;
+        lows[count] = low;
+        ranges[count] = range;
+        count++;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Проверяет, что участок [start; start + count) закодирован, и возвращает номер контрольной точки перед ним.
+     */
+    int checkpoint(int start, int count) {
+        if (start < 0 || count < 0 || start > length - count)
+            throw new IndexOutOfBoundsException("Range [" + start + "; " + (start + ( long ) count) + ") is out of [0; " + length + ")");
+        return Math.min(start / interval, this.count - 1);
+    }
+
+    int getOffset(int checkpoint) {
+        return offsets[checkpoint];
+    }
+
+    long getLow(int checkpoint) {
+        return lows[checkpoint];
+    }
+
+    long getRange(int checkpoint) {
+        return ranges[checkpoint];
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + count * CHECKPOINT_SIZE);
+        out.putInt(MAGIC);
+        out.put(( byte ) VERSION);
+        out.putInt(interval);
+        out.putInt(length);
+        out.putInt(count);
+        for (int i = 0; i < count; i++) {
+            out.putInt(offsets[i]);
+            out.putLong(lows[i]);
+            out.putLong(ranges[i]);
+        }
+        return out.array();
+    }
+
+    /**
+     * Читает индекс, записанный {@link #toByteArray()}, начиная с позиции in; позиция сдвигается за его конец.
+     */
+    public static SeekIndex read(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a seek index");
+        int version = in.get() & 0xff;
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        int interval = in.getInt();
+        int length = in.getInt();
+        int count = in.getInt();
+        if (interval < 1 || length < 0 || count != (length == 0 ? 0 : ( int ) ((length - 1L) / interval + 1))
+                || in.remaining() < ( long ) count * CHECKPOINT_SIZE)
+            throw new IllegalArgumentException("Corrupted seek index");
+
+        SeekIndex index = new SeekIndex(interval);
+        for (int i = 0; i < count; i++) {
+            int offset = in.getInt();
+            if (offset < 0 || (i > 0 && offset < index.offsets[i - 1]))
+                throw new IllegalArgumentException("Corrupted seek index");
+            index.add(offset, in.getLong(), in.getLong());
+        }
+        index.setLength(length);
+        return index;
+    }
+}
@@ -0,0 +1,269 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Статическая модель для больших алфавитов (16-битные отсчёты, номера токенов и т.п.): частоты хранятся
+ * только для символов, которые встретились в сообщении, поэтому ни память, ни размер заголовка не зависят
+ * от alphabetSize. Используется с кодерами через {@link Model}: {@link CarrylessRangeCoder64#encode(int[], Model)}
+ * и {@link ArithmeticCoder64#encode(int[], Model)}.
+ *
+ * Символ переводится в номер среди встретившихся символов хеш-таблицей с открытой адресацией, а при
+ * декодировании номер по накопленной частоте находит {@link SymbolLookup} - оба поиска не зависят от размера
+ * алфавита. Сумма частот - степень двойки. Модель не меняется после построения, поэтому один экземпляр можно
+ * использовать из нескольких потоков.
+ *
+ * Формат {@link #toByteArray()} (числа - varint, 7 бит в байте, младшие группы первыми):
+ * <pre>
+ * alphabetSize   varint
+ * count          varint   количество встретившихся символов
+ * totalBits      1 байт   сумма частот равна 2^totalBits
+ * symbols        count varint - первый символ, затем разности соседних символов минус 1
+ * freqs          (count - 1) varint - частоты минус 1; частота последнего символа - остаток до 2^totalBits
+ * </pre>
+ */
+public class SparseModel implements Model {
+    public static final int DEFAULT_TOTAL_BITS = 24;
+
+    private final int alphabetSize;
+    // Встретившиеся символы по возрастанию
+    private final int[] symbols;
+    // cumFreqs[i] - начало интервала symbols[i], cumFreqs[count] - сумма частот
+    private final int[] cumFreqs;
+    private final int totalBits;
+    private final SymbolLookup lookup;
+    // Хеш-таблица символ -> номер в symbols, пустые ячейки - -1
+    private final int[] hashKeys;
+    private final int[] hashValues;
+    private final int hashMask;
+
+    private SparseModel(int alphabetSize, int[] symbols, int[] freqs, int totalBits) {
+        this.alphabetSize = alphabetSize;
+        this.symbols = symbols;
+        this.totalBits = totalBits;
+        this.cumFreqs = new int[symbols.length + 1];
+        for (int i = 0; i < symbols.length; i++)
+            cumFreqs[i + 1] = cumFreqs[i] + freqs[i];
+        this.lookup = new SymbolLookup(freqs);
+
+        int capacity = Integer.highestOneBit(Math.max(1, symbols.length) * 2 - 1) << 1;
+        hashKeys = new int[capacity];
+        hashValues = new int[capacity];
+        hashMask = capacity - 1;
+        Arrays.fill(hashKeys, -1);
+        for (int i = 0; i < symbols.length; i++) {
+            int slot = hash(symbols[i]) & hashMask;
+            while (hashKeys[slot] != -1)
+                slot = (slot + 1) & hashMask;
+            hashKeys[slot] = symbols[i];
+            hashValues[slot] = i;
+        }
+    }
+
+    public static SparseModel count(int[] message, int alphabetSize) {
+        return count(message, alphabetSize, DEFAULT_TOTAL_BITS);
+    }
+
+    /**
+     * Строит модель по частотам символов сообщения. Частоты масштабируются так, чтобы их сумма была степенью
+     * двойки не больше 2^maxTotalBits, и каждый встретившийся символ сохранял ненулевую частоту
+     * (см. {@link Frequencies#normalizeToPowerOfTwo}).
+     *
+     * @param maxTotalBits не больше 30 и не больше minRangeBits кодера
+     */
+    public static SparseModel count(int[] message, int alphabetSize, int maxTotalBits) {
+        if (alphabetSize < 1)
+            throw new IllegalArgumentException("alphabetSize should be > 0");
+        if (message.length == 0)
+            throw new IllegalArgumentException("message should not be empty");
+
+        // Счётчики в хеш-таблице, которая растёт вдвое при заполнении наполовину
+        int[] keys = new int[64];
+        int[] counts = new int[64];
+        Arrays.fill(keys, -1);
+        int count = 0;
+        for (int c : message) {
+            if (c < 0 || c >= alphabetSize)
+                throw new IllegalArgumentException("Symbol " + c + " is out of alphabet");
+            int mask = keys.length - 1;
+            int slot = hash(c) & mask;
+            while (keys[slot] != -1 && keys[slot] != c)
+                slot = (slot + 1) & mask;
+            if (keys[slot] == -1) {
+                keys[slot] = c;
+                if (++count * 2 > keys.length) {
+                    counts[slot] = 1;
+                    int[][] grown = grow(keys, counts);
+                    keys = grown[0];
+                    counts = grown[1];
+                    continue;
+                }
+            }
+            counts[slot]++;
+        }
+
+        int[] symbols = new int[count];
+        for (int slot = 0, i = 0; slot < keys.length; slot++)
+            if (keys[slot] != -1)
+                symbols[i++] = keys[slot];
+        Arrays.sort(symbols);
+        int[] freqs = new int[count];
+        int mask = keys.length - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = hash(symbols[i]) & mask;
+            while (keys[slot] != symbols[i])
+                slot = (slot + 1) & mask;
+            freqs[i] = counts[slot];
+        }
+        int totalBits = Frequencies.normalizeToPowerOfTwo(freqs, maxTotalBits);
+        return new SparseModel(alphabetSize, symbols, freqs, totalBits);
+    }
+
+    private static int[][] grow(int[] keys, int[] counts) {
+        int[] newKeys = new int[keys.length * 2];
+        int[] newCounts = new int[keys.length * 2];
+        Arrays.fill(newKeys, -1);
+        int mask = newKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == -1)
+                continue;
+            int slot = hash(keys[i]) & mask;
+            while (newKeys[slot] != -1)
+                slot = (slot + 1) & mask;
+            newKeys[slot] = keys[i];
+            newCounts[slot] = counts[i];
+        }
+        return new int[][]{newKeys, newCounts};
+    }
+
+    // Перемешивание Фибоначчи: соседние символы (типичные для отсчётов) попадают в далёкие ячейки
+    private static int hash(int c) {
+        return (c * 0x9E3779B9) >>> 7;
+    }
+
+    private int index(int c) {
+        int slot = hash(c) & hashMask;
+        int key;
+        while ((key = hashKeys[slot]) != c) {
+            if (key == -1)
+                throw new IllegalArgumentException("Symbol " + c + " is not in the model");
+            slot = (slot + 1) & hashMask;
+        }
+        return hashValues[slot];
+    }
+
+    /**
+     * @return количество символов, для которых хранятся частоты
+     */
+    public int getSymbolCount() {
+        return symbols.length;
+    }
+
+    @Override
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    @Override
+    public int getMaxTotal() {
+        return 1 << totalBits;
+    }
+
+    @Override
+    public int getTotal() {
+        return 1 << totalBits;
+    }
+
+    @Override
+    public int getFreq(int c) {
+        int i = index(c);
+        return cumFreqs[i + 1] - cumFreqs[i];
+    }
+
+    @Override
+    public int getLow(int c) {
+        return cumFreqs[index(c)];
+    }
+
+    @Override
+    public int findSymbol(int target) {
+        int i = lookup.find(target & 0xffffffffL);
+        // За пределами суммы частот (повреждённые данные) - символ вне алфавита, как у SymbolLookup
+        return i < symbols.length ? symbols[i] : alphabetSize;
+    }
+
+    // Модель статическая
+    @Override
+    public void update(int c) {
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    public byte[] toByteArray() {
+        // Не больше 5 байт на каждое число
+        ByteBuffer out = ByteBuffer.allocate(11 + symbols.length * 10);
+        putVarint(out, alphabetSize);
+        putVarint(out, symbols.length);
+        out.put(( byte ) totalBits);
+        for (int i = 0; i < symbols.length; i++)
+            putVarint(out, i == 0 ? symbols[0] : symbols[i] - symbols[i - 1] - 1);
+        for (int i = 0; i + 1 < symbols.length; i++)
+            putVarint(out, cumFreqs[i + 1] - cumFreqs[i] - 1);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Читает модель, записанную {@link #toByteArray()}, начиная с позиции in; позиция сдвигается за её конец.
+     */
+    public static SparseModel read(ByteBuffer in) {
+        int alphabetSize = getVarint(in);
+        int count = getVarint(in);
+        if (alphabetSize < 1 || count < 1 || count > alphabetSize || !in.hasRemaining())
+            throw new IllegalArgumentException("Corrupted model");
+        int totalBits = in.get() & 0xff;
+        if (totalBits > 30 || count > (1 << totalBits))
+            throw new IllegalArgumentException("Corrupted model");
+
+        int[] symbols = new int[count];
+        long symbol = -1;
+        for (int i = 0; i < count; i++) {
+            int gap = getVarint(in);
+            symbol += gap + 1L;
+            if (gap < 0 || symbol >= alphabetSize)
+                throw new IllegalArgumentException("Corrupted model");
+            symbols[i] = ( int ) symbol;
+        }
+        int[] freqs = new int[count];
+        long rest = 1L << totalBits;
+        for (int i = 0; i + 1 < count; i++) {
+            freqs[i] = getVarint(in) + 1;
+            rest -= freqs[i];
+            if (freqs[i] < 1 || rest < 1)
+                throw new IllegalArgumentException("Corrupted model");
+        }
+        freqs[count - 1] = ( int ) rest;
+        return new SparseModel(alphabetSize, symbols, freqs, totalBits);
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put(( byte ) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put(( byte ) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.hasRemaining())
+                throw new IllegalArgumentException("Unexpected end of model");
+            int b = in.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Corrupted model");
+    }
+}
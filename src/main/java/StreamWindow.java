@@ -0,0 +1,31 @@
+import java.io.ByteArrayInputStream;
+
+/**
+ * Чтение из ByteArrayInputStream для декодеров, которые работают с массивом. Из одного потока часто декодируют
+ * много сообщений подряд, поэтому копировать на каждом вызове всё, что осталось в потоке, нельзя - это
+ * квадратичная сложность. Вместо этого копируется не больше байт, чем сообщение может занять в худшем случае,
+ * а после декодирования поток сдвигается ровно на прочитанные декодером байты.
+ */
+final class StreamWindow {
+    private StreamWindow() {
+    }
+
+    /**
+     * Запоминает позицию потока ({@link ByteArrayInputStream#mark}) и читает не больше maxLength байт.
+     */
+    static byte[] read(ByteArrayInputStream inputStream, long maxLength) {
+        inputStream.mark( 0 );
+        byte[] src = new byte[( int ) Math.min( inputStream.available(), maxLength )];
+        // ByteArrayInputStream отдаёт сразу всё, что есть
+        inputStream.read( src, 0, src.length );
+        return src;
+    }
+
+    /**
+     * Возвращает поток к позиции, запомненной в {@link #read}, и пропускает consumed байт.
+     */
+    static void consume(ByteArrayInputStream inputStream, int consumed) {
+        inputStream.reset();
+        inputStream.skip( consumed );
+    }
+}
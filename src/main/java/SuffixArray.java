@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ * Построение суффиксного массива за O(n) алгоритмом SA-IS (Nong, Zhang, Chan).
+ *
+ * Суффиксы делятся на S (меньше следующего суффикса) и L (больше). Сначала сортируются LMS-подстроки
+ * (от S-суффикса, перед которым L, до следующего такого же) - одним проходом индуцированной сортировки.
+ * Если все они различны, порядок LMS-суффиксов уже известен, иначе подстроки заменяются их рангами и
+ * задача решается рекурсивно для строки вдвое короче. По отсортированным LMS-суффиксам второй
+ * индуцированной сортировкой получается весь массив.
+ *
+ * Память - около 13 байт на символ сверх входных данных (массив символов int[], ответ, типы суффиксов
+ * и номера LMS-позиций), рекурсия работает со строкой не длиннее n / 2.
+ */
+public class SuffixArray {
+    private SuffixArray() {
+    }
+
+    /**
+     * @return начала суффиксов data[offset; offset + length) в лексикографическом порядке (индексы от 0)
+     */
+    public static int[] build(byte[] data, int offset, int length) {
+        int[] s = new int[length];
+        for (int i = 0; i < length; i++)
+            s[i] = data[offset + i] & 0xff;
+        return build(s, 255);
+    }
+
+    /**
+     * @param s     строка, все символы в [0; upper]
+     * @param upper наибольший символ
+     */
+    public static int[] build(int[] s, int upper) {
+        int n = s.length;
+        if (n == 0)
+            return new int[0];
+        if (n == 1)
+            return new int[]{0};
+        if (n == 2)
+            return s[0] < s[1] ? new int[]{0, 1} : new int[]{1, 0};
+
+        int[] sa = new int[n];
+        // ls[i] - суффикс i типа S; последний суффикс - L (за ним воображаемый наименьший символ)
+        boolean[] ls = new boolean[n];
+        for (int i = n - 2; i >= 0; i--)
+            ls[i] = s[i] == s[i + 1] ? ls[i + 1] : s[i] < s[i + 1];
+
+        // Начала корзин: sumL[c] - первая позиция L-суффиксов на c, sumS[c] - первая позиция S-суффиксов на c
+        int[] sumL = new int[upper + 1];
+        int[] sumS = new int[upper + 1];
+        for (int i = 0; i < n; i++) {
+            if (!ls[i])
+                sumS[s[i]]++;
+            else
+                sumL[s[i] + 1]++;
+        }
+        for (int i = 0; i <= upper; i++) {
+            sumS[i] += sumL[i];
+            if (i < upper)
+                sumL[i + 1] += sumS[i];
+        }
+
+        int[] lmsMap = new int[n + 1];
+        Arrays.fill(lmsMap, -1);
+        int m = 0;
+        for (int i = 1; i < n; i++)
+            if (!ls[i - 1] && ls[i])
+                lmsMap[i] = m++;
+        int[] lms = new int[m];
+        for (int i = 1, p = 0; i < n; i++)
+            if (!ls[i - 1] && ls[i])
+                lms[p++] = i;
+
+        int[] buf = new int[upper + 1];
+        induce(s, upper, sa, ls, sumL, sumS, lms, buf);
+
+        if (m > 0) {
+            int[] sortedLms = new int[m];
+            int p = 0;
+            for (int v : sa)
+                if (lmsMap[v] != -1)
+                    sortedLms[p++] = v;
+
+            // Ранги LMS-подстрок в порядке их позиций в строке
+            int[] recS = new int[m];
+            int recUpper = 0;
+            recS[lmsMap[sortedLms[0]]] = 0;
+            for (int i = 1; i < m; i++) {
+                int l = sortedLms[i - 1];
+                int r = sortedLms[i];
+                int endL = lmsMap[l] + 1 < m ? lms[lmsMap[l] + 1] : n;
+                int endR = lmsMap[r] + 1 < m ? lms[lmsMap[r] + 1] : n;
+                boolean same = true;
+                if (endL - l != endR - r) {
+                    same = false;
+                } else {
+                    while (l < endL && s[l] == s[r]) {
+                        l++;
+                        r++;
+                    }
+                    if (l == n || s[l] != s[r])
+                        same = false;
+                }
+                if (!same)
+                    recUpper++;
+                recS[lmsMap[sortedLms[i]]] = recUpper;
+            }
+
+            int[] recSa = build(recS, recUpper);
+            for (int i = 0; i < m; i++)
+                sortedLms[i] = lms[recSa[i]];
+            induce(s, upper, sa, ls, sumL, sumS, sortedLms, buf);
+        }
+        return sa;
+    }
+
+    // Индуцированная сортировка: LMS-суффиксы в концы своих S-корзин, затем L-суффиксы проходом слева, S - справа
+    private static void induce(int[] s, int upper, int[] sa, boolean[] ls, int[] sumL, int[] sumS, int[] lms, int[] buf) {
+        int n = s.length;
+        Arrays.fill(sa, -1);
+        System.arraycopy(sumS, 0, buf, 0, upper + 1);
+        for (int d : lms)
+            if (d != n)
+                sa[buf[s[d]]++] = d;
+        System.arraycopy(sumL, 0, buf, 0, upper + 1);
+        sa[buf[s[n - 1]]++] = n - 1;
+        for (int i = 0; i < n; i++) {
+            int v = sa[i];
+            if (v >= 1 && !ls[v - 1])
+                sa[buf[s[v - 1]]++] = v - 1;
+        }
+        System.arraycopy(sumL, 0, buf, 0, upper + 1);
+        for (int i = n - 1; i >= 0; i--) {
+            int v = sa[i];
+            if (v >= 1 && ls[v - 1])
+                sa[--buf[s[v - 1] + 1]] = v - 1;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Поиск символа по накопленной частоте при декодировании.
+ *
+ * Вместо линейного прохода по sumProbs (до alphabetSize сравнений на каждый символ) диапазон
+ * [0; totalCount) делится на не более чем 2^TABLE_BITS корзин одинаковой ширины, и для каждой корзины
+ * запоминается символ, в интервал которого попадает её начало. Поиск - это одно обращение к таблице и
+ * двоичный поиск между символами начала этой и следующей корзины. Для большинства корзин эти символы
+ * совпадают, поэтому стоимость декодирования символа практически не зависит от размера алфавита.
+ *
+ * Таблица строится один раз по probs и после этого не меняется.
+ */
+public class SymbolLookup {
+    private static final int TABLE_BITS = 12;
+
+    // cumFreqs[c] - начало интервала символа c, cumFreqs[alphabetSize] - totalCount
+    private final long[] cumFreqs;
+    private final int[] table;
+    private final int shift;
+    private final long totalCount;
+    private final int alphabetSize;
+
+    public SymbolLookup(int[] probs) {
+        this(toCumFreqs(probs), probs.length);
+    }
+
+    public SymbolLookup(long[] probs) {
+        this(toCumFreqs(probs), probs.length);
+    }
+
+    private SymbolLookup(long[] cumFreqs, int alphabetSize) {
+        this.cumFreqs = cumFreqs;
+        this.alphabetSize = alphabetSize;
+        this.totalCount = cumFreqs[alphabetSize];
+        if (alphabetSize < 1 || totalCount <= 0)
+            throw new IllegalArgumentException("probs should contain at least one non-zero value");
+
+        // Ширина корзины - 2^shift, корзин не больше 2^TABLE_BITS
+        int bits = 64 - Long.numberOfLeadingZeros(totalCount - 1);
+        this.shift = Math.max(0, bits - TABLE_BITS);
+        int size = ( int ) ((totalCount - 1) >>> shift) + 1;
+
+        // Последний элемент - граница для последней корзины
+        table = new int[size + 1];
+        int c = 0;
+        for (int k = 0; k < size; k++) {
+            long start = (long) k << shift;
+            while (cumFreqs[c + 1] <= start) c++;
+            table[k] = c;
+        }
+        table[size] = alphabetSize - 1;
+    }
+
+    private static long[] toCumFreqs(int[] probs) {
+        long[] cumFreqs = new long[probs.length + 1];
+        for (int i = 0; i < probs.length; i++)
+            cumFreqs[i + 1] = cumFreqs[i] + (probs[i] & 0xffffffffL);
+        return cumFreqs;
+    }
+
+    private static long[] toCumFreqs(long[] probs) {
+        long[] cumFreqs = new long[probs.length + 1];
+        for (int i = 0; i < probs.length; i++)
+            cumFreqs[i + 1] = cumFreqs[i] + probs[i];
+        return cumFreqs;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Находит символ c, для которого sumProbs[c] <= threshold < sumProbs[c] + probs[c].
+     *
+     * @param threshold беззнаковое значение накопленной частоты
+     * @return символ или alphabetSize, если threshold >= totalCount (так же, как и при линейном поиске)
+     */
+    public int find(long threshold) {
+        if (compareUnsigned(threshold, totalCount) >= 0)
+            return alphabetSize;
+
+        int k = ( int ) (threshold >>> shift);
+        int lo = table[k];
+        int hi = table[k + 1];
+        // Ищем последний символ с cumFreqs[c] <= threshold, символы с нулевой частотой при этом пропускаются
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (cumFreqs[mid] <= threshold) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    private static int compareUnsigned(long a, long b){
+        return Long.compare( a ^ 0x8000000000000000L, b ^ 0x8000000000000000L );
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Заранее обученная статическая модель байтового алфавита для коротких сообщений. Для сообщения в несколько
+ * сотен байт отдельный проход count() и таблица частот в заголовке (в {@link CompressedContainer} - десятки
+ * байт даже в сжатом виде) обходятся дороже, чем экономит кодирование, поэтому probs строятся один раз по образцу (например, book1.txt)
+ * и сохраняются под номером id, а сообщения ссылаются на модель только по id (см. {@link TrainedModelCodec}).
+ *
+ * probs строятся count() кодера {@link RangeCoder} и масштабируются до степени двойки, поэтому обоим кодерам
+ * хватает точности, а деление в них заменяется сдвигом. Модель неизменяема: {@link RangeCoder} и
+ * {@link CarrylessRangeCoder64} настраиваются один раз в конструкторе и дальше только кодируют, так что
+ * один экземпляр можно использовать из любого числа потоков.
+ *
+ * Формат {@link #toByteArray()} (все числа - big-endian):
+ * <pre>
+ * magic          4 байта  'R' 'C' 'T' 'M'
+ * version        1 байт
+ * id             4 байта
+ * probs          256 * 4 байта
+ * </pre>
+ */
+public final class TrainedModel {
+    private static final int MAGIC = ('R' << 24) | ('C' << 16) | ('T' << 8) | 'M';
+    private static final int VERSION = 1;
+    private static final int ALPHABET_SIZE = 256;
+    // magic + version + id
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+
+    // minRangeBits для CarrylessRangeCoder64; сумма probs (до 2^23, как у RangeCoder) всегда помещается
+    static final int CARRYLESS_MIN_RANGE_BITS = 32;
+
+    private final int id;
+    private final int[] probs;
+    private final RangeCoder rangeCoder;
+    private final CarrylessRangeCoder64 carrylessCoder;
+
+    private TrainedModel(int id, int[] probs) {
+        if (id < 0)
+            throw new IllegalArgumentException("id should be >= 0");
+        for (int prob : probs) {
+            if (prob <= 0)
+                throw new IllegalArgumentException("probs should be > 0, otherwise some bytes can not be encoded");
+        }
+        this.id = id;
+        rangeCoder = new RangeCoder(ALPHABET_SIZE);
+        rangeCoder.setProbs(probs);
+        carrylessCoder = new CarrylessRangeCoder64(ALPHABET_SIZE, CARRYLESS_MIN_RANGE_BITS);
+        carrylessCoder.setProbs(probs);
+        this.probs = probs.clone();
+    }
+
+    /**
+     * Строит модель по образцу corpus[offset; offset + length). Байты, которых нет в образце, получают
+     * минимальную частоту, поэтому модель кодирует любые сообщения, хотя и хуже.
+     */
+    public static TrainedModel train(int id, byte[] corpus, int offset, int length) {
+        RangeCoder coder = new RangeCoder(ALPHABET_SIZE);
+        coder.count(corpus, offset, length);
+        coder.normalizeToPowerOfTwo();
+        return new TrainedModel(id, coder.getProbs());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int[] getProbs() {
+        return probs.clone();
+    }
+
+    RangeCoder getRangeCoder() {
+        return rangeCoder;
+    }
+
+    CarrylessRangeCoder64 getCarrylessCoder() {
+        return carrylessCoder;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + ALPHABET_SIZE * 4);
+        out.putInt(MAGIC);
+        out.put(( byte ) VERSION);
+        out.putInt(id);
+        for (int prob : probs)
+            out.putInt(prob);
+        return out.array();
+    }
+
+    /**
+     * Читает модель, записанную {@link #toByteArray()}, начиная с позиции in; позиция сдвигается за её конец.
+     */
+    public static TrainedModel read(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a trained model");
+        int version = in.get() & 0xff;
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        int id = in.getInt();
+        if (id < 0 || in.remaining() < ALPHABET_SIZE * 4)
+            throw new IllegalArgumentException("Corrupted trained model");
+        int[] probs = new int[ALPHABET_SIZE];
+        for (int i = 0; i < ALPHABET_SIZE; i++)
+            probs[i] = in.getInt();
+        // setProbs в конструкторе проверяет, что probs подходят обоим кодерам
+        return new TrainedModel(id, probs);
+    }
+
+    public void save(Path path) throws IOException {
+        Files.write(path, toByteArray());
+    }
+
+    public static TrainedModel load(Path path) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+}
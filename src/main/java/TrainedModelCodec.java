@@ -0,0 +1,151 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Сжатие коротких сообщений заранее обученными моделями ({@link TrainedModel}). Вместо таблицы частот
+ * сообщение несёт только номер модели, а модели с этими номерами должны быть зарегистрированы и у кодера,
+ * и у декодера. Ни count(), ни разбора таблицы при этом не нужно, так что и заголовок, и задержка
+ * на сообщение в несколько сотен байт уменьшаются в разы по сравнению с {@link CompressedContainer}.
+ *
+ * Формат сообщения:
+ * <pre>
+ * coder          1 байт   CompressedContainer.CODER_RANGE или CODER_CARRYLESS64
+ * modelId        varint
+ * length         varint   количество байт исходного сообщения
+ * payload        до конца сообщения
+ * </pre>
+ * varint - 7 бит на байт, младшие первыми, старший бит байта означает, что число продолжается.
+ *
+ * Экземпляр потокобезопасен: регистрировать модели и кодировать можно из любых потоков.
+ */
+public class TrainedModelCodec {
+    // coder + два varint по 5 байт
+    private static final int MAX_HEADER_SIZE = 1 + 5 + 5;
+
+    private final ConcurrentHashMap<Integer, TrainedModel> models = new ConcurrentHashMap<Integer, TrainedModel>();
+
+    /**
+     * @throws IllegalArgumentException если под тем же id уже зарегистрирована другая модель
+     */
+    public void register(TrainedModel model) {
+        TrainedModel previous = models.putIfAbsent(model.getId(), model);
+        if (previous != null && previous != model)
+            throw new IllegalArgumentException("Model " + model.getId() + " is already registered");
+    }
+
+    public TrainedModel getModel(int id) {
+        TrainedModel model = models.get(id);
+        if (model == null)
+            throw new IllegalArgumentException("Unknown model: " + id);
+        return model;
+    }
+
+    /**
+     * @param coder CompressedContainer.CODER_RANGE или CODER_CARRYLESS64
+     */
+    public byte[] encode(int modelId, int coder, byte[] data, int offset, int length) {
+        // Почти все сообщения помещаются с первого раза: хуже 12 бит на байт модель кодирует только чужие данные
+        byte[] buffer = new byte[MAX_HEADER_SIZE + length + (length >>> 1) + 16];
+        int n;
+        while ((n = encodeInto(modelId, coder, data, offset, length, buffer, 0)) < 0)
+            buffer = new byte[buffer.length * 2];
+        return Arrays.copyOf(buffer, n);
+    }
+
+    /**
+     * Кодирует сообщение src[off; off + len) в dst начиная с dstOff, ничего не выделяя.
+     *
+     * @return количество записанных в dst байт или -1, если в dst не хватило места
+     */
+    public int encodeInto(int modelId, int coder, byte[] src, int off, int len, byte[] dst, int dstOff) {
+        TrainedModel model = getModel(modelId);
+        if (dst.length - dstOff < MAX_HEADER_SIZE)
+            return -1;
+        int pos = dstOff;
+        dst[pos++] = ( byte ) coder;
+        pos = writeVarint(modelId, dst, pos);
+        pos = writeVarint(len, dst, pos);
+        int payload;
+        switch (coder) {
+            case CompressedContainer.CODER_RANGE:
+                payload = model.getRangeCoder().encodeInto(src, off, len, dst, pos);
+                break;
+            case CompressedContainer.CODER_CARRYLESS64:
+                payload = model.getCarrylessCoder().encodeInto(src, off, len, dst, pos);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported coder: " + coder);
+        }
+        return payload < 0 ? -1 : pos + payload - dstOff;
+    }
+
+    /**
+     * @return длина исходного сообщения, закодированного в src[off; off + len)
+     */
+    public static int decodedLength(byte[] src, int off, int len) {
+        int[] pos = { off + 1 };
+        readVarint(src, pos, off + len);
+        return readVarint(src, pos, off + len);
+    }
+
+    public byte[] decode(byte[] src, int off, int len) {
+        byte[] result = new byte[decodedLength(src, off, len)];
+        decodeInto(src, off, len, result, 0);
+        return result;
+    }
+
+    /**
+     * Декодирует сообщение src[off; off + len) в dst начиная с dstOff; места в dst должно хватать на
+     * {@link #decodedLength} байт.
+     *
+     * @return длина декодированного сообщения
+     */
+    public int decodeInto(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int end = off + len;
+        if (len < 1)
+            throw new IllegalArgumentException("Unexpected end of compressed data");
+        int coder = src[off] & 0xff;
+        int[] pos = { off + 1 };
+        TrainedModel model = getModel(readVarint(src, pos, end));
+        int length = readVarint(src, pos, end);
+        if (dst.length - dstOff < length)
+            throw new IllegalArgumentException("Not enough space in dst: " + length + " bytes required");
+        switch (coder) {
+            case CompressedContainer.CODER_RANGE:
+                model.getRangeCoder().decodeInto(src, pos[0], end - pos[0], dst, dstOff, length);
+                break;
+            case CompressedContainer.CODER_CARRYLESS64:
+                model.getCarrylessCoder().decodeInto(src, pos[0], end - pos[0], dst, dstOff, length);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported coder: " + coder);
+        }
+        return length;
+    }
+
+    private static int writeVarint(int value, byte[] dst, int pos) {
+        while ((value & ~0x7f) != 0) {
+            dst[pos++] = ( byte ) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = ( byte ) value;
+        return pos;
+    }
+
+    // pos[0] - текущая позиция в src, сдвигается за прочитанное число
+    private static int readVarint(byte[] src, int[] pos, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= end)
+                throw new IllegalArgumentException("Unexpected end of compressed data");
+            int b = src[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                if (value < 0)
+                    throw new IllegalArgumentException("Corrupted header");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupted header");
+    }
+}
@@ -0,0 +1,1364 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class CoderTests {
+    static byte[] readResource(String name) throws IOException {
+        InputStream in = CoderTests.class.getClassLoader().getResourceAsStream( name );
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(  );
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read( buf )) != -1)
+                out.write( buf, 0, n );
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static int[] toMessage(byte[] bytes) {
+        int[] message = new int[bytes.length];
+        for(int i=0; i < bytes.length;i++)
+            message[i]=bytes[i] & 0xFF;
+        return message;
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 257 );
+        coder.count( toMessage( bytes ) );
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(  );
+        CompressorOutputStream out = new CompressorOutputStream( encoded, coder, 1024 );
+        // Пишем кусками разного размера, чтобы проверить работу буфера
+        int pos = 0;
+        for (int chunk = 1; pos < bytes.length; chunk = chunk * 3 % 10007 + 1) {
+            int len = Math.min( chunk, bytes.length - pos );
+            out.write( bytes, pos, len );
+            pos += len;
+        }
+        out.close();
+
+        DecompressorInputStream in = new DecompressorInputStream(
+                new ByteArrayInputStream( encoded.toByteArray() ), coder, 1000 );
+        byte[] decoded = new byte[bytes.length];
+        int readed = 0;
+        int n;
+        while ((n = in.read( decoded, readed, Math.min( 4096, decoded.length - readed ) )) > 0)
+            readed += n;
+        Assert.assertEquals( bytes.length, readed );
+        Assert.assertEquals( -1, in.read() );
+        Assert.assertArrayEquals( bytes, decoded );
+    }
+
+    @Test
+    public void testStreamsEmpty() throws IOException {
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 257 );
+        coder.count( new int[0] );
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(  );
+        new CompressorOutputStream( encoded, coder ).close();
+
+        DecompressorInputStream in = new DecompressorInputStream(
+                new ByteArrayInputStream( encoded.toByteArray() ), coder );
+        Assert.assertEquals( -1, in.read() );
+    }
+
+    @Test
+    public void testBytePaths() throws IOException {
+        byte[] bytes = Arrays.copyOf( readResource( "book1.txt" ), 100000 );
+        int[] message = toMessage( bytes );
+        ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length + 10 );
+        direct.position( 10 );
+        direct.put( bytes );
+        direct.position( 10 );
+
+        CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256 );
+        carryless64.count( message );
+        byte[] expected = carryless64.encode( message ).toByteArray();
+        carryless64.count( direct );
+        Assert.assertArrayEquals( expected, carryless64.encode( bytes, 0, bytes.length ).toByteArray() );
+        Assert.assertArrayEquals( expected, carryless64.encode( direct ).toByteArray() );
+        Assert.assertEquals( 10, direct.position() );
+        ByteBuffer decoded = ByteBuffer.allocateDirect( bytes.length );
+        carryless64.decode( new ByteArrayInputStream( expected ), decoded );
+        Assert.assertEquals( ByteBuffer.wrap( bytes ), decoded );
+
+        RangeCoder range = new RangeCoder( 256 );
+        range.count( bytes, 0, bytes.length );
+        expected = range.encode( message ).toByteArray();
+        Assert.assertArrayEquals( expected, range.encode( direct ).toByteArray() );
+        byte[] decodedBytes = new byte[bytes.length + 1];
+        range.decode( new ByteArrayInputStream( expected ), decodedBytes, 1, bytes.length );
+        Assert.assertArrayEquals( bytes, Arrays.copyOfRange( decodedBytes, 1, decodedBytes.length ) );
+
+        CarrylessRangeCoder carryless = new CarrylessRangeCoder( 256 );
+        carryless.count( bytes, 0, bytes.length );
+        expected = carryless.encode( message ).toByteArray();
+        Assert.assertArrayEquals( expected, carryless.encode( direct ).toByteArray() );
+        decodedBytes = new byte[bytes.length];
+        carryless.decode( new ByteArrayInputStream( expected ), decodedBytes, 0, bytes.length );
+        Assert.assertArrayEquals( bytes, decodedBytes );
+
+        ArithmeticCoder arithmetic = new ArithmeticCoder( 256 );
+        arithmetic.count( bytes, 0, bytes.length );
+        expected = arithmetic.encode( message, true ).toByteArray();
+        arithmetic.count( direct );
+        Assert.assertArrayEquals( expected, arithmetic.encode( direct, true ).toByteArray() );
+        decodedBytes = new byte[bytes.length];
+        arithmetic.decode( new ByteArrayInputStream( expected ), decodedBytes, 0, bytes.length, true );
+        Assert.assertArrayEquals( bytes, decodedBytes );
+
+        ArithmeticCoder64 arithmetic64 = new ArithmeticCoder64( 256 );
+        arithmetic64.count( bytes, 0, bytes.length );
+        expected = arithmetic64.encode( message ).toByteArray();
+        arithmetic64.count( message );
+        Assert.assertArrayEquals( expected, arithmetic64.encode( direct ).toByteArray() );
+        decodedBytes = new byte[bytes.length];
+        arithmetic64.decode( new ByteArrayInputStream( expected ), decodedBytes, 0, bytes.length );
+        Assert.assertArrayEquals( bytes, decodedBytes );
+    }
+
+    @Test
+    public void testSymbolLookup() {
+        long[] probs = { 5, 0, 3, 1L << 40, 0, 7, 0 };
+        SymbolLookup lookup = new SymbolLookup( probs );
+        long low = 0;
+        for (int c = 0; c < probs.length; c++) {
+            if (probs[c] == 0) continue;
+            Assert.assertEquals( c, lookup.find( low ) );
+            Assert.assertEquals( c, lookup.find( low + probs[c] / 2 ) );
+            Assert.assertEquals( c, lookup.find( low + probs[c] - 1 ) );
+            low += probs[c];
+        }
+        Assert.assertEquals( probs.length, lookup.find( low ) );
+        Assert.assertEquals( probs.length, lookup.find( -1L ) );
+    }
+
+    @Test
+    public void testAdaptiveModel() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        int[] message = toMessage( bytes );
+
+        CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256 );
+        byte[] encoded = carryless64.encode( message, new AdaptiveModel( 256 ) ).toByteArray();
+        Assert.assertArrayEquals( message,
+                carryless64.decode( new ByteArrayInputStream( encoded ), message.length, new AdaptiveModel( 256 ) ) );
+
+        RangeCoder range = new RangeCoder( 256 );
+        // Маленький maxTotal - чтобы масштабирование частот происходило часто
+        encoded = range.encode( message, new AdaptiveModel( 256, 1 << 10, 24 ) ).toByteArray();
+        Assert.assertArrayEquals( message,
+                range.decode( new ByteArrayInputStream( encoded ), message.length, new AdaptiveModel( 256, 1 << 10, 24 ) ) );
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream(  );
+        CompressorOutputStream out = new CompressorOutputStream( streamed, carryless64, new AdaptiveModel( 257 ) );
+        out.write( bytes );
+        out.close();
+        DecompressorInputStream in = new DecompressorInputStream(
+                new ByteArrayInputStream( streamed.toByteArray() ), carryless64, new AdaptiveModel( 257 ) );
+        for (byte b : bytes)
+            Assert.assertEquals( b & 0xff, in.read() );
+        Assert.assertEquals( -1, in.read() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAdaptiveModelTotalTooLarge() {
+        new CarrylessRangeCoder64( 256, 12 ).encode( new int[] { 1 }, new AdaptiveModel( 256 ) );
+    }
+
+    @Test
+    public void testRangeCoderFlush() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        RangeCoder range = new RangeCoder( 256 );
+        // Без округления low при завершении последний символ декодировался неверно примерно на трети длин
+        for (int len = 1; len <= 600; len++) {
+            for (int off = 0; off < 3 * 7919; off += 7919) {
+                int[] message = toMessage( Arrays.copyOfRange( bytes, off, off + len ) );
+                range.count( message );
+                byte[] encoded = range.encode( message ).toByteArray();
+                Assert.assertArrayEquals( message, range.decode( new ByteArrayInputStream( encoded ), len ) );
+
+                byte[] dst = new byte[4 + 4 * len];
+                int written = range.encodeInto( bytes, off, len, dst, 0 );
+                Assert.assertArrayEquals( encoded, Arrays.copyOf( dst, written ) );
+
+                encoded = range.encode( message, new AdaptiveModel( 256 ) ).toByteArray();
+                Assert.assertArrayEquals( message,
+                        range.decode( new ByteArrayInputStream( encoded ), len, new AdaptiveModel( 256 ) ) );
+            }
+        }
+
+        // Один символ с частотой total не сужает интервал, нормализации нет - и лишнего nextByte перед
+        // старшими 23 битами low быть не должно
+        int[] single = {'a'};
+        int[] probs = new int[256];
+        probs['a'] = 1;
+        range.setProbs( probs );
+        byte[] encoded = range.encode( single ).toByteArray();
+        Assert.assertEquals( 3, encoded.length );
+        Assert.assertArrayEquals( single, range.decode( new ByteArrayInputStream( encoded ), 1 ) );
+    }
+
+    @Test
+    public void testCompressedContainer() throws IOException {
+        byte[] bytes = Arrays.copyOf( readResource( "book1.txt" ), 50000 );
+        int[][] coders = {
+                { CompressedContainer.CODER_ARITHMETIC, 32 },
+                { CompressedContainer.CODER_ARITHMETIC_PRECISE, 32 },
+                { CompressedContainer.CODER_ARITHMETIC64, 64 },
+                { CompressedContainer.CODER_RANGE, 0 },
+                { CompressedContainer.CODER_CARRYLESS, 0 },
+                { CompressedContainer.CODER_CARRYLESS64, 24 },
+                { CompressedContainer.CODER_ANS, 12 },
+        };
+        for (int[] coder : coders) {
+            byte[] container = CompressedContainer.encode( bytes, 0, bytes.length, coder[0], coder[1] );
+            Assert.assertArrayEquals( bytes, CompressedContainer.decodeBytes( container ) );
+            Assert.assertArrayEquals( toMessage( bytes ), CompressedContainer.decode(
+                    Channels.newChannel( new ByteArrayInputStream( container ) ) ) );
+        }
+
+        int[] message = { 1000, 5, 5, 5, 70000, 1000, 5 };
+        byte[] container = CompressedContainer.encode( message, 70001, CompressedContainer.CODER_CARRYLESS64, 32 );
+        Assert.assertArrayEquals( message, CompressedContainer.decode( container ) );
+
+        // encodeInto пишет тот же контейнер в готовый массив, в том числе из direct-буфера
+        ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length + 10 );
+        direct.position( 10 );
+        direct.put( bytes ).position( 10 );
+        container = CompressedContainer.encode( bytes, 0, bytes.length, CompressedContainer.CODER_CARRYLESS64, 32 );
+        byte[] dst = new byte[container.length + 3];
+        Assert.assertEquals( container.length, CompressedContainer.encodeInto(
+                direct, CompressedContainer.CODER_CARRYLESS64, 32, dst, 3 ) );
+        Assert.assertEquals( 10, direct.position() );
+        Assert.assertArrayEquals( container, Arrays.copyOfRange( dst, 3, dst.length ) );
+        Assert.assertEquals( -1, CompressedContainer.encodeInto(
+                direct, CompressedContainer.CODER_CARRYLESS64, 32, new byte[container.length - 1], 0 ) );
+        Assert.assertEquals( -1, CompressedContainer.encodeInto(
+                direct, CompressedContainer.CODER_CARRYLESS64, 32, new byte[10], 0 ) );
+    }
+
+    @Test
+    public void testBlockCompressor() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        // Размер блока не кратен длине - последний блок неполный
+        BlockCompressor compressor = new BlockCompressor( 100000, CompressedContainer.CODER_CARRYLESS64, 32 );
+        byte[] compressed = compressor.compress( bytes );
+        Assert.assertArrayEquals( bytes, compressor.decompress( compressed ) );
+
+        ForkJoinPool pool = new ForkJoinPool( 3 );
+        try {
+            BlockCompressor range = new BlockCompressor( 1 << 16, CompressedContainer.CODER_RANGE, 0, pool );
+            Assert.assertArrayEquals( bytes, range.decompress( range.compress( bytes ) ) );
+            // Параметры блоков берутся из заголовка
+            Assert.assertArrayEquals( bytes, range.decompress( compressed ) );
+        } finally {
+            pool.shutdown();
+        }
+
+        Assert.assertArrayEquals( new byte[0], compressor.decompress( compressor.compress( new byte[0] ) ) );
+    }
+
+    @Test
+    public void testFileCompressor() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        Path source = Files.createTempFile( "book1", ".txt" );
+        Path compressed = Files.createTempFile( "book1", ".rcf" );
+        Path decompressed = Files.createTempFile( "book1", ".out" );
+        try {
+            Files.write( source, bytes );
+            // Окно меньше пачки блоков - файл отображается по частям, блоки на границах окон переотображаются
+            FileCompressor compressor = new FileCompressor( 100000, CompressedContainer.CODER_CARRYLESS64, 32, 3, false, 250000 );
+            long size = compressor.compress( source, compressed );
+            Assert.assertEquals( Files.size( compressed ), size );
+            Assert.assertTrue( size < bytes.length * 2 / 3 );
+            Assert.assertEquals( bytes.length, compressor.decompress( compressed, decompressed ) );
+            Assert.assertArrayEquals( bytes, Files.readAllBytes( decompressed ) );
+
+            // Параметры блоков берутся из заголовка
+            FileCompressor ans = new FileCompressor( 1 << 16, CompressedContainer.CODER_ANS, 12, 2 );
+            ans.compress( source, compressed );
+            compressor.decompress( compressed, decompressed );
+            Assert.assertArrayEquals( bytes, Files.readAllBytes( decompressed ) );
+
+            Files.write( source, new byte[0] );
+            compressor.compress( source, compressed );
+            Assert.assertEquals( 0, compressor.decompress( compressed, decompressed ) );
+        } finally {
+            Files.delete( source );
+            Files.delete( compressed );
+            Files.delete( decompressed );
+        }
+    }
+
+    @Test
+    public void testChecksums() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        int lastBlock = (bytes.length - 1) / 100000;
+        BlockCompressor compressor = new BlockCompressor( 100000, CompressedContainer.CODER_CARRYLESS64, 32,
+                ForkJoinPool.commonPool(), true );
+        byte[] compressed = compressor.compress( bytes );
+        Assert.assertEquals( -1, compressor.verify( compressed ) );
+        Assert.assertArrayEquals( bytes, compressor.decompress( compressed ) );
+        // Последний байт принадлежит последнему блоку
+        compressed[compressed.length - 1] ^= 1;
+        Assert.assertEquals( lastBlock, compressor.verify( compressed ) );
+        try {
+            compressor.decompress( compressed );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+
+        Path source = Files.createTempFile( "book1", ".txt" );
+        Path packed = Files.createTempFile( "book1", ".rcf" );
+        Path unpacked = Files.createTempFile( "book1", ".out" );
+        try {
+            Files.write( source, bytes );
+            FileCompressor files = new FileCompressor( 100000, CompressedContainer.CODER_CARRYLESS64, 32, 3, true, 250000 );
+            files.compress( source, packed );
+            Assert.assertEquals( -1, files.verify( packed ) );
+            Assert.assertEquals( bytes.length, files.decompress( packed, unpacked ) );
+            Assert.assertArrayEquals( bytes, Files.readAllBytes( unpacked ) );
+
+            byte[] data = Files.readAllBytes( packed );
+            data[data.length - 1] ^= 1;
+            Files.write( packed, data );
+            Assert.assertEquals( lastBlock, files.verify( packed ) );
+            try {
+                files.decompress( packed, unpacked );
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // ожидаемо
+            }
+        } finally {
+            Files.delete( source );
+            Files.delete( packed );
+            Files.delete( unpacked );
+        }
+    }
+
+    @Test
+    public void testCompressionServer() throws Exception {
+        final byte[] bytes = readResource( "book1.txt" );
+        final CompressionServer server = new CompressionServer(
+                new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 2, 32, 1 << 20 );
+        server.start();
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int c = 0; c < 4; c++) {
+                final int client = c;
+                futures.add( executor.submit( new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try (CompressionClient compression = new CompressionClient( server.getAddress() )) {
+                            for (int size = client; size < 100000; size = size * 3 + 1) {
+                                byte[] compressed = compression.compress( bytes, client, size );
+                                Assert.assertArrayEquals( Arrays.copyOfRange( bytes, client, client + size ),
+                                        compression.decompress( compressed ) );
+                            }
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for (Future<?> future : futures)
+                future.get();
+
+            try (CompressionClient client = new CompressionClient( server.getAddress() )) {
+                try {
+                    client.decompress( new byte[] { 1, 2, 3 } );
+                    Assert.fail();
+                } catch (IOException e) {
+                    // ожидаемо
+                }
+                // После ошибки в данных соединение остаётся рабочим
+                byte[] compressed = client.compress( bytes, 0, 1000 );
+                Assert.assertArrayEquals( Arrays.copyOf( bytes, 1000 ), client.decompress( compressed ) );
+                // Контейнеры других кодеров сервер не распаковывает
+                try {
+                    client.decompress( CompressedContainer.encode( bytes, 0, 1000, CompressedContainer.CODER_ANS, 12 ) );
+                    Assert.fail();
+                } catch (IOException e) {
+                    // ожидаемо
+                }
+                Assert.assertTrue( client.stats().startsWith( "requests=" ) );
+                try {
+                    // Больше maxMessageSize - ошибка, и сервер закрывает соединение
+                    client.compress( new byte[(1 << 20) + 1], 0, (1 << 20) + 1 );
+                    Assert.fail();
+                } catch (IOException e) {
+                    // ожидаемо
+                }
+            }
+            CompressionServer.Metrics metrics = server.getMetrics();
+            Assert.assertEquals( 3, metrics.getErrors() );
+            Assert.assertEquals( 0, metrics.getQueueDepth() );
+            Assert.assertTrue( metrics.getMaxQueueDepth() >= 1 );
+            Assert.assertTrue( metrics.getRequests() > 40 );
+            // Буферы переиспользуются, а не выделяются на каждый запрос
+            Assert.assertTrue( metrics.getAllocatedBuffers() < metrics.getRequests() );
+        } finally {
+            executor.shutdown();
+            server.close();
+        }
+
+        Path socket = Files.createTempDirectory( "compression" ).resolve( "server.sock" );
+        try {
+            CompressionServer unix;
+            try {
+                unix = new CompressionServer( CompressionServer.unixAddress( socket ), 1 );
+            } catch (UnsupportedOperationException e) {
+                // Unix-сокеты есть только начиная с Java 16
+                return;
+            }
+            unix.start();
+            try (CompressionClient client = new CompressionClient( unix.getAddress() )) {
+                Assert.assertArrayEquals( bytes, client.decompress( client.compress( bytes, 0, bytes.length ) ) );
+            } finally {
+                unix.close();
+            }
+            Assert.assertFalse( Files.exists( socket ) );
+        } finally {
+            Files.delete( socket.getParent() );
+        }
+    }
+
+    @Test
+    public void testTrainedModel() throws Exception {
+        final byte[] bytes = readResource( "book1.txt" );
+        final int half = bytes.length / 2;
+        TrainedModel model = TrainedModel.train( 7, bytes, 0, half );
+        // Модель сохраняется и загружается без изменений
+        Path file = Files.createTempFile( "book1", ".model" );
+        try {
+            model.save( file );
+            TrainedModel loaded = TrainedModel.load( file );
+            Assert.assertEquals( 7, loaded.getId() );
+            Assert.assertArrayEquals( model.getProbs(), loaded.getProbs() );
+            model = loaded;
+        } finally {
+            Files.delete( file );
+        }
+
+        final TrainedModelCodec codec = new TrainedModelCodec();
+        codec.register( model );
+        codec.register( model );
+        try {
+            codec.register( TrainedModel.train( 7, bytes, half, 1000 ) );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+
+        for (int coder : new int[] { CompressedContainer.CODER_RANGE, CompressedContainer.CODER_CARRYLESS64 }) {
+            byte[] message = Arrays.copyOfRange( bytes, half, half + 300 );
+            byte[] encoded = codec.encode( 7, coder, message, 0, message.length );
+            Assert.assertArrayEquals( message, codec.decode( encoded, 0, encoded.length ) );
+            // Без таблицы частот короткое сообщение сжимается лучше, чем в контейнере с count() и таблицей
+            Assert.assertTrue( encoded.length < message.length * 2 / 3 );
+            Assert.assertTrue( CompressedContainer.encode( message, 0, message.length, coder, 32 ).length > encoded.length + 50 );
+
+            // Байты, которых нет в образце, тоже кодируются
+            byte[] all = new byte[256];
+            for (int i = 0; i < all.length; i++)
+                all[i] = ( byte ) i;
+            encoded = codec.encode( 7, coder, all, 0, all.length );
+            Assert.assertArrayEquals( all, codec.decode( encoded, 0, encoded.length ) );
+            encoded = codec.encode( 7, coder, all, 0, 0 );
+            Assert.assertArrayEquals( new byte[0], codec.decode( encoded, 0, encoded.length ) );
+        }
+
+        // Одна модель на все потоки
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                futures.add( executor.submit( new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        byte[] dst = new byte[1024];
+                        byte[] decoded = new byte[512];
+                        for (int offset = half + thread; offset + 512 <= bytes.length; offset += 5003) {
+                            int coder = offset % 2 == 0 ? CompressedContainer.CODER_RANGE : CompressedContainer.CODER_CARRYLESS64;
+                            int n = codec.encodeInto( 7, coder, bytes, offset, 512, dst, 0 );
+                            Assert.assertEquals( 512, codec.decodeInto( dst, 0, n, decoded, 0 ) );
+                            Assert.assertArrayEquals( Arrays.copyOfRange( bytes, offset, offset + 512 ), decoded );
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            codec.decode( new byte[] { CompressedContainer.CODER_RANGE, 8, 0 }, 0, 3 );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо - модели 8 нет
+        }
+    }
+
+    @Test
+    public void testFrequencyTableCodec() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        // Таблицы после count() каждого кодера восстанавливаются точно и намного меньше 1 КБ
+        for (int blockSize = 16; blockSize <= bytes.length; blockSize *= 8) {
+            int[][] tables = new int[4][];
+            RangeCoder range = new RangeCoder( 256 );
+            range.count( bytes, 0, blockSize );
+            tables[0] = range.getProbs();
+            CarrylessRangeCoder64 carryless = new CarrylessRangeCoder64( 256, 16 );
+            carryless.count( bytes, 0, blockSize );
+            tables[1] = carryless.getProbs().clone();
+            AnsCoder ans = new AnsCoder( 256, 12 );
+            ans.count( bytes, 0, blockSize );
+            tables[2] = ans.getProbs();
+            carryless.normalizeToPowerOfTwo();
+            tables[3] = carryless.getProbs();
+            for (int[] probs : tables) {
+                byte[] table = FrequencyTableCodec.encode( probs );
+                Assert.assertArrayEquals( probs, FrequencyTableCodec.decode( table, 0, table.length, 256 ) );
+                Assert.assertTrue( table.length < 400 );
+            }
+        }
+
+        Random random = new Random( 25 );
+        for (int n = 0; n < 200; n++) {
+            int[] probs = new int[1 + random.nextInt( 1000 )];
+            int kind = n % 4;
+            for (int i = 0; i < probs.length; i++) {
+                if (kind == 0)
+                    probs[i] = random.nextInt( 3 ) == 0 ? 0 : random.nextInt( 100 );
+                else if (kind == 1)
+                    probs[i] = random.nextInt() >>> 1 + random.nextInt( 31 );
+                else if (kind == 2)
+                    probs[i] = 1000 + i * 3;
+                else
+                    probs[i] = 5;
+            }
+            byte[] table = FrequencyTableCodec.encode( probs );
+            Assert.assertArrayEquals( probs, FrequencyTableCodec.decode( table, 0, table.length, probs.length ) );
+        }
+        int[] extremes = { Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 1 };
+        byte[] table = FrequencyTableCodec.encode( extremes );
+        Assert.assertArrayEquals( extremes, FrequencyTableCodec.decode( table, 0, table.length, extremes.length ) );
+
+        // Контейнеры версии 1 с таблицей как есть по-прежнему читаются
+        RangeCoder coder = new RangeCoder( 256 );
+        coder.count( bytes, 0, 1000 );
+        byte[] payload = coder.encode( bytes, 0, 1000 ).toByteArray();
+        ByteBuffer old = ByteBuffer.allocate( 15 + 1024 + 4 + payload.length );
+        old.putInt( ('R' << 24) | ('C' << 16) | ('N' << 8) | 'T' ).put( ( byte ) 1 )
+                .put( ( byte ) CompressedContainer.CODER_RANGE ).put( ( byte ) 0 ).putInt( 256 ).putInt( 1000 );
+        for (int prob : coder.getProbs())
+            old.putInt( prob );
+        old.putInt( payload.length ).put( payload );
+        Assert.assertArrayEquals( Arrays.copyOf( bytes, 1000 ), CompressedContainer.decodeBytes( old.array() ) );
+        Assert.assertArrayEquals( toMessage( Arrays.copyOf( bytes, 1000 ) ),
+                CompressedContainer.decode( Channels.newChannel( new ByteArrayInputStream( old.array() ) ) ) );
+        Assert.assertTrue( CompressedContainer.encode( bytes, 0, 1000, CompressedContainer.CODER_RANGE, 0 ).length
+                < old.capacity() - 700 );
+
+        // Огромный alphabetSize из испорченного заголовка отвергается до выделения массивов под таблицу
+        byte[] container = CompressedContainer.encode( bytes, 0, 1000, CompressedContainer.CODER_RANGE, 0 );
+        ByteBuffer.wrap( container ).putInt( 7, Integer.MAX_VALUE - 16 );
+        try {
+            CompressedContainer.decode( container );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+        try {
+            CompressedContainer.decodeBytes( container );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+        try {
+            FrequencyTableCodec.decode( table, 0, table.length, table.length * 8 + 1 );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+    }
+
+    // Прежний последовательный подсчёт из count() кодеров
+    static int[] referenceHistogram(int[] message, int alphabetSize, long threshold) {
+        int[] rawProbs = new int[alphabetSize];
+        int maxCount = 0;
+        for (int symbol : message) {
+            int prob = ++rawProbs[symbol];
+            if (prob > maxCount) {
+                maxCount = prob;
+                if (maxCount == threshold) {
+                    for (int j = 0; j < alphabetSize; j++)
+                        rawProbs[j] <<= 1;
+                    maxCount <<= 1;
+                }
+            }
+        }
+        return rawProbs;
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        byte[] book = readResource( "book1.txt" );
+        // Больше двух полос по 1 Мб, чтобы подсчёт шёл параллельно
+        byte[] bytes = new byte[book.length * 4];
+        for (int i = 0; i < 4; i++)
+            System.arraycopy( book, 0, bytes, i * book.length, book.length );
+        final int[] message = toMessage( bytes );
+        final ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length + 3 );
+        direct.position( 3 );
+        direct.put( bytes );
+        direct.position( 3 );
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            // Порог достигается в первой, второй, последней полосе и недостижим
+            for (final long threshold : new long[]{ 1000, 1 << 17, 1 << 18, 800000, Long.MAX_VALUE }) {
+                int[] expected = referenceHistogram( message, 256, threshold );
+                Assert.assertArrayEquals( expected, Frequencies.histogram( message, null, message.length, 256, threshold ) );
+                Assert.assertArrayEquals( expected, pool.submit( () ->
+                        Frequencies.histogram( message, null, message.length, 256, threshold ) ).get() );
+                Assert.assertArrayEquals( expected, pool.submit( () ->
+                        Frequencies.histogram( null, direct, bytes.length, 256, threshold ) ).get() );
+                Assert.assertArrayEquals( expected, Frequencies.histogram( null,
+                        ByteBuffer.wrap( bytes, 0, bytes.length ), bytes.length, 256, threshold ) );
+            }
+            int[] last = referenceHistogram( message, 256, 1 );
+            Assert.assertArrayEquals( last, pool.submit( () ->
+                    Frequencies.histogram( message, null, message.length, 256, 1 ) ).get() );
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals( 3, direct.position() );
+    }
+
+    @Test
+    public void testSparseModel() {
+        // 16-битные отсчёты: синусоида с шумом, встречается малая часть алфавита
+        Random random = new Random( 7 );
+        int[] samples = new int[200000];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = 32768 + ( int ) (3000 * Math.sin( i / 50.0 )) + ( int ) (random.nextGaussian() * 40);
+
+        SparseModel model = SparseModel.count( samples, 1 << 16 );
+        Assert.assertTrue( model.getSymbolCount() < 10000 );
+        byte[] header = model.toByteArray();
+        Assert.assertTrue( header.length < model.getSymbolCount() * 4 );
+        ByteBuffer in = ByteBuffer.wrap( header );
+        SparseModel read = SparseModel.read( in );
+        Assert.assertFalse( in.hasRemaining() );
+        Assert.assertArrayEquals( header, read.toByteArray() );
+
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 1 << 16 );
+        byte[] encoded = coder.encode( samples, model ).toByteArray();
+        Assert.assertArrayEquals( samples, coder.decode( new ByteArrayInputStream( encoded ), samples.length, read ) );
+        // Не хуже плотной таблицы частот (ограничена только точностью)
+        coder.count( samples );
+        Assert.assertTrue( encoded.length <= coder.encode( samples ).size() * 1.001 );
+
+        // Алфавит 2^20, номера токенов
+        int[] tokens = new int[50000];
+        for (int i = 0; i < tokens.length; i++)
+            tokens[i] = Math.min( ( int ) Math.abs( random.nextGaussian() * 3000 ) * 97, (1 << 20) - 1 );
+        ArithmeticCoder64 arithmetic = new ArithmeticCoder64( 1 << 20 );
+        SparseModel tokenModel = SparseModel.count( tokens, 1 << 20, 30 );
+        encoded = arithmetic.encode( tokens, tokenModel ).toByteArray();
+        SparseModel tokenRead = SparseModel.read( ByteBuffer.wrap( tokenModel.toByteArray() ) );
+        Assert.assertArrayEquals( tokens, arithmetic.decode( new ByteArrayInputStream( encoded ), tokens.length, tokenRead ) );
+        // И с адаптивной моделью
+        encoded = arithmetic.encode( tokens, new AdaptiveModel( 1 << 20, 1 << 24, 32 ) ).toByteArray();
+        Assert.assertArrayEquals( tokens, arithmetic.decode( new ByteArrayInputStream( encoded ), tokens.length,
+                new AdaptiveModel( 1 << 20, 1 << 24, 32 ) ) );
+    }
+
+    @Test
+    public void testSeekIndex() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        int[] message = toMessage( bytes );
+        Random random = new Random( 3 );
+
+        CarrylessRangeCoder64 carryless = new CarrylessRangeCoder64( 256, 24 );
+        carryless.count( bytes, 0, bytes.length );
+        RangeCoder range = new RangeCoder( 256 );
+        range.count( bytes, 0, bytes.length );
+        RangeCoder rangePow2 = new RangeCoder( 256 );
+        rangePow2.count( bytes, 0, bytes.length );
+        rangePow2.normalizeToPowerOfTwo();
+
+        for (int coder = 0; coder < 3; coder++) {
+            SeekIndex index = new SeekIndex( 1000 );
+            byte[] plain;
+            byte[] encoded;
+            if (coder == 0) {
+                plain = carryless.encode( message ).toByteArray();
+                encoded = carryless.encode( bytes, 0, bytes.length, index ).toByteArray();
+            } else {
+                RangeCoder rc = coder == 1 ? range : rangePow2;
+                plain = rc.encode( message ).toByteArray();
+                encoded = rc.encode( message, index ).toByteArray();
+            }
+            // Индекс не меняет закодированные данные
+            Assert.assertArrayEquals( plain, encoded );
+            Assert.assertEquals( (bytes.length + 999) / 1000, index.size() );
+            SeekIndex read = SeekIndex.read( ByteBuffer.wrap( index.toByteArray() ) );
+
+            int[][] ranges = { { 0, 10 }, { 1000, 1 }, { 999, 2 }, { bytes.length - 5, 5 }, { 0, bytes.length }, { 500, 0 } };
+            List<int[]> checks = new ArrayList<int[]>( Arrays.asList( ranges ) );
+            for (int i = 0; i < 50; i++) {
+                int start = random.nextInt( bytes.length );
+                checks.add( new int[]{ start, random.nextInt( Math.min( 5000, bytes.length - start ) + 1 ) } );
+            }
+            for (int[] r : checks) {
+                int[] expected = Arrays.copyOfRange( message, r[0], r[0] + r[1] );
+                int[] decoded = coder == 0 ? carryless.decodeRange( encoded, 0, encoded.length, read, r[0], r[1] )
+                        : (coder == 1 ? range : rangePow2).decodeRange( encoded, 0, encoded.length, read, r[0], r[1] );
+                Assert.assertArrayEquals( expected, decoded );
+            }
+
+            byte[] dst = new byte[110];
+            if (coder == 0)
+                carryless.decodeRange( encoded, 0, encoded.length, index, 12345, dst, 10, 100 );
+            else
+                (coder == 1 ? range : rangePow2).decodeRange( encoded, 0, encoded.length, index, 12345, dst, 10, 100 );
+            Assert.assertArrayEquals( Arrays.copyOfRange( bytes, 12345, 12445 ), Arrays.copyOfRange( dst, 10, 110 ) );
+
+            try {
+                carryless.decodeRange( encoded, 0, encoded.length, index, bytes.length - 5, 6 );
+                Assert.fail();
+            } catch (IndexOutOfBoundsException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testInterleaved() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        int[] message = toMessage( bytes );
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 256 );
+        coder.count( bytes, 0, bytes.length );
+        for (int lanes = 1; lanes <= CarrylessRangeCoder64.MAX_LANES; lanes++) {
+            byte[] encoded = coder.encodeInterleaved( bytes, 0, bytes.length, lanes ).toByteArray();
+            Assert.assertArrayEquals( encoded, coder.encodeInterleaved( message, lanes ).toByteArray() );
+            byte[] decoded = new byte[bytes.length];
+            coder.decodeInterleaved( new ByteArrayInputStream( encoded ), decoded, 0, decoded.length );
+            Assert.assertArrayEquals( bytes, decoded );
+
+            // Символов меньше, чем дорожек
+            int[] shortMessage = Arrays.copyOf( message, lanes - 1 );
+            encoded = coder.encodeInterleaved( shortMessage, lanes ).toByteArray();
+            Assert.assertArrayEquals( shortMessage,
+                    coder.decodeInterleaved( new ByteArrayInputStream( encoded ), shortMessage.length ) );
+        }
+
+        // Частоты от другого файла: дорожкам не хватает первоначальной оценки размера
+        byte[] other = readResource( "pic.gif" );
+        for (int lanes = 1; lanes <= CarrylessRangeCoder64.MAX_LANES; lanes++) {
+            ByteBuffer src = ByteBuffer.wrap( other, 10, other.length - 10 );
+            byte[] encoded = coder.encodeInterleaved( src, lanes ).toByteArray();
+            Assert.assertEquals( 10, src.position() );
+            ByteBuffer dst = ByteBuffer.allocate( other.length - 10 );
+            coder.decodeInterleaved( new ByteArrayInputStream( encoded ), dst );
+            Assert.assertEquals( src, dst );
+        }
+    }
+
+    @Test
+    public void testAnsCoder() throws IOException {
+        for (String name : new String[] { "book1.txt", "binary.dll", "pic.gif" }) {
+            byte[] bytes = readResource( name );
+            AnsCoder coder = new AnsCoder( 256 );
+            coder.count( bytes, 0, bytes.length );
+            byte[] encoded = coder.encode( bytes, 0, bytes.length ).toByteArray();
+            byte[] decoded = new byte[bytes.length];
+            coder.decode( new ByteArrayInputStream( encoded ), decoded, 0, decoded.length );
+            Assert.assertArrayEquals( name, bytes, decoded );
+        }
+
+        // Один символ занимает все слоты, и маленькие сообщения
+        AnsCoder coder = new AnsCoder( 20, 5 );
+        for (int n = 0; n < 50; n++) {
+            int[] message = new int[n];
+            for (int i = 0; i < n; i++)
+                message[i] = (i * 7 % 5 == 0 || n < 10) ? 19 : i % 3;
+            coder.count( message );
+            byte[] encoded = coder.encode( message ).toByteArray();
+            Assert.assertArrayEquals( message, coder.decode( new ByteArrayInputStream( encoded ), n ) );
+        }
+    }
+
+    // Обрезанные и испорченные данные не должны приводить к зацикливанию декодера
+    @Test(timeout = 10000)
+    public void testAnsCoderCorruptedInput() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        AnsCoder coder = new AnsCoder( 256, 12 );
+        coder.count( bytes, 0, bytes.length );
+        byte[] dst = new byte[bytes.length];
+        try {
+            coder.decodeInto( new byte[8], 0, 8, dst, 0, dst.length );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+
+        byte[] encoded = coder.encode( bytes, 0, 1000 ).toByteArray();
+        Assert.assertEquals( encoded.length, coder.decodeInto( encoded, 0, encoded.length, dst, 0, 1000 ) );
+        try {
+            coder.decodeInto( encoded, 0, encoded.length - 1, dst, 0, 1000 );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+
+        // Последние 16 байт контейнера - всё закодированное сообщение вместе с начальным состоянием декодера
+        byte[] container = CompressedContainer.encode( bytes, 0, 10, CompressedContainer.CODER_ANS, 12 );
+        Arrays.fill( container, container.length - 16, container.length, ( byte ) 0 );
+        try {
+            CompressedContainer.decodeBytes( container );
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ожидаемо
+        }
+    }
+
+    // Много сообщений подряд из одного потока: каждый decode должен забрать ровно свои байты
+    @Test
+    public void testManyMessagesFromStream() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        int count = 2000;
+        int length = 37;
+        RangeCoder range = new RangeCoder( 256 );
+        range.count( bytes, 0, count * length );
+        CarrylessRangeCoder carryless = new CarrylessRangeCoder( 256 );
+        carryless.count( bytes, 0, count * length );
+        CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256 );
+        carryless64.count( bytes, 0, count * length );
+        AnsCoder ans = new AnsCoder( 256 );
+        ans.count( bytes, 0, count * length );
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(  );
+        for (int i = 0; i < count; i++) {
+            int offset = i * length;
+            if (i % 4 == 0) range.encode( bytes, offset, length ).writeTo( encoded );
+            else if (i % 4 == 1) carryless.encode( bytes, offset, length ).writeTo( encoded );
+            else if (i % 4 == 2) carryless64.encode( bytes, offset, length ).writeTo( encoded );
+            else ans.encode( bytes, offset, length ).writeTo( encoded );
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream( encoded.toByteArray() );
+        byte[] decoded = new byte[count * length];
+        for (int i = 0; i < count; i++) {
+            int offset = i * length;
+            if (i % 4 == 0) range.decode( in, decoded, offset, length );
+            else if (i % 4 == 1) carryless.decode( in, decoded, offset, length );
+            else if (i % 4 == 2) carryless64.decode( in, decoded, offset, length );
+            else ans.decode( in, decoded, offset, length );
+        }
+        Assert.assertEquals( 0, in.available() );
+        Assert.assertArrayEquals( Arrays.copyOf( bytes, count * length ), decoded );
+    }
+
+    @Test
+    public void testPowerOfTwoTotals() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+
+        int[] probs = { 3, 0, 1, 100, 7 };
+        Assert.assertEquals( 7, Frequencies.normalizeToPowerOfTwo( probs, 30 ) );
+        int total = 0;
+        for (int prob : probs) {
+            Assert.assertTrue( prob >= 1 );
+            total += prob;
+        }
+        Assert.assertEquals( 128, total );
+
+        // Нули поднимаются до 1, поэтому сумма не меньше количества символов
+        probs = new int[] { 0, 0, 0, 0, 3 };
+        Assert.assertEquals( 3, Frequencies.normalizeToPowerOfTwo( probs, 8 ) );
+        total = 0;
+        for (int prob : probs) {
+            Assert.assertTrue( prob >= 1 );
+            total += prob;
+        }
+        Assert.assertEquals( 8, total );
+        probs = new int[] { 0, 4 };
+        Assert.assertEquals( 2, Frequencies.normalizeToPowerOfTwo( probs, 8 ) );
+        Assert.assertArrayEquals( new int[] { 1, 3 }, probs );
+
+        RangeCoder range = new RangeCoder( 256 );
+        range.count( bytes, 0, bytes.length );
+        range.normalizeToPowerOfTwo();
+        byte[] encoded = range.encode( bytes, 0, bytes.length ).toByteArray();
+        byte[] decoded = new byte[bytes.length];
+        range.decode( new ByteArrayInputStream( encoded ), decoded, 0, decoded.length );
+        Assert.assertArrayEquals( bytes, decoded );
+
+        for (int minRangeBits : new int[] { 12, 24, 32, 56 }) {
+            CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256, minRangeBits );
+            carryless64.count( bytes, 0, bytes.length );
+            carryless64.normalizeToPowerOfTwo();
+            encoded = carryless64.encode( bytes, 0, bytes.length ).toByteArray();
+            decoded = new byte[bytes.length];
+            carryless64.decode( new ByteArrayInputStream( encoded ), decoded, 0, decoded.length );
+            Assert.assertArrayEquals( bytes, decoded );
+        }
+    }
+
+    @Test
+    public void testBitWriterReader() {
+        Random random = new Random( 42 );
+        // Ожидаемая последовательность бит
+        StringBuilder expected = new StringBuilder(  );
+        BitWriter writer = new BitWriter( 1 );
+        for (int i = 0; i < 20000; i++) {
+            int kind = random.nextInt( 3 );
+            if (kind == 0) {
+                int bit = random.nextInt( 2 );
+                writer.writeBit( bit );
+                expected.append( bit );
+            } else if (kind == 1) {
+                int n = random.nextInt( 33 );
+                int bits = random.nextInt();
+                writer.writeBits( bits, n );
+                for (int k = 0; k < n; k++)
+                    expected.append( (bits >>> k) & 1 );
+            } else {
+                int bit = random.nextInt( 2 );
+                int run = random.nextInt( 10 ) == 0 ? random.nextInt( 200 ) : random.nextInt( 3 );
+                writer.writeBitAndRun( bit, run );
+                expected.append( bit );
+                for (int k = 0; k < run; k++)
+                    expected.append( 1 - bit );
+            }
+        }
+        byte[] written = writer.finish().toByteArray();
+        Assert.assertEquals( (expected.length() + 7) / 8, written.length );
+
+        byte[] withTail = Arrays.copyOf( written, written.length + 3 );
+        ByteArrayInputStream in = new ByteArrayInputStream( withTail );
+        BitReader reader = new BitReader( in );
+        int pos = 0;
+        while (pos < expected.length()) {
+            int n = Math.min( random.nextInt( 33 ), expected.length() - pos );
+            if (random.nextBoolean()) {
+                Assert.assertEquals( expected.charAt( pos++ ) - '0', reader.readBit() );
+            } else {
+                int bits = reader.readBits( n );
+                for (int k = 0; k < n; k++)
+                    Assert.assertEquals( expected.charAt( pos++ ) - '0', (bits >>> k) & 1 );
+            }
+        }
+        // Добивка последнего байта и всё, что за концом данных - нули
+        Assert.assertEquals( 0, reader.readBits( written.length * 8 - expected.length() ) );
+        reader.finish();
+        // В потоке остались только байты после данных
+        Assert.assertEquals( 3, in.available() );
+    }
+
+    @Test
+    public void testEncodeIntoDecodeInto() throws Exception {
+        final byte[] bytes = readResource( "book1.txt" );
+        // Один экземпляр каждого кодера на все потоки
+        final RangeCoder range = new RangeCoder( 256 );
+        range.count( bytes, 0, bytes.length );
+        final CarrylessRangeCoder carryless = new CarrylessRangeCoder( 256 );
+        carryless.count( bytes, 0, bytes.length );
+        final CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256, 24 );
+        carryless64.count( bytes, 0, bytes.length );
+        final AnsCoder ans = new AnsCoder( 256 );
+        ans.count( bytes, 0, bytes.length );
+        final ArithmeticCoder arithmetic = new ArithmeticCoder( 256 );
+        arithmetic.count( bytes, 0, bytes.length );
+        final ArithmeticCoder64 arithmetic64 = new ArithmeticCoder64( 256 );
+        arithmetic64.count( bytes, 0, bytes.length );
+
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        try {
+            List<Future<?>> futures = new ArrayList<>(  );
+            for (int t = 0; t < 8; t++) {
+                final Random random = new Random( t );
+                futures.add( pool.submit( () -> {
+                    byte[] dst = new byte[8192];
+                    byte[] decoded = new byte[4096];
+                    for (int n = 0; n < 200; n++) {
+                        int len = random.nextInt( decoded.length + 1 );
+                        int off = random.nextInt( bytes.length - len );
+
+                        byte[] expected = range.encode( bytes, off, len ).toByteArray();
+                        int written = range.encodeInto( bytes, off, len, dst, 1 );
+                        Assert.assertArrayEquals( expected, Arrays.copyOfRange( dst, 1, 1 + written ) );
+                        Assert.assertEquals( written, range.decodeInto( dst, 1, written, decoded, 0, len ) );
+                        Assert.assertArrayEquals( Arrays.copyOfRange( bytes, off, off + len ), Arrays.copyOf( decoded, len ) );
+
+                        expected = carryless.encode( bytes, off, len ).toByteArray();
+                        written = carryless.encodeInto( bytes, off, len, dst, 1 );
+                        Assert.assertArrayEquals( expected, Arrays.copyOfRange( dst, 1, 1 + written ) );
+                        Assert.assertTrue( carryless.decodeInto( dst, 1, written, decoded, 0, len ) <= written );
+                        Assert.assertArrayEquals( Arrays.copyOfRange( bytes, off, off + len ), Arrays.copyOf( decoded, len ) );
+
+                        expected = carryless64.encode( bytes, off, len ).toByteArray();
+                        written = carryless64.encodeInto( bytes, off, len, dst, 1 );
+                        Assert.assertArrayEquals( expected, Arrays.copyOfRange( dst, 1, 1 + written ) );
+                        Assert.assertTrue( carryless64.decodeInto( dst, 1, written, decoded, 0, len ) <= written );
+                        Assert.assertArrayEquals( Arrays.copyOfRange( bytes, off, off + len ), Arrays.copyOf( decoded, len ) );
+
+                        expected = ans.encode( bytes, off, len ).toByteArray();
+                        written = ans.encodeInto( bytes, off, len, dst, 1 );
+                        Assert.assertArrayEquals( expected, Arrays.copyOfRange( dst, 1, 1 + written ) );
+                        Assert.assertEquals( written, ans.decodeInto( dst, 1, written, decoded, 0, len ) );
+                        Assert.assertArrayEquals( Arrays.copyOfRange( bytes, off, off + len ), Arrays.copyOf( decoded, len ) );
+
+                        expected = arithmetic.encode( bytes, off, len, true ).toByteArray();
+                        written = arithmetic.encodeInto( bytes, off, len, dst, 1, true );
+                        Assert.assertArrayEquals( expected, Arrays.copyOfRange( dst, 1, 1 + written ) );
+                        Assert.assertTrue( arithmetic.decodeInto( dst, 1, written, decoded, 0, len, true ) <= written );
+                        Assert.assertArrayEquals( Arrays.copyOfRange( bytes, off, off + len ), Arrays.copyOf( decoded, len ) );
+
+                        expected = arithmetic64.encode( bytes, off, len ).toByteArray();
+                        written = arithmetic64.encodeInto( bytes, off, len, dst, 1 );
+                        Assert.assertArrayEquals( expected, Arrays.copyOfRange( dst, 1, 1 + written ) );
+                        Assert.assertTrue( arithmetic64.decodeInto( dst, 1, written, decoded, 0, len ) <= written );
+                        Assert.assertArrayEquals( Arrays.copyOfRange( bytes, off, off + len ), Arrays.copyOf( decoded, len ) );
+                    }
+                    return null;
+                } ) );
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        // Не хватило места в dst
+        Assert.assertEquals( -1, range.encodeInto( bytes, 0, 1000, new byte[100], 0 ) );
+        Assert.assertEquals( -1, carryless.encodeInto( bytes, 0, 1000, new byte[100], 0 ) );
+        Assert.assertEquals( -1, carryless64.encodeInto( bytes, 0, 1000, new byte[100], 0 ) );
+        Assert.assertEquals( -1, ans.encodeInto( bytes, 0, 1000, new byte[100], 0 ) );
+        Assert.assertEquals( -1, arithmetic.encodeInto( bytes, 0, 1000, new byte[100], 0, false ) );
+        Assert.assertEquals( -1, arithmetic64.encodeInto( bytes, 0, 1000, new byte[100], 0 ) );
+    }
+
+    @Test
+    public void testContextModel() throws IOException {
+        byte[] bytes = readResource( "book1.txt" );
+        int[] message = toMessage( bytes );
+
+        CarrylessRangeCoder64 carryless64 = new CarrylessRangeCoder64( 256 );
+        int order0 = carryless64.encode( message, new AdaptiveModel( 256 ) ).size();
+        int previous = order0;
+        for (int order = 1; order <= 2; order++) {
+            byte[] encoded = carryless64.encode( message, new ContextModel( 256, order ) ).toByteArray();
+            Assert.assertArrayEquals( message,
+                    carryless64.decode( new ByteArrayInputStream( encoded ), message.length, new ContextModel( 256, order ) ) );
+            Assert.assertTrue( encoded.length < previous );
+            previous = encoded.length;
+        }
+
+        // Маленький бюджет памяти - контексты делят слоты, маленький maxTotal - частоты часто делятся пополам
+        RangeCoder range = new RangeCoder( 256 );
+        ContextModel model = new ContextModel( 256, 2, 1 << 14, 1 << 10, 24 );
+        Assert.assertTrue( model.getSlotCount() < 256 * 256 );
+        byte[] encoded = range.encode( message, model ).toByteArray();
+        model.reset();
+        Assert.assertArrayEquals( message, range.decode( new ByteArrayInputStream( encoded ), message.length, model ) );
+
+        // Частоты в каждом контексте согласованы друг с другом
+        model = new ContextModel( 20, 1, 1 << 10, 100, 7 );
+        Random random = new Random( 1 );
+        for (int n = 0; n < 5000; n++) {
+            int low = 0;
+            for (int c = 0; c < 20; c++) {
+                Assert.assertEquals( low, model.getLow( c ) );
+                Assert.assertTrue( model.getFreq( c ) >= 1 );
+                Assert.assertEquals( c, model.findSymbol( low ) );
+                Assert.assertEquals( c, model.findSymbol( low + model.getFreq( c ) - 1 ) );
+                low += model.getFreq( c );
+            }
+            Assert.assertEquals( low, model.getTotal() );
+            Assert.assertTrue( model.getTotal() <= model.getMaxTotal() );
+            model.update( random.nextInt( 4 ) == 0 ? random.nextInt( 20 ) : n % 3 );
+        }
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream(  );
+        CarrylessRangeCoder64 coder = new CarrylessRangeCoder64( 257 );
+        CompressorOutputStream out = new CompressorOutputStream( streamed, coder, new ContextModel( 257, 2 ) );
+        out.write( bytes );
+        out.close();
+        DecompressorInputStream in = new DecompressorInputStream(
+                new ByteArrayInputStream( streamed.toByteArray() ), coder, new ContextModel( 257, 2 ) );
+        for (byte b : bytes)
+            Assert.assertEquals( b & 0xff, in.read() );
+        Assert.assertEquals( -1, in.read() );
+    }
+
+    @Test
+    public void testDmc() throws IOException {
+        // Двоичный кодер на случайных битах с разными вероятностями, включая крайние
+        Random random = new Random( 5 );
+        int[] bits = new int[100000];
+        int[] probs = new int[bits.length];
+        BinaryEncoder encoder = new BinaryEncoder( 16 );
+        for (int i = 0; i < bits.length; i++) {
+            probs[i] = i % 10 == 0 ? (i % 20 == 0 ? 1 : (1 << BinaryEncoder.PROB_BITS) - 1)
+                    : 1 + random.nextInt( (1 << BinaryEncoder.PROB_BITS) - 1 );
+            bits[i] = random.nextInt( 1 << BinaryEncoder.PROB_BITS ) < probs[i] ? 1 : 0;
+            encoder.encode( bits[i], probs[i] );
+        }
+        byte[] encoded = encoder.finish().toByteArray();
+        BinaryDecoder decoder = new BinaryDecoder( encoded, 0, encoded.length );
+        for (int i = 0; i < bits.length; i++)
+            Assert.assertEquals( bits[i], decoder.decode( probs[i] ) );
+        Assert.assertEquals( encoded.length, decoder.getPosition() );
+
+        for (String name : new String[]{"book1.txt", "binary.dll", "pic.gif"}) {
+            byte[] bytes = readResource( name );
+            int order0 = new CarrylessRangeCoder64( 256 ).encode( toMessage( bytes ), new AdaptiveModel( 256 ) ).size();
+            // Маленький бюджет заставляет модель много раз сбрасываться
+            for (int maxNodes : new int[]{DmcModel.MIN_MAX_NODES, 1 << 16}) {
+                DmcCoder dmc = new DmcCoder( maxNodes );
+                encoded = dmc.encode( bytes, 0, bytes.length ).toByteArray();
+                ByteArrayInputStream in = new ByteArrayInputStream( encoded );
+                byte[] decoded = new byte[bytes.length];
+                dmc.decode( in, decoded, 0, decoded.length );
+                Assert.assertArrayEquals( bytes, decoded );
+                Assert.assertEquals( 0, in.available() );
+                if (maxNodes > DmcModel.MIN_MAX_NODES && !name.equals( "pic.gif" ))
+                    Assert.assertTrue( encoded.length < order0 );
+            }
+        }
+
+        DmcCoder dmc = new DmcCoder( 1 << 12 );
+        byte[] bytes = readResource( "book1.txt" );
+        ByteBuffer src = ByteBuffer.wrap( bytes, 100, 5000 );
+        encoded = dmc.encode( src ).toByteArray();
+        Assert.assertEquals( 100, src.position() );
+        ByteBuffer dst = ByteBuffer.allocateDirect( 5000 );
+        dmc.decode( new ByteArrayInputStream( encoded ), dst );
+        Assert.assertEquals( src, dst );
+
+        // Несколько сообщений подряд в одном потоке
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream(  );
+        for (int i = 0; i < 100; i++)
+            dmc.encode( bytes, i * 50, 50 ).writeTo( streamed );
+        ByteArrayInputStream in = new ByteArrayInputStream( streamed.toByteArray() );
+        byte[] decoded = new byte[5000];
+        for (int i = 0; i < 100; i++)
+            dmc.decode( in, decoded, i * 50, 50 );
+        Assert.assertEquals( 0, in.available() );
+        Assert.assertArrayEquals( Arrays.copyOf( bytes, 5000 ), decoded );
+    }
+
+    @Test
+    public void testAdaptiveBits() throws IOException {
+        // Поля разной длины всеми способами вперемешку
+        Random random = new Random( 7 );
+        int[] values = new int[30000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = random.nextInt( 4 ) == 0 ? random.nextInt( 1 << 12 ) : random.nextInt( 1 << 3 );
+        short[] probs = BinaryEncoder.newProbs( 3 << 12 );
+        BinaryEncoder encoder = new BinaryEncoder( 16 );
+        for (int i = 0; i < values.length; i++) {
+            encoder.encodeBit( probs, 0, values[i] < 8 ? 0 : 1 );
+            if (i % 3 == 0)
+                encoder.encodeBitTree( probs, 1 << 12, 12, values[i] );
+            else if (i % 3 == 1)
+                encoder.encodeReverseBitTree( probs, 2 << 12, 12, values[i] );
+            else
+                encoder.encodeDirectBits( values[i], 12 );
+        }
+        byte[] encoded = encoder.finish().toByteArray();
+
+        probs = BinaryEncoder.newProbs( 3 << 12 );
+        BinaryDecoder decoder = new BinaryDecoder( encoded, 0, encoded.length );
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals( values[i] < 8 ? 0 : 1, decoder.decodeBit( probs, 0 ) );
+            int value;
+            if (i % 3 == 0)
+                value = decoder.decodeBitTree( probs, 1 << 12, 12 );
+            else if (i % 3 == 1)
+                value = decoder.decodeReverseBitTree( probs, 2 << 12, 12 );
+            else
+                value = decoder.decodeDirectBits( 12 );
+            Assert.assertEquals( values[i], value );
+        }
+        Assert.assertEquals( encoded.length, decoder.getPosition() );
+        // Вероятности, сдвигаемые к одному и тому же биту, не доходят до 0 и 1
+        for (short p : probs)
+            Assert.assertTrue( p > 0 && p < (1 << BinaryEncoder.ADAPTIVE_BITS) );
+
+        byte[] bytes = readResource( "book1.txt" );
+        int previous = new CarrylessRangeCoder64( 256 ).encode( toMessage( bytes ), new AdaptiveModel( 256 ) ).size() * 101 / 100;
+        for (int contextBits = 0; contextBits <= 8; contextBits += 4) {
+            BitTreeCoder bitTree = new BitTreeCoder( contextBits );
+            encoded = bitTree.encode( bytes, 0, bytes.length ).toByteArray();
+            ByteArrayInputStream in = new ByteArrayInputStream( encoded );
+            byte[] decoded = new byte[bytes.length];
+            bitTree.decode( in, decoded, 0, decoded.length );
+            Assert.assertArrayEquals( bytes, decoded );
+            Assert.assertEquals( 0, in.available() );
+            Assert.assertTrue( encoded.length < previous );
+            previous = encoded.length;
+        }
+
+        BitTreeCoder bitTree = new BitTreeCoder( 8 );
+        ByteBuffer src = ByteBuffer.wrap( bytes, 100, 5000 );
+        encoded = bitTree.encode( src ).toByteArray();
+        ByteBuffer dst = ByteBuffer.allocateDirect( 5000 );
+        bitTree.decode( new ByteArrayInputStream( encoded ), dst );
+        Assert.assertEquals( src, dst );
+
+        // Несколько сообщений подряд в одном потоке
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream(  );
+        for (int i = 0; i < 100; i++)
+            bitTree.encode( bytes, i * 50, 50 ).writeTo( streamed );
+        ByteArrayInputStream in = new ByteArrayInputStream( streamed.toByteArray() );
+        byte[] decoded = new byte[5000];
+        for (int i = 0; i < 100; i++)
+            bitTree.decode( in, decoded, i * 50, 50 );
+        Assert.assertEquals( 0, in.available() );
+        Assert.assertArrayEquals( Arrays.copyOf( bytes, 5000 ), decoded );
+    }
+
+    @Test
+    public void testLz77() throws IOException {
+        for (int v = 0; v < 1 << 20; v++) {
+            int slot = Lz77Compressor.slot( v );
+            int base = Lz77Compressor.slotBase( slot );
+            Assert.assertTrue( v >= base && v - base < 1 << Lz77Compressor.slotExtraBits( slot ) );
+        }
+
+        byte[] book = readResource( "book1.txt" );
+        int order0 = new CarrylessRangeCoder64( 256 ).encode( toMessage( book ), new AdaptiveModel( 256 ) ).size();
+        int previous = order0;
+        for (int level : new int[]{1, 6}) {
+            Lz77Compressor lz77 = new Lz77Compressor( level );
+            byte[] compressed = lz77.compress( book );
+            Assert.assertArrayEquals( book, lz77.decompress( compressed ) );
+            Assert.assertTrue( compressed.length < previous );
+            previous = compressed.length;
+        }
+        for (String name : new String[]{"binary.dll", "pic.gif"}) {
+            byte[] bytes = readResource( name );
+            Lz77Compressor lz77 = new Lz77Compressor( 4 );
+            Assert.assertArrayEquals( bytes, lz77.decompress( lz77.compress( bytes ) ) );
+        }
+
+        // Маленькое окно - цепочки упираются в его край; длинные серии - совпадения, перекрывающиеся с собой
+        byte[] runs = new byte[200000];
+        Random random = new Random( 3 );
+        for (int i = 0; i < runs.length; ) {
+            int run = 1 + random.nextInt( 1000 );
+            byte b = ( byte ) random.nextInt( 4 );
+            for (int j = 0; j < run && i < runs.length; j++, i++)
+                runs[i] = b;
+        }
+        for (Lz77Compressor lz77 : new Lz77Compressor[]{
+                new Lz77Compressor( Lz77Compressor.MIN_WINDOW_BITS, 8, 4, 0, 16 ),
+                new Lz77Compressor( Lz77Compressor.MIN_WINDOW_BITS, 64, 8, Lz77Compressor.MAX_MATCH, Lz77Compressor.MAX_MATCH )}) {
+            byte[] compressed = lz77.compress( runs, 0, runs.length );
+            Assert.assertArrayEquals( runs, lz77.decompress( compressed ) );
+            Assert.assertTrue( compressed.length < runs.length / 20 );
+            Assert.assertArrayEquals( Arrays.copyOfRange( book, 10, 110 ), lz77.decompress( lz77.compress( book, 10, 100 ) ) );
+            Assert.assertEquals( 0, lz77.decompress( lz77.compress( new byte[0] ) ).length );
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLz77Corrupted() throws IOException {
+        byte[] compressed = new Lz77Compressor( 1 ).compress( readResource( "book1.txt" ), 0, 1000 );
+        // windowBits
+        compressed[5] = 0x7f;
+        new Lz77Compressor().decompress( compressed );
+    }
+
+    @Test
+    public void testSuffixArray() {
+        Random random = new Random( 11 );
+        for (int t = 0; t < 2000; t++) {
+            int n = random.nextInt( 50 );
+            int upper = random.nextInt( 4 );
+            final int[] s = new int[n];
+            for (int i = 0; i < n; i++)
+                s[i] = random.nextInt( upper + 1 );
+            Integer[] expected = new Integer[n];
+            for (int i = 0; i < n; i++)
+                expected[i] = i;
+            Arrays.sort( expected, (a, b) -> {
+                int i = a, j = b;
+                while (i < s.length && j < s.length && s[i] == s[j]) {
+                    i++;
+                    j++;
+                }
+                if (i == s.length || j == s.length)
+                    return (s.length - i) - (s.length - j);
+                return s[i] - s[j];
+            } );
+            int[] sa = SuffixArray.build( s, upper );
+            for (int i = 0; i < n; i++)
+                Assert.assertEquals( expected[i].intValue(), sa[i] );
+        }
+    }
+
+    @Test
+    public void testBwt() throws IOException {
+        byte[] book = readResource( "book1.txt" );
+        int order0 = new CarrylessRangeCoder64( 256 ).encode( toMessage( book ), new AdaptiveModel( 256 ) ).size();
+        BwtCompressor bwt = new BwtCompressor();
+        byte[] compressed = bwt.compress( book );
+        Assert.assertArrayEquals( book, bwt.decompress( compressed ) );
+        Assert.assertTrue( compressed.length < order0 / 2 );
+
+        // Мелкие блоки параллельно, данные со смещением
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            for (String name : new String[]{"binary.dll", "pic.gif"}) {
+                byte[] bytes = readResource( name );
+                BwtCompressor blocks = new BwtCompressor( 100000, pool );
+                Assert.assertArrayEquals( Arrays.copyOfRange( bytes, 7, bytes.length ),
+                        blocks.decompress( blocks.compress( bytes, 7, bytes.length - 7 ) ) );
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Длинные серии одного байта, короткие блоки, пустые данные
+        byte[] same = new byte[300000];
+        Arrays.fill( same, 100000, 300000, ( byte ) 'a' );
+        compressed = bwt.compress( same );
+        Assert.assertArrayEquals( same, bwt.decompress( compressed ) );
+        Assert.assertTrue( compressed.length < 100 );
+        BwtCompressor tiny = new BwtCompressor( 3 );
+        Assert.assertArrayEquals( Arrays.copyOf( book, 1000 ), tiny.decompress( tiny.compress( book, 0, 1000 ) ) );
+        Assert.assertEquals( 0, bwt.decompress( bwt.compress( new byte[0] ) ).length );
+    }
+}